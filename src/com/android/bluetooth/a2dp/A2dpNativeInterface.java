@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.a2dp;
+
+/**
+ * Calls from {@link A2dpStateMachine} into the native A2DP source interface.
+ */
+interface A2dpNativeInterface {
+    void initNative();
+    void cleanupNative();
+    boolean connectA2dpNative(byte[] address);
+    boolean disconnectA2dpNative(byte[] address);
+    void allowConnectionNative(int isValid);
+}
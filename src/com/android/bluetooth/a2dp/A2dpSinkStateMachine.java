@@ -41,6 +41,7 @@ import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.media.AudioManager.OnAudioFocusChangeListener;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelUuid;
 import android.os.PowerManager;
@@ -55,6 +56,7 @@ import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.avrcp.AvrcpControllerService;
+import com.android.bluetooth.util.SharedLooperPool;
 import com.android.internal.util.IState;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
@@ -132,7 +134,7 @@ final class A2dpSinkStateMachine extends StateMachine {
     }
 
     private A2dpSinkStateMachine(A2dpSinkService svc, Context context) {
-        super("A2dpSinkStateMachine");
+        super("A2dpSinkStateMachine", SharedLooperPool.acquire("A2dpSinkStateMachine"));
         mService = svc;
         mContext = context;
         mAdapter = BluetoothAdapter.getDefaultAdapter();
@@ -165,7 +167,9 @@ final class A2dpSinkStateMachine extends StateMachine {
     }
 
     public void doQuit() {
+        Looper looper = getHandler().getLooper();
         quitNow();
+        SharedLooperPool.release(looper, "A2dpSinkStateMachine");
     }
 
     public void cleanup() {
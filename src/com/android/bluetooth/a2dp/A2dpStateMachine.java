@@ -37,6 +37,7 @@ import android.bluetooth.IBluetooth;
 import android.content.Context;
 import android.media.AudioManager;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelUuid;
 import android.os.PowerManager;
@@ -50,6 +51,9 @@ import android.util.Log;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.btservice.ProfileService;
+import com.android.bluetooth.util.NativeInterfaceFactory;
+import com.android.bluetooth.util.SharedLooperPool;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.IState;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
@@ -114,12 +118,13 @@ final class A2dpStateMachine extends StateMachine {
     }
 
     private A2dpStateMachine(A2dpService svc, Context context) {
-        super("A2dpStateMachine");
+        super("A2dpStateMachine", SharedLooperPool.acquire("A2dpStateMachine"));
         mService = svc;
         mContext = context;
         mAdapter = BluetoothAdapter.getDefaultAdapter();
 
-        initNative();
+        mNativeInterface = createNativeInterface();
+        mNativeInterface.initNative();
 
         mDisconnected = new Disconnected();
         mPending = new Pending();
@@ -153,11 +158,13 @@ final class A2dpStateMachine extends StateMachine {
             broadcastConnectionState(mTargetDevice, BluetoothProfile.STATE_DISCONNECTED,
                                      BluetoothProfile.STATE_CONNECTING);
         }
+        Looper looper = getHandler().getLooper();
         quitNow();
+        SharedLooperPool.release(looper, "A2dpStateMachine");
     }
 
     public void cleanup() {
-        cleanupNative();
+        mNativeInterface.cleanupNative();
     }
 
         private class Disconnected extends State {
@@ -183,7 +190,7 @@ final class A2dpStateMachine extends StateMachine {
                     broadcastConnectionState(device, BluetoothProfile.STATE_CONNECTING,
                                    BluetoothProfile.STATE_DISCONNECTED);
 
-                    if (!connectA2dpNative(getByteAddress(device)) ) {
+                    if (!mNativeInterface.connectA2dpNative(getByteAddress(device)) ) {
                         broadcastConnectionState(device, BluetoothProfile.STATE_DISCONNECTED,
                                        BluetoothProfile.STATE_CONNECTING);
                         break;
@@ -240,7 +247,7 @@ final class A2dpStateMachine extends StateMachine {
                 } else {
                     //reject the connection and stay in Disconnected state itself
                     logi("Incoming A2DP rejected");
-                    disconnectA2dpNative(getByteAddress(device));
+                    mNativeInterface.disconnectA2dpNative(getByteAddress(device));
                     // the other profile connection should be initiated
                     AdapterService adapterService = AdapterService.getAdapterService();
                     if (adapterService != null) {
@@ -262,7 +269,7 @@ final class A2dpStateMachine extends StateMachine {
                 } else {
                     //reject the connection and stay in Disconnected state itself
                     logi("Incoming A2DP rejected");
-                    disconnectA2dpNative(getByteAddress(device));
+                    mNativeInterface.disconnectA2dpNative(getByteAddress(device));
                     // the other profile connection should be initiated
                     AdapterService adapterService = AdapterService.getAdapterService();
                     if (adapterService != null) {
@@ -297,7 +304,7 @@ final class A2dpStateMachine extends StateMachine {
                     deferMessage(message);
                     break;
                 case CONNECT_TIMEOUT:
-                    disconnectA2dpNative(getByteAddress(mTargetDevice));
+                    mNativeInterface.disconnectA2dpNative(getByteAddress(mTargetDevice));
                     onConnectionStateChanged(CONNECTION_STATE_DISCONNECTED,
                                              getByteAddress(mTargetDevice));
                     break;
@@ -345,7 +352,7 @@ final class A2dpStateMachine extends StateMachine {
                         }
 
                         if (mTargetDevice != null) {
-                            if (!connectA2dpNative(getByteAddress(mTargetDevice))) {
+                            if (!mNativeInterface.connectA2dpNative(getByteAddress(mTargetDevice))) {
                                 broadcastConnectionState(mTargetDevice,
                                                          BluetoothProfile.STATE_DISCONNECTED,
                                                          BluetoothProfile.STATE_CONNECTING);
@@ -423,7 +430,7 @@ final class A2dpStateMachine extends StateMachine {
                     } else {
                         // A2dp connection unchecked for this device
                         loge("Incoming A2DP rejected from pending state");
-                        disconnectA2dpNative(getByteAddress(device));
+                        mNativeInterface.disconnectA2dpNative(getByteAddress(device));
                     }
                 } else {
                     loge("Unknown device Connected: " + device);
@@ -510,7 +517,7 @@ final class A2dpStateMachine extends StateMachine {
 
                     broadcastConnectionState(device, BluetoothProfile.STATE_CONNECTING,
                                    BluetoothProfile.STATE_DISCONNECTED);
-                    if (!disconnectA2dpNative(getByteAddress(mCurrentDevice))) {
+                    if (!mNativeInterface.disconnectA2dpNative(getByteAddress(mCurrentDevice))) {
                         broadcastConnectionState(device, BluetoothProfile.STATE_DISCONNECTED,
                                        BluetoothProfile.STATE_CONNECTING);
                         break;
@@ -533,7 +540,7 @@ final class A2dpStateMachine extends StateMachine {
                     }
                     broadcastConnectionState(device, BluetoothProfile.STATE_DISCONNECTING,
                                    BluetoothProfile.STATE_CONNECTED);
-                    if (!disconnectA2dpNative(getByteAddress(device))) {
+                    if (!mNativeInterface.disconnectA2dpNative(getByteAddress(device))) {
                         broadcastConnectionState(device, BluetoothProfile.STATE_CONNECTED,
                                        BluetoothProfile.STATE_DISCONNECTING);
                         break;
@@ -751,29 +758,29 @@ final class A2dpStateMachine extends StateMachine {
         return Utils.getBytesFromAddress(device.getAddress());
     }
 
-    private void onConnectionStateChanged(int state, byte[] address) {
+    void onConnectionStateChanged(int state, byte[] address) {
         StackEvent event = new StackEvent(EVENT_TYPE_CONNECTION_STATE_CHANGED);
         event.valueInt = state;
         event.device = getDevice(address);
         sendMessage(STACK_EVENT, event);
     }
 
-    private void onAudioStateChanged(int state, byte[] address) {
+    void onAudioStateChanged(int state, byte[] address) {
         StackEvent event = new StackEvent(EVENT_TYPE_AUDIO_STATE_CHANGED);
         event.valueInt = state;
         event.device = getDevice(address);
         sendMessage(STACK_EVENT, event);
     }
 
-    private void onCheckConnectionPriority(byte[] address) {
+    void onCheckConnectionPriority(byte[] address) {
         BluetoothDevice device = getDevice(address);
         logw(" device " + device + " okToConnect " + okToConnect(device));
         if (okToConnect(device)) {
             // if connection is allowed then go ahead and connect
-            allowConnectionNative(IS_VALID_DEVICE);
+            mNativeInterface.allowConnectionNative(IS_VALID_DEVICE);
         } else {
             // if connection is not allowed DO NOT CONNECT
-            allowConnectionNative(IS_INVALID_DEVICE);
+            mNativeInterface.allowConnectionNative(IS_INVALID_DEVICE);
         }
     }
 
@@ -841,6 +848,52 @@ final class A2dpStateMachine extends StateMachine {
     final static int AUDIO_STATE_STOPPED = 1;
     final static int AUDIO_STATE_STARTED = 2;
 
+    private static NativeInterfaceFactory<A2dpStateMachine, A2dpNativeInterface>
+            sNativeInterfaceFactory;
+    private A2dpNativeInterface mNativeInterface;
+
+    /**
+     * Replace the JNI layer of the instances created from now on, for tests.
+     * @param factory null to go back to JNI
+     */
+    @VisibleForTesting
+    static void setNativeInterfaceFactory(
+            NativeInterfaceFactory<A2dpStateMachine, A2dpNativeInterface> factory) {
+        sNativeInterfaceFactory = factory;
+    }
+
+    private A2dpNativeInterface createNativeInterface() {
+        if (sNativeInterfaceFactory != null) return sNativeInterfaceFactory.create(this);
+        return new JniNativeInterface();
+    }
+
+    private class JniNativeInterface implements A2dpNativeInterface {
+        @Override
+        public void initNative() {
+            A2dpStateMachine.this.initNative();
+        }
+
+        @Override
+        public void cleanupNative() {
+            A2dpStateMachine.this.cleanupNative();
+        }
+
+        @Override
+        public boolean connectA2dpNative(byte[] address) {
+            return A2dpStateMachine.this.connectA2dpNative(address);
+        }
+
+        @Override
+        public boolean disconnectA2dpNative(byte[] address) {
+            return A2dpStateMachine.this.disconnectA2dpNative(address);
+        }
+
+        @Override
+        public void allowConnectionNative(int isValid) {
+            A2dpStateMachine.this.allowConnectionNative(isValid);
+        }
+    }
+
     private native static void classInitNative();
     private native void initNative();
     private native void cleanupNative();
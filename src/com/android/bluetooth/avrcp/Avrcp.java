@@ -34,7 +34,6 @@ import android.media.RemoteController;
 import android.media.RemoteController.MetadataEditor;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelUuid;
@@ -50,6 +49,9 @@ import android.content.BroadcastReceiver;
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.Utils;
+import com.android.bluetooth.util.CallbackLatency;
+import com.android.bluetooth.util.EventTrace;
+import com.android.bluetooth.util.SharedLooperPool;
 import com.android.internal.util.IState;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
@@ -77,6 +79,7 @@ public final class Avrcp {
     private Context mContext;
     private final AudioManager mAudioManager;
     private AvrcpMessageHandler mHandler;
+    private final CallbackLatency mCallbackLatency = new CallbackLatency();
     private RemoteController mRemoteController;
     private RemoteControllerWeak mRemoteControllerCb;
     private Metadata mMetadata;
@@ -121,6 +124,18 @@ public final class Avrcp {
     private static final int AVRC_RSP_CHANGED = 13;
     private static final int AVRC_RSP_INTERIM = 15;
 
+    /* AVRC PDU ids and pass through opcode, for the event trace */
+    private static final int AVRC_PDU_GET_ELEMENT_ATTR = 0x20;
+    private static final int AVRC_PDU_GET_PLAY_STATUS = 0x30;
+    private static final int AVRC_PDU_REGISTER_NOTIFICATION = 0x31;
+    private static final int AVRC_PDU_SET_ADDRESSED_PLAYER = 0x60;
+    private static final int AVRC_PDU_SET_BROWSED_PLAYER = 0x70;
+    private static final int AVRC_PDU_GET_FOLDER_ITEMS = 0x71;
+    private static final int AVRC_PDU_CHANGE_PATH = 0x72;
+    private static final int AVRC_PDU_GET_ITEM_ATTRIBUTES = 0x73;
+    private static final int AVRC_PDU_PLAY_ITEM = 0x74;
+    private static final int AVRC_OP_PASS_THRU = 0x7C;
+
     private static final int MESSAGE_GET_RC_FEATURES = 1;
     private static final int MESSAGE_GET_PLAY_STATUS = 2;
     private static final int MESSAGE_GET_ELEM_ATTRS = 3;
@@ -355,9 +370,7 @@ public final class Avrcp {
 
     private void start() {
         if (DEBUG) Log.v(TAG, "start");
-        HandlerThread thread = new HandlerThread("BluetoothAvrcpHandler");
-        thread.start();
-        Looper looper = thread.getLooper();
+        Looper looper = SharedLooperPool.acquire("BluetoothAvrcpHandler");
         mHandler = new AvrcpMessageHandler(looper);
         mPendingCmds = new ArrayList<Integer>();
         mPendingSetAttributes = new ArrayList<Integer>();
@@ -573,7 +586,7 @@ public final class Avrcp {
         mHandler.removeCallbacksAndMessages(null);
         Looper looper = mHandler.getLooper();
         if (looper != null) {
-            looper.quit();
+            SharedLooperPool.release(looper, "BluetoothAvrcpHandler");
         }
         mAudioManager.unregisterRemoteController(mRemoteController);
         keyPressState = KEY_STATE_RELEASE; //Key release state
@@ -1505,31 +1518,59 @@ public final class Avrcp {
         if (DEBUG) Log.v(TAG, "duration=" + mSongLengthMs);
     }
 
+    // The native command callbacks do not carry the remote address
+    private static void traceCommand(int pdu, long param) {
+        EventTrace.log(EventTrace.TYPE_AVRCP_COMMAND, (String) null, pdu, param);
+    }
+
     private void getRcFeatures(byte[] address, int features) {
-        Message msg = mHandler.obtainMessage(MESSAGE_GET_RC_FEATURES, features, 0,
-                                             Utils.getAddressStringFromByte(address));
-        mHandler.sendMessage(msg);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            Message msg = mHandler.obtainMessage(MESSAGE_GET_RC_FEATURES, features, 0,
+                                                 Utils.getAddressStringFromByte(address));
+            mHandler.sendMessage(msg);
+        } finally {
+            mCallbackLatency.end("getRcFeatures", callbackStart);
+        }
     }
 
     private void getPlayStatus() {
-        Message msg = mHandler.obtainMessage(MESSAGE_GET_PLAY_STATUS);
-        mHandler.sendMessage(msg);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            traceCommand(AVRC_PDU_GET_PLAY_STATUS, 0);
+            Message msg = mHandler.obtainMessage(MESSAGE_GET_PLAY_STATUS);
+            mHandler.sendMessage(msg);
+        } finally {
+            mCallbackLatency.end("getPlayStatus", callbackStart);
+        }
     }
 
     private void getElementAttr(byte numAttr, int[] attrs) {
-        int i;
-        ArrayList<Integer> attrList = new ArrayList<Integer>();
-        for (i = 0; i < numAttr; ++i) {
-            attrList.add(attrs[i]);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            traceCommand(AVRC_PDU_GET_ELEMENT_ATTR, numAttr);
+            int i;
+            ArrayList<Integer> attrList = new ArrayList<Integer>();
+            for (i = 0; i < numAttr; ++i) {
+                attrList.add(attrs[i]);
+            }
+            Message msg = mHandler.obtainMessage(MESSAGE_GET_ELEM_ATTRS, (int)numAttr, 0, attrList);
+            mHandler.sendMessage(msg);
+        } finally {
+            mCallbackLatency.end("getElementAttr", callbackStart);
         }
-        Message msg = mHandler.obtainMessage(MESSAGE_GET_ELEM_ATTRS, (int)numAttr, 0, attrList);
-        mHandler.sendMessage(msg);
     }
 
     private void setBrowsedPlayer(int playerId) {
-        if (DEBUG) Log.v(TAG, "setBrowsedPlayer: PlayerID: " + playerId);
-        Message msg = mHandler.obtainMessage(MESSAGE_SET_BROWSED_PLAYER, playerId, 0, 0);
-        mHandler.sendMessage(msg);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            traceCommand(AVRC_PDU_SET_BROWSED_PLAYER, playerId);
+            if (DEBUG) Log.v(TAG, "setBrowsedPlayer: PlayerID: " + playerId);
+            Message msg = mHandler.obtainMessage(MESSAGE_SET_BROWSED_PLAYER, playerId, 0, 0);
+            mHandler.sendMessage(msg);
+        } finally {
+            mCallbackLatency.end("setBrowsedPlayer", callbackStart);
+        }
     }
 
     private void processSetBrowsedPlayer(int playerId) {
@@ -1596,9 +1637,15 @@ public final class Avrcp {
     }
 
     private void changePath(byte direction, long uid) {
-        if (DEBUG) Log.v(TAG, "changePath: direction: " + direction + " uid:" + uid);
-        Message msg = mHandler.obtainMessage(MESSAGE_CHANGE_PATH, direction, 0, uid);
-        mHandler.sendMessage(msg);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            traceCommand(AVRC_PDU_CHANGE_PATH, direction);
+            if (DEBUG) Log.v(TAG, "changePath: direction: " + direction + " uid:" + uid);
+            Message msg = mHandler.obtainMessage(MESSAGE_CHANGE_PATH, direction, 0, uid);
+            mHandler.sendMessage(msg);
+        } finally {
+            mCallbackLatency.end("changePath", callbackStart);
+        }
     }
 
     private void processChangePath(int direction, long folderUid) {
@@ -1929,9 +1976,15 @@ public final class Avrcp {
     }
 
     private void playItem(byte scope, long uid) {
-        if (DEBUG) Log.v(TAG, "playItem: scope: " + scope + " uid:" + uid);
-        Message msg = mHandler.obtainMessage(MESSAGE_PLAY_ITEM, scope, 0, uid);
-        mHandler.sendMessage(msg);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            traceCommand(AVRC_PDU_PLAY_ITEM, scope);
+            if (DEBUG) Log.v(TAG, "playItem: scope: " + scope + " uid:" + uid);
+            Message msg = mHandler.obtainMessage(MESSAGE_PLAY_ITEM, scope, 0, uid);
+            mHandler.sendMessage(msg);
+        } finally {
+            mCallbackLatency.end("playItem", callbackStart);
+        }
     }
 
     private void processPlayItem(int scope, long uid) {
@@ -2089,18 +2142,24 @@ public final class Avrcp {
     }
 
     private void getItemAttr(byte scope, long uid, byte numAttr, int[] attrs) {
-        if (DEBUG) Log.v(TAG, "getItemAttr: scope: " + scope + " uid:" + uid +
-                                                            " numAttr:" + numAttr);
-        int i;
-        ArrayList<Integer> attrList = new ArrayList<Integer>();
-        for (i = 0; i < numAttr; ++i) {
-            attrList.add(attrs[i]);
-            if (DEBUG) Log.v(TAG, "attrs[" + i + "] = " + attrs[i]);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            traceCommand(AVRC_PDU_GET_ITEM_ATTRIBUTES, scope);
+            if (DEBUG) Log.v(TAG, "getItemAttr: scope: " + scope + " uid:" + uid +
+                                                                " numAttr:" + numAttr);
+            int i;
+            ArrayList<Integer> attrList = new ArrayList<Integer>();
+            for (i = 0; i < numAttr; ++i) {
+                attrList.add(attrs[i]);
+                if (DEBUG) Log.v(TAG, "attrs[" + i + "] = " + attrs[i]);
+            }
+            ItemAttr itemAttr = new ItemAttr(attrList, uid);
+            Message msg = mHandler.obtainMessage(MESSAGE_GET_ITEM_ATTRS, (int)numAttr,
+                                                                    (int)scope, itemAttr);
+            mHandler.sendMessage(msg);
+        } finally {
+            mCallbackLatency.end("getItemAttr", callbackStart);
         }
-        ItemAttr itemAttr = new ItemAttr(attrList, uid);
-        Message msg = mHandler.obtainMessage(MESSAGE_GET_ITEM_ATTRS, (int)numAttr,
-                                                                (int)scope, itemAttr);
-        mHandler.sendMessage(msg);
     }
 
     private String[] mCursorCols = new String[] {
@@ -2171,9 +2230,15 @@ public final class Avrcp {
     }
 
     private void setAddressedPlayer(int playerId) {
-        if (DEBUG) Log.v(TAG, "setAddressedPlayer: PlayerID: " + playerId);
-        Message msg = mHandler.obtainMessage(MESSAGE_SET_ADDR_PLAYER, playerId, 0, 0);
-        mHandler.sendMessage(msg);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            traceCommand(AVRC_PDU_SET_ADDRESSED_PLAYER, playerId);
+            if (DEBUG) Log.v(TAG, "setAddressedPlayer: PlayerID: " + playerId);
+            Message msg = mHandler.obtainMessage(MESSAGE_SET_ADDR_PLAYER, playerId, 0, 0);
+            mHandler.sendMessage(msg);
+        } finally {
+            mCallbackLatency.end("setAddressedPlayer", callbackStart);
+        }
     }
 
     private void processSetAddressedPlayer(int playerId) {
@@ -2216,17 +2281,23 @@ public final class Avrcp {
 
     private void getFolderItems(byte scope, long start, long end, int attrCnt,
                                                         int numAttr, int[] attrs) {
-        if (DEBUG) Log.v(TAG, "getFolderItems");
-        if (DEBUG) Log.v(TAG, "scope: " + scope + " attrCnt: " + attrCnt);
-        if (DEBUG) Log.v(TAG, "start: " + start + " end: " + end);
-        for (int i = 0; i < numAttr; ++i) {
-            if (DEBUG) Log.v(TAG, "attrs[" + i + "] = " + attrs[i]);
-        }
+        final long callbackStart = CallbackLatency.start();
+        try {
+            traceCommand(AVRC_PDU_GET_FOLDER_ITEMS, scope);
+            if (DEBUG) Log.v(TAG, "getFolderItems");
+            if (DEBUG) Log.v(TAG, "scope: " + scope + " attrCnt: " + attrCnt);
+            if (DEBUG) Log.v(TAG, "start: " + start + " end: " + end);
+            for (int i = 0; i < numAttr; ++i) {
+                if (DEBUG) Log.v(TAG, "attrs[" + i + "] = " + attrs[i]);
+            }
 
-        FolderListEntries folderListEntries = new FolderListEntries (scope, start, end, attrCnt,
-                                                                                    numAttr, attrs);
-        Message msg = mHandler.obtainMessage(MESSAGE_GET_FOLDER_ITEMS, 0, 0, folderListEntries);
-        mHandler.sendMessage(msg);
+            FolderListEntries folderListEntries = new FolderListEntries (scope, start, end, attrCnt,
+                                                                                        numAttr, attrs);
+            Message msg = mHandler.obtainMessage(MESSAGE_GET_FOLDER_ITEMS, 0, 0, folderListEntries);
+            mHandler.sendMessage(msg);
+        } finally {
+            mCallbackLatency.end("getFolderItems", callbackStart);
+        }
     }
 
     private void processGetFolderItems(byte scope, long start, long end, int size,
@@ -2986,8 +3057,14 @@ public final class Avrcp {
     }
 
     private void registerNotification(int eventId, int param) {
-        Message msg = mHandler.obtainMessage(MESSAGE_REGISTER_NOTIFICATION, eventId, param);
-        mHandler.sendMessage(msg);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            traceCommand(AVRC_PDU_REGISTER_NOTIFICATION, eventId);
+            Message msg = mHandler.obtainMessage(MESSAGE_REGISTER_NOTIFICATION, eventId, param);
+            mHandler.sendMessage(msg);
+        } finally {
+            mCallbackLatency.end("registerNotification", callbackStart);
+        }
     }
 
     private void processRCCStateChange(String callingPackageName, int isFocussed, int isAvailable) {
@@ -3122,13 +3199,19 @@ public final class Avrcp {
     }
 
     private void handlePassthroughCmd(int id, int keyState) {
-        switch (id) {
-            case BluetoothAvrcp.PASSTHROUGH_ID_REWIND:
-                rewind(keyState);
-                break;
-            case BluetoothAvrcp.PASSTHROUGH_ID_FAST_FOR:
-                fastForward(keyState);
-                break;
+        final long callbackStart = CallbackLatency.start();
+        try {
+            traceCommand(AVRC_OP_PASS_THRU, (id << 8) | keyState);
+            switch (id) {
+                case BluetoothAvrcp.PASSTHROUGH_ID_REWIND:
+                    rewind(keyState);
+                    break;
+                case BluetoothAvrcp.PASSTHROUGH_ID_FAST_FOR:
+                    fastForward(keyState);
+                    break;
+            }
+        } finally {
+            mCallbackLatency.end("handlePassthroughCmd", callbackStart);
         }
     }
 
@@ -3355,8 +3438,13 @@ public final class Avrcp {
      * AudioService to update the UI
      */
     private void volumeChangeCallback(int volume, int ctype) {
-        Message msg = mHandler.obtainMessage(MESSAGE_VOLUME_CHANGED, volume, ctype);
-        mHandler.sendMessage(msg);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            Message msg = mHandler.obtainMessage(MESSAGE_VOLUME_CHANGED, volume, ctype);
+            mHandler.sendMessage(msg);
+        } finally {
+            mCallbackLatency.end("volumeChangeCallback", callbackStart);
+        }
     }
 
     private void notifyVolumeChanged(int volume) {
@@ -3467,46 +3555,56 @@ public final class Avrcp {
     //PDU ID 0x13
     private void onGetPlayerAttributeValues (byte attr ,int[] arr )
     {
-        if (DEBUG) Log.v(TAG, "onGetPlayerAttributeValues" + attr );
-        int i ;
-        byte[] barray = new byte[attr];
-        for(i =0 ; i<attr ; ++i)
-            barray[i] = (byte)arr[i];
-        mPlayerSettings.attrIds = new byte [attr];
-        for ( i = 0; i < attr; i++)
-            mPlayerSettings.attrIds[i] = barray[i];
-        Intent intent = new Intent(PLAYERSETTINGS_REQUEST);
-        intent.putExtra(COMMAND, CMDGET);
-        intent.putExtra(EXTRA_GET_COMMAND, GET_ATTRIBUTE_VALUES);
-        intent.putExtra(EXTRA_ATTIBUTE_ID_ARRAY, barray);
-        mContext.sendBroadcast(intent, BLUETOOTH_PERM);
-        Message msg = mHandler.obtainMessage();
-        msg.what = MESSAGE_PLAYERSETTINGS_TIMEOUT;
-        msg.arg1 = GET_ATTRIBUTE_VALUES;
-        mPendingCmds.add(new Integer(msg.arg1));
-        mHandler.sendMessageDelayed(msg, 130);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (DEBUG) Log.v(TAG, "onGetPlayerAttributeValues" + attr );
+            int i ;
+            byte[] barray = new byte[attr];
+            for(i =0 ; i<attr ; ++i)
+                barray[i] = (byte)arr[i];
+            mPlayerSettings.attrIds = new byte [attr];
+            for ( i = 0; i < attr; i++)
+                mPlayerSettings.attrIds[i] = barray[i];
+            Intent intent = new Intent(PLAYERSETTINGS_REQUEST);
+            intent.putExtra(COMMAND, CMDGET);
+            intent.putExtra(EXTRA_GET_COMMAND, GET_ATTRIBUTE_VALUES);
+            intent.putExtra(EXTRA_ATTIBUTE_ID_ARRAY, barray);
+            mContext.sendBroadcast(intent, BLUETOOTH_PERM);
+            Message msg = mHandler.obtainMessage();
+            msg.what = MESSAGE_PLAYERSETTINGS_TIMEOUT;
+            msg.arg1 = GET_ATTRIBUTE_VALUES;
+            mPendingCmds.add(new Integer(msg.arg1));
+            mHandler.sendMessageDelayed(msg, 130);
+        } finally {
+            mCallbackLatency.end("onGetPlayerAttributeValues", callbackStart);
+        }
     }
 
     //PDU 0x14
     private void setPlayerAppSetting( byte num , byte [] attr_id , byte [] attr_val )
     {
-        if (DEBUG) Log.v(TAG, "setPlayerAppSetting " + num );
-        byte[] array = new byte[num*2];
-        for ( int i = 0; i < num; i++)
-        {
-            array[i] = attr_id[i] ;
-            array[i+1] = attr_val[i];
-            mPendingSetAttributes.add(new Integer(attr_id[i]));
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (DEBUG) Log.v(TAG, "setPlayerAppSetting " + num );
+            byte[] array = new byte[num*2];
+            for ( int i = 0; i < num; i++)
+            {
+                array[i] = attr_id[i] ;
+                array[i+1] = attr_val[i];
+                mPendingSetAttributes.add(new Integer(attr_id[i]));
+            }
+            Intent intent = new Intent(PLAYERSETTINGS_REQUEST);
+            intent.putExtra(COMMAND, CMDSET);
+            intent.putExtra(EXTRA_ATTRIB_VALUE_PAIRS, array);
+            mContext.sendBroadcast(intent, BLUETOOTH_PERM);
+            Message msg = mHandler.obtainMessage();
+            msg.what = MESSAGE_PLAYERSETTINGS_TIMEOUT;
+            msg.arg1 = SET_ATTRIBUTE_VALUES;
+            mPendingCmds.add(new Integer(msg.arg1));
+            mHandler.sendMessageDelayed(msg, 500);
+        } finally {
+            mCallbackLatency.end("setPlayerAppSetting", callbackStart);
         }
-        Intent intent = new Intent(PLAYERSETTINGS_REQUEST);
-        intent.putExtra(COMMAND, CMDSET);
-        intent.putExtra(EXTRA_ATTRIB_VALUE_PAIRS, array);
-        mContext.sendBroadcast(intent, BLUETOOTH_PERM);
-        Message msg = mHandler.obtainMessage();
-        msg.what = MESSAGE_PLAYERSETTINGS_TIMEOUT;
-        msg.arg1 = SET_ATTRIBUTE_VALUES;
-        mPendingCmds.add(new Integer(msg.arg1));
-        mHandler.sendMessageDelayed(msg, 500);
     }
 
     //PDU 0x15
@@ -3560,6 +3658,7 @@ public final class Avrcp {
 
     public void dump(StringBuilder sb) {
         sb.append("AVRCP:\n");
+        mCallbackLatency.dump(sb);
         ProfileService.println(sb, "mMetadata: " + mMetadata);
         ProfileService.println(sb, "mTransportControlFlags: " + mTransportControlFlags);
         ProfileService.println(sb, "mCurrentPlayState: " + mCurrentPlayState);
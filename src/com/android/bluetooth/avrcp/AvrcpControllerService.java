@@ -23,13 +23,13 @@ import android.bluetooth.BluetoothProfile;
 import android.bluetooth.IBluetoothAvrcpController;
 import android.content.Intent;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
 
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.Utils;
+import com.android.bluetooth.util.SharedLooperPool;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -68,9 +68,7 @@ public class AvrcpControllerService extends ProfileService {
     }
 
     protected boolean start() {
-        HandlerThread thread = new HandlerThread("BluetoothAvrcpHandler");
-        thread.start();
-        Looper looper = thread.getLooper();
+        Looper looper = SharedLooperPool.acquire("BluetoothAvrcpControllerHandler");
         mHandler = new AvrcpMessageHandler(looper);
 
         setAvrcpControllerService(this);
@@ -85,7 +83,7 @@ public class AvrcpControllerService extends ProfileService {
         mHandler.removeCallbacksAndMessages(null);
         Looper looper = mHandler.getLooper();
         if (looper != null) {
-            looper.quit();
+            SharedLooperPool.release(looper, "BluetoothAvrcpControllerHandler");
         }
 
         clearAvrcpControllerService();
@@ -26,13 +26,17 @@ import android.content.BroadcastReceiver;
 import android.os.ParcelUuid;
 import android.os.UserHandle;
 import android.util.Log;
-import android.util.Pair;
 
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.RemoteDevices.DeviceProperties;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 class AdapterProperties {
@@ -50,10 +54,16 @@ class AdapterProperties {
     private CopyOnWriteArrayList<BluetoothDevice> mBondedDevices = new CopyOnWriteArrayList<BluetoothDevice>();
 
     private int mProfilesConnecting, mProfilesConnected, mProfilesDisconnecting;
-    private HashMap<Integer, Pair<Integer, Integer>> mProfileConnectionState;
+    // Per-profile index of device connection states, guarded by mObject.
+    private final HashMap<Integer, ProfileStateIndex> mProfileStateIndex =
+            new HashMap<Integer, ProfileStateIndex>();
+    // Aggregate state of each profile, republished on every update so that
+    // getProfileConnectionState() does not need to take mObject.
+    private final ConcurrentHashMap<Integer, Integer> mProfileConnectionState =
+            new ConcurrentHashMap<Integer, Integer>();
 
 
-    private int mConnectionState = BluetoothAdapter.STATE_DISCONNECTED;
+    private volatile int mConnectionState = BluetoothAdapter.STATE_DISCONNECTED;
     private int mState = BluetoothAdapter.STATE_OFF;
 
     private AdapterService mService;
@@ -74,32 +84,70 @@ class AdapterProperties {
     // can be added here.
     private Object mObject = new Object();
 
-    private class DeviceState {
-        private BluetoothDevice device = null;
-        private int currentState = 0;
-        private int profileId = 0;
+    /**
+     * Connection state of every known device for a single profile. Devices are
+     * additionally bucketed by state so that updates and "devices in state X"
+     * queries do not have to scan all devices. Devices are dropped once they
+     * report STATE_DISCONNECTED.
+     */
+    private static class ProfileStateIndex {
+        private static final int NUM_STATES = 4;
 
-        public DeviceState(BluetoothDevice device, int profile,
-                int state) {
-            this.device = device;
-            this.profileId = profile;
-            this.currentState = state;
+        private final HashMap<BluetoothDevice, Integer> mDeviceStates =
+                new HashMap<BluetoothDevice, Integer>();
+        @SuppressWarnings("unchecked")
+        private final HashSet<BluetoothDevice>[] mDevicesByState = new HashSet[NUM_STATES];
+
+        ProfileStateIndex() {
+            for (int i = 0; i < NUM_STATES; i++) {
+                mDevicesByState[i] = new HashSet<BluetoothDevice>();
+            }
         }
-        @Override
-        public boolean equals(Object o) {
-            if (o instanceof DeviceState) {
-                if (this.device.equals(((DeviceState) o).device) &&
-                        this.profileId == ((DeviceState) o).profileId &&
-                        this.currentState == ((DeviceState) o).currentState) {
-                    return true;
-                }
+
+        int getState(BluetoothDevice device) {
+            Integer state = mDeviceStates.get(device);
+            return (state != null) ? state : BluetoothProfile.STATE_DISCONNECTED;
+        }
+
+        /**
+         * Records the new state of the device.
+         * @return the state previously recorded for the device
+         */
+        int setState(BluetoothDevice device, int state) {
+            int prevState = getState(device);
+            mDevicesByState[prevState].remove(device);
+            if (state == BluetoothProfile.STATE_DISCONNECTED) {
+                mDeviceStates.remove(device);
+            } else {
+                mDeviceStates.put(device, state);
+                mDevicesByState[state].add(device);
             }
-            return false;
+            return prevState;
         }
-    };
 
-    private ArrayList<DeviceState> mConnectedDeviceList =
-                new ArrayList<DeviceState>();
+        void addDevices(int state, List<BluetoothDevice> devices) {
+            if (state == BluetoothProfile.STATE_DISCONNECTED) {
+                // Disconnected devices are not tracked
+                return;
+            }
+            devices.addAll(mDevicesByState[state]);
+        }
+
+        /**
+         * @return the aggregate profile state, CONNECTED taking precedence
+         * over CONNECTING, which takes precedence over DISCONNECTING.
+         */
+        int getAggregateState() {
+            if (!mDevicesByState[BluetoothProfile.STATE_CONNECTED].isEmpty()) {
+                return BluetoothProfile.STATE_CONNECTED;
+            } else if (!mDevicesByState[BluetoothProfile.STATE_CONNECTING].isEmpty()) {
+                return BluetoothProfile.STATE_CONNECTING;
+            } else if (!mDevicesByState[BluetoothProfile.STATE_DISCONNECTING].isEmpty()) {
+                return BluetoothProfile.STATE_DISCONNECTING;
+            }
+            return BluetoothProfile.STATE_DISCONNECTED;
+        }
+    };
 
     private final BroadcastReceiver mBluetoothReceiver = new BroadcastReceiver() {
         @Override
@@ -118,10 +166,8 @@ class AdapterProperties {
         mContext = mService;
     }
     public void init(RemoteDevices remoteDevices) {
-        if (mProfileConnectionState ==null) {
-            mProfileConnectionState = new HashMap<Integer, Pair<Integer, Integer>>();
-        } else {
-            mProfileConnectionState.clear();
+        synchronized (mObject) {
+            clearProfileConnectionStates();
         }
         mRemoteDevices = remoteDevices;
         try {
@@ -134,15 +180,12 @@ class AdapterProperties {
 
     public void cleanup() {
         mRemoteDevices = null;
-        if (mProfileConnectionState != null) {
-            mProfileConnectionState.clear();
-            mProfileConnectionState = null;
+        synchronized (mObject) {
+            clearProfileConnectionStates();
         }
         mService = null;
         if (!mBondedDevices.isEmpty())
             mBondedDevices.clear();
-        if (!mConnectedDeviceList.isEmpty())
-            mConnectedDeviceList.clear();
         try {
             mContext.unregisterReceiver(mBluetoothReceiver);
         } catch (IllegalArgumentException e) {
@@ -249,9 +292,8 @@ class AdapterProperties {
      * @return the mConnectionState
      */
     int getConnectionState() {
-        synchronized (mObject) {
-            return mConnectionState;
-        }
+        // mConnectionState is volatile, no need to take the lock for reads
+        return mConnectionState;
     }
 
     /**
@@ -386,11 +428,41 @@ class AdapterProperties {
     }
 
     int getProfileConnectionState(int profile) {
+        Integer state = mProfileConnectionState.get(profile);
+        if (state != null) return state;
+        return BluetoothProfile.STATE_DISCONNECTED;
+    }
+
+    /**
+     * @return the ids of the profiles that have at least one connected device
+     */
+    int[] getConnectedProfiles() {
+        int count = 0;
+        int[] profiles = new int[mProfileConnectionState.size()];
+        for (Map.Entry<Integer, Integer> entry : mProfileConnectionState.entrySet()) {
+            if (entry.getValue() == BluetoothProfile.STATE_CONNECTED && count < profiles.length) {
+                profiles[count++] = entry.getKey();
+            }
+        }
+        return Arrays.copyOf(profiles, count);
+    }
+
+    /**
+     * Get the devices of a profile that are in any of the given states.
+     * Devices in STATE_DISCONNECTED are not tracked and are never returned.
+     */
+    List<BluetoothDevice> getDevicesMatchingConnectionStates(int profile, int[] states) {
+        List<BluetoothDevice> devices = new ArrayList<BluetoothDevice>();
         synchronized (mObject) {
-            Pair<Integer, Integer> p = mProfileConnectionState.get(profile);
-            if (p != null) return p.first;
-            return BluetoothProfile.STATE_DISCONNECTED;
+            ProfileStateIndex index = mProfileStateIndex.get(profile);
+            if (index == null || states == null) return devices;
+            for (int state : states) {
+                if (validateProfileConnectionState(state)) {
+                    index.addDevices(state, devices);
+                }
+            }
         }
+        return devices;
     }
 
     boolean isDiscovering() {
@@ -400,26 +472,6 @@ class AdapterProperties {
     }
 
     void sendConnectionStateChange(BluetoothDevice device, int profile, int state, int prevState) {
-        // add device in connection list for first connected
-        // and remove it in disconnected
-        if (state == BluetoothProfile.STATE_CONNECTED) {
-            DeviceState newDevice = new DeviceState(device, profile, state);
-            if (!mConnectedDeviceList.contains(newDevice)) {
-                mConnectedDeviceList.add(newDevice);
-                Log.v(TAG,"device is added to list");
-            } else {
-                Log.v(TAG,"Fake broadcast for device, ignore");
-                return;
-            }
-        } else if (state == BluetoothProfile.STATE_DISCONNECTED) {
-            DeviceState deviceState = new DeviceState(device, profile,
-                    BluetoothProfile.STATE_CONNECTED);
-            if(mConnectedDeviceList.contains(deviceState)) {
-                Log.v(TAG,"device is removed from list");
-                mConnectedDeviceList.remove(deviceState);
-            }
-        }
-
         if (!validateProfileConnectionState(state) ||
                 !validateProfileConnectionState(prevState)) {
             // Previously, an invalid state was broadcast anyway,
@@ -432,9 +484,23 @@ class AdapterProperties {
         }
 
         synchronized (mObject) {
-            updateProfileConnectionState(profile, state, prevState);
+            ProfileStateIndex index = mProfileStateIndex.get(profile);
+            if (index == null) {
+                index = new ProfileStateIndex();
+                mProfileStateIndex.put(profile, index);
+            }
+            if (state == BluetoothProfile.STATE_CONNECTED &&
+                    index.getState(device) == BluetoothProfile.STATE_CONNECTED) {
+                Log.v(TAG,"Fake broadcast for device, ignore");
+                return;
+            }
+
+            // Account for the state we last recorded for this device rather than
+            // the reported prevState, so the counters can not drift.
+            int recordedState = index.setState(device, state);
+            mProfileConnectionState.put(profile, index.getAggregateState());
 
-            if (updateCountersAndCheckForConnectionStateChange(state, prevState)) {
+            if (updateCountersAndCheckForConnectionStateChange(state, recordedState)) {
                 setConnectionState(state);
 
                 Intent intent = new Intent(BluetoothAdapter.ACTION_CONNECTION_STATE_CHANGED);
@@ -452,6 +518,16 @@ class AdapterProperties {
         }
     }
 
+    // Must be called with mObject held
+    private void clearProfileConnectionStates() {
+        mProfileStateIndex.clear();
+        mProfileConnectionState.clear();
+        mProfilesConnecting = 0;
+        mProfilesConnected = 0;
+        mProfilesDisconnecting = 0;
+        mConnectionState = BluetoothAdapter.STATE_DISCONNECTED;
+    }
+
     private boolean validateProfileConnectionState(int state) {
         return (state == BluetoothProfile.STATE_DISCONNECTED ||
                 state == BluetoothProfile.STATE_CONNECTING ||
@@ -520,57 +596,6 @@ class AdapterProperties {
         }
     }
 
-    private void updateProfileConnectionState(int profile, int newState, int oldState) {
-        // mProfileConnectionState is a hashmap -
-        // <Integer, Pair<Integer, Integer>>
-        // The key is the profile, the value is a pair. first element
-        // is the state and the second element is the number of devices
-        // in that state.
-        int numDev = 1;
-        int newHashState = newState;
-        boolean update = true;
-
-        // The following conditions are considered in this function:
-        // 1. If there is no record of profile and state - update
-        // 2. If a new device's state is current hash state - increment
-        //    number of devices in the state.
-        // 3. If a state change has happened to Connected or Connecting
-        //    (if current state is not connected), update.
-        // 4. If numDevices is 1 and that device state is being updated, update
-        // 5. If numDevices is > 1 and one of the devices is changing state,
-        //    decrement numDevices but maintain oldState if it is Connected or
-        //    Connecting
-        Pair<Integer, Integer> stateNumDev = mProfileConnectionState.get(profile);
-        if (stateNumDev != null) {
-            int currHashState = stateNumDev.first;
-            numDev = stateNumDev.second;
-
-            if (newState == currHashState) {
-                numDev ++;
-            } else if (newState == BluetoothProfile.STATE_CONNECTED ||
-                   (newState == BluetoothProfile.STATE_CONNECTING &&
-                    currHashState != BluetoothProfile.STATE_CONNECTED)) {
-                 numDev = 1;
-            } else if (numDev == 1 && oldState == currHashState) {
-                 update = true;
-            } else if (numDev > 1 && oldState == currHashState) {
-                 numDev --;
-
-                 if (currHashState == BluetoothProfile.STATE_CONNECTED ||
-                     currHashState == BluetoothProfile.STATE_CONNECTING) {
-                    newHashState = currHashState;
-                 }
-            } else {
-                 update = false;
-            }
-        }
-
-        if (update) {
-            mProfileConnectionState.put(profile, new Pair<Integer, Integer>(newHashState,
-                    numDev));
-        }
-    }
-
     void adapterPropertyChangedCallback(int[] types, byte[][] values) {
         Intent intent;
         int type;
@@ -25,7 +25,6 @@ package com.android.bluetooth.btservice;
 
 import android.app.AlarmManager;
 import android.app.Application;
-import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -53,6 +52,7 @@ import android.os.ParcelUuid;
 import android.os.PowerManager;
 import android.os.Process;
 import android.os.RemoteCallbackList;
+import android.os.Parcel;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.os.SystemProperties;
@@ -70,6 +70,9 @@ import com.android.bluetooth.hdp.HealthService;
 import com.android.bluetooth.hfpclient.HeadsetClientService;
 import com.android.bluetooth.pan.PanService;
 import com.android.bluetooth.Utils;
+import com.android.bluetooth.util.BinderCallStats;
+import com.android.bluetooth.util.EventTrace;
+import com.android.bluetooth.util.SharedLooperPool;
 import com.android.bluetooth.btservice.RemoteDevices.DeviceProperties;
 import com.android.internal.R;
 
@@ -103,6 +106,8 @@ public class AdapterService extends Service {
     private int mRxTimeTotalMs;
     private int mIdleTimeTotalMs;
     private int mEnergyUsedTotalVoltAmpSecMicro;
+    private final EnergyRecorder mEnergyRecorder = new EnergyRecorder(
+            SystemProperties.getInt("persist.bt.energy.samples", EnergyRecorder.DEFAULT_CAPACITY));
 
     private final ArrayList<ProfileService> mProfiles = new ArrayList<ProfileService>();
 
@@ -117,6 +122,10 @@ public class AdapterService extends Service {
     private static final String ACTION_ALARM_WAKEUP =
         "com.android.bluetooth.btservice.action.ALARM_WAKEUP";
 
+    private static final int[] CONNECTED_STATES = { BluetoothProfile.STATE_CONNECTED };
+    private static final int[] ACTIVE_STATES = { BluetoothProfile.STATE_CONNECTING,
+            BluetoothProfile.STATE_CONNECTED, BluetoothProfile.STATE_DISCONNECTING };
+
     static final ParcelUuid[] A2DP_SOURCE_SINK_UUIDS = {
         BluetoothUuid.AudioSource,
         BluetoothUuid.AudioSink
@@ -188,11 +197,13 @@ public class AdapterService extends Service {
     private boolean mQuietmode = false;
 
     private AlarmManager mAlarmManager;
-    private PendingIntent mPendingAlarm;
+    private WakeAlarmScheduler mWakeAlarms;
     private PowerManager mPowerManager;
-    private PowerManager.WakeLock mWakeLock;
-    private String mWakeLockName;
+    private StackWakeLocks mStackWakeLocks;
     private HashSet<String> mDisabledProfiles = new HashSet<String>();
+    private final ProfileStartupOrchestrator mProfileStartup = new ProfileStartupOrchestrator();
+    private final LazyProfileManager mLazyProfiles = new LazyProfileManager();
+    private AutoConnectScheduler mAutoConnectScheduler;
 
     public AdapterService() {
         super();
@@ -229,6 +240,11 @@ public class AdapterService extends Service {
     }
 
     private void processInitProfilePriorities (BluetoothDevice device, ParcelUuid[] uuids){
+        DeviceProperties deviceProp = mRemoteDevices.getDeviceProperties(device);
+        if (deviceProp != null && deviceProp.getBondState() == BluetoothDevice.BOND_BONDED) {
+            activateLazyProfiles(uuids, "uuid " + device);
+        }
+
         HidService hidService = HidService.getHidService();
         A2dpService a2dpService = A2dpService.getA2dpService();
         A2dpSinkService a2dpSinkService = A2dpSinkService.getA2dpSinkService();
@@ -267,6 +283,19 @@ public class AdapterService extends Service {
     }
 
     private void processProfileStateChanged(BluetoothDevice device, int profileId, int newState, int prevState) {
+        EventTrace.log(EventTrace.TYPE_CONNECTION, device.getAddress(), profileId,
+                (prevState << 8) | newState);
+        // Update the connection state index first, the priority adjustments
+        // below look up the connected devices from it.
+        IBluetooth.Stub binder = mBinder;
+        if (binder != null) {
+            try {
+                binder.sendConnectionStateChange(device, profileId, newState,prevState);
+            } catch (RemoteException re) {
+                errorLog("" + re);
+            }
+        }
+        mAutoConnectScheduler.onProfileConnectionStateChanged(device, profileId, newState);
         if (((profileId == BluetoothProfile.A2DP) ||(profileId == BluetoothProfile.HEADSET)) &&
              (newState == BluetoothProfile.STATE_CONNECTED)){
             debugLog( "Profile connected. Schedule missing profile connection if any");
@@ -276,14 +305,6 @@ public class AdapterService extends Service {
         if ((profileId == BluetoothProfile.A2DP_SINK) && (newState == BluetoothProfile.STATE_CONNECTED)) {
             setProfileAutoConnectionPriority(device, profileId);
         }
-        IBluetooth.Stub binder = mBinder;
-        if (binder != null) {
-            try {
-                binder.sendConnectionStateChange(device, profileId, newState,prevState);
-            } catch (RemoteException re) {
-                errorLog("" + re);
-            }
-        }
     }
 
     public void addProfile(ProfileService profile) {
@@ -305,6 +326,7 @@ public class AdapterService extends Service {
         mHandler.sendMessage(m);
     }
 
+    @SuppressWarnings("rawtypes")
     private void processProfileServiceStateChanged(String serviceName, int state) {
         boolean doUpdate=false;
         boolean isTurningOn;
@@ -324,6 +346,19 @@ public class AdapterService extends Service {
             return;
         }
 
+        if (state == BluetoothAdapter.STATE_ON) {
+            List<Class> ready;
+            mLazyProfiles.onProfileStarted(serviceName);
+            synchronized (mProfileServicesState) {
+                ready = mProfileStartup.onProfileStarted(serviceName, mProfileServicesState,
+                        getInactiveProfiles());
+            }
+            if (!ready.isEmpty()) {
+                setProfileServiceState(ready.toArray(new Class[ready.size()]),
+                        BluetoothAdapter.STATE_ON);
+            }
+        }
+
         synchronized (mAdapterStateMachine) {
             isTurningOff = mAdapterStateMachine.isTurningOff();
             isTurningOn = mAdapterStateMachine.isTurningOn();
@@ -355,7 +390,8 @@ public class AdapterService extends Service {
                 while (i.hasNext()) {
                     Map.Entry<String,Integer> entry = i.next();
                     if (BluetoothAdapter.STATE_ON != entry.getValue()
-                            && !mDisabledProfiles.contains(entry.getKey())) {
+                            && !mDisabledProfiles.contains(entry.getKey())
+                            && !mLazyProfiles.isDeferred(entry.getKey())) {
                         debugLog("onProfileServiceStateChange() - Profile still not running:"
                             + entry.getKey());
                         return;
@@ -363,6 +399,7 @@ public class AdapterService extends Service {
                 }
             }
             debugLog("onProfileServiceStateChange() - All profile services started.");
+            mProfileStartup.onStartupComplete();
             mProfilesStarted=true;
             //Send message to state machine
             mAdapterStateMachine.sendMessage(mAdapterStateMachine.obtainMessage(AdapterState.STARTED));
@@ -384,7 +421,12 @@ public class AdapterService extends Service {
         getAdapterPropertyNative(AbstractionLayer.BT_PROPERTY_BDADDR);
         getAdapterPropertyNative(AbstractionLayer.BT_PROPERTY_BDNAME);
         mAlarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        mWakeAlarms = new WakeAlarmScheduler(this, mAlarmManager, ACTION_ALARM_WAKEUP);
         mPowerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        mStackWakeLocks = new StackWakeLocks(mPowerManager, mHandler.getLooper(),
+                SystemProperties.getLong("persist.bt.wakelock.timeout_ms",
+                        StackWakeLocks.DEFAULT_TIMEOUT_MS));
+        mAutoConnectScheduler = new AutoConnectScheduler(this, mHandler.getLooper());
 
         registerReceiver(mAlarmBroadcastReceiver, new IntentFilter(ACTION_ALARM_WAKEUP));
     }
@@ -434,6 +476,8 @@ public class AdapterService extends Service {
         //Start profile services
         if (!mProfilesStarted && supportedProfileServices.length >0) {
             //Startup all profile services
+            mProfileStartup.onStartupBegin();
+            mLazyProfiles.onStartupBegin(supportedProfileServices);
             setProfileServiceState(supportedProfileServices,BluetoothAdapter.STATE_ON);
         }else {
             debugLog("processStart() - Profile Services alreay started");
@@ -449,6 +493,8 @@ public class AdapterService extends Service {
         Class[] supportedProfileServices = Config.getSupportedProfiles();
         Log.d(TAG,"mProfilesStarted : " + mProfilesStarted + " supportedProfileServices.length : " +
             supportedProfileServices.length);
+        mProfileStartup.onShutdown();
+        mAutoConnectScheduler.cancel();
         if (mProfilesStarted && supportedProfileServices.length>0) {
             setProfileServiceState(supportedProfileServices,BluetoothAdapter.STATE_OFF);
             return true;
@@ -483,18 +529,16 @@ public class AdapterService extends Service {
 
         unregisterReceiver(mAlarmBroadcastReceiver);
 
-        if (mPendingAlarm != null) {
-            mAlarmManager.cancel(mPendingAlarm);
-            mPendingAlarm = null;
+        if (mAutoConnectScheduler != null) {
+            mAutoConnectScheduler.cancel();
         }
 
-        // This wake lock release may also be called concurrently by
-        // {@link #releaseWakeLock(String lockName)}, so a synchronization is needed here.
-        synchronized (this) {
-            if (mWakeLock != null) {
-                mWakeLock.release();
-                mWakeLock = null;
-            }
+        if (mWakeAlarms != null) {
+            mWakeAlarms.cancel();
+        }
+
+        if (mStackWakeLocks != null) {
+            mStackWakeLocks.releaseAll();
         }
 
         if (mAdapterStateMachine != null) {
@@ -557,6 +601,8 @@ public class AdapterService extends Service {
     private static final int CONNECT_OTHER_PROFILES_TIMEOUT_DEYALED = 10000;
     private static final int MESSAGE_AUTO_CONNECT_PROFILES = 50;
     private static final int AUTO_CONNECT_PROFILES_TIMEOUT = 500;
+    private static final int MESSAGE_ACTIVATE_LAZY_PROFILE = 60;
+    private static final int MESSAGE_CHECK_LAZY_PROFILES = 70;
 
     private final Handler mHandler = new Handler() {
         @Override
@@ -594,6 +640,16 @@ public class AdapterService extends Service {
                     autoConnectProfilesDelayed();
                     break;
                 }
+                case MESSAGE_ACTIVATE_LAZY_PROFILE: {
+                    debugLog( "handleMessage() - MESSAGE_ACTIVATE_LAZY_PROFILE");
+                    activateLazyProfile((Class) msg.obj, "bind");
+                }
+                    break;
+                case MESSAGE_CHECK_LAZY_PROFILES: {
+                    debugLog( "handleMessage() - MESSAGE_CHECK_LAZY_PROFILES");
+                    processCheckLazyProfiles();
+                }
+                    break;
                 case MESSAGE_SET_WAKE_ALARM: {
                     debugLog( "handleMessage() - MESSAGE_SET_WAKE_ALARM");
                     processSetWakeAlarm((Long) msg.obj, msg.arg1);
@@ -601,7 +657,7 @@ public class AdapterService extends Service {
                     break;
                 case MESSAGE_RELEASE_WAKE_ALARM: {
                     debugLog( "handleMessage() - MESSAGE_RELEASE_WAKE_ALARM");
-                    mPendingAlarm = null;
+                    mWakeAlarms.onAlarmFired();
                     alarmFiredNative();
                 }
                     break;
@@ -643,6 +699,19 @@ public class AdapterService extends Service {
                 continue;
             }
 
+            if (state == BluetoothAdapter.STATE_ON && mLazyProfiles.isDeferred(serviceName)) {
+                debugLog("setProfileServiceState() - " + serviceName + " started on demand");
+                continue;
+            }
+
+            // Profile services with a dependency that is not up yet are started
+            // from processProfileServiceStateChanged() once it reports STATE_ON
+            if (state == BluetoothAdapter.STATE_ON && mProfileStartup.deferIfBlocked(services[i],
+                    mProfileServicesState, getInactiveProfiles())) {
+                debugLog("setProfileServiceState() - Deferring " + serviceName);
+                continue;
+            }
+
             if (DBG) {
                 Log.w(TAG, (state == BluetoothAdapter.STATE_OFF? "Stopping" : "Starting" ) +" service " +
                         serviceName);
@@ -653,10 +722,72 @@ public class AdapterService extends Service {
             intent.putExtra(EXTRA_ACTION,ACTION_SERVICE_STATE_CHANGED);
             intent.putExtra(BluetoothAdapter.EXTRA_STATE,state);
             intent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
+            if (state == BluetoothAdapter.STATE_ON) {
+                mProfileStartup.onStartRequested(serviceName);
+            }
             startService(intent);
         }
     }
 
+    // Profile services that are not expected to reach STATE_ON
+    private HashSet<String> getInactiveProfiles() {
+        HashSet<String> inactive = new HashSet<String>(mDisabledProfiles);
+        mLazyProfiles.addDeferredTo(inactive);
+        return inactive;
+    }
+
+    @SuppressWarnings("rawtypes")
+    void onProfileServiceBound(Class profile) {
+        if (mLazyProfiles.isDeferred(profile.getName())) {
+            mHandler.sendMessage(mHandler.obtainMessage(MESSAGE_ACTIVATE_LAZY_PROFILE, profile));
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private void activateLazyProfiles(ParcelUuid[] uuids, String reason) {
+        for (Class profile : mLazyProfiles.getProfilesForUuids(uuids)) {
+            activateLazyProfile(profile, reason);
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private void activateLazyProfile(Class profile, String reason) {
+        if (getState() != BluetoothAdapter.STATE_ON) return;
+        if (mLazyProfiles.activate(profile, reason)) {
+            setProfileServiceState(new Class[] { profile }, BluetoothAdapter.STATE_ON);
+        }
+    }
+
+    // Start the lazy profile services needed by bonded devices and stop the
+    // ones that have been idle for too long. Re-armed while the adapter is on.
+    @SuppressWarnings("rawtypes")
+    private void processCheckLazyProfiles() {
+        if (!mLazyProfiles.isEnabled() || getState() != BluetoothAdapter.STATE_ON) return;
+
+        for (BluetoothDevice device : getBondedDevices()) {
+            DeviceProperties deviceProp = mRemoteDevices.getDeviceProperties(device);
+            if (deviceProp != null) {
+                activateLazyProfiles(deviceProp.getUuids(), "bonded " + device);
+            }
+        }
+
+        for (Class profile : mLazyProfiles.getActiveProfiles()) {
+            boolean busy = !getDevicesMatchingConnectionStates(Config.getLazyProfileId(profile),
+                    ACTIVE_STATES).isEmpty();
+            synchronized (mProfiles) {
+                for (ProfileService service : mProfiles) {
+                    if (service.getClass() == profile && service.isBound()) busy = true;
+                }
+            }
+            if (mLazyProfiles.onIdleCheck(profile, busy)) {
+                Log.i(TAG, "Stopping idle profile service " + profile.getSimpleName());
+                setProfileServiceState(new Class[] { profile }, BluetoothAdapter.STATE_OFF);
+            }
+        }
+        mHandler.sendMessageDelayed(mHandler.obtainMessage(MESSAGE_CHECK_LAZY_PROFILES),
+                LazyProfileManager.IDLE_TIMEOUT_MS);
+    }
+
     private boolean isAvailable() {
         return !mCleaningUp;
     }
@@ -677,7 +808,23 @@ public class AdapterService extends Service {
      * why an inner instance class should be avoided.
      *
      */
-    private static class AdapterServiceBinder extends IBluetooth.Stub {
+    private static class AdapterServiceBinder extends IBluetooth.Stub
+            implements BinderCallStats.Transactor {
+        private static final BinderCallStats sCallStats =
+                new BinderCallStats(IBluetooth.Stub.class);
+
+        @Override
+        public boolean onTransact(int code, Parcel data, Parcel reply, int flags)
+                throws RemoteException {
+            return sCallStats.onTransact(this, code, data, reply, flags);
+        }
+
+        @Override
+        public boolean onTransactDirect(int code, Parcel data, Parcel reply, int flags)
+                throws RemoteException {
+            return super.onTransact(code, data, reply, flags);
+        }
+
         private AdapterService mService;
 
         public AdapterServiceBinder(AdapterService svc) {
@@ -1415,6 +1562,16 @@ public class AdapterService extends Service {
         return mAdapterProperties.getProfileConnectionState(profile);
     }
 
+    /**
+     * Get the devices connected on a profile in any of the given states, as
+     * last reported through {@link #sendConnectionStateChange}. The lookup is
+     * served from an index kept by AdapterProperties, so profile services can
+     * use it instead of scanning the bonded devices themselves.
+     */
+    public List<BluetoothDevice> getDevicesMatchingConnectionStates(int profile, int[] states) {
+        return mAdapterProperties.getDevicesMatchingConnectionStates(profile, states);
+    }
+
      boolean createBond(BluetoothDevice device, int transport) {
         enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM,
             "Need BLUETOOTH ADMIN permission");
@@ -1430,6 +1587,9 @@ public class AdapterService extends Service {
         Message msg = mBondStateMachine.obtainMessage(BondStateMachine.CREATE_BOND);
         msg.obj = device;
         msg.arg1 = transport;
+        // Bonds requested by the system (settings, provisioning) go first
+        msg.arg2 = (Binder.getCallingUid() == Process.SYSTEM_UID)
+                ? BondQueue.PRIORITY_HIGH : BondQueue.PRIORITY_NORMAL;
         mBondStateMachine.sendMessage(msg);
         return true;
     }
@@ -1442,6 +1602,10 @@ public class AdapterService extends Service {
     // Delaying Auto Connect to make sure that all clients
     // are up and running, specially BluetoothHeadset.
     public void autoConnect() {
+        if (mLazyProfiles.isEnabled()) {
+            mHandler.removeMessages(MESSAGE_CHECK_LAZY_PROFILES);
+            mHandler.sendMessage(mHandler.obtainMessage(MESSAGE_CHECK_LAZY_PROFILES));
+        }
         if (DBG) debugLog( "delay auto connect by 500 ms");
         if ((mHandler.hasMessages(MESSAGE_AUTO_CONNECT_PROFILES) == false) &&
             (isQuietModeEnabled()== false)) {
@@ -1457,66 +1621,19 @@ public class AdapterService extends Service {
         }
         if (isQuietModeEnabled() == false) {
             if (DBG) debugLog( "Initiate auto connection on BT on...");
-            autoConnectHeadset();
-            autoConnectA2dp();
-            autoConnectA2dpSink();
+            mAutoConnectScheduler.start(getBondedDevices());
         }
         else {
             if (DBG) debugLog( "BT is in Quiet mode. Not initiating  auto connections");
         }
     }
 
-     private void cancelDiscoveryforautoConnect(){
+     void cancelDiscoveryforautoConnect(){
         if (mAdapterProperties.isDiscovering() == true) {
             cancelDiscovery();
         }
     }
 
-     private void autoConnectHeadset(){
-        HeadsetService  hsService = HeadsetService.getHeadsetService();
-
-        BluetoothDevice bondedDevices[] = getBondedDevices();
-        if ((bondedDevices == null) ||(hsService == null)) {
-            return;
-        }
-        for (BluetoothDevice device : bondedDevices) {
-            if (hsService.getPriority(device) == BluetoothProfile.PRIORITY_AUTO_CONNECT ){
-                cancelDiscoveryforautoConnect();
-                debugLog("autoConnectHeadset() - Connecting HFP with " + device.toString());
-                hsService.connect(device);
-            }
-        }
-    }
-
-     private void autoConnectA2dp(){
-        A2dpService a2dpSservice = A2dpService.getA2dpService();
-        BluetoothDevice bondedDevices[] = getBondedDevices();
-        if ((bondedDevices == null) ||(a2dpSservice == null)) {
-            return;
-        }
-        for (BluetoothDevice device : bondedDevices) {
-            if (a2dpSservice.getPriority(device) == BluetoothProfile.PRIORITY_AUTO_CONNECT ){
-                cancelDiscoveryforautoConnect();
-                debugLog("autoConnectA2dp() - Connecting A2DP with " + device.toString());
-                a2dpSservice.connect(device);
-            }
-        }
-    }
-
-     private void autoConnectA2dpSink(){
-         A2dpSinkService a2dpSinkService = A2dpSinkService.getA2dpSinkService();
-         BluetoothDevice bondedDevices[] = getBondedDevices();
-         if ((bondedDevices == null) ||(a2dpSinkService == null)) {
-             return;
-         }
-         for (BluetoothDevice device : bondedDevices) {
-             if (a2dpSinkService.getPriority(device) == BluetoothProfile.PRIORITY_AUTO_CONNECT ){
-                 cancelDiscoveryforautoConnect();
-                 a2dpSinkService.connect(device);
-             }
-         }
-     }
-
      public void connectOtherProfile(BluetoothDevice device, int firstProfileStatus){
         String deviceAddress = device.getAddress();
         boolean isConnectionTimeoutDelayed = false;
@@ -1561,8 +1678,10 @@ public class AdapterService extends Service {
         }
         boolean hsConnected = false;
         boolean a2dpConnected =  false;
-        List<BluetoothDevice> a2dpConnDevList= a2dpService.getConnectedDevices();
-        List<BluetoothDevice> hfConnDevList= hsService.getConnectedDevices();
+        List<BluetoothDevice> a2dpConnDevList = getDevicesMatchingConnectionStates(
+                BluetoothProfile.A2DP, CONNECTED_STATES);
+        List<BluetoothDevice> hfConnDevList = getDevicesMatchingConnectionStates(
+                BluetoothProfile.HEADSET, CONNECTED_STATES);
         // Check if the device is in disconnected state and if so return
         // We ned to connect other profile only if one of the profile is still in connected state
         // This is required to avoide a race condition in which profiles would
@@ -1665,7 +1784,8 @@ public class AdapterService extends Service {
              HeadsetService  hsService = HeadsetService.getHeadsetService();
              if ((hsService != null) &&
                 (BluetoothProfile.PRIORITY_AUTO_CONNECT != hsService.getPriority(device))){
-                 List<BluetoothDevice> deviceList = hsService.getConnectedDevices();
+                 List<BluetoothDevice> deviceList = getDevicesMatchingConnectionStates(
+                         BluetoothProfile.HEADSET, CONNECTED_STATES);
                  adjustOtherHeadsetPriorities(hsService, deviceList);
                  hsService.setPriority(device,BluetoothProfile.PRIORITY_AUTO_CONNECT);
              }
@@ -1674,7 +1794,8 @@ public class AdapterService extends Service {
              A2dpService a2dpService = A2dpService.getA2dpService();
              if ((a2dpService != null) &&
                 (BluetoothProfile.PRIORITY_AUTO_CONNECT != a2dpService.getPriority(device))){
-                 List<BluetoothDevice> deviceList = a2dpService.getConnectedDevices();
+                 List<BluetoothDevice> deviceList = getDevicesMatchingConnectionStates(
+                         BluetoothProfile.A2DP, CONNECTED_STATES);
                  adjustOtherSinkPriorities(a2dpService, deviceList);
                  a2dpService.setPriority(device,BluetoothProfile.PRIORITY_AUTO_CONNECT);
              }
@@ -2023,6 +2144,29 @@ public class AdapterService extends Service {
 
     private String dump() {
         StringBuilder sb = new StringBuilder();
+        mProfileStartup.dump(sb);
+        mLazyProfiles.dump(sb);
+        mAutoConnectScheduler.dump(sb);
+        mEnergyRecorder.dump(sb);
+        if (mJniCallbacks != null) {
+            mJniCallbacks.dump(sb);
+        }
+        AdapterServiceBinder.sCallStats.dump(sb);
+        SharedLooperPool.dump(sb);
+        EventTrace.dump(sb);
+        if (mStackWakeLocks != null) {
+            mStackWakeLocks.dump(sb);
+        }
+        if (mWakeAlarms != null) {
+            mWakeAlarms.dump(sb);
+        }
+        QAdapterService qService = QAdapterService.getAdapterService();
+        if (qService != null) {
+            qService.dumpRssiMonitor(sb);
+        }
+        if (mBondStateMachine != null) {
+            mBondStateMachine.dumpBondQueue(sb);
+        }
         synchronized (mProfiles) {
             for (ProfileService profile : mProfiles) {
                 profile.dump(sb);
@@ -2071,59 +2215,42 @@ public class AdapterService extends Service {
     }
 
     // If an alarm is already pending and a new request comes in, the alarm
-    // will be rescheduled (i.e. the previously set alarm will be cancelled).
+    // will be rescheduled unless it is already set for the same time.
     private void processSetWakeAlarm(long delayMillis, int alarmType) {
-        if (mPendingAlarm != null) {
-            mAlarmManager.cancel(mPendingAlarm);
-        }
-
-        long wakeupTime = SystemClock.elapsedRealtime() + delayMillis;
-
-        Intent intent = new Intent(ACTION_ALARM_WAKEUP);
-        mPendingAlarm = PendingIntent.getBroadcast(this, 0, intent, PendingIntent.FLAG_ONE_SHOT);
-        mAlarmManager.setExact(alarmType, wakeupTime, mPendingAlarm);
+        mWakeAlarms.schedule(delayMillis, alarmType);
     }
 
-    // This function is called from JNI. It allows native code to acquire a single wake lock.
-    // If the wake lock is already held, this function returns success. Although this function
-    // only supports acquiring a single wake lock at a time right now, it will eventually be
-    // extended to allow acquiring an arbitrary number of wake locks. The current interface
-    // takes |lockName| as a parameter in anticipation of that implementation.
+    // This function is called from JNI. It allows native code to acquire a named wake lock.
+    // Acquiring a held wake lock is a no-op and one release frees it. Each name has its own
+    // wake lock, force released only when persist.bt.wakelock.timeout_ms is set, see
+    // {@link StackWakeLocks}.
     private boolean acquireWakeLock(String lockName) {
-        if (mWakeLock != null) {
-            if (!lockName.equals(mWakeLockName)) {
-                errorLog("Multiple wake lock acquisition attempted; aborting: " + lockName);
-                return false;
-            }
-
-            // We're already holding the desired wake lock so return success.
-            if (mWakeLock.isHeld()) {
-                return true;
-            }
+        StackWakeLocks wakeLocks = mStackWakeLocks;
+        if (wakeLocks == null) {
+            errorLog("Wake lock acquisition before service creation: " + lockName);
+            return false;
         }
-
-        mWakeLockName = lockName;
-        mWakeLock = mPowerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, lockName);
-        mWakeLock.acquire();
-        return true;
+        return wakeLocks.acquire(lockName);
     }
 
     // This function is called from JNI. It allows native code to release a wake lock acquired
     // by |acquireWakeLock|. If the wake lock is not held, this function returns failure.
-    // Note that the release() call is also invoked by {@link #cleanup()} so a synchronization is
-    // needed here. See the comment for |acquireWakeLock| for an explanation of the interface.
     private boolean releaseWakeLock(String lockName) {
-        synchronized (this) {
-            if (mWakeLock == null) {
-                errorLog("Repeated wake lock release; aborting release: " + lockName);
-                return false;
-            }
-
-            mWakeLock.release();
-            mWakeLock = null;
-            mWakeLockName = null;
+        StackWakeLocks wakeLocks = mStackWakeLocks;
+        if (wakeLocks == null) {
+            errorLog("Wake lock release before service creation: " + lockName);
+            return false;
         }
-        return true;
+        return wakeLocks.release(lockName);
+    }
+
+    /**
+     * Called by the GATT service when the set of LE scans changes, with the
+     * uid of the app running each scan, so that controller energy can be
+     * attributed to them.
+     */
+    public void onLeScanClientsChanged(int[] appUids) {
+        mEnergyRecorder.setScanUids(appUids);
     }
 
     private void energyInfoCallback (int status, int ctrl_state,
@@ -2138,6 +2265,11 @@ public class AdapterService extends Service {
             mIdleTimeTotalMs += idle_time;
             // Energy is product of mA, V and ms
             mEnergyUsedTotalVoltAmpSecMicro += energy_used;
+            if (mAdapterProperties != null) {
+                mEnergyRecorder.record(ctrl_state, tx_time, rx_time, idle_time, energy_used,
+                        mAdapterProperties.getConnectedProfiles(),
+                        mAdapterProperties.isDiscovering());
+            }
         }
 
         if (DBG) {
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import com.android.bluetooth.a2dp.A2dpService;
+import com.android.bluetooth.a2dp.A2dpSinkService;
+import com.android.bluetooth.hfp.HeadsetService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * Reconnects the bonded devices marked for auto connection when Bluetooth is
+ * turned on.
+ *
+ * Devices are ranked by the number of profiles they auto connect and then by
+ * how recently they were last connected. Up to persist.bt.autoconnect.links
+ * devices are connected at the same time; a device whose attempt fails or
+ * times out is retried with exponential backoff. The time from the start of
+ * the plan until each device connects is kept for dumpsys.
+ */
+class AutoConnectScheduler {
+    private static final boolean DBG = false;
+    private static final String TAG = "BluetoothAutoConnect";
+
+    private static final String HISTORY_PREFERENCE_FILE = "auto_connect_history";
+
+    private static final int DEFAULT_LINK_BUDGET = 2;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int RETRY_BACKOFF_MS = 2000;
+    private static final int ATTEMPT_TIMEOUT_MS = 20000;
+
+    private static final int MESSAGE_CONNECT_NEXT = 1;
+    private static final int MESSAGE_ATTEMPT_TIMEOUT = 2;
+
+    private static final int STATE_QUEUED = 0;
+    private static final int STATE_CONNECTING = 1;
+    private static final int STATE_CONNECTED = 2;
+    private static final int STATE_FAILED = 3;
+
+    private static class Candidate {
+        final BluetoothDevice device;
+        final int autoConnectProfiles;
+        final long lastConnected;
+        int state = STATE_QUEUED;
+        int attempts;
+        long retryAt;
+        long connectedAfterMs = -1;
+        // Profiles asked to connect in the current attempt that are not done yet
+        int pendingProfiles;
+
+        Candidate(BluetoothDevice device, int autoConnectProfiles, long lastConnected) {
+            this.device = device;
+            this.autoConnectProfiles = autoConnectProfiles;
+            this.lastConnected = lastConnected;
+        }
+    }
+
+    private static final int PROFILE_HEADSET = 1 << 0;
+    private static final int PROFILE_A2DP = 1 << 1;
+    private static final int PROFILE_A2DP_SINK = 1 << 2;
+
+    private final AdapterService mAdapterService;
+    private final SharedPreferences mHistory;
+    private final Handler mHandler;
+    private final LinkedHashMap<BluetoothDevice, Candidate> mCandidates =
+            new LinkedHashMap<BluetoothDevice, Candidate>();
+    private long mPlanStartedAt;
+    private int mLinkBudget;
+
+    AutoConnectScheduler(AdapterService service, Looper looper) {
+        mAdapterService = service;
+        mHistory = service.getSharedPreferences(HISTORY_PREFERENCE_FILE, Context.MODE_PRIVATE);
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MESSAGE_CONNECT_NEXT:
+                        connectNext();
+                        break;
+                    case MESSAGE_ATTEMPT_TIMEOUT:
+                        onAttemptTimeout((BluetoothDevice) msg.obj);
+                        break;
+                }
+            }
+        };
+    }
+
+    /**
+     * Build a new plan from the bonded devices and start connecting. Must be
+     * called on the looper of this scheduler.
+     */
+    synchronized void start(BluetoothDevice[] bondedDevices) {
+        cancel();
+        HeadsetService hsService = HeadsetService.getHeadsetService();
+        A2dpService a2dpService = A2dpService.getA2dpService();
+        A2dpSinkService a2dpSinkService = A2dpSinkService.getA2dpSinkService();
+
+        ArrayList<Candidate> candidates = new ArrayList<Candidate>();
+        for (BluetoothDevice device : bondedDevices) {
+            int profiles = 0;
+            if (hsService != null && hsService.getPriority(device)
+                    == BluetoothProfile.PRIORITY_AUTO_CONNECT) {
+                profiles |= PROFILE_HEADSET;
+            }
+            if (a2dpService != null && a2dpService.getPriority(device)
+                    == BluetoothProfile.PRIORITY_AUTO_CONNECT) {
+                profiles |= PROFILE_A2DP;
+            }
+            if (a2dpSinkService != null && a2dpSinkService.getPriority(device)
+                    == BluetoothProfile.PRIORITY_AUTO_CONNECT) {
+                profiles |= PROFILE_A2DP_SINK;
+            }
+            if (profiles != 0) {
+                candidates.add(new Candidate(device, profiles,
+                        mHistory.getLong(device.getAddress(), 0)));
+            }
+        }
+        Collections.sort(candidates, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                int byProfiles = Integer.bitCount(b.autoConnectProfiles)
+                        - Integer.bitCount(a.autoConnectProfiles);
+                if (byProfiles != 0) return byProfiles;
+                return Long.compare(b.lastConnected, a.lastConnected);
+            }
+        });
+        for (Candidate candidate : candidates) {
+            mCandidates.put(candidate.device, candidate);
+        }
+
+        mLinkBudget = Math.max(1,
+                SystemProperties.getInt("persist.bt.autoconnect.links", DEFAULT_LINK_BUDGET));
+        mPlanStartedAt = SystemClock.elapsedRealtime();
+        Log.i(TAG, "Auto connecting " + mCandidates.size() + " devices, " + mLinkBudget
+                + " at a time");
+        connectNext();
+    }
+
+    synchronized void cancel() {
+        mHandler.removeCallbacksAndMessages(null);
+        mCandidates.clear();
+    }
+
+    /**
+     * Called for every profile connection state change, on the looper of this
+     * scheduler. Remembers when the device was last connected, and completes
+     * a pending auto connect attempt.
+     */
+    synchronized void onProfileConnectionStateChanged(BluetoothDevice device, int profileId, int newState) {
+        int profile = toProfileBit(profileId);
+        if (profile == 0) return;
+
+        if (newState == BluetoothProfile.STATE_CONNECTED) {
+            mHistory.edit().putLong(device.getAddress(), System.currentTimeMillis()).apply();
+        }
+
+        Candidate candidate = mCandidates.get(device);
+        if (candidate == null || candidate.state != STATE_CONNECTING
+                || (candidate.pendingProfiles & profile) == 0) {
+            return;
+        }
+        if (newState == BluetoothProfile.STATE_CONNECTED) {
+            // One profile is enough to free the link slot, connectOtherProfile()
+            // takes care of the rest
+            candidate.state = STATE_CONNECTED;
+            candidate.connectedAfterMs = SystemClock.elapsedRealtime() - mPlanStartedAt;
+            mHandler.removeMessages(MESSAGE_ATTEMPT_TIMEOUT, device);
+            if (DBG) Log.d(TAG, device + " reconnected after " + candidate.connectedAfterMs);
+            scheduleConnectNext(0);
+        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            candidate.pendingProfiles &= ~profile;
+            if (candidate.pendingProfiles == 0) {
+                onAttemptFailed(candidate);
+            }
+        }
+    }
+
+    private synchronized void onAttemptTimeout(BluetoothDevice device) {
+        Candidate candidate = mCandidates.get(device);
+        if (candidate != null && candidate.state == STATE_CONNECTING) {
+            Log.w(TAG, "Auto connect timed out for " + device);
+            onAttemptFailed(candidate);
+        }
+    }
+
+    private void onAttemptFailed(Candidate candidate) {
+        retryOrGiveUp(candidate);
+        // The link slot is free for the next device
+        scheduleConnectNext(0);
+    }
+
+    /* Queue the candidate again after its backoff, or give up after MAX_ATTEMPTS */
+    private void retryOrGiveUp(Candidate candidate) {
+        mHandler.removeMessages(MESSAGE_ATTEMPT_TIMEOUT, candidate.device);
+        if (candidate.attempts >= MAX_ATTEMPTS) {
+            Log.w(TAG, "Giving up auto connect to " + candidate.device);
+            candidate.state = STATE_FAILED;
+        } else {
+            long backoff = (long) RETRY_BACKOFF_MS << (candidate.attempts - 1);
+            candidate.state = STATE_QUEUED;
+            candidate.retryAt = SystemClock.elapsedRealtime() + backoff;
+        }
+    }
+
+    /* A single connectNext() is pending at any time, at the earliest time asked for */
+    private void scheduleConnectNext(long delayMs) {
+        mHandler.removeMessages(MESSAGE_CONNECT_NEXT);
+        mHandler.sendMessageDelayed(mHandler.obtainMessage(MESSAGE_CONNECT_NEXT), delayMs);
+    }
+
+    private synchronized void connectNext() {
+        int inFlight = 0;
+        for (Candidate candidate : mCandidates.values()) {
+            if (candidate.state == STATE_CONNECTING) inFlight++;
+        }
+        long now = SystemClock.elapsedRealtime();
+        long nextRetryAt = Long.MAX_VALUE;
+        for (Candidate candidate : mCandidates.values()) {
+            if (candidate.state != STATE_QUEUED) continue;
+            if (inFlight >= mLinkBudget) {
+                // Started when a link slot is freed
+                return;
+            }
+            if (candidate.retryAt > now) {
+                nextRetryAt = Math.min(nextRetryAt, candidate.retryAt);
+                continue;
+            }
+            if (connect(candidate)) {
+                inFlight++;
+            } else {
+                retryOrGiveUp(candidate);
+                if (candidate.state == STATE_QUEUED) {
+                    nextRetryAt = Math.min(nextRetryAt, candidate.retryAt);
+                }
+            }
+        }
+        // Candidates waiting for their backoff while there are free slots
+        if (nextRetryAt != Long.MAX_VALUE && inFlight < mLinkBudget) {
+            scheduleConnectNext(nextRetryAt - now);
+        }
+    }
+
+    private boolean connect(Candidate candidate) {
+        HeadsetService hsService = HeadsetService.getHeadsetService();
+        A2dpService a2dpService = A2dpService.getA2dpService();
+        A2dpSinkService a2dpSinkService = A2dpSinkService.getA2dpSinkService();
+        BluetoothDevice device = candidate.device;
+
+        mAdapterService.cancelDiscoveryforautoConnect();
+        candidate.attempts++;
+        candidate.pendingProfiles = 0;
+        if (hsService != null && (candidate.autoConnectProfiles & PROFILE_HEADSET) != 0) {
+            debugLog("Connecting HFP with " + device + ", attempt " + candidate.attempts);
+            if (hsService.connect(device)) candidate.pendingProfiles |= PROFILE_HEADSET;
+        }
+        if (a2dpService != null && (candidate.autoConnectProfiles & PROFILE_A2DP) != 0) {
+            debugLog("Connecting A2DP with " + device + ", attempt " + candidate.attempts);
+            if (a2dpService.connect(device)) candidate.pendingProfiles |= PROFILE_A2DP;
+        }
+        if (a2dpSinkService != null && (candidate.autoConnectProfiles & PROFILE_A2DP_SINK) != 0) {
+            debugLog("Connecting A2DP sink with " + device + ", attempt " + candidate.attempts);
+            if (a2dpSinkService.connect(device)) candidate.pendingProfiles |= PROFILE_A2DP_SINK;
+        }
+        if (candidate.pendingProfiles == 0) return false;
+
+        candidate.state = STATE_CONNECTING;
+        mHandler.sendMessageDelayed(mHandler.obtainMessage(MESSAGE_ATTEMPT_TIMEOUT, device),
+                ATTEMPT_TIMEOUT_MS);
+        return true;
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        sb.append("Auto connect:\n");
+        if (mCandidates.isEmpty()) {
+            ProfileService.println(sb, "No auto connect plan");
+            return;
+        }
+        int connected = 0;
+        long total = 0;
+        long max = 0;
+        for (Candidate candidate : mCandidates.values()) {
+            ProfileService.println(sb, candidate.device + ": " + stateToString(candidate.state)
+                    + ", attempts=" + candidate.attempts
+                    + (candidate.connectedAfterMs >= 0
+                        ? ", reconnected after " + candidate.connectedAfterMs + " ms" : ""));
+            if (candidate.connectedAfterMs >= 0) {
+                connected++;
+                total += candidate.connectedAfterMs;
+                max = Math.max(max, candidate.connectedAfterMs);
+            }
+        }
+        ProfileService.println(sb, "Reconnected " + connected + "/" + mCandidates.size()
+                + ", link budget " + mLinkBudget
+                + (connected > 0 ? ", avg " + (total / connected) + " ms, max " + max + " ms"
+                    : ""));
+    }
+
+    private static int toProfileBit(int profileId) {
+        switch (profileId) {
+            case BluetoothProfile.HEADSET:
+                return PROFILE_HEADSET;
+            case BluetoothProfile.A2DP:
+                return PROFILE_A2DP;
+            case BluetoothProfile.A2DP_SINK:
+                return PROFILE_A2DP_SINK;
+        }
+        return 0;
+    }
+
+    private static String stateToString(int state) {
+        switch (state) {
+            case STATE_QUEUED:
+                return "queued";
+            case STATE_CONNECTING:
+                return "connecting";
+            case STATE_CONNECTED:
+                return "connected";
+            case STATE_FAILED:
+                return "failed";
+        }
+        return "unknown";
+    }
+
+    private void debugLog(String msg) {
+        if (DBG) Log.d(TAG, msg);
+    }
+}
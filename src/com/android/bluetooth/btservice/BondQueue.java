@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Queue of outgoing bond requests.
+ *
+ * The stack accepts a limited number of concurrent pairings (one for
+ * bluedroid, it answers BUSY to any other createBond). Requests beyond that
+ * are queued by priority, then in request order, and issued as soon as a
+ * running bond completes. Every issued bond is given a timeout after which it
+ * is cancelled so that a stuck pairing can not hold up the queue; its slot is
+ * freed when the stack reports the cancel, or after a second timeout.
+ *
+ * The queue is not thread safe, it is driven from the BondStateMachine thread.
+ */
+class BondQueue {
+    private static final boolean DBG = false;
+    private static final String TAG = "BluetoothBondQueue";
+
+    static final int PRIORITY_NORMAL = 0;
+    static final int PRIORITY_HIGH = 1;
+
+    static final long DEFAULT_BOND_TIMEOUT_MS = 60000;
+
+    /**
+     * Interface to the native layer and to the owner's timers.
+     */
+    interface Callbacks {
+        /** Start bonding with the device. @return false if the stack refused */
+        boolean createBond(BluetoothDevice device, int transport);
+        /** Cancel a bond that has been started. */
+        void cancelBond(BluetoothDevice device);
+        /** Call {@link BondQueue#onTimeout} with the id after the delay. */
+        void scheduleTimeout(int bondId, long delayMs);
+    }
+
+    private static class Entry {
+        final int id;
+        final BluetoothDevice device;
+        final int transport;
+        final int priority;
+        final long enqueuedAt;
+        long startedAt;
+        boolean cancelling;
+
+        Entry(int id, BluetoothDevice device, int transport, int priority) {
+            this.id = id;
+            this.device = device;
+            this.transport = transport;
+            this.priority = priority;
+            this.enqueuedAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private final Callbacks mCallbacks;
+    private final int mMaxInFlight;
+    private final long mBondTimeoutMs;
+    private final PriorityQueue<Entry> mQueue = new PriorityQueue<Entry>(11,
+            new Comparator<Entry>() {
+                @Override
+                public int compare(Entry a, Entry b) {
+                    if (a.priority != b.priority) return b.priority - a.priority;
+                    return a.id - b.id;
+                }
+            });
+    private final ArrayList<Entry> mInFlight = new ArrayList<Entry>();
+    private int mNextId = 1;
+
+    // Statistics
+    private int mBonded;
+    private int mFailed;
+    private int mTimedOut;
+    private long mTotalBondMs;
+    private long mTotalWaitMs;
+    private long mFirstStartedAt;
+    private long mLastCompletedAt;
+    private int mMaxQueueDepth;
+
+    BondQueue(Callbacks callbacks, int maxInFlight, long bondTimeoutMs) {
+        mCallbacks = callbacks;
+        mMaxInFlight = Math.max(1, maxInFlight);
+        mBondTimeoutMs = bondTimeoutMs;
+    }
+
+    /**
+     * Queue a bond request and start it right away if a slot is free.
+     * @return false if the device is already queued or bonding
+     */
+    boolean enqueue(BluetoothDevice device, int transport, int priority) {
+        if (contains(device)) return false;
+        mQueue.add(new Entry(mNextId++, device, transport, priority));
+        mMaxQueueDepth = Math.max(mMaxQueueDepth, mQueue.size());
+        dispatch();
+        return true;
+    }
+
+    /**
+     * Drop a request that has not been started yet.
+     * @return true if the device was waiting in the queue
+     */
+    boolean remove(BluetoothDevice device) {
+        Iterator<Entry> i = mQueue.iterator();
+        while (i.hasNext()) {
+            if (i.next().device.equals(device)) {
+                i.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean contains(BluetoothDevice device) {
+        if (findInFlight(device) != null) return true;
+        for (Entry entry : mQueue) {
+            if (entry.device.equals(device)) return true;
+        }
+        return false;
+    }
+
+    boolean isInFlight(BluetoothDevice device) {
+        return findInFlight(device) != null;
+    }
+
+    /**
+     * Called when the stack reports a bond state change. A bond that was
+     * started by the queue completes on BOND_BONDED or BOND_NONE, which frees
+     * its slot for the next request.
+     */
+    void onBondStateChanged(BluetoothDevice device, int newState) {
+        if (newState == BluetoothDevice.BOND_BONDING) return;
+        Entry entry = findInFlight(device);
+        if (entry == null) return;
+        complete(entry, newState == BluetoothDevice.BOND_BONDED);
+        dispatch();
+    }
+
+    void onTimeout(int bondId) {
+        for (Entry entry : mInFlight) {
+            if (entry.id != bondId) continue;
+            if (!entry.cancelling) {
+                // Keep the slot until the stack reports the cancel, another
+                // createBond before that would only be answered BUSY
+                Log.w(TAG, "Bond with " + entry.device + " timed out, cancelling");
+                mTimedOut++;
+                entry.cancelling = true;
+                mCallbacks.cancelBond(entry.device);
+                mCallbacks.scheduleTimeout(entry.id, mBondTimeoutMs);
+            } else {
+                Log.e(TAG, "No answer to cancel of bond with " + entry.device);
+                complete(entry, false);
+                dispatch();
+            }
+            return;
+        }
+    }
+
+    void clear() {
+        mQueue.clear();
+        mInFlight.clear();
+    }
+
+    private void dispatch() {
+        while (mInFlight.size() < mMaxInFlight && !mQueue.isEmpty()) {
+            Entry entry = mQueue.poll();
+            entry.startedAt = SystemClock.elapsedRealtime();
+            mTotalWaitMs += entry.startedAt - entry.enqueuedAt;
+            if (mFirstStartedAt == 0) mFirstStartedAt = entry.startedAt;
+            // Tracked before the call: the callback may already see the device bonding
+            mInFlight.add(entry);
+            if (DBG) Log.d(TAG, "Starting bond with " + entry.device);
+            if (!mCallbacks.createBond(entry.device, entry.transport)) {
+                mInFlight.remove(entry);
+                mFailed++;
+                continue;
+            }
+            if (mBondTimeoutMs > 0) {
+                mCallbacks.scheduleTimeout(entry.id, mBondTimeoutMs);
+            }
+        }
+    }
+
+    private void complete(Entry entry, boolean bonded) {
+        mInFlight.remove(entry);
+        mLastCompletedAt = SystemClock.elapsedRealtime();
+        if (bonded) {
+            mBonded++;
+            mTotalBondMs += mLastCompletedAt - entry.startedAt;
+        } else {
+            mFailed++;
+        }
+    }
+
+    private Entry findInFlight(BluetoothDevice device) {
+        for (Entry entry : mInFlight) {
+            if (entry.device.equals(device)) return entry;
+        }
+        return null;
+    }
+
+    int getBondedCount() {
+        return mBonded;
+    }
+
+    int getFailedCount() {
+        return mFailed;
+    }
+
+    int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    void dump(StringBuilder sb) {
+        sb.append("Bond queue:\n");
+        ProfileService.println(sb, "In flight: " + mInFlight.size() + "/" + mMaxInFlight
+                + ", queued: " + mQueue.size() + ", max queued: " + mMaxQueueDepth);
+        ProfileService.println(sb, "Bonded: " + mBonded + ", failed: " + mFailed
+                + " (timed out: " + mTimedOut + ")");
+        if (mBonded > 0) {
+            ProfileService.println(sb, "Avg bond time: " + (mTotalBondMs / mBonded) + " ms");
+        }
+        int started = mBonded + mFailed;
+        if (started > 0) {
+            ProfileService.println(sb, "Avg queue wait: " + (mTotalWaitMs / started) + " ms");
+        }
+        long elapsed = mLastCompletedAt - mFirstStartedAt;
+        if (mBonded > 0 && elapsed > 0) {
+            ProfileService.println(sb, "Throughput: "
+                    + String.format("%.1f", mBonded * 60000f / elapsed) + " bonds/min");
+        }
+    }
+}
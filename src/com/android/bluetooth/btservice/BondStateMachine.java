@@ -26,13 +26,18 @@ import com.android.bluetooth.hid.HidService;
 import com.android.bluetooth.hfp.HeadsetService;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.util.Log;
 import android.os.PowerManager;
 
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.RemoteDevices.DeviceProperties;
+import com.android.bluetooth.util.NativeInterfaceFactory;
+import com.android.bluetooth.util.SharedLooperPool;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
 
@@ -56,6 +61,7 @@ final class BondStateMachine extends StateMachine {
     static final int BONDING_STATE_CHANGE = 4;
     static final int SSP_REQUEST = 5;
     static final int PIN_REQUEST = 6;
+    static final int BOND_TIMEOUT = 7;
     static final int BOND_STATE_NONE = 0;
     static final int BOND_STATE_BONDING = 1;
     static final int BOND_STATE_BONDED = 2;
@@ -75,21 +81,32 @@ final class BondStateMachine extends StateMachine {
     private final ArrayList<BluetoothDevice> mDevices =
         new ArrayList<BluetoothDevice>();
 
+    private final BondQueue mBondQueue;
+
+    private static NativeInterfaceFactory<BondStateMachine, BondNativeInterface>
+            sNativeInterfaceFactory;
+    private final BondNativeInterface mNativeInterface;
+
     private BondStateMachine(PowerManager pm, AdapterService service,
             AdapterProperties prop, RemoteDevices remoteDevices) {
-        super("BondStateMachine:");
+        super("BondStateMachine:", SharedLooperPool.acquire("BondStateMachine"));
         addState(mStableState);
         addState(mPendingCommandState);
         mRemoteDevices = remoteDevices;
         mAdapterService = service;
         mAdapterProperties = prop;
         mAdapter = BluetoothAdapter.getDefaultAdapter();
+        mNativeInterface = createNativeInterface();
         setInitialState(mStableState);
 
         //WakeLock instantiation in RemoteDevices class
         mWakeLock = pm.newWakeLock(PowerManager.FULL_WAKE_LOCK | PowerManager.ACQUIRE_CAUSES_WAKEUP
                        | PowerManager.ON_AFTER_RELEASE, TAG);
         mWakeLock.setReferenceCounted(false);
+
+        mBondQueue = new BondQueue(mBondQueueCallbacks,
+                SystemProperties.getInt("persist.bt.bond.max_parallel", 1),
+                BondQueue.DEFAULT_BOND_TIMEOUT_MS);
     }
 
     public static BondStateMachine make(PowerManager pm, AdapterService service,
@@ -101,10 +118,13 @@ final class BondStateMachine extends StateMachine {
     }
             
     public void doQuit() {
+        Looper looper = getHandler().getLooper();
         quitNow();
+        SharedLooperPool.release(looper, "BondStateMachine");
     }
 
     public void cleanup() {
+        mBondQueue.clear();
         mAdapterService = null;
         mRemoteDevices = null;
         mAdapterProperties = null;
@@ -124,7 +144,7 @@ final class BondStateMachine extends StateMachine {
             switch(msg.what) {
 
               case CREATE_BOND:
-                  createBond(dev, msg.arg1, true);
+                  createBond(dev, msg.arg1, msg.arg2);
                   break;
               case REMOVE_BOND:
                   removeBond(dev, true);
@@ -149,6 +169,10 @@ final class BondStateMachine extends StateMachine {
                 }
                 break;
 
+              case BOND_TIMEOUT:
+                  mBondQueue.onTimeout(msg.arg1);
+                  break;
+
               case CANCEL_BOND:
               default:
                    Log.e(TAG, "Received unhandled state: " + msg.what);
@@ -184,18 +208,30 @@ final class BondStateMachine extends StateMachine {
 
             switch (msg.what) {
                 case CREATE_BOND:
-                    result = createBond(dev, msg.arg1, false);
+                    // The device is added to mDevices once the queue starts the bond
+                    createBond(dev, msg.arg1, msg.arg2);
                     break;
                 case REMOVE_BOND:
                     result = removeBond(dev, false);
                     break;
                 case CANCEL_BOND:
-                    result = cancelBond(dev);
+                    if (mBondQueue.remove(dev)) {
+                        // Never reached the stack, end the BONDING reported when queued
+                        sendIntent(dev, BluetoothDevice.BOND_NONE,
+                                   BluetoothDevice.UNBOND_REASON_AUTH_CANCELED);
+                    } else {
+                        result = cancelBond(dev);
+                    }
+                    break;
+                case BOND_TIMEOUT:
+                    mBondQueue.onTimeout(msg.arg1);
                     break;
                 case BONDING_STATE_CHANGE:
                     int newState = msg.arg1;
                     int reason = getUnbondReasonFromHALCode(msg.arg2);
                     sendIntent(dev, newState, reason);
+                    // May start the next queued bond, which adds it to mDevices
+                    mBondQueue.onBondStateChanged(dev, newState);
                     if(newState != BluetoothDevice.BOND_BONDING )
                     {
                         // check if bond none is received from device which
@@ -289,7 +325,7 @@ final class BondStateMachine extends StateMachine {
         if(mAdapterService == null) return false;
         if (dev.getBondState() == BluetoothDevice.BOND_BONDING) {
             byte[] addr = Utils.getBytesFromAddress(dev.getAddress());
-            if (!mAdapterService.cancelBondNative(addr)) {
+            if (!mNativeInterface.cancelBondNative(addr)) {
                Log.e(TAG, "Unexpected error while cancelling bond:");
             } else {
                 return true;
@@ -302,7 +338,7 @@ final class BondStateMachine extends StateMachine {
         if(mAdapterService == null) return false;
         if (dev.getBondState() == BluetoothDevice.BOND_BONDED) {
             byte[] addr = Utils.getBytesFromAddress(dev.getAddress());
-            if (!mAdapterService.removeBondNative(addr)) {
+            if (!mNativeInterface.removeBondNative(addr)) {
                Log.e(TAG, "Unexpected error while removing bond:");
             } else {
                 if (transition) transitionTo(mPendingCommandState);
@@ -313,21 +349,90 @@ final class BondStateMachine extends StateMachine {
         return false;
     }
 
-    private boolean createBond(BluetoothDevice dev, int transport, boolean transition) {
+    private boolean createBond(BluetoothDevice dev, int transport, int priority) {
         if(mAdapterService == null) return false;
         if (dev.getBondState() == BluetoothDevice.BOND_NONE) {
             infoLog("Bond address is:" + dev);
+            if (!mBondQueue.enqueue(dev, transport, priority)) return false;
+            if (mBondQueue.contains(dev) && !mBondQueue.isInFlight(dev)) {
+                // Waiting for a free slot, the stack reports BONDING only once
+                // the bond is started
+                sendIntent(dev, BluetoothDevice.BOND_BONDING, 0);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // Only called from processMessage(), through the BondQueue
+    private final BondQueue.Callbacks mBondQueueCallbacks = new BondQueue.Callbacks() {
+        @Override
+        public boolean createBond(BluetoothDevice dev, int transport) {
+            if (mAdapterService == null) return false;
             byte[] addr = Utils.getBytesFromAddress(dev.getAddress());
-            if (!mAdapterService.createBondNative(addr, transport)) {
+            if (!mNativeInterface.createBondNative(addr, transport)) {
                 sendIntent(dev, BluetoothDevice.BOND_NONE,
                            BluetoothDevice.UNBOND_REASON_REMOVED);
                 return false;
-            } else if (transition) {
+            }
+            if (!mDevices.contains(dev)) {
+                mDevices.add(dev);
+            }
+            if (getCurrentState() == mStableState) {
                 transitionTo(mPendingCommandState);
             }
             return true;
         }
-        return false;
+
+        @Override
+        public void cancelBond(BluetoothDevice dev) {
+            if (mAdapterService == null) return;
+            byte[] addr = Utils.getBytesFromAddress(dev.getAddress());
+            if (!mNativeInterface.cancelBondNative(addr)) {
+                Log.e(TAG, "Unexpected error while cancelling timed out bond");
+            }
+        }
+
+        @Override
+        public void scheduleTimeout(int bondId, long delayMs) {
+            sendMessageDelayed(obtainMessage(BOND_TIMEOUT, bondId, 0), delayMs);
+        }
+    };
+
+    void dumpBondQueue(StringBuilder sb) {
+        mBondQueue.dump(sb);
+    }
+
+    /**
+     * Replace the JNI layer of the instances created from now on, for tests.
+     * @param factory null to go back to JNI
+     */
+    @VisibleForTesting
+    static void setNativeInterfaceFactory(
+            NativeInterfaceFactory<BondStateMachine, BondNativeInterface> factory) {
+        sNativeInterfaceFactory = factory;
+    }
+
+    private BondNativeInterface createNativeInterface() {
+        if (sNativeInterfaceFactory != null) return sNativeInterfaceFactory.create(this);
+        return new JniNativeInterface();
+    }
+
+    private class JniNativeInterface implements BondNativeInterface {
+        @Override
+        public boolean createBondNative(byte[] address, int transport) {
+            return mAdapterService.createBondNative(address, transport);
+        }
+
+        @Override
+        public boolean removeBondNative(byte[] address) {
+            return mAdapterService.removeBondNative(address);
+        }
+
+        @Override
+        public boolean cancelBondNative(byte[] address) {
+            return mAdapterService.cancelBondNative(address);
+        }
     }
 
     private void sendDisplayPinIntent(byte[] address, int pin, int variant) {
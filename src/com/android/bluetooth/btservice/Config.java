@@ -17,9 +17,13 @@
 package com.android.bluetooth.btservice;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
+import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothUuid;
 import android.content.Context;
 import android.content.res.Resources;
+import android.os.ParcelUuid;
 import android.os.SystemProperties;
 import android.util.Log;
 
@@ -74,6 +78,57 @@ public class Config {
         R.bool.profile_supported_hidd
     };
 
+    /**
+     * Profile services that have to be running before a profile service is
+     * started. Profile services not listed here have no dependencies and are
+     * all started at the same time.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final HashMap<Class, Class[]> PROFILE_DEPENDENCIES =
+            new HashMap<Class, Class[]>();
+    static {
+        // The AVRCP controller only serves the media stream of the A2DP sink role
+        PROFILE_DEPENDENCIES.put(AvrcpControllerService.class,
+                new Class[] { A2dpSinkService.class });
+    }
+
+    private static final Class[] NO_DEPENDENCIES = new Class[0];
+
+    private static final ParcelUuid HDP_SOURCE =
+            ParcelUuid.fromString("00001401-0000-1000-8000-00805F9B34FB");
+    private static final ParcelUuid HDP_SINK =
+            ParcelUuid.fromString("00001402-0000-1000-8000-00805F9B34FB");
+
+    /**
+     * Profile services that may be started on demand in lazy mode, see
+     * {@link LazyProfileManager}.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final Class[] LAZY_PROFILE_SERVICES = {
+        HealthService.class,
+        PanService.class,
+        HidDevService.class,
+        A2dpSinkService.class
+    };
+    /**
+     * Profile id of each lazy profile service, used to check whether it is in use.
+     */
+    private static final int[] LAZY_PROFILE_IDS = {
+        BluetoothProfile.HEALTH,
+        BluetoothProfile.PAN,
+        BluetoothProfile.HID_DEVICE,
+        BluetoothProfile.A2DP_SINK
+    };
+    /**
+     * Remote UUIDs that cause a lazy profile service to be started.
+     */
+    private static final ParcelUuid[][] LAZY_PROFILE_UUIDS = {
+        { HDP_SOURCE, HDP_SINK },
+        { BluetoothUuid.NAP, BluetoothUuid.PANU },
+        { },
+        { BluetoothUuid.AudioSource, BluetoothUuid.AdvAudioDist }
+    };
+
     private static Class[] SUPPORTED_PROFILES = new Class[0];
 
     static void init(Context ctx) {
@@ -100,4 +155,35 @@ public class Config {
     static Class[]  getSupportedProfiles() {
         return SUPPORTED_PROFILES;
     }
+
+    @SuppressWarnings("rawtypes")
+    static boolean isLazyProfile(Class profile) {
+        return indexOfLazyProfile(profile) >= 0;
+    }
+
+    @SuppressWarnings("rawtypes")
+    static int getLazyProfileId(Class profile) {
+        int i = indexOfLazyProfile(profile);
+        return (i >= 0) ? LAZY_PROFILE_IDS[i] : -1;
+    }
+
+    @SuppressWarnings("rawtypes")
+    static ParcelUuid[] getLazyProfileUuids(Class profile) {
+        int i = indexOfLazyProfile(profile);
+        return (i >= 0) ? LAZY_PROFILE_UUIDS[i] : new ParcelUuid[0];
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static int indexOfLazyProfile(Class profile) {
+        for (int i = 0; i < LAZY_PROFILE_SERVICES.length; i++) {
+            if (LAZY_PROFILE_SERVICES[i] == profile) return i;
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("rawtypes")
+    static Class[] getProfileDependencies(Class profile) {
+        Class[] dependencies = PROFILE_DEPENDENCIES.get(profile);
+        return (dependencies != null) ? dependencies : NO_DEPENDENCIES;
+    }
 }
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Time series of the controller activity reports.
+ *
+ * Every energy report of the controller is kept in a fixed size ring buffer,
+ * tagged with the profiles that were connected and the apps that were
+ * running LE scans when it was received. The energy of each sample is split
+ * evenly across the connected profiles and the LE scans, and the totals are
+ * kept by profile id and by app uid, to find the expensive ones. The client
+ * interface of a scan is reused once it is unregistered, the uid is not.
+ */
+class EnergyRecorder {
+    static final int DEFAULT_CAPACITY = 360;
+
+    /**
+     * One controller activity report.
+     */
+    static final class Sample {
+        final long timestamp;
+        final int ctrlState;
+        final long txTimeMs;
+        final long rxTimeMs;
+        final long idleTimeMs;
+        final long energyUsed;
+        final int[] profiles;
+        final boolean discovering;
+        final int[] scanUids;
+
+        Sample(long timestamp, int ctrlState, long txTimeMs, long rxTimeMs,
+                long idleTimeMs, long energyUsed, int[] profiles,
+                boolean discovering, int[] scanUids) {
+            this.timestamp = timestamp;
+            this.ctrlState = ctrlState;
+            this.txTimeMs = txTimeMs;
+            this.rxTimeMs = rxTimeMs;
+            this.idleTimeMs = idleTimeMs;
+            this.energyUsed = energyUsed;
+            this.profiles = profiles;
+            this.discovering = discovering;
+            this.scanUids = scanUids;
+        }
+    }
+
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    private final Sample[] mSamples;
+    private int mNext;
+    private int mCount;
+
+    // Energy attributed since start, by profile id and by uid of the scanning app
+    private final SparseArray<Long> mProfileEnergy = new SparseArray<Long>();
+    private final SparseArray<Long> mScanEnergy = new SparseArray<Long>();
+    private long mDiscoveryEnergy;
+    private long mUnattributedEnergy;
+
+    private volatile int[] mScanUids = new int[0];
+
+    EnergyRecorder(int capacity) {
+        mSamples = new Sample[Math.max(1, capacity)];
+    }
+
+    /**
+     * Set the uids of the apps running the current LE scans, once per scan.
+     */
+    void setScanUids(int[] uids) {
+        mScanUids = uids == null ? new int[0] : Arrays.copyOf(uids, uids.length);
+    }
+
+    void record(int ctrlState, long txTimeMs, long rxTimeMs, long idleTimeMs,
+            long energyUsed, int[] profiles, boolean discovering) {
+        Sample sample = new Sample(SystemClock.elapsedRealtime(), ctrlState, txTimeMs,
+                rxTimeMs, idleTimeMs, energyUsed, profiles, discovering, mScanUids);
+        mLock.writeLock().lock();
+        try {
+            mSamples[mNext] = sample;
+            mNext = (mNext + 1) % mSamples.length;
+            if (mCount < mSamples.length) mCount++;
+            attribute(sample);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    private void attribute(Sample sample) {
+        int consumers = sample.profiles.length + sample.scanUids.length
+                + (sample.discovering ? 1 : 0);
+        if (consumers == 0) {
+            mUnattributedEnergy += sample.energyUsed;
+            return;
+        }
+        long share = sample.energyUsed / consumers;
+        for (int profile : sample.profiles) {
+            add(mProfileEnergy, profile, share);
+        }
+        for (int uid : sample.scanUids) {
+            add(mScanEnergy, uid, share);
+        }
+        if (sample.discovering) mDiscoveryEnergy += share;
+        mUnattributedEnergy += sample.energyUsed - share * consumers;
+    }
+
+    private static void add(SparseArray<Long> totals, int key, long value) {
+        totals.put(key, totals.get(key, 0L) + value);
+    }
+
+    long getProfileEnergy(int profile) {
+        mLock.readLock().lock();
+        try {
+            return mProfileEnergy.get(profile, 0L);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    long getScanEnergy(int uid) {
+        mLock.readLock().lock();
+        try {
+            return mScanEnergy.get(uid, 0L);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    void dump(StringBuilder sb) {
+        mLock.readLock().lock();
+        try {
+            sb.append("Controller energy (" + mCount + "/" + mSamples.length + " samples):\n");
+            for (int i = 0; i < mProfileEnergy.size(); i++) {
+                ProfileService.println(sb, "Profile " + mProfileEnergy.keyAt(i) + ": "
+                        + mProfileEnergy.valueAt(i));
+            }
+            for (int i = 0; i < mScanEnergy.size(); i++) {
+                ProfileService.println(sb, "LE scan, uid " + mScanEnergy.keyAt(i) + ": "
+                        + mScanEnergy.valueAt(i));
+            }
+            ProfileService.println(sb, "Discovery: " + mDiscoveryEnergy
+                    + ", unattributed: " + mUnattributedEnergy);
+            long now = SystemClock.elapsedRealtime();
+            int first = (mNext - mCount + mSamples.length) % mSamples.length;
+            for (int i = Math.max(0, mCount - 10); i < mCount; i++) {
+                Sample s = mSamples[(first + i) % mSamples.length];
+                ProfileService.println(sb, "-" + (now - s.timestamp) + "ms state=" + s.ctrlState
+                        + " tx=" + s.txTimeMs + " rx=" + s.rxTimeMs + " idle=" + s.idleTimeMs
+                        + " energy=" + s.energyUsed + " profiles=" + Arrays.toString(s.profiles)
+                        + " discovering=" + s.discovering
+                        + " scanUids=" + Arrays.toString(s.scanUids));
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+}
@@ -16,12 +16,15 @@
 
 package com.android.bluetooth.btservice;
 
+import com.android.bluetooth.util.CallbackLatency;
+
 final class JniCallbacks {
 
     private RemoteDevices mRemoteDevices;
     private AdapterProperties mAdapterProperties;
     private AdapterState mAdapterStateMachine;
     private BondStateMachine mBondStateMachine;
+    private final CallbackLatency mCallbackLatency = new CallbackLatency();
 
     JniCallbacks(AdapterState adapterStateMachine,AdapterProperties adapterProperties) {
         mAdapterStateMachine = adapterStateMachine;
@@ -40,6 +43,10 @@ final class JniCallbacks {
         mBondStateMachine = null;
     }
 
+    void dump(StringBuilder sb) {
+        mCallbackLatency.dump(sb);
+    }
+
     @Override
     public Object clone() throws CloneNotSupportedException {
         throw new CloneNotSupportedException();
@@ -47,43 +54,93 @@ final class JniCallbacks {
 
     void sspRequestCallback(byte[] address, byte[] name, int cod, int pairingVariant,
             int passkey) {
-        mBondStateMachine.sspRequestCallback(address, name, cod, pairingVariant,
-            passkey);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            mBondStateMachine.sspRequestCallback(address, name, cod, pairingVariant,
+                passkey);
+        } finally {
+            mCallbackLatency.end("sspRequestCallback", callbackStart);
+        }
     }
     void devicePropertyChangedCallback(byte[] address, int[] types, byte[][] val) {
-        mRemoteDevices.devicePropertyChangedCallback(address, types, val);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            mRemoteDevices.devicePropertyChangedCallback(address, types, val);
+        } finally {
+            mCallbackLatency.end("devicePropertyChangedCallback", callbackStart);
+        }
     }
 
     void deviceFoundCallback(byte[] address) {
-        mRemoteDevices.deviceFoundCallback(address);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            mRemoteDevices.deviceFoundCallback(address);
+        } finally {
+            mCallbackLatency.end("deviceFoundCallback", callbackStart);
+        }
     }
 
     void pinRequestCallback(byte[] address, byte[] name, int cod, boolean secure) {
-        mRemoteDevices.pinRequestCallback(address, name, cod, secure);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            mRemoteDevices.pinRequestCallback(address, name, cod, secure);
+        } finally {
+            mCallbackLatency.end("pinRequestCallback", callbackStart);
+        }
     }
 
     void bondStateChangeCallback(int status, byte[] address, int newState) {
-        mBondStateMachine.bondStateChangeCallback(status, address, newState);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            mBondStateMachine.bondStateChangeCallback(status, address, newState);
+        } finally {
+            mCallbackLatency.end("bondStateChangeCallback", callbackStart);
+        }
     }
 
     void aclStateChangeCallback(int status, byte[] address, int newState) {
-		mRemoteDevices.aclStateChangeCallback(status, address, newState);
+        final long callbackStart = CallbackLatency.start();
+        try {
+    		mRemoteDevices.aclStateChangeCallback(status, address, newState);
+        } finally {
+            mCallbackLatency.end("aclStateChangeCallback", callbackStart);
+        }
     }
 
     void stateChangeCallback(int status) {
-        mAdapterStateMachine.stateChangeCallback(status);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            mAdapterStateMachine.stateChangeCallback(status);
+        } finally {
+            mCallbackLatency.end("stateChangeCallback", callbackStart);
+        }
     }
 
     void discoveryStateChangeCallback(int state) {
-        mAdapterProperties.discoveryStateChangeCallback(state);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            mAdapterProperties.discoveryStateChangeCallback(state);
+        } finally {
+            mCallbackLatency.end("discoveryStateChangeCallback", callbackStart);
+        }
     }
 
     void adapterPropertyChangedCallback(int[] types, byte[][] val) {
-        mAdapterProperties.adapterPropertyChangedCallback(types, val);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            mAdapterProperties.adapterPropertyChangedCallback(types, val);
+        } finally {
+            mCallbackLatency.end("adapterPropertyChangedCallback", callbackStart);
+        }
     }
 
     void deviceMasInstancesFoundCallback(int status, byte[] address, String[] name, int[] scn,
             int[] id, int[] msgtype) {
-        mRemoteDevices.deviceMasInstancesFoundCallback(status, address, name, scn, id, msgtype);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            mRemoteDevices.deviceMasInstancesFoundCallback(status, address, name, scn, id, msgtype);
+        } finally {
+            mCallbackLatency.end("deviceMasInstancesFoundCallback", callbackStart);
+        }
     }
 }
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.bluetooth.BluetoothUuid;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Keeps track of the profile services that are started on demand.
+ *
+ * When lazy mode is enabled (persist.bt.lazy.profiles), the profile services
+ * listed in {@link Config#isLazyProfile} are not started when the adapter is
+ * enabled. AdapterService activates them when a bonded device reports one of
+ * their UUIDs or when an application binds to them, and stops them again once
+ * they have been idle for {@link #IDLE_TIMEOUT_MS}.
+ */
+class LazyProfileManager {
+    private static final boolean DBG = false;
+    private static final String TAG = "BluetoothLazyProfiles";
+
+    static final long IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+
+    private static class Activation {
+        String reason;
+        int count;
+        long requestedAt;
+        long heapBefore;
+        long startLatencyMs = -1;
+        long heapDeltaKb;
+        long lastBusyAt;
+    }
+
+    private final boolean mEnabled;
+    // Profile services held back until they are needed
+    private final HashSet<String> mDeferred = new HashSet<String>();
+    // Activation record of every lazy profile service, active or not
+    private final HashMap<String, Activation> mActivations = new HashMap<String, Activation>();
+    @SuppressWarnings("rawtypes")
+    private final ArrayList<Class> mActive = new ArrayList<Class>();
+    private int mDeferredAtStartup;
+
+    LazyProfileManager() {
+        mEnabled = SystemProperties.getBoolean("persist.bt.lazy.profiles", false);
+    }
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Called when the adapter starts its profile services. Every supported
+     * lazy profile service is held back.
+     */
+    @SuppressWarnings("rawtypes")
+    synchronized void onStartupBegin(Class[] supportedProfiles) {
+        mDeferred.clear();
+        mActive.clear();
+        if (!mEnabled) return;
+        for (Class profile : supportedProfiles) {
+            if (Config.isLazyProfile(profile)) {
+                mDeferred.add(profile.getName());
+            }
+        }
+        mDeferredAtStartup = mDeferred.size();
+        Log.i(TAG, "Deferring " + mDeferredAtStartup + " profile services until needed");
+    }
+
+    synchronized boolean isDeferred(String serviceName) {
+        return mDeferred.contains(serviceName);
+    }
+
+    synchronized void addDeferredTo(HashSet<String> serviceNames) {
+        serviceNames.addAll(mDeferred);
+    }
+
+    /**
+     * @return the deferred profile services needed by a device with these UUIDs
+     */
+    @SuppressWarnings("rawtypes")
+    synchronized List<Class> getProfilesForUuids(ParcelUuid[] uuids) {
+        ArrayList<Class> profiles = new ArrayList<Class>();
+        if (uuids == null || mDeferred.isEmpty()) return profiles;
+        for (Class profile : Config.getSupportedProfiles()) {
+            if (mDeferred.contains(profile.getName()) &&
+                    BluetoothUuid.containsAnyUuid(uuids, Config.getLazyProfileUuids(profile))) {
+                profiles.add(profile);
+            }
+        }
+        return profiles;
+    }
+
+    /**
+     * Mark a deferred profile service as active.
+     * @return true if the profile service has to be started
+     */
+    @SuppressWarnings("rawtypes")
+    synchronized boolean activate(Class profile, String reason) {
+        String name = profile.getName();
+        if (!mDeferred.remove(name)) return false;
+
+        Activation activation = mActivations.get(name);
+        if (activation == null) {
+            activation = new Activation();
+            mActivations.put(name, activation);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        activation.reason = reason;
+        activation.count++;
+        activation.requestedAt = SystemClock.elapsedRealtime();
+        activation.lastBusyAt = activation.requestedAt;
+        activation.heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        mActive.add(profile);
+        Log.i(TAG, "Activating " + profile.getSimpleName() + " (" + reason + ")");
+        return true;
+    }
+
+    synchronized void onProfileStarted(String serviceName) {
+        Activation activation = mActivations.get(serviceName);
+        if (activation == null || activation.requestedAt == 0) return;
+        Runtime runtime = Runtime.getRuntime();
+        activation.startLatencyMs = SystemClock.elapsedRealtime() - activation.requestedAt;
+        activation.heapDeltaKb =
+                (runtime.totalMemory() - runtime.freeMemory() - activation.heapBefore) / 1024;
+        activation.requestedAt = 0;
+    }
+
+    @SuppressWarnings("rawtypes")
+    synchronized List<Class> getActiveProfiles() {
+        return new ArrayList<Class>(mActive);
+    }
+
+    /**
+     * Record whether an active profile service is in use.
+     * @return true if it has been idle for too long and should be stopped,
+     * in which case it is deferred again.
+     */
+    @SuppressWarnings("rawtypes")
+    synchronized boolean onIdleCheck(Class profile, boolean busy) {
+        Activation activation = mActivations.get(profile.getName());
+        if (activation == null || !mActive.contains(profile)) return false;
+        long now = SystemClock.elapsedRealtime();
+        if (busy) {
+            activation.lastBusyAt = now;
+            return false;
+        }
+        if (now - activation.lastBusyAt < IDLE_TIMEOUT_MS) return false;
+
+        if (DBG) Log.d(TAG, profile.getSimpleName() + " idle, stopping");
+        mActive.remove(profile);
+        mDeferred.add(profile.getName());
+        return true;
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        sb.append("Lazy profile services: " + (mEnabled ? "enabled" : "disabled") + "\n");
+        if (!mEnabled) return;
+        ProfileService.println(sb, "Deferred at last enable: " + mDeferredAtStartup);
+        for (String serviceName : mDeferred) {
+            Activation activation = mActivations.get(serviceName);
+            ProfileService.println(sb, serviceName + ": not running, activations="
+                    + (activation == null ? 0 : activation.count));
+        }
+        for (Class profile : mActive) {
+            Activation activation = mActivations.get(profile.getName());
+            ProfileService.println(sb, profile.getName() + ": running (" + activation.reason
+                    + "), activations=" + activation.count
+                    + ", start=" + activation.startLatencyMs + " ms"
+                    + ", heap delta=" + activation.heapDeltaKb + " KB");
+        }
+    }
+}
@@ -19,6 +19,7 @@ package com.android.bluetooth.btservice;
 import java.util.HashMap;
 
 import com.android.bluetooth.Utils;
+import com.android.bluetooth.util.CallbackLatency;
 
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
@@ -50,10 +51,13 @@ public abstract class ProfileService extends Service {
     //They must be explicitly restarted by AdapterService
     private static final int PROFILE_SERVICE_MODE=Service.START_NOT_STICKY;
     protected String mName;
+    // Latency of the native callbacks handled by the service
+    protected final CallbackLatency mCallbackLatency = new CallbackLatency();
     protected BluetoothAdapter mAdapter;
     protected IProfileServiceBinder mBinder;
     protected boolean mStartError=false;
     private boolean mCleaningUp = false;
+    private volatile boolean mBound = false;
 
     private AdapterService mAdapterService;
 
@@ -151,17 +155,28 @@ public abstract class ProfileService extends Service {
 
     public IBinder onBind(Intent intent) {
         if (DBG) log("onBind");
+        mBound = true;
+        if (mAdapterService != null) {
+            // Starts the profile if it is deferred in lazy mode
+            mAdapterService.onProfileServiceBound(getClass());
+        }
         return mBinder;
     }
 
     public boolean onUnbind(Intent intent) {
         if (DBG) log("onUnbind");
+        mBound = false;
         return super.onUnbind(intent);
     }
 
+    boolean isBound() {
+        return mBound;
+    }
+
     // for dumpsys support
     public void dump(StringBuilder sb) {
         sb.append("Profile: " + mName + "\n");
+        mCallbackLatency.dump(sb);
     }
 
     // with indenting for subclasses
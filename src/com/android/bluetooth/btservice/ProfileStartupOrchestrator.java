@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.bluetooth.BluetoothAdapter;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Orders profile service startup by the dependencies declared in
+ * {@link Config#getProfileDependencies}. Profile services without pending
+ * dependencies are started together; the others are held back until every
+ * profile service they depend on reports STATE_ON. The time each profile
+ * service takes from the start request to its acknowledgment is recorded for
+ * dumpsys.
+ */
+class ProfileStartupOrchestrator {
+    private static final boolean DBG = false;
+    private static final String TAG = "BluetoothProfileStartup";
+
+    // Profile services waiting for a dependency, in request order
+    @SuppressWarnings("rawtypes")
+    private final ArrayList<Class> mDeferred = new ArrayList<Class>();
+    // Start request time of profile services not yet acknowledged
+    private final HashMap<String, Long> mPendingSince = new HashMap<String, Long>();
+    // Start latency of each profile service during the last startup
+    private final LinkedHashMap<String, Long> mStartLatencyMs = new LinkedHashMap<String, Long>();
+
+    private long mStartupBeginMs;
+    private long mLastStartupMs = -1;
+
+    /**
+     * Called at the beginning of adapter startup, before any profile service
+     * is started.
+     */
+    synchronized void onStartupBegin() {
+        mDeferred.clear();
+        mPendingSince.clear();
+        mStartLatencyMs.clear();
+        mStartupBeginMs = SystemClock.elapsedRealtime();
+        mLastStartupMs = -1;
+    }
+
+    /**
+     * Called when all profile services have reported STATE_ON.
+     */
+    synchronized void onStartupComplete() {
+        if (mStartupBeginMs == 0) return;
+        mLastStartupMs = SystemClock.elapsedRealtime() - mStartupBeginMs;
+        mStartupBeginMs = 0;
+        Log.i(TAG, "All profile services started in " + mLastStartupMs + " ms");
+    }
+
+    /**
+     * Called when profile services are being stopped. Profile services that
+     * are still waiting for a dependency are dropped.
+     */
+    synchronized void onShutdown() {
+        mDeferred.clear();
+        mPendingSince.clear();
+        mStartupBeginMs = 0;
+    }
+
+    /**
+     * Check whether a profile service has to wait for a dependency. If so it is
+     * queued and returned by {@link #onProfileStarted} once it can be started.
+     */
+    @SuppressWarnings("rawtypes")
+    synchronized boolean deferIfBlocked(Class service, Map<String, Integer> serviceStates,
+            Set<String> disabledProfiles) {
+        if (isReady(service, serviceStates, disabledProfiles)) return false;
+        if (!mDeferred.contains(service)) {
+            mDeferred.add(service);
+        }
+        if (DBG) Log.d(TAG, "Deferring " + service.getSimpleName());
+        return true;
+    }
+
+    synchronized void onStartRequested(String serviceName) {
+        mPendingSince.put(serviceName, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Record that a profile service reported STATE_ON.
+     * @return the deferred profile services that can be started now
+     */
+    @SuppressWarnings("rawtypes")
+    synchronized List<Class> onProfileStarted(String serviceName,
+            Map<String, Integer> serviceStates, Set<String> disabledProfiles) {
+        Long since = mPendingSince.remove(serviceName);
+        if (since != null) {
+            long latency = SystemClock.elapsedRealtime() - since;
+            mStartLatencyMs.put(serviceName, latency);
+            if (DBG) Log.d(TAG, serviceName + " started in " + latency + " ms");
+        }
+
+        ArrayList<Class> ready = new ArrayList<Class>();
+        Iterator<Class> i = mDeferred.iterator();
+        while (i.hasNext()) {
+            Class service = i.next();
+            if (isReady(service, serviceStates, disabledProfiles)) {
+                i.remove();
+                ready.add(service);
+            }
+        }
+        return ready;
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        sb.append("Profile service startup:\n");
+        ProfileService.println(sb, "Last adapter startup: "
+                + (mLastStartupMs >= 0 ? mLastStartupMs + " ms" : "n/a"));
+        for (Map.Entry<String, Long> e : mStartLatencyMs.entrySet()) {
+            ProfileService.println(sb, e.getKey() + ": " + e.getValue() + " ms");
+        }
+        for (String serviceName : mPendingSince.keySet()) {
+            ProfileService.println(sb, serviceName + ": pending");
+        }
+        for (Class service : mDeferred) {
+            ProfileService.println(sb, service.getName() + ": waiting for dependency");
+        }
+    }
+
+    // A dependency that is not supported or is disabled never blocks.
+    @SuppressWarnings("rawtypes")
+    private static boolean isReady(Class service, Map<String, Integer> serviceStates,
+            Set<String> disabledProfiles) {
+        for (Class dependency : Config.getProfileDependencies(service)) {
+            String name = dependency.getName();
+            Integer state = serviceStates.get(name);
+            if (state != null && state != BluetoothAdapter.STATE_ON
+                    && !disabledProfiles.contains(name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
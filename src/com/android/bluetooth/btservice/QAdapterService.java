@@ -103,7 +103,7 @@ public class QAdapterService extends Service {
     private static AdapterService mAdapterService;
     private static QAdapterService mQAdapterService;
 
-    private final Map<String, IQBluetoothAdapterCallback> mLeLppMonitorClients = new HashMap<String, IQBluetoothAdapterCallback>();
+    private RssiMonitor mRssiMonitor;
 
     public static synchronized QAdapterService getAdapterService(){
         if (mQAdapterService != null && !mQAdapterService.mCleaningUp) {
@@ -160,6 +160,17 @@ public class QAdapterService extends Service {
         mQBinder = new QAdapterServiceBinder(this);
         mAdapterProperties=new QAdapterProperties(this);
         mJniCallbacks=new QJniCallbacks(mAdapterProperties, this);
+        mRssiMonitor = new RssiMonitor(new RssiMonitor.Controller() {
+            public void writeRssiThreshold(String address, byte min, byte max) {
+                btLeLppWriteRssiThresholdNative(address, min, max);
+            }
+            public void enableRssiMonitor(String address, boolean enable) {
+                btLeLppEnableRssiMonitorNative(address, enable);
+            }
+            public void readRssiThreshold(String address) {
+                btLeLppReadRssiThresholdNative(address);
+            }
+        });
 
         initNative();
         mNativeAvailable=true;
@@ -178,76 +189,33 @@ public class QAdapterService extends Service {
     }
 
    void onLeLppWriteRssiThreshold(String address, int status) {
-        IQBluetoothAdapterCallback client = null;
-        synchronized(mLeLppMonitorClients) {
-            client = mLeLppMonitorClients.get(address);
-        }
-
-        if (client != null) {
-            try {
-                client.onWriteRssiThreshold(address, status);
-            } catch (RemoteException e) {
-                Log.w(TAG, "", e);
-                synchronized(mLeLppMonitorClients) {
-                    mLeLppMonitorClients.remove(address);
-                }
-            }
-        }
+        mRssiMonitor.onWriteThreshold(address, status);
     }
 
     void onLeLppReadRssiThreshold(String address, int low, int upper,
                                   int alert, int status) {
-        IQBluetoothAdapterCallback client = null;
-        synchronized(mLeLppMonitorClients) {
-            client = mLeLppMonitorClients.get(address);
-        }
-
-        if (client != null) {
-            try {
-                client.onReadRssiThreshold(address, low, upper, alert, status);
-            } catch (RemoteException e) {
-                Log.w(TAG, "", e);
-                synchronized(mLeLppMonitorClients) {
-                    mLeLppMonitorClients.remove(address);
-                }
-            }
-        }
+        mRssiMonitor.onReadThreshold(address, low, upper, alert, status);
     }
 
     void onLeLppEnableRssiMonitor(String address, int enable, int status) {
-        IQBluetoothAdapterCallback client = null;
-        synchronized(mLeLppMonitorClients) {
-            client = mLeLppMonitorClients.get(address);
-        }
-
-        if (client != null) {
-            try {
-                client.onEnableRssiMonitor(address, enable, status);
-            } catch (RemoteException e) {
-                Log.w(TAG, "", e);
-                synchronized(mLeLppMonitorClients) {
-                    mLeLppMonitorClients.remove(address);
-                }
-            }
-        }
+        mRssiMonitor.onEnable(address, enable, status);
     }
 
     void onLeLppRssiThresholdEvent(String address, int evtType, int rssi) {
-        IQBluetoothAdapterCallback client = null;
-        synchronized(mLeLppMonitorClients) {
-            client = mLeLppMonitorClients.get(address);
-        }
+        mRssiMonitor.onThresholdEvent(address, evtType, rssi);
+    }
 
-        if (client != null) {
-            try {
-                client.onRssiThresholdEvent(address, evtType, rssi);
-            } catch (RemoteException e) {
-                Log.w(TAG, "", e);
-                synchronized(mLeLppMonitorClients) {
-                    mLeLppMonitorClients.remove(address);
-                }
-            }
-        }
+    /**
+     * RSSI of a remote device seen in a scan result or a remote RSSI read,
+     * used by the software RSSI monitoring.
+     */
+    public void onRemoteRssi(String address, int rssi) {
+        RssiMonitor monitor = mRssiMonitor;
+        if (monitor != null) monitor.onRssi(address, rssi);
+    }
+
+    void dumpRssiMonitor(StringBuilder sb) {
+        mRssiMonitor.dump(sb);
     }
 
     void cleanup () {
@@ -270,6 +238,10 @@ public class QAdapterService extends Service {
             mJniCallbacks.cleanup();
         }
 
+        if (mRssiMonitor != null) {
+            mRssiMonitor.clear();
+        }
+
         clearAdapterService();
 
         if (mQBinder != null) {
@@ -344,62 +316,27 @@ public class QAdapterService extends Service {
 
      boolean registerRssiMonitorClient(String address, IQBluetoothAdapterCallback client, boolean add) {
          enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
-         synchronized(mLeLppMonitorClients) {
-             if(add) {
-                 if(mLeLppMonitorClients.containsKey(address)) {
-                     IQBluetoothAdapterCallback savedClient = mLeLppMonitorClients.get(address);
-                     try {
-                         if (savedClient == null || !savedClient.onUpdateLease()) {
-                             if (DBG) Log.d(TAG, "Cannot update the lease");
-                         mLeLppMonitorClients.remove(address);
-                         }
-                     } catch (RemoteException e) {
-                         if (DBG) Log.d(TAG, "", e);
-                         mLeLppMonitorClients.remove(address);
-                     }
-                 }
-                 if(mLeLppMonitorClients.containsKey(address) || client == null){
-                     if (DBG) Log.e(TAG, "client already registered or invalid client, client=" + client);
-                     return false;
-                 }
-                 mLeLppMonitorClients.put(address, client);
-                 return true;
-             } else {
-                 IQBluetoothAdapterCallback savedClient = mLeLppMonitorClients.get(address);
-                 /*if (savedClient == client) */{
-                     mLeLppMonitorClients.remove(address);
-                     return true;
-                 }
-             }
+         if (add) {
+             return mRssiMonitor.register(address, client, Binder.getCallingPid());
          }
+         mRssiMonitor.unregister(address, client);
+         return true;
      }
 
      void writeRssiThreshold(String address, byte min, byte max)
      {
          enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
-         synchronized(mLeLppMonitorClients) {
-             if(mLeLppMonitorClients.containsKey(address)) {
-                 btLeLppWriteRssiThresholdNative(address, min, max);
-             }
-         }
+         mRssiMonitor.setThreshold(address, Binder.getCallingPid(), min, max);
      }
 
      void enableRssiMonitor(String address, boolean enable) {
          enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
-         synchronized(mLeLppMonitorClients) {
-             if(mLeLppMonitorClients.containsKey(address)) {
-                 btLeLppEnableRssiMonitorNative(address, enable);
-             }
-         }
+         mRssiMonitor.setEnabled(address, Binder.getCallingPid(), enable);
      }
 
      void readRssiThreshold(String address) {
          enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
-         synchronized(mLeLppMonitorClients) {
-             if(mLeLppMonitorClients.containsKey(address)) {
-                 btLeLppReadRssiThresholdNative(address);
-             }
-         }
+         mRssiMonitor.readThreshold(address, Binder.getCallingPid());
      }
 
     private void debugLog(String msg) {
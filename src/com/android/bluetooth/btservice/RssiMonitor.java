@@ -0,0 +1,586 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.bluetooth.IQBluetoothAdapterCallback;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LE RSSI threshold monitoring for any number of clients per device.
+ *
+ * Each client has its own low/high thresholds. The controller (LE LPP) only
+ * takes one pair per device, so it is programmed with the two adjacent client
+ * thresholds around the last reported RSSI, and every controller event is
+ * matched against each client's own range. The controller is only written
+ * when that pair changes, and only the client whose request caused a write
+ * gets its result. A client leaves a LOW or HIGH state only once the RSSI is
+ * back past its threshold by {@link #HYSTERESIS_DB}.
+ *
+ * When the controller rejects the first thresholds of a device (no LPP
+ * support), the device is monitored in software instead: RSSI values from
+ * scan results and remote RSSI reads are smoothed and matched against the
+ * same ranges.
+ *
+ * Clients are identified by their callback binder. Only the registration
+ * carries the callback, the other calls act on the client the calling
+ * process registered last for the device.
+ *
+ * Per device state is guarded by the device object, client callbacks are
+ * made without holding any lock.
+ */
+class RssiMonitor {
+    private static final boolean DBG = false;
+    private static final String TAG = "QBluetoothRssiMonitor";
+
+    // Alert types reported by the controller in the threshold event
+    static final int EVENT_LOW = 0;
+    static final int EVENT_IN_RANGE = 1;
+    static final int EVENT_HIGH = 2;
+
+    static final int HYSTERESIS_DB = 2;
+    // Weight of a new sample in the software average, in 1/4
+    private static final int SMOOTHING_QUARTERS = 1;
+
+    // What updateController() sent to the controller
+    private static final int WROTE_THRESHOLDS = 1;
+    private static final int WROTE_ENABLE = 2;
+
+    /**
+     * The LE LPP native calls of the owner.
+     */
+    interface Controller {
+        void writeRssiThreshold(String address, byte min, byte max);
+        void enableRssiMonitor(String address, boolean enable);
+        void readRssiThreshold(String address);
+    }
+
+    private static class Client {
+        final IQBluetoothAdapterCallback callback;
+        final int pid;
+        byte low = Byte.MIN_VALUE;
+        byte high = Byte.MAX_VALUE;
+        boolean enabled;
+        boolean pendingRead;
+        boolean pendingWrite;
+        boolean pendingEnable;
+        int state = EVENT_IN_RANGE;
+
+        Client(IQBluetoothAdapterCallback callback, int pid) {
+            this.callback = callback;
+            this.pid = pid;
+        }
+
+        IBinder binder() {
+            return callback.asBinder();
+        }
+    }
+
+    private static class Device {
+        final String address;
+        final ArrayList<Client> clients = new ArrayList<Client>();
+        boolean software;
+        // The controller answered the first threshold write
+        boolean probed;
+        boolean enabled;
+        byte low;
+        byte high;
+        boolean thresholdsSet;
+        int smoothedRssi;
+        boolean haveRssi;
+
+        // Metrics
+        int hardwareEvents;
+        int softwareSamples;
+        int deliveredEvents;
+
+        Device(String address) {
+            this.address = address;
+        }
+    }
+
+    /** A callback to make once the device lock is released. */
+    private static class Delivery {
+        final Client client;
+        final int evtType;
+        final int rssi;
+
+        Delivery(Client client, int evtType, int rssi) {
+            this.client = client;
+            this.evtType = evtType;
+            this.rssi = rssi;
+        }
+    }
+
+    private final Controller mController;
+    private final Map<String, Device> mDevices = new ConcurrentHashMap<String, Device>();
+
+    // Latency from the RSSI report to the last client callback
+    private final Object mStatsLock = new Object();
+    private long mFirstEventAt;
+    private long mLatencyCount;
+    private long mLatencyTotalMs;
+    private long mLatencyMaxMs;
+
+    RssiMonitor(Controller controller) {
+        mController = controller;
+    }
+
+    boolean register(String address, IQBluetoothAdapterCallback callback, int pid) {
+        if (callback == null) return false;
+        synchronized (this) {
+            Device device = mDevices.get(address);
+            if (device == null) {
+                device = new Device(address);
+                mDevices.put(address, device);
+            }
+            synchronized (device) {
+                // Drop clients whose process is gone, they would never be notified
+                Iterator<Client> i = device.clients.iterator();
+                while (i.hasNext()) {
+                    if (!i.next().binder().isBinderAlive()) i.remove();
+                }
+                if (findClient(device, callback.asBinder()) != null) {
+                    if (DBG) Log.d(TAG, "Client already registered for " + address);
+                    return false;
+                }
+                device.clients.add(new Client(callback, pid));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove a client, or every client of the device when callback is null.
+     */
+    boolean unregister(String address, IQBluetoothAdapterCallback callback) {
+        Device device = mDevices.get(address);
+        if (device == null) return false;
+        synchronized (device) {
+            if (callback == null) {
+                device.clients.clear();
+            } else {
+                Client client = findClient(device, callback.asBinder());
+                if (client == null) return false;
+                device.clients.remove(client);
+            }
+            updateController(device);
+        }
+        removeIfUnused(device);
+        return true;
+    }
+
+    void setThreshold(String address, int pid, byte min, byte max) {
+        Device device = mDevices.get(address);
+        if (device == null) return;
+        Client caller;
+        synchronized (device) {
+            caller = findCaller(device, pid);
+            if (caller == null) return;
+            caller.low = min;
+            caller.high = max;
+            if ((updateController(device) & WROTE_THRESHOLDS) != 0) {
+                // Answered by onWriteThreshold()
+                caller.pendingWrite = true;
+                return;
+            }
+        }
+        try {
+            caller.callback.onWriteRssiThreshold(address, 0);
+        } catch (RemoteException e) {
+            removeDeadClient(device, caller, e);
+        }
+    }
+
+    void setEnabled(String address, int pid, boolean enable) {
+        Device device = mDevices.get(address);
+        if (device == null) return;
+        Client caller;
+        synchronized (device) {
+            caller = findCaller(device, pid);
+            if (caller == null) return;
+            caller.enabled = enable;
+            caller.state = EVENT_IN_RANGE;
+            if ((updateController(device) & WROTE_ENABLE) != 0) {
+                // Answered by onEnable()
+                caller.pendingEnable = true;
+                return;
+            }
+        }
+        try {
+            caller.callback.onEnableRssiMonitor(address, enable ? 1 : 0, 0);
+        } catch (RemoteException e) {
+            removeDeadClient(device, caller, e);
+        }
+    }
+
+    void readThreshold(String address, int pid) {
+        Device device = mDevices.get(address);
+        if (device == null) return;
+        Client caller;
+        synchronized (device) {
+            caller = findCaller(device, pid);
+            if (caller == null) return;
+            if (!device.software) {
+                caller.pendingRead = true;
+                caller = null;
+            }
+        }
+        if (caller == null) {
+            mController.readRssiThreshold(address);
+            return;
+        }
+        try {
+            caller.callback.onReadRssiThreshold(address, caller.low, caller.high,
+                    caller.state, 0);
+        } catch (RemoteException e) {
+            removeDeadClient(device, caller, e);
+        }
+    }
+
+    /**
+     * Programs the controller with the merged state, only writing what
+     * changed. Called with the device lock held.
+     * @return the WROTE_ flags of what was sent to the controller
+     */
+    private int updateController(Device device) {
+        boolean enabled = false;
+        for (Client client : device.clients) {
+            enabled |= client.enabled;
+        }
+        if (device.software) {
+            device.enabled = enabled;
+            return 0;
+        }
+
+        int written = 0;
+        // The thresholds only matter once a client is enabled
+        if (enabled) {
+            byte[] window = mergeThresholds(device);
+            if (!device.thresholdsSet || window[0] != device.low || window[1] != device.high) {
+                device.low = window[0];
+                device.high = window[1];
+                device.thresholdsSet = true;
+                mController.writeRssiThreshold(device.address, device.low, device.high);
+                written |= WROTE_THRESHOLDS;
+            }
+        }
+        if (enabled != device.enabled) {
+            device.enabled = enabled;
+            mController.enableRssiMonitor(device.address, enabled);
+            written |= WROTE_ENABLE;
+        }
+        return written;
+    }
+
+    /**
+     * The controller thresholds: the two adjacent client thresholds around
+     * the last RSSI, the two nearest ones when it is outside all of them, or
+     * the tightest range of all clients before any RSSI is known. The pair
+     * only changes when the RSSI moves past a client threshold, and never
+     * for a single client.
+     */
+    private static byte[] mergeThresholds(Device device) {
+        int low = Byte.MIN_VALUE;
+        int high = Byte.MAX_VALUE;
+        if (device.haveRssi) {
+            TreeSet<Integer> thresholds = new TreeSet<Integer>();
+            for (Client client : device.clients) {
+                if (!client.enabled) continue;
+                thresholds.add((int) client.low);
+                thresholds.add((int) client.high);
+            }
+            if (!thresholds.isEmpty()) {
+                int rssi = device.smoothedRssi;
+                Integer below = thresholds.lower(rssi);
+                Integer above = thresholds.ceiling(rssi);
+                if (below == null) {
+                    below = thresholds.first();
+                    above = thresholds.higher(below);
+                } else if (above == null) {
+                    above = thresholds.last();
+                    below = thresholds.lower(above);
+                }
+                if (below != null) low = below;
+                if (above != null) high = above;
+            }
+        } else {
+            for (Client client : device.clients) {
+                if (!client.enabled) continue;
+                low = Math.max(low, client.low);
+                high = Math.min(high, client.high);
+            }
+            if (low > high) {
+                int tmp = low;
+                low = high;
+                high = tmp;
+            }
+        }
+        return new byte[] { (byte) low, (byte) high };
+    }
+
+    void onWriteThreshold(String address, int status) {
+        Device device = mDevices.get(address);
+        if (device == null) return;
+        List<Client> clients = new ArrayList<Client>();
+        synchronized (device) {
+            if (!device.probed) {
+                // Only the first answer tells whether the controller supports LPP
+                device.probed = true;
+                if (status != 0 && !device.software) {
+                    Log.w(TAG, "Controller refused RSSI thresholds for " + address
+                            + " (status " + status + "), monitoring in software");
+                    device.software = true;
+                    device.enabled = false;
+                    updateController(device);
+                    status = 0;
+                }
+            } else if (status != 0) {
+                Log.w(TAG, "Controller refused RSSI thresholds for " + address
+                        + " (status " + status + ")");
+            }
+            for (Client client : device.clients) {
+                if (client.pendingWrite) {
+                    client.pendingWrite = false;
+                    clients.add(client);
+                }
+            }
+        }
+        for (Client client : clients) {
+            try {
+                client.callback.onWriteRssiThreshold(address, status);
+            } catch (RemoteException e) {
+                removeDeadClient(device, client, e);
+            }
+        }
+    }
+
+    void onReadThreshold(String address, int low, int upper, int alert, int status) {
+        Device device = mDevices.get(address);
+        if (device == null) return;
+        List<Client> clients = new ArrayList<Client>();
+        synchronized (device) {
+            for (Client client : device.clients) {
+                if (client.pendingRead) {
+                    client.pendingRead = false;
+                    clients.add(client);
+                }
+            }
+        }
+        for (Client client : clients) {
+            try {
+                // Each client sees its own thresholds, not the merged ones
+                int clientLow = status == 0 ? client.low : low;
+                int clientHigh = status == 0 ? client.high : upper;
+                client.callback.onReadRssiThreshold(address, clientLow, clientHigh, alert, status);
+            } catch (RemoteException e) {
+                removeDeadClient(device, client, e);
+            }
+        }
+    }
+
+    void onEnable(String address, int enable, int status) {
+        Device device = mDevices.get(address);
+        if (device == null) return;
+        List<Client> clients = new ArrayList<Client>();
+        synchronized (device) {
+            for (Client client : device.clients) {
+                if (client.pendingEnable) {
+                    client.pendingEnable = false;
+                    clients.add(client);
+                }
+            }
+        }
+        for (Client client : clients) {
+            try {
+                client.callback.onEnableRssiMonitor(address, enable, status);
+            } catch (RemoteException e) {
+                removeDeadClient(device, client, e);
+            }
+        }
+    }
+
+    /**
+     * Threshold event from the controller.
+     */
+    void onThresholdEvent(String address, int evtType, int rssi) {
+        long start = SystemClock.elapsedRealtime();
+        Device device = mDevices.get(address);
+        if (device == null) return;
+        List<Delivery> deliveries;
+        synchronized (device) {
+            device.hardwareEvents++;
+            device.smoothedRssi = rssi;
+            device.haveRssi = true;
+            deliveries = evaluate(device, rssi);
+            updateController(device);
+        }
+        deliver(device, deliveries, start);
+    }
+
+    /**
+     * RSSI seen outside of the threshold events (scan result, remote RSSI
+     * read). Used for devices monitored in software.
+     */
+    void onRssi(String address, int rssi) {
+        Device device = mDevices.get(address);
+        if (device == null) return;
+        long start = SystemClock.elapsedRealtime();
+        List<Delivery> deliveries;
+        synchronized (device) {
+            if (!device.software || !device.enabled) return;
+            device.softwareSamples++;
+            if (device.haveRssi) {
+                device.smoothedRssi += (rssi - device.smoothedRssi) * SMOOTHING_QUARTERS / 4;
+            } else {
+                device.smoothedRssi = rssi;
+                device.haveRssi = true;
+            }
+            deliveries = evaluate(device, device.smoothedRssi);
+        }
+        deliver(device, deliveries, start);
+    }
+
+    // Called with the device lock held
+    private static List<Delivery> evaluate(Device device, int rssi) {
+        List<Delivery> deliveries = null;
+        for (Client client : device.clients) {
+            if (!client.enabled) continue;
+            int state = client.state;
+            if (rssi < client.low) {
+                state = EVENT_LOW;
+            } else if (rssi > client.high) {
+                state = EVENT_HIGH;
+            } else if ((client.state == EVENT_LOW && rssi >= client.low + HYSTERESIS_DB)
+                    || (client.state == EVENT_HIGH && rssi <= client.high - HYSTERESIS_DB)) {
+                state = EVENT_IN_RANGE;
+            }
+            if (state != client.state) {
+                client.state = state;
+                if (deliveries == null) deliveries = new ArrayList<Delivery>();
+                deliveries.add(new Delivery(client, state, rssi));
+            }
+        }
+        return deliveries;
+    }
+
+    private void deliver(Device device, List<Delivery> deliveries, long start) {
+        if (deliveries == null) return;
+        for (Delivery delivery : deliveries) {
+            try {
+                delivery.client.callback.onRssiThresholdEvent(device.address,
+                        delivery.evtType, delivery.rssi);
+            } catch (RemoteException e) {
+                removeDeadClient(device, delivery.client, e);
+            }
+        }
+        long latency = SystemClock.elapsedRealtime() - start;
+        synchronized (device) {
+            device.deliveredEvents += deliveries.size();
+        }
+        synchronized (mStatsLock) {
+            if (mFirstEventAt == 0) mFirstEventAt = start;
+            mLatencyCount++;
+            mLatencyTotalMs += latency;
+            mLatencyMaxMs = Math.max(mLatencyMaxMs, latency);
+        }
+    }
+
+    private void removeDeadClient(Device device, Client client, RemoteException e) {
+        Log.w(TAG, "", e);
+        synchronized (device) {
+            device.clients.remove(client);
+            updateController(device);
+        }
+        removeIfUnused(device);
+    }
+
+    private synchronized void removeIfUnused(Device device) {
+        synchronized (device) {
+            if (device.clients.isEmpty()) mDevices.remove(device.address);
+        }
+    }
+
+    private static Client findClient(Device device, IBinder binder) {
+        for (Client client : device.clients) {
+            if (client.binder() == binder) return client;
+        }
+        return null;
+    }
+
+    // The client the calling process registered last, called with the device lock held
+    private static Client findCaller(Device device, int pid) {
+        for (int i = device.clients.size() - 1; i >= 0; i--) {
+            Client client = device.clients.get(i);
+            if (client.pid == pid) return client;
+        }
+        return null;
+    }
+
+    void clear() {
+        mDevices.clear();
+    }
+
+    void dump(StringBuilder sb) {
+        sb.append("RSSI monitor:\n");
+        long events = 0;
+        for (Device device : mDevices.values()) {
+            synchronized (device) {
+                events += device.hardwareEvents + device.softwareSamples;
+                ProfileService.println(sb, device.address + ": "
+                        + (device.software ? "software" : "controller")
+                        + " clients=" + device.clients.size()
+                        + " enabled=" + device.enabled
+                        + " window=[" + device.low + "," + device.high + "]"
+                        + " rssi=" + (device.haveRssi ? device.smoothedRssi : "?")
+                        + " hwEvents=" + device.hardwareEvents
+                        + " swSamples=" + device.softwareSamples
+                        + " delivered=" + device.deliveredEvents);
+            }
+        }
+        synchronized (mStatsLock) {
+            if (mLatencyCount > 0) {
+                long elapsed = SystemClock.elapsedRealtime() - mFirstEventAt;
+                ProfileService.println(sb, "Delivery latency avg="
+                        + (mLatencyTotalMs / mLatencyCount) + "ms max=" + mLatencyMaxMs + "ms"
+                        + (elapsed > 0 ? ", " + (events * 60000 / elapsed) + " events/min" : ""));
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Wake locks requested by the native stack.
+ *
+ * Each name maps to its own partial wake lock. As with the single wake lock
+ * the stack used before, acquiring a held lock does nothing and one release
+ * frees it, whatever the number of acquires: the stack acquires its lock
+ * again each time it arms a wake alarm and releases it once when it is idle,
+ * so its acquires are not matched by releases and can not be counted.
+ *
+ * The stack may hold its lock for a long time, for instance while streaming
+ * A2DP, so a lock is only force released when a timeout is set. A lock held
+ * for longer than {@link #LONG_HOLD_MS} is logged. Each acquire request, and
+ * the time each name has been held, is accounted for dumpsys.
+ */
+class StackWakeLocks {
+    private static final String TAG = "BluetoothStackWakeLocks";
+
+    /** No forced release */
+    static final long DEFAULT_TIMEOUT_MS = 0;
+    static final long LONG_HOLD_MS = 60000;
+
+    private class Lock implements Runnable {
+        final String name;
+        final PowerManager.WakeLock wakeLock;
+        boolean held;
+        long acquiredAt;
+        int acquireCount;
+        int longHoldCount;
+        int timeoutCount;
+        long totalHeldMs;
+        long maxHeldMs;
+
+        Lock(String name) {
+            this.name = name;
+            wakeLock = mPowerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, name);
+            wakeLock.setReferenceCounted(false);
+        }
+
+        final Runnable longHold = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (StackWakeLocks.this) {
+                    if (!held) return;
+                    Log.w(TAG, "Wake lock " + name + " held for over " + LONG_HOLD_MS + " ms");
+                    longHoldCount++;
+                }
+            }
+        };
+
+        // Timeout
+        @Override
+        public void run() {
+            synchronized (StackWakeLocks.this) {
+                if (!held) return;
+                Log.w(TAG, "Wake lock " + name + " held for " + mTimeoutMs
+                        + " ms, releasing");
+                timeoutCount++;
+                releaseLocked(this);
+            }
+        }
+    }
+
+    private final PowerManager mPowerManager;
+    private final Handler mHandler;
+    private final long mTimeoutMs;
+    private final Map<String, Lock> mLocks = new HashMap<String, Lock>();
+
+    StackWakeLocks(PowerManager powerManager, Looper looper, long timeoutMs) {
+        mPowerManager = powerManager;
+        mHandler = new Handler(looper);
+        mTimeoutMs = timeoutMs;
+    }
+
+    synchronized boolean acquire(String name) {
+        Lock lock = mLocks.get(name);
+        if (lock == null) {
+            lock = new Lock(name);
+            mLocks.put(name, lock);
+        }
+        lock.acquireCount++;
+        if (!lock.held) {
+            lock.held = true;
+            lock.acquiredAt = SystemClock.elapsedRealtime();
+            lock.wakeLock.acquire();
+            mHandler.postDelayed(lock.longHold, LONG_HOLD_MS);
+            if (mTimeoutMs > 0) mHandler.postDelayed(lock, mTimeoutMs);
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the lock is not held
+     */
+    synchronized boolean release(String name) {
+        Lock lock = mLocks.get(name);
+        if (lock == null || !lock.held) {
+            Log.e(TAG, "Repeated wake lock release; aborting release: " + name);
+            return false;
+        }
+        releaseLocked(lock);
+        return true;
+    }
+
+    synchronized void releaseAll() {
+        for (Lock lock : mLocks.values()) {
+            if (lock.held) releaseLocked(lock);
+        }
+    }
+
+    private void releaseLocked(Lock lock) {
+        mHandler.removeCallbacks(lock);
+        mHandler.removeCallbacks(lock.longHold);
+        lock.held = false;
+        long held = SystemClock.elapsedRealtime() - lock.acquiredAt;
+        lock.totalHeldMs += held;
+        lock.maxHeldMs = Math.max(lock.maxHeldMs, held);
+        if (lock.wakeLock.isHeld()) lock.wakeLock.release();
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        sb.append("Stack wake locks:\n");
+        long now = SystemClock.elapsedRealtime();
+        for (Lock lock : mLocks.values()) {
+            long held = lock.totalHeldMs;
+            if (lock.held) held += now - lock.acquiredAt;
+            ProfileService.println(sb, lock.name + ": held=" + lock.held
+                    + " acquired=" + lock.acquireCount + " total=" + held + "ms"
+                    + " max=" + lock.maxHeldMs + "ms longHolds=" + lock.longHoldCount
+                    + " timeouts=" + lock.timeoutCount);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+
+/**
+ * Arms the AlarmManager alarm requested by the native stack.
+ *
+ * The stack has a single wake alarm, each request supersedes the previous
+ * one. Rather than cancelling and re-creating the alarm for every request,
+ * one PendingIntent is reused (setting it again replaces the pending alarm),
+ * and a request is dropped when the alarm of the same type is already armed
+ * at most {@link #COALESCE_MS} before the new deadline: the alarm may fire a
+ * little early, and the stack then arms it again, but never late. Alarms
+ * that do not wake the device are given a window, since they can be delayed
+ * anyway.
+ *
+ * Only used from the AdapterService handler thread.
+ */
+class WakeAlarmScheduler {
+    static final long COALESCE_MS = 10;
+    private static final long MAX_WINDOW_MS = 1000;
+
+    private final AlarmManager mAlarmManager;
+    private final PendingIntent mAlarmIntent;
+
+    private boolean mArmed;
+    private long mArmedDeadline;
+    private int mArmedType;
+
+    private int mRequests;
+    private int mArms;
+    private int mCoalesced;
+    private int mFired;
+
+    WakeAlarmScheduler(Context context, AlarmManager alarmManager, String action) {
+        mAlarmManager = alarmManager;
+        mAlarmIntent = PendingIntent.getBroadcast(context, 0, new Intent(action), 0);
+    }
+
+    void schedule(long delayMillis, int alarmType) {
+        mRequests++;
+        long deadline = SystemClock.elapsedRealtime() + delayMillis;
+        if (mArmed && mArmedType == alarmType && deadline >= mArmedDeadline
+                && deadline - mArmedDeadline <= COALESCE_MS) {
+            mCoalesced++;
+            return;
+        }
+
+        if (alarmType == AlarmManager.ELAPSED_REALTIME) {
+            long window = Math.min(delayMillis / 20, MAX_WINDOW_MS);
+            mAlarmManager.setWindow(alarmType, deadline, window, mAlarmIntent);
+        } else {
+            mAlarmManager.setExact(alarmType, deadline, mAlarmIntent);
+        }
+        mArmed = true;
+        mArmedDeadline = deadline;
+        mArmedType = alarmType;
+        mArms++;
+    }
+
+    void onAlarmFired() {
+        mArmed = false;
+        mFired++;
+    }
+
+    void cancel() {
+        mAlarmManager.cancel(mAlarmIntent);
+        mArmed = false;
+    }
+
+    void dump(StringBuilder sb) {
+        sb.append("Wake alarms:\n");
+        ProfileService.println(sb, "Requests: " + mRequests + ", armed: " + mArms
+                + ", coalesced: " + mCoalesced + ", fired: " + mFired);
+        if (mArmed) {
+            ProfileService.println(sb, "Next in "
+                    + (mArmedDeadline - SystemClock.elapsedRealtime()) + " ms, type " + mArmedType);
+        }
+    }
+}
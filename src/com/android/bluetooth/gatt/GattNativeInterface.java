@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+/**
+ * Calls from {@link GattService} into the native GATT client and server
+ * interfaces. Scanning and advertising have their own native wrappers in
+ * {@link ScanManager} and {@link AdvertiseManager}.
+ */
+interface GattNativeInterface {
+    void gattTestNative(int command, long uuid1_lsb, long uuid1_msb, String bda1, int p1, int p2,
+            int p3, int p4, int p5);
+    void initializeNative();
+    void cleanupNative();
+    int gattClientGetDeviceTypeNative(String address);
+    void gattClientRegisterAppNative(long app_uuid_lsb, long app_uuid_msb);
+    void gattClientUnregisterAppNative(int clientIf);
+    void gattClientConnectNative(int clientIf, String address, boolean isDirect, int transport);
+    void gattClientDisconnectNative(int clientIf, String address, int conn_id);
+    void gattClientRefreshNative(int clientIf, String address);
+    void gattClientSearchServiceNative(int conn_id, boolean search_all, long service_uuid_lsb,
+            long service_uuid_msb);
+    void gattClientGetCharacteristicNative(int conn_id, int service_type, int service_id_inst_id,
+            long service_id_uuid_lsb, long service_id_uuid_msb, int char_id_inst_id,
+            long char_id_uuid_lsb, long char_id_uuid_msb);
+    void gattClientGetDescriptorNative(int conn_id, int service_type, int service_id_inst_id,
+            long service_id_uuid_lsb, long service_id_uuid_msb, int char_id_inst_id,
+            long char_id_uuid_lsb, long char_id_uuid_msb, int descr_id_inst_id,
+            long descr_id_uuid_lsb, long descr_id_uuid_msb);
+    void gattClientGetIncludedServiceNative(int conn_id, int service_type, int service_id_inst_id,
+            long service_id_uuid_lsb, long service_id_uuid_msb, int incl_service_id_inst_id,
+            int incl_service_type, long incl_service_id_uuid_lsb, long incl_service_id_uuid_msb);
+    void gattClientReadCharacteristicNative(int conn_id, int service_type, int service_id_inst_id,
+            long service_id_uuid_lsb, long service_id_uuid_msb, int char_id_inst_id,
+            long char_id_uuid_lsb, long char_id_uuid_msb, int authReq);
+    void gattClientReadDescriptorNative(int conn_id, int service_type, int service_id_inst_id,
+            long service_id_uuid_lsb, long service_id_uuid_msb, int char_id_inst_id,
+            long char_id_uuid_lsb, long char_id_uuid_msb, int descr_id_inst_id,
+            long descr_id_uuid_lsb, long descr_id_uuid_msb, int authReq);
+    void gattClientWriteCharacteristicNative(int conn_id, int service_type, int service_id_inst_id,
+            long service_id_uuid_lsb, long service_id_uuid_msb, int char_id_inst_id,
+            long char_id_uuid_lsb, long char_id_uuid_msb, int write_type, int auth_req,
+            byte[] value);
+    void gattClientWriteDescriptorNative(int conn_id, int service_type, int service_id_inst_id,
+            long service_id_uuid_lsb, long service_id_uuid_msb, int char_id_inst_id,
+            long char_id_uuid_lsb, long char_id_uuid_msb, int descr_id_inst_id,
+            long descr_id_uuid_lsb, long descr_id_uuid_msb, int write_type, int auth_req,
+            byte[] value);
+    void gattClientExecuteWriteNative(int conn_id, boolean execute);
+    void gattClientRegisterForNotificationsNative(int clientIf, String address, int service_type,
+            int service_id_inst_id, long service_id_uuid_lsb, long service_id_uuid_msb,
+            int char_id_inst_id, long char_id_uuid_lsb, long char_id_uuid_msb, boolean enable);
+    void gattClientReadRemoteRssiNative(int clientIf, String address);
+    void gattClientConfigureMTUNative(int conn_id, int mtu);
+    void gattConnectionParameterUpdateNative(int client_if, String address, int minInterval,
+            int maxInterval, int latency, int timeout);
+    void gattServerRegisterAppNative(long app_uuid_lsb, long app_uuid_msb);
+    void gattServerUnregisterAppNative(int serverIf);
+    void gattServerConnectNative(int server_if, String address, boolean is_direct, int transport);
+    void gattServerDisconnectNative(int serverIf, String address, int conn_id);
+    void gattServerAddServiceNative(int server_if, int service_type, int service_id_inst_id,
+            long service_id_uuid_lsb, long service_id_uuid_msb, int num_handles);
+    void gattServerAddIncludedServiceNative(int server_if, int svc_handle, int included_svc_handle);
+    void gattServerAddCharacteristicNative(int server_if, int svc_handle, long char_uuid_lsb,
+            long char_uuid_msb, int properties, int permissions);
+    void gattServerAddDescriptorNative(int server_if, int svc_handle, long desc_uuid_lsb,
+            long desc_uuid_msb, int permissions);
+    void gattServerStartServiceNative(int server_if, int svc_handle, int transport);
+    void gattServerStopServiceNative(int server_if, int svc_handle);
+    void gattServerDeleteServiceNative(int server_if, int svc_handle);
+    void gattServerSendIndicationNative(int server_if, int attr_handle, int conn_id, byte[] val);
+    void gattServerSendNotificationNative(int server_if, int attr_handle, int conn_id, byte[] val);
+    void gattServerSendResponseNative(int server_if, int conn_id, int trans_id, int status,
+            int handle, int offset, byte[] val, int auth_req);
+}
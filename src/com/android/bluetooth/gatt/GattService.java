@@ -33,15 +33,22 @@ import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.Intent;
+import android.os.Binder;
 import android.os.IBinder;
 import android.os.ParcelUuid;
+import android.os.Parcel;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
+import com.android.bluetooth.btservice.QAdapterService;
 import com.android.bluetooth.btservice.ProfileService;
+import com.android.bluetooth.util.BinderCallStats;
+import com.android.bluetooth.util.CallbackLatency;
+import com.android.bluetooth.util.EventTrace;
+import com.android.bluetooth.util.NativeInterfaceFactory;
 import com.android.bluetooth.util.NumberUtils;
 import com.android.internal.annotations.VisibleForTesting;
 
@@ -189,7 +196,8 @@ public class GattService extends ProfileService {
 
     protected boolean start() {
         if (DBG) Log.d(TAG, "start()");
-        initializeNative();
+        mNativeInterface = createNativeInterface();
+        mNativeInterface.initializeNative();
         mAdvertiseManager = new AdvertiseManager(this, AdapterService.getAdapterService());
         mAdvertiseManager.start();
 
@@ -221,7 +229,7 @@ public class GattService extends ProfileService {
 
     protected boolean cleanup() {
         if (DBG) Log.d(TAG, "cleanup()");
-        cleanupNative();
+        mNativeInterface.cleanupNative();
         if (mAdvertiseManager != null) {
             mAdvertiseManager.cleanup();
             mAdvertiseManager = null;
@@ -299,7 +307,23 @@ public class GattService extends ProfileService {
     /**
      * Handlers for incoming service calls
      */
-    private static class BluetoothGattBinder extends IBluetoothGatt.Stub implements IProfileServiceBinder {
+    private static class BluetoothGattBinder extends IBluetoothGatt.Stub
+            implements IProfileServiceBinder, BinderCallStats.Transactor {
+        private static final BinderCallStats sCallStats =
+                new BinderCallStats(IBluetoothGatt.Stub.class);
+
+        @Override
+        public boolean onTransact(int code, Parcel data, Parcel reply, int flags)
+                throws RemoteException {
+            return sCallStats.onTransact(this, code, data, reply, flags);
+        }
+
+        @Override
+        public boolean onTransactDirect(int code, Parcel data, Parcel reply, int flags)
+                throws RemoteException {
+            return super.onTransact(code, data, reply, flags);
+        }
+
         private GattService mService;
 
         public BluetoothGattBinder(GattService svc) {
@@ -587,68 +611,76 @@ public class GattService extends ProfileService {
      *************************************************************************/
 
     void onScanResult(String address, int rssi, byte[] adv_data) {
-        if (VDBG) Log.d(TAG, "onScanResult() - address=" + address
-                    + ", rssi=" + rssi);
-        List<UUID> remoteUuids = parseUuids(adv_data);
-        for (ScanClient client : mScanManager.getRegularScanQueue()) {
-            if (client.uuids.length > 0) {
-                int matches = 0;
-                for (UUID search : client.uuids) {
-                    for (UUID remote: remoteUuids) {
-                        if (remote.equals(search)) {
-                            ++matches;
-                            break; // Only count 1st match in case of duplicates
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (VDBG) Log.d(TAG, "onScanResult() - address=" + address
+                        + ", rssi=" + rssi);
+            EventTrace.log(EventTrace.TYPE_SCAN_RESULT, address, rssi,
+                    adv_data == null ? 0 : adv_data.length);
+            reportRemoteRssi(address, rssi);
+            List<UUID> remoteUuids = parseUuids(adv_data);
+            for (ScanClient client : mScanManager.getRegularScanQueue()) {
+                if (client.uuids.length > 0) {
+                    int matches = 0;
+                    for (UUID search : client.uuids) {
+                        for (UUID remote: remoteUuids) {
+                            if (remote.equals(search)) {
+                                ++matches;
+                                break; // Only count 1st match in case of duplicates
+                            }
                         }
                     }
-                }
 
-                if (matches < client.uuids.length) continue;
-            }
+                    if (matches < client.uuids.length) continue;
+                }
 
-            if (!client.isServer) {
-                ClientMap.App app = mClientMap.getById(client.clientIf);
-                if (app != null) {
-                    BluetoothDevice device = BluetoothAdapter.getDefaultAdapter()
-                            .getRemoteDevice(address);
-                    ScanResult result = new ScanResult(device, ScanRecord.parseFromBytes(adv_data),
-                            rssi, SystemClock.elapsedRealtimeNanos());
-                    if (matchesFilters(client, result)) {
-                        try {
-                            ScanSettings settings = client.settings;
-                            // framework detects the first match, hw signal is
-                            // used to detect the onlost
-                            // ToDo: make scanClient+result, 1 to many when hw
-                            // support is available
-                            if ((settings.getCallbackType() &
-                                    ScanSettings.CALLBACK_TYPE_FIRST_MATCH) != 0) {
-                                synchronized (mOnFoundResults) {
-                                    mOnFoundResults.put(client, result);
+                if (!client.isServer) {
+                    ClientMap.App app = mClientMap.getById(client.clientIf);
+                    if (app != null) {
+                        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter()
+                                .getRemoteDevice(address);
+                        ScanResult result = new ScanResult(device, ScanRecord.parseFromBytes(adv_data),
+                                rssi, SystemClock.elapsedRealtimeNanos());
+                        if (matchesFilters(client, result)) {
+                            try {
+                                ScanSettings settings = client.settings;
+                                // framework detects the first match, hw signal is
+                                // used to detect the onlost
+                                // ToDo: make scanClient+result, 1 to many when hw
+                                // support is available
+                                if ((settings.getCallbackType() &
+                                        ScanSettings.CALLBACK_TYPE_FIRST_MATCH) != 0) {
+                                    synchronized (mOnFoundResults) {
+                                        mOnFoundResults.put(client, result);
+                                    }
+                                    app.callback.onFoundOrLost(true, result);
                                 }
-                                app.callback.onFoundOrLost(true, result);
-                            }
-                            if ((settings.getCallbackType() &
-                                    ScanSettings.CALLBACK_TYPE_ALL_MATCHES) != 0) {
-                                app.callback.onScanResult(result);
+                                if ((settings.getCallbackType() &
+                                        ScanSettings.CALLBACK_TYPE_ALL_MATCHES) != 0) {
+                                    app.callback.onScanResult(result);
+                                }
+                            } catch (RemoteException e) {
+                                Log.e(TAG, "Exception: " + e);
+                                mClientMap.remove(client.clientIf);
+                                mScanManager.stopScan(client);
                             }
+                        }
+                    }
+                } else {
+                    ServerMap.App app = mServerMap.getById(client.clientIf);
+                    if (app != null) {
+                        try {
+                            app.callback.onScanResult(address, rssi, adv_data);
                         } catch (RemoteException e) {
                             Log.e(TAG, "Exception: " + e);
-                            mClientMap.remove(client.clientIf);
+                            mServerMap.remove(client.clientIf);
                             mScanManager.stopScan(client);
                         }
                     }
                 }
-            } else {
-                ServerMap.App app = mServerMap.getById(client.clientIf);
-                if (app != null) {
-                    try {
-                        app.callback.onScanResult(address, rssi, adv_data);
-                    } catch (RemoteException e) {
-                        Log.e(TAG, "Exception: " + e);
-                        mServerMap.remove(client.clientIf);
-                        mScanManager.stopScan(client);
-                    }
-                }
             }
+        } finally {
+            mCallbackLatency.end("onScanResult", callbackStart);
         }
     }
 
@@ -667,66 +699,91 @@ public class GattService extends ProfileService {
 
     void onClientRegistered(int status, int clientIf, long uuidLsb, long uuidMsb)
             throws RemoteException {
-        UUID uuid = new UUID(uuidMsb, uuidLsb);
-        if (DBG) Log.d(TAG, "onClientRegistered() - UUID=" + uuid + ", clientIf=" + clientIf);
-        ClientMap.App app = mClientMap.getByUuid(uuid);
-        if (app != null) {
-            if (status == 0) {
-                app.id = clientIf;
-                app.linkToDeath(new ClientDeathRecipient(clientIf));
-            } else {
-                mClientMap.remove(uuid);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            UUID uuid = new UUID(uuidMsb, uuidLsb);
+            if (DBG) Log.d(TAG, "onClientRegistered() - UUID=" + uuid + ", clientIf=" + clientIf);
+            ClientMap.App app = mClientMap.getByUuid(uuid);
+            if (app != null) {
+                if (status == 0) {
+                    app.id = clientIf;
+                    app.linkToDeath(new ClientDeathRecipient(clientIf));
+                } else {
+                    mClientMap.remove(uuid);
+                }
+                app.callback.onClientRegistered(status, clientIf);
             }
-            app.callback.onClientRegistered(status, clientIf);
+        } finally {
+            mCallbackLatency.end("onClientRegistered", callbackStart);
         }
     }
 
     void onConnected(int clientIf, int connId, int status, String address)
             throws RemoteException  {
-        if (DBG) Log.d(TAG, "onConnected() - clientIf=" + clientIf
-            + ", connId=" + connId + ", address=" + address);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (DBG) Log.d(TAG, "onConnected() - clientIf=" + clientIf
+                + ", connId=" + connId + ", address=" + address);
 
-        if (status == 0) mClientMap.addConnection(clientIf, connId, address);
-        ClientMap.App app = mClientMap.getById(clientIf);
-        if (app != null) {
-            app.callback.onClientConnectionState(status, clientIf,
-                                (status==BluetoothGatt.GATT_SUCCESS), address);
+            if (status == 0) mClientMap.addConnection(clientIf, connId, address);
+            ClientMap.App app = mClientMap.getById(clientIf);
+            if (app != null) {
+                app.callback.onClientConnectionState(status, clientIf,
+                                    (status==BluetoothGatt.GATT_SUCCESS), address);
+            }
+        } finally {
+            mCallbackLatency.end("onConnected", callbackStart);
         }
     }
 
     void onDisconnected(int clientIf, int connId, int status, String address)
             throws RemoteException {
-        if (DBG) Log.d(TAG, "onDisconnected() - clientIf=" + clientIf
-            + ", connId=" + connId + ", address=" + address);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (DBG) Log.d(TAG, "onDisconnected() - clientIf=" + clientIf
+                + ", connId=" + connId + ", address=" + address);
 
-        mClientMap.removeConnection(clientIf, connId);
-        mSearchQueue.removeConnId(connId);
-        ClientMap.App app = mClientMap.getById(clientIf);
-        if (app != null) {
-            app.callback.onClientConnectionState(status, clientIf, false, address);
+            mClientMap.removeConnection(clientIf, connId);
+            mSearchQueue.removeConnId(connId);
+            ClientMap.App app = mClientMap.getById(clientIf);
+            if (app != null) {
+                app.callback.onClientConnectionState(status, clientIf, false, address);
+            }
+        } finally {
+            mCallbackLatency.end("onDisconnected", callbackStart);
         }
     }
 
     void onSearchCompleted(int connId, int status) throws RemoteException {
-        if (DBG) Log.d(TAG, "onSearchCompleted() - connId=" + connId+ ", status=" + status);
-        // We got all services, now let's explore characteristics...
-        continueSearch(connId, status);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (DBG) Log.d(TAG, "onSearchCompleted() - connId=" + connId+ ", status=" + status);
+            // We got all services, now let's explore characteristics...
+            continueSearch(connId, status);
+        } finally {
+            mCallbackLatency.end("onSearchCompleted", callbackStart);
+        }
     }
 
     void onSearchResult(int connId, int srvcType,
             int srvcInstId, long srvcUuidLsb, long srvcUuidMsb)
             throws RemoteException {
-        UUID uuid = new UUID(srvcUuidMsb, srvcUuidLsb);
-        String address = mClientMap.addressByConnId(connId);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            UUID uuid = new UUID(srvcUuidMsb, srvcUuidLsb);
+            String address = mClientMap.addressByConnId(connId);
 
-        if (VDBG) Log.d(TAG, "onSearchResult() - address=" + address + ", uuid=" + uuid);
+            if (VDBG) Log.d(TAG, "onSearchResult() - address=" + address + ", uuid=" + uuid);
 
-        mSearchQueue.add(connId, srvcType, srvcInstId, srvcUuidLsb, srvcUuidMsb);
+            mSearchQueue.add(connId, srvcType, srvcInstId, srvcUuidLsb, srvcUuidMsb);
 
-        ClientMap.App app = mClientMap.getByConnId(connId);
-        if (app != null) {
-            app.callback.onGetService(address, srvcType, srvcInstId,
-                                        new ParcelUuid(uuid));
+            ClientMap.App app = mClientMap.getByConnId(connId);
+            if (app != null) {
+                app.callback.onGetService(address, srvcType, srvcInstId,
+                                            new ParcelUuid(uuid));
+            }
+        } finally {
+            mCallbackLatency.end("onSearchResult", callbackStart);
         }
     }
 
@@ -734,35 +791,40 @@ public class GattService extends ProfileService {
             int srvcInstId, long srvcUuidLsb, long srvcUuidMsb,
             int charInstId, long charUuidLsb, long charUuidMsb,
             int charProp) throws RemoteException {
+        final long callbackStart = CallbackLatency.start();
+        try {
 
-        UUID srvcUuid = new UUID(srvcUuidMsb, srvcUuidLsb);
-        UUID charUuid = new UUID(charUuidMsb, charUuidLsb);
-        String address = mClientMap.addressByConnId(connId);
+            UUID srvcUuid = new UUID(srvcUuidMsb, srvcUuidLsb);
+            UUID charUuid = new UUID(charUuidMsb, charUuidLsb);
+            String address = mClientMap.addressByConnId(connId);
 
-        if (VDBG) Log.d(TAG, "onGetCharacteristic() - address=" + address
-            + ", status=" + status + ", charUuid=" + charUuid + ", prop=" + charProp);
+            if (VDBG) Log.d(TAG, "onGetCharacteristic() - address=" + address
+                + ", status=" + status + ", charUuid=" + charUuid + ", prop=" + charProp);
 
-        if (status == 0) {
-            mSearchQueue.add(connId, srvcType,
-                            srvcInstId, srvcUuidLsb, srvcUuidMsb,
-                            charInstId, charUuidLsb, charUuidMsb);
+            if (status == 0) {
+                mSearchQueue.add(connId, srvcType,
+                                srvcInstId, srvcUuidLsb, srvcUuidMsb,
+                                charInstId, charUuidLsb, charUuidMsb);
 
-            ClientMap.App app = mClientMap.getByConnId(connId);
-            if (app != null) {
-                app.callback.onGetCharacteristic(address, srvcType,
-                            srvcInstId, new ParcelUuid(srvcUuid),
-                            charInstId, new ParcelUuid(charUuid), charProp);
-            }
+                ClientMap.App app = mClientMap.getByConnId(connId);
+                if (app != null) {
+                    app.callback.onGetCharacteristic(address, srvcType,
+                                srvcInstId, new ParcelUuid(srvcUuid),
+                                charInstId, new ParcelUuid(charUuid), charProp);
+                }
 
-            // Get next characteristic in the current service
-            gattClientGetCharacteristicNative(connId, srvcType,
-                                        srvcInstId, srvcUuidLsb, srvcUuidMsb,
-                                        charInstId, charUuidLsb, charUuidMsb);
-        } else {
-            // Check for included services next
-            gattClientGetIncludedServiceNative(connId,
-                srvcType, srvcInstId, srvcUuidLsb, srvcUuidMsb,
-                0,0,0,0);
+                // Get next characteristic in the current service
+                mNativeInterface.gattClientGetCharacteristicNative(connId, srvcType,
+                                            srvcInstId, srvcUuidLsb, srvcUuidMsb,
+                                            charInstId, charUuidLsb, charUuidMsb);
+            } else {
+                // Check for included services next
+                mNativeInterface.gattClientGetIncludedServiceNative(connId,
+                    srvcType, srvcInstId, srvcUuidLsb, srvcUuidMsb,
+                    0,0,0,0);
+            }
+        } finally {
+            mCallbackLatency.end("onGetCharacteristic", callbackStart);
         }
     }
 
@@ -770,32 +832,37 @@ public class GattService extends ProfileService {
             int srvcInstId, long srvcUuidLsb, long srvcUuidMsb,
             int charInstId, long charUuidLsb, long charUuidMsb,
             int descrInstId, long descrUuidLsb, long descrUuidMsb) throws RemoteException {
+        final long callbackStart = CallbackLatency.start();
+        try {
 
-        UUID srvcUuid = new UUID(srvcUuidMsb, srvcUuidLsb);
-        UUID charUuid = new UUID(charUuidMsb, charUuidLsb);
-        UUID descUuid = new UUID(descrUuidMsb, descrUuidLsb);
-        String address = mClientMap.addressByConnId(connId);
+            UUID srvcUuid = new UUID(srvcUuidMsb, srvcUuidLsb);
+            UUID charUuid = new UUID(charUuidMsb, charUuidLsb);
+            UUID descUuid = new UUID(descrUuidMsb, descrUuidLsb);
+            String address = mClientMap.addressByConnId(connId);
 
-        if (VDBG) Log.d(TAG, "onGetDescriptor() - address=" + address
-            + ", status=" + status + ", descUuid=" + descUuid);
+            if (VDBG) Log.d(TAG, "onGetDescriptor() - address=" + address
+                + ", status=" + status + ", descUuid=" + descUuid);
 
-        if (status == 0) {
-            ClientMap.App app = mClientMap.getByConnId(connId);
-            if (app != null) {
-                app.callback.onGetDescriptor(address, srvcType,
-                            srvcInstId, new ParcelUuid(srvcUuid),
-                            charInstId, new ParcelUuid(charUuid),
-                            descrInstId, new ParcelUuid(descUuid));
-            }
+            if (status == 0) {
+                ClientMap.App app = mClientMap.getByConnId(connId);
+                if (app != null) {
+                    app.callback.onGetDescriptor(address, srvcType,
+                                srvcInstId, new ParcelUuid(srvcUuid),
+                                charInstId, new ParcelUuid(charUuid),
+                                descrInstId, new ParcelUuid(descUuid));
+                }
 
-            // Get next descriptor for the current characteristic
-            gattClientGetDescriptorNative(connId, srvcType,
-                                    srvcInstId, srvcUuidLsb, srvcUuidMsb,
-                                    charInstId, charUuidLsb, charUuidMsb,
-                                    descrInstId, descrUuidLsb, descrUuidMsb);
-        } else {
-            // Explore the next service
-            continueSearch(connId, 0);
+                // Get next descriptor for the current characteristic
+                mNativeInterface.gattClientGetDescriptorNative(connId, srvcType,
+                                        srvcInstId, srvcUuidLsb, srvcUuidMsb,
+                                        charInstId, charUuidLsb, charUuidMsb,
+                                        descrInstId, descrUuidLsb, descrUuidMsb);
+            } else {
+                // Explore the next service
+                continueSearch(connId, 0);
+            }
+        } finally {
+            mCallbackLatency.end("onGetDescriptor", callbackStart);
         }
     }
 
@@ -803,66 +870,81 @@ public class GattService extends ProfileService {
             int srvcInstId, long srvcUuidLsb, long srvcUuidMsb, int inclSrvcType,
             int inclSrvcInstId, long inclSrvcUuidLsb, long inclSrvcUuidMsb)
             throws RemoteException {
-        UUID srvcUuid = new UUID(srvcUuidMsb, srvcUuidLsb);
-        UUID inclSrvcUuid = new UUID(inclSrvcUuidMsb, inclSrvcUuidLsb);
-        String address = mClientMap.addressByConnId(connId);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            UUID srvcUuid = new UUID(srvcUuidMsb, srvcUuidLsb);
+            UUID inclSrvcUuid = new UUID(inclSrvcUuidMsb, inclSrvcUuidLsb);
+            String address = mClientMap.addressByConnId(connId);
 
-        if (VDBG) Log.d(TAG, "onGetIncludedService() - address=" + address
-            + ", status=" + status + ", uuid=" + srvcUuid
-            + ", inclUuid=" + inclSrvcUuid);
+            if (VDBG) Log.d(TAG, "onGetIncludedService() - address=" + address
+                + ", status=" + status + ", uuid=" + srvcUuid
+                + ", inclUuid=" + inclSrvcUuid);
 
-        if (status == 0) {
-            ClientMap.App app = mClientMap.getByConnId(connId);
-            if (app != null) {
-                app.callback.onGetIncludedService(address,
-                    srvcType, srvcInstId, new ParcelUuid(srvcUuid),
-                    inclSrvcType, inclSrvcInstId, new ParcelUuid(inclSrvcUuid));
-            }
+            if (status == 0) {
+                ClientMap.App app = mClientMap.getByConnId(connId);
+                if (app != null) {
+                    app.callback.onGetIncludedService(address,
+                        srvcType, srvcInstId, new ParcelUuid(srvcUuid),
+                        inclSrvcType, inclSrvcInstId, new ParcelUuid(inclSrvcUuid));
+                }
 
-            // Find additional included services
-            gattClientGetIncludedServiceNative(connId,
-                srvcType, srvcInstId, srvcUuidLsb, srvcUuidMsb,
-                inclSrvcType, inclSrvcInstId, inclSrvcUuidLsb, inclSrvcUuidMsb);
-        } else {
-            // Discover descriptors now
-            continueSearch(connId, 0);
+                // Find additional included services
+                mNativeInterface.gattClientGetIncludedServiceNative(connId,
+                    srvcType, srvcInstId, srvcUuidLsb, srvcUuidMsb,
+                    inclSrvcType, inclSrvcInstId, inclSrvcUuidLsb, inclSrvcUuidMsb);
+            } else {
+                // Discover descriptors now
+                continueSearch(connId, 0);
+            }
+        } finally {
+            mCallbackLatency.end("onGetIncludedService", callbackStart);
         }
     }
 
     void onRegisterForNotifications(int connId, int status, int registered, int srvcType,
             int srvcInstId, long srvcUuidLsb, long srvcUuidMsb,
             int charInstId, long charUuidLsb, long charUuidMsb) {
-        UUID srvcUuid = new UUID(srvcUuidMsb, srvcUuidLsb);
-        UUID charUuid = new UUID(charUuidMsb, charUuidLsb);
-        String address = mClientMap.addressByConnId(connId);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            UUID srvcUuid = new UUID(srvcUuidMsb, srvcUuidLsb);
+            UUID charUuid = new UUID(charUuidMsb, charUuidLsb);
+            String address = mClientMap.addressByConnId(connId);
 
-        if (DBG) Log.d(TAG, "onRegisterForNotifications() - address=" + address
-            + ", status=" + status + ", registered=" + registered
-            + ", charUuid=" + charUuid);
+            if (DBG) Log.d(TAG, "onRegisterForNotifications() - address=" + address
+                + ", status=" + status + ", registered=" + registered
+                + ", charUuid=" + charUuid);
+        } finally {
+            mCallbackLatency.end("onRegisterForNotifications", callbackStart);
+        }
     }
 
     void onNotify(int connId, String address, int srvcType,
             int srvcInstId, long srvcUuidLsb, long srvcUuidMsb,
             int charInstId, long charUuidLsb, long charUuidMsb,
             boolean isNotify, byte[] data) throws RemoteException {
-        UUID srvcUuid = new UUID(srvcUuidMsb, srvcUuidLsb);
-        UUID charUuid = new UUID(charUuidMsb, charUuidLsb);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            UUID srvcUuid = new UUID(srvcUuidMsb, srvcUuidLsb);
+            UUID charUuid = new UUID(charUuidMsb, charUuidLsb);
 
-        if (VDBG) Log.d(TAG, "onNotify() - address=" + address
-            + ", charUuid=" + charUuid + ", length=" + data.length);
+            if (VDBG) Log.d(TAG, "onNotify() - address=" + address
+                + ", charUuid=" + charUuid + ", length=" + data.length);
 
 
-        if (isHidUuid(charUuid) &&
-               (0 != checkCallingOrSelfPermission(BLUETOOTH_PRIVILEGED))) {
-            return;
-        }
+            if (isHidUuid(charUuid) &&
+                   (0 != checkCallingOrSelfPermission(BLUETOOTH_PRIVILEGED))) {
+                return;
+            }
 
-        ClientMap.App app = mClientMap.getByConnId(connId);
-        if (app != null) {
-            app.callback.onNotify(address, srvcType,
-                        srvcInstId, new ParcelUuid(srvcUuid),
-                        charInstId, new ParcelUuid(charUuid),
-                        data);
+            ClientMap.App app = mClientMap.getByConnId(connId);
+            if (app != null) {
+                app.callback.onNotify(address, srvcType,
+                            srvcInstId, new ParcelUuid(srvcUuid),
+                            charInstId, new ParcelUuid(charUuid),
+                            data);
+            }
+        } finally {
+            mCallbackLatency.end("onNotify", callbackStart);
         }
     }
 
@@ -870,19 +952,24 @@ public class GattService extends ProfileService {
             int srvcInstId, long srvcUuidLsb, long srvcUuidMsb,
             int charInstId, long charUuidLsb, long charUuidMsb,
             int charType, byte[] data) throws RemoteException {
+        final long callbackStart = CallbackLatency.start();
+        try {
 
-        UUID srvcUuid = new UUID(srvcUuidMsb, srvcUuidLsb);
-        UUID charUuid = new UUID(charUuidMsb, charUuidLsb);
-        String address = mClientMap.addressByConnId(connId);
+            UUID srvcUuid = new UUID(srvcUuidMsb, srvcUuidLsb);
+            UUID charUuid = new UUID(charUuidMsb, charUuidLsb);
+            String address = mClientMap.addressByConnId(connId);
 
-        if (VDBG) Log.d(TAG, "onReadCharacteristic() - address=" + address
-            + ", status=" + status + ", length=" + data.length);
+            if (VDBG) Log.d(TAG, "onReadCharacteristic() - address=" + address
+                + ", status=" + status + ", length=" + data.length);
 
-        ClientMap.App app = mClientMap.getByConnId(connId);
-        if (app != null) {
-            app.callback.onCharacteristicRead(address, status, srvcType,
-                        srvcInstId, new ParcelUuid(srvcUuid),
-                        charInstId, new ParcelUuid(charUuid), data);
+            ClientMap.App app = mClientMap.getByConnId(connId);
+            if (app != null) {
+                app.callback.onCharacteristicRead(address, status, srvcType,
+                            srvcInstId, new ParcelUuid(srvcUuid),
+                            charInstId, new ParcelUuid(charUuid), data);
+            }
+        } finally {
+            mCallbackLatency.end("onReadCharacteristic", callbackStart);
         }
     }
 
@@ -890,39 +977,51 @@ public class GattService extends ProfileService {
             int srvcInstId, long srvcUuidLsb, long srvcUuidMsb,
             int charInstId, long charUuidLsb, long charUuidMsb)
             throws RemoteException {
+        final long callbackStart = CallbackLatency.start();
+        try {
 
-        UUID srvcUuid = new UUID(srvcUuidMsb, srvcUuidLsb);
-        UUID charUuid = new UUID(charUuidMsb, charUuidLsb);
-        String address = mClientMap.addressByConnId(connId);
+            UUID srvcUuid = new UUID(srvcUuidMsb, srvcUuidLsb);
+            UUID charUuid = new UUID(charUuidMsb, charUuidLsb);
+            String address = mClientMap.addressByConnId(connId);
 
-        if (VDBG) Log.d(TAG, "onWriteCharacteristic() - address=" + address
-            + ", status=" + status);
+            if (VDBG) Log.d(TAG, "onWriteCharacteristic() - address=" + address
+                + ", status=" + status);
 
-        ClientMap.App app = mClientMap.getByConnId(connId);
-        if (app == null) return;
+            ClientMap.App app = mClientMap.getByConnId(connId);
+            if (app == null) {
+                return;
+            }
 
-        if (!app.isCongested) {
-            app.callback.onCharacteristicWrite(address, status, srvcType,
-                    srvcInstId, new ParcelUuid(srvcUuid),
-                    charInstId, new ParcelUuid(charUuid));
-        } else {
-            if (status == BluetoothGatt.GATT_CONNECTION_CONGESTED) {
-                status = BluetoothGatt.GATT_SUCCESS;
+            if (!app.isCongested) {
+                app.callback.onCharacteristicWrite(address, status, srvcType,
+                        srvcInstId, new ParcelUuid(srvcUuid),
+                        charInstId, new ParcelUuid(charUuid));
+            } else {
+                if (status == BluetoothGatt.GATT_CONNECTION_CONGESTED) {
+                    status = BluetoothGatt.GATT_SUCCESS;
+                }
+                CallbackInfo callbackInfo = new CallbackInfo(address, status, srvcType,
+                        srvcInstId, srvcUuid, charInstId, charUuid);
+                app.queueCallback(callbackInfo);
             }
-            CallbackInfo callbackInfo = new CallbackInfo(address, status, srvcType,
-                    srvcInstId, srvcUuid, charInstId, charUuid);
-            app.queueCallback(callbackInfo);
+        } finally {
+            mCallbackLatency.end("onWriteCharacteristic", callbackStart);
         }
     }
 
     void onExecuteCompleted(int connId, int status) throws RemoteException {
-        String address = mClientMap.addressByConnId(connId);
-        if (VDBG) Log.d(TAG, "onExecuteCompleted() - address=" + address
-            + ", status=" + status);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            String address = mClientMap.addressByConnId(connId);
+            if (VDBG) Log.d(TAG, "onExecuteCompleted() - address=" + address
+                + ", status=" + status);
 
-        ClientMap.App app = mClientMap.getByConnId(connId);
-        if (app != null) {
-            app.callback.onExecuteWrite(address, status);
+            ClientMap.App app = mClientMap.getByConnId(connId);
+            if (app != null) {
+                app.callback.onExecuteWrite(address, status);
+            }
+        } finally {
+            mCallbackLatency.end("onExecuteCompleted", callbackStart);
         }
     }
 
@@ -931,21 +1030,26 @@ public class GattService extends ProfileService {
             int charInstId, long charUuidLsb, long charUuidMsb,
             int descrInstId, long descrUuidLsb, long descrUuidMsb,
             int charType, byte[] data) throws RemoteException {
+        final long callbackStart = CallbackLatency.start();
+        try {
 
-        UUID srvcUuid = new UUID(srvcUuidMsb, srvcUuidLsb);
-        UUID charUuid = new UUID(charUuidMsb, charUuidLsb);
-        UUID descrUuid = new UUID(descrUuidMsb, descrUuidLsb);
-        String address = mClientMap.addressByConnId(connId);
+            UUID srvcUuid = new UUID(srvcUuidMsb, srvcUuidLsb);
+            UUID charUuid = new UUID(charUuidMsb, charUuidLsb);
+            UUID descrUuid = new UUID(descrUuidMsb, descrUuidLsb);
+            String address = mClientMap.addressByConnId(connId);
 
-        if (VDBG) Log.d(TAG, "onReadDescriptor() - address=" + address
-            + ", status=" + status + ", length=" + data.length);
+            if (VDBG) Log.d(TAG, "onReadDescriptor() - address=" + address
+                + ", status=" + status + ", length=" + data.length);
 
-        ClientMap.App app = mClientMap.getByConnId(connId);
-        if (app != null) {
-            app.callback.onDescriptorRead(address, status, srvcType,
-                        srvcInstId, new ParcelUuid(srvcUuid),
-                        charInstId, new ParcelUuid(charUuid),
-                        descrInstId, new ParcelUuid(descrUuid), data);
+            ClientMap.App app = mClientMap.getByConnId(connId);
+            if (app != null) {
+                app.callback.onDescriptorRead(address, status, srvcType,
+                            srvcInstId, new ParcelUuid(srvcUuid),
+                            charInstId, new ParcelUuid(charUuid),
+                            descrInstId, new ParcelUuid(descrUuid), data);
+            }
+        } finally {
+            mCallbackLatency.end("onReadDescriptor", callbackStart);
         }
     }
 
@@ -953,97 +1057,146 @@ public class GattService extends ProfileService {
             int srvcInstId, long srvcUuidLsb, long srvcUuidMsb,
             int charInstId, long charUuidLsb, long charUuidMsb,
             int descrInstId, long descrUuidLsb, long descrUuidMsb) throws RemoteException {
+        final long callbackStart = CallbackLatency.start();
+        try {
 
-        UUID srvcUuid = new UUID(srvcUuidMsb, srvcUuidLsb);
-        UUID charUuid = new UUID(charUuidMsb, charUuidLsb);
-        UUID descrUuid = new UUID(descrUuidMsb, descrUuidLsb);
-        String address = mClientMap.addressByConnId(connId);
+            UUID srvcUuid = new UUID(srvcUuidMsb, srvcUuidLsb);
+            UUID charUuid = new UUID(charUuidMsb, charUuidLsb);
+            UUID descrUuid = new UUID(descrUuidMsb, descrUuidLsb);
+            String address = mClientMap.addressByConnId(connId);
 
-        if (VDBG) Log.d(TAG, "onWriteDescriptor() - address=" + address
-            + ", status=" + status);
+            if (VDBG) Log.d(TAG, "onWriteDescriptor() - address=" + address
+                + ", status=" + status);
 
-        ClientMap.App app = mClientMap.getByConnId(connId);
-        if (app != null) {
-            app.callback.onDescriptorWrite(address, status, srvcType,
-                        srvcInstId, new ParcelUuid(srvcUuid),
-                        charInstId, new ParcelUuid(charUuid),
-                        descrInstId, new ParcelUuid(descrUuid));
+            ClientMap.App app = mClientMap.getByConnId(connId);
+            if (app != null) {
+                app.callback.onDescriptorWrite(address, status, srvcType,
+                            srvcInstId, new ParcelUuid(srvcUuid),
+                            charInstId, new ParcelUuid(charUuid),
+                            descrInstId, new ParcelUuid(descrUuid));
+            }
+        } finally {
+            mCallbackLatency.end("onWriteDescriptor", callbackStart);
         }
     }
 
     void onReadRemoteRssi(int clientIf, String address,
                     int rssi, int status) throws RemoteException{
-        if (DBG) Log.d(TAG, "onReadRemoteRssi() - clientIf=" + clientIf + " address=" +
-                     address + ", rssi=" + rssi + ", status=" + status);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (DBG) Log.d(TAG, "onReadRemoteRssi() - clientIf=" + clientIf + " address=" +
+                         address + ", rssi=" + rssi + ", status=" + status);
 
-        ClientMap.App app = mClientMap.getById(clientIf);
-        if (app != null) {
-            app.callback.onReadRemoteRssi(address, rssi, status);
+            if (status == 0) reportRemoteRssi(address, rssi);
+            ClientMap.App app = mClientMap.getById(clientIf);
+            if (app != null) {
+                app.callback.onReadRemoteRssi(address, rssi, status);
+            }
+        } finally {
+            mCallbackLatency.end("onReadRemoteRssi", callbackStart);
         }
     }
 
+    // Feeds the software RSSI monitoring of devices without controller support
+    private void reportRemoteRssi(String address, int rssi) {
+        QAdapterService qService = QAdapterService.getAdapterService();
+        if (qService != null) qService.onRemoteRssi(address, rssi);
+    }
+
     void onScanFilterEnableDisabled(int action, int status, int clientIf) {
-        if (DBG) {
-            Log.d(TAG, "onScanFilterEnableDisabled() - clientIf=" + clientIf + ", status=" + status
-                    + ", action=" + action);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (DBG) {
+                Log.d(TAG, "onScanFilterEnableDisabled() - clientIf=" + clientIf + ", status=" + status
+                        + ", action=" + action);
+            }
+            mScanManager.callbackDone(clientIf, status);
+        } finally {
+            mCallbackLatency.end("onScanFilterEnableDisabled", callbackStart);
         }
-        mScanManager.callbackDone(clientIf, status);
     }
 
     void onScanFilterParamsConfigured(int action, int status, int clientIf, int availableSpace) {
-        if (DBG) {
-            Log.d(TAG, "onScanFilterParamsConfigured() - clientIf=" + clientIf
-                    + ", status=" + status + ", action=" + action
-                    + ", availableSpace=" + availableSpace);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (DBG) {
+                Log.d(TAG, "onScanFilterParamsConfigured() - clientIf=" + clientIf
+                        + ", status=" + status + ", action=" + action
+                        + ", availableSpace=" + availableSpace);
+            }
+            mScanManager.callbackDone(clientIf, status);
+        } finally {
+            mCallbackLatency.end("onScanFilterParamsConfigured", callbackStart);
         }
-        mScanManager.callbackDone(clientIf, status);
     }
 
     void onScanFilterConfig(int action, int status, int clientIf, int filterType,
             int availableSpace) {
-        if (DBG) {
-            Log.d(TAG, "onScanFilterConfig() - clientIf=" + clientIf + ", action = " + action
-                    + " status = " + status + ", filterType=" + filterType
-                    + ", availableSpace=" + availableSpace);
-        }
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (DBG) {
+                Log.d(TAG, "onScanFilterConfig() - clientIf=" + clientIf + ", action = " + action
+                        + " status = " + status + ", filterType=" + filterType
+                        + ", availableSpace=" + availableSpace);
+            }
 
-        mScanManager.callbackDone(clientIf, status);
+            mScanManager.callbackDone(clientIf, status);
+        } finally {
+            mCallbackLatency.end("onScanFilterConfig", callbackStart);
+        }
     }
 
     void onBatchScanStorageConfigured(int status, int clientIf) {
-        if (DBG) {
-            Log.d(TAG, "onBatchScanStorageConfigured() - clientIf="+ clientIf + ", status=" + status);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (DBG) {
+                Log.d(TAG, "onBatchScanStorageConfigured() - clientIf="+ clientIf + ", status=" + status);
+            }
+            mScanManager.callbackDone(clientIf, status);
+        } finally {
+            mCallbackLatency.end("onBatchScanStorageConfigured", callbackStart);
         }
-        mScanManager.callbackDone(clientIf, status);
     }
 
     // TODO: split into two different callbacks : onBatchScanStarted and onBatchScanStopped.
     void onBatchScanStartStopped(int startStopAction, int status, int clientIf) {
-        if (DBG) {
-            Log.d(TAG, "onBatchScanStartStopped() - clientIf=" + clientIf
-                    + ", status=" + status + ", startStopAction=" + startStopAction);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (DBG) {
+                Log.d(TAG, "onBatchScanStartStopped() - clientIf=" + clientIf
+                        + ", status=" + status + ", startStopAction=" + startStopAction);
+            }
+            mScanManager.callbackDone(clientIf, status);
+        } finally {
+            mCallbackLatency.end("onBatchScanStartStopped", callbackStart);
         }
-        mScanManager.callbackDone(clientIf, status);
     }
 
     void onBatchScanReports(int status, int clientIf, int reportType, int numRecords,
             byte[] recordData) throws RemoteException {
-        if (DBG) {
-            Log.d(TAG, "onBatchScanReports() - clientIf=" + clientIf + ", status=" + status
-                    + ", reportType=" + reportType + ", numRecords=" + numRecords);
-        }
-        mScanManager.callbackDone(clientIf, status);
-        Set<ScanResult> results = parseBatchScanResults(numRecords, reportType, recordData);
-        if (reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED) {
-            // We only support single client for truncated mode.
-            ClientMap.App app = mClientMap.getById(clientIf);
-            if (app == null) return;
-            app.callback.onBatchScanResults(new ArrayList<ScanResult>(results));
-        } else {
-            for (ScanClient client : mScanManager.getFullBatchScanQueue()) {
-                // Deliver results for each client.
-                deliverBatchScan(client, results);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (DBG) {
+                Log.d(TAG, "onBatchScanReports() - clientIf=" + clientIf + ", status=" + status
+                        + ", reportType=" + reportType + ", numRecords=" + numRecords);
             }
+            mScanManager.callbackDone(clientIf, status);
+            Set<ScanResult> results = parseBatchScanResults(numRecords, reportType, recordData);
+            if (reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED) {
+                // We only support single client for truncated mode.
+                ClientMap.App app = mClientMap.getById(clientIf);
+                if (app == null) {
+                    return;
+                }
+                app.callback.onBatchScanResults(new ArrayList<ScanResult>(results));
+            } else {
+                for (ScanClient client : mScanManager.getFullBatchScanQueue()) {
+                    // Deliver results for each client.
+                    deliverBatchScan(client, results);
+                }
+            }
+        } finally {
+            mCallbackLatency.end("onBatchScanReports", callbackStart);
         }
     }
 
@@ -1065,7 +1218,8 @@ public class GattService extends ProfileService {
         app.callback.onBatchScanResults(results);
     }
 
-    private Set<ScanResult> parseBatchScanResults(int numRecords, int reportType,
+    @VisibleForTesting
+    Set<ScanResult> parseBatchScanResults(int numRecords, int reportType,
             byte[] batchRecord) {
         if (numRecords == 0) {
             return Collections.emptySet();
@@ -1104,7 +1258,7 @@ public class GattService extends ProfileService {
     }
 
     private Set<ScanResult> parseFullResults(int numRecords, byte[] batchRecord) {
-        Log.d(TAG, "Batch record : " + Arrays.toString(batchRecord));
+        if (VDBG) Log.d(TAG, "Batch record : " + Arrays.toString(batchRecord));
         Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
         int position = 0;
         long now = SystemClock.elapsedRealtimeNanos();
@@ -1133,7 +1287,7 @@ public class GattService extends ProfileService {
             System.arraycopy(advertiseBytes, 0, scanRecord, 0, advertisePacketLen);
             System.arraycopy(scanResponseBytes, 0, scanRecord,
                     advertisePacketLen, scanResponsePacketLen);
-            Log.d(TAG, "ScanRecord : " + Arrays.toString(scanRecord));
+            if (VDBG) Log.d(TAG, "ScanRecord : " + Arrays.toString(scanRecord));
             results.add(new ScanResult(device, ScanRecord.parseFromBytes(scanRecord),
                     rssi, timestampNanos));
         }
@@ -1158,44 +1312,54 @@ public class GattService extends ProfileService {
     }
 
     void onBatchScanThresholdCrossed(int clientIf) {
-        if (DBG) {
-            Log.d(TAG, "onBatchScanThresholdCrossed() - clientIf=" + clientIf);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (DBG) {
+                Log.d(TAG, "onBatchScanThresholdCrossed() - clientIf=" + clientIf);
+            }
+            boolean isServer = false;
+            flushPendingBatchResults(clientIf, isServer);
+        } finally {
+            mCallbackLatency.end("onBatchScanThresholdCrossed", callbackStart);
         }
-        boolean isServer = false;
-        flushPendingBatchResults(clientIf, isServer);
     }
 
     void onTrackAdvFoundLost(int filterIndex, int addrType, String address, int advState,
             int clientIf) throws RemoteException {
-        if (DBG) Log.d(TAG, "onClientAdvertiserFoundLost() - clientIf="
-                + clientIf + "address = " + address + "adv_state = "
-                + advState + "client_if = " + clientIf);
-        ClientMap.App app = mClientMap.getById(clientIf);
-        if (app == null || app.callback == null) {
-            Log.e(TAG, "app or callback is null");
-            return;
-        }
-
-        // use hw signal for only onlost reporting
-        if (advState != ADVT_STATE_ONLOST) {
-            return;
-        }
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (DBG) Log.d(TAG, "onClientAdvertiserFoundLost() - clientIf="
+                    + clientIf + "address = " + address + "adv_state = "
+                    + advState + "client_if = " + clientIf);
+            ClientMap.App app = mClientMap.getById(clientIf);
+            if (app == null || app.callback == null) {
+                Log.e(TAG, "app or callback is null");
+                return;
+            }
 
-        for (ScanClient client : mScanManager.getRegularScanQueue()) {
-            if (client.clientIf == clientIf) {
-                ScanSettings settings = client.settings;
-                if ((settings.getCallbackType() &
-                            ScanSettings.CALLBACK_TYPE_MATCH_LOST) != 0) {
+            // use hw signal for only onlost reporting
+            if (advState != ADVT_STATE_ONLOST) {
+                return;
+            }
 
-                    while (!mOnFoundResults.isEmpty()) {
-                        ScanResult result = mOnFoundResults.get(client);
-                        app.callback.onFoundOrLost(false, result);
-                        synchronized (mOnFoundResults) {
-                            mOnFoundResults.remove(client);
+            for (ScanClient client : mScanManager.getRegularScanQueue()) {
+                if (client.clientIf == clientIf) {
+                    ScanSettings settings = client.settings;
+                    if ((settings.getCallbackType() &
+                                ScanSettings.CALLBACK_TYPE_MATCH_LOST) != 0) {
+
+                        while (!mOnFoundResults.isEmpty()) {
+                            ScanResult result = mOnFoundResults.get(client);
+                            app.callback.onFoundOrLost(false, result);
+                            synchronized (mOnFoundResults) {
+                                mOnFoundResults.remove(client);
+                            }
                         }
                     }
                 }
             }
+        } finally {
+            mCallbackLatency.end("onTrackAdvFoundLost", callbackStart);
         }
     }
 
@@ -1211,21 +1375,31 @@ public class GattService extends ProfileService {
     }
 
     void onConfigureMTU(int connId, int status, int mtu) throws RemoteException {
-        String address = mClientMap.addressByConnId(connId);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            String address = mClientMap.addressByConnId(connId);
 
-        if (DBG) Log.d(TAG, "onConfigureMTU() address=" + address + ", status="
-            + status + ", mtu=" + mtu);
+            if (DBG) Log.d(TAG, "onConfigureMTU() address=" + address + ", status="
+                + status + ", mtu=" + mtu);
 
-        ClientMap.App app = mClientMap.getByConnId(connId);
-        if (app != null) {
-            app.callback.onConfigureMTU(address, mtu, status);
+            ClientMap.App app = mClientMap.getByConnId(connId);
+            if (app != null) {
+                app.callback.onConfigureMTU(address, mtu, status);
+            }
+        } finally {
+            mCallbackLatency.end("onConfigureMTU", callbackStart);
         }
     }
 
     // Callback for standard advertising instance.
     void onAdvertiseCallback(int status, int clientIf) {
-        if (DBG) Log.d(TAG, "onAdvertiseCallback,- clientIf=" + clientIf + ", status=" + status);
-        mAdvertiseManager.callbackDone(clientIf, status);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (DBG) Log.d(TAG, "onAdvertiseCallback,- clientIf=" + clientIf + ", status=" + status);
+            mAdvertiseManager.callbackDone(clientIf, status);
+        } finally {
+            mCallbackLatency.end("onAdvertiseCallback", callbackStart);
+        }
     }
 
     // Followings are callbacks for Bluetooth LE Advertise operations.
@@ -1236,57 +1410,84 @@ public class GattService extends ProfileService {
 
     // Callback when advertise instance is enabled.
     void onAdvertiseInstanceEnabled(int status, int clientIf) {
-        if (DBG) Log.d(TAG, "onAdvertiseInstanceEnabled() - "
-                + "clientIf=" + clientIf + ", status=" + status);
-        mAdvertiseManager.callbackDone(clientIf, status);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (DBG) Log.d(TAG, "onAdvertiseInstanceEnabled() - "
+                    + "clientIf=" + clientIf + ", status=" + status);
+            mAdvertiseManager.callbackDone(clientIf, status);
+        } finally {
+            mCallbackLatency.end("onAdvertiseInstanceEnabled", callbackStart);
+        }
     }
 
     // Not really used.
     void onAdvertiseDataUpdated(int status, int client_if) {
-        if (DBG) Log.d(TAG, "onAdvertiseDataUpdated() - client_if=" + client_if
-            + ", status=" + status);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (DBG) Log.d(TAG, "onAdvertiseDataUpdated() - client_if=" + client_if
+                + ", status=" + status);
+        } finally {
+            mCallbackLatency.end("onAdvertiseDataUpdated", callbackStart);
+        }
     }
 
     // Callback when advertise data or scan response is set.
     void onAdvertiseDataSet(int status, int clientIf) {
-        if (DBG) Log.d(TAG, "onAdvertiseDataSet() - clientIf=" + clientIf
-            + ", status=" + status);
-        mAdvertiseManager.callbackDone(clientIf, status);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (DBG) Log.d(TAG, "onAdvertiseDataSet() - clientIf=" + clientIf
+                + ", status=" + status);
+            mAdvertiseManager.callbackDone(clientIf, status);
+        } finally {
+            mCallbackLatency.end("onAdvertiseDataSet", callbackStart);
+        }
     }
 
     // Callback when advertise instance is disabled
     void onAdvertiseInstanceDisabled(int status, int clientIf) throws RemoteException {
-        if (DBG) Log.d(TAG, "onAdvertiseInstanceDisabled() - clientIf=" + clientIf
-            + ", status=" + status);
-        ClientMap.App app = mClientMap.getById(clientIf);
-        if (app != null) {
-            Log.d(TAG, "Client app is not null!");
-            boolean isStart = false;
-            if (status == 0) {
-                app.callback.onMultiAdvertiseCallback(AdvertiseCallback.ADVERTISE_SUCCESS,
-                        isStart, null);
-            } else {
-                app.callback.onMultiAdvertiseCallback(
-                        AdvertiseCallback.ADVERTISE_FAILED_INTERNAL_ERROR, isStart, null);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (DBG) Log.d(TAG, "onAdvertiseInstanceDisabled() - clientIf=" + clientIf
+                + ", status=" + status);
+            ClientMap.App app = mClientMap.getById(clientIf);
+            if (app != null) {
+                Log.d(TAG, "Client app is not null!");
+                boolean isStart = false;
+                if (status == 0) {
+                    app.callback.onMultiAdvertiseCallback(AdvertiseCallback.ADVERTISE_SUCCESS,
+                            isStart, null);
+                } else {
+                    app.callback.onMultiAdvertiseCallback(
+                            AdvertiseCallback.ADVERTISE_FAILED_INTERNAL_ERROR, isStart, null);
+                }
             }
+        } finally {
+            mCallbackLatency.end("onAdvertiseInstanceDisabled", callbackStart);
         }
     }
 
     void onClientCongestion(int connId, boolean congested) throws RemoteException {
-        if (VDBG) Log.d(TAG, "onClientCongestion() - connId=" + connId + ", congested=" + congested);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (VDBG) Log.d(TAG, "onClientCongestion() - connId=" + connId + ", congested=" + congested);
 
-        ClientMap.App app = mClientMap.getByConnId(connId);
+            ClientMap.App app = mClientMap.getByConnId(connId);
 
-        if (app != null) {
-            app.isCongested = congested;
-            while(!app.isCongested) {
-                CallbackInfo callbackInfo = app.popQueuedCallback();
-                if (callbackInfo == null)  return;
-                app.callback.onCharacteristicWrite(callbackInfo.address,
-                        callbackInfo.status, callbackInfo.srvcType,
-                        callbackInfo.srvcInstId, new ParcelUuid(callbackInfo.srvcUuid),
-                        callbackInfo.charInstId, new ParcelUuid(callbackInfo.charUuid));
+            if (app != null) {
+                app.isCongested = congested;
+                while(!app.isCongested) {
+                    CallbackInfo callbackInfo = app.popQueuedCallback();
+                    if (callbackInfo == null) {
+                        return;
+                    }
+                    app.callback.onCharacteristicWrite(callbackInfo.address,
+                            callbackInfo.status, callbackInfo.srvcType,
+                            callbackInfo.srvcInstId, new ParcelUuid(callbackInfo.srvcUuid),
+                            callbackInfo.charInstId, new ParcelUuid(callbackInfo.charUuid));
+                }
             }
+        } finally {
+            mCallbackLatency.end("onClientCongestion", callbackStart);
         }
     }
 
@@ -1346,7 +1547,9 @@ public class GattService extends ProfileService {
         if (needsPrivilegedPermissionForScan(settings)) {
             enforcePrivilegedPermission();
         }
-        mScanManager.startScan(new ScanClient(appIf, isServer, settings, filters, storages));
+        ScanClient client = new ScanClient(appIf, isServer, settings, filters, storages);
+        client.appUid = Binder.getCallingUid();
+        mScanManager.startScan(client);
     }
 
     void flushPendingBatchResults(int clientIf, boolean isServer) {
@@ -1372,7 +1575,7 @@ public class GattService extends ProfileService {
 
         if (DBG) Log.d(TAG, "registerClient() - UUID=" + uuid);
         mClientMap.add(uuid, callback);
-        gattClientRegisterAppNative(uuid.getLeastSignificantBits(),
+        mNativeInterface.gattClientRegisterAppNative(uuid.getLeastSignificantBits(),
                                     uuid.getMostSignificantBits());
     }
 
@@ -1381,14 +1584,14 @@ public class GattService extends ProfileService {
 
         if (DBG) Log.d(TAG, "unregisterClient() - clientIf=" + clientIf);
         mClientMap.remove(clientIf);
-        gattClientUnregisterAppNative(clientIf);
+        mNativeInterface.gattClientUnregisterAppNative(clientIf);
     }
 
     void clientConnect(int clientIf, String address, boolean isDirect, int transport) {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
 
         if (DBG) Log.d(TAG, "clientConnect() - address=" + address + ", isDirect=" + isDirect);
-        gattClientConnectNative(clientIf, address, isDirect, transport);
+        mNativeInterface.gattClientConnectNative(clientIf, address, isDirect, transport);
     }
 
     void clientDisconnect(int clientIf, String address) {
@@ -1397,7 +1600,7 @@ public class GattService extends ProfileService {
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
         if (DBG) Log.d(TAG, "clientDisconnect() - address=" + address + ", connId=" + connId);
 
-        gattClientDisconnectNative(clientIf, address, connId != null ? connId : 0);
+        mNativeInterface.gattClientDisconnectNative(clientIf, address, connId != null ? connId : 0);
     }
 
     void startMultiAdvertising(int clientIf, AdvertiseData advertiseData,
@@ -1436,7 +1639,7 @@ public class GattService extends ProfileService {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
 
         if (DBG) Log.d(TAG, "refreshDevice() - address=" + address);
-        gattClientRefreshNative(clientIf, address);
+        mNativeInterface.gattClientRefreshNative(clientIf, address);
     }
 
     void discoverServices(int clientIf, String address) {
@@ -1446,7 +1649,7 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "discoverServices() - address=" + address + ", connId=" + connId);
 
         if (connId != null)
-            gattClientSearchServiceNative(connId, true, 0, 0);
+            mNativeInterface.gattClientSearchServiceNative(connId, true, 0, 0);
         else
             Log.e(TAG, "discoverServices() - No connection for " + address + "...");
     }
@@ -1461,7 +1664,7 @@ public class GattService extends ProfileService {
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
         if (connId != null)
-            gattClientReadCharacteristicNative(connId, srvcType,
+            mNativeInterface.gattClientReadCharacteristicNative(connId, srvcType,
                 srvcInstanceId, srvcUuid.getLeastSignificantBits(),
                 srvcUuid.getMostSignificantBits(), charInstanceId,
                 charUuid.getLeastSignificantBits(), charUuid.getMostSignificantBits(),
@@ -1483,7 +1686,7 @@ public class GattService extends ProfileService {
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
         if (connId != null)
-            gattClientWriteCharacteristicNative(connId, srvcType,
+            mNativeInterface.gattClientWriteCharacteristicNative(connId, srvcType,
                 srvcInstanceId, srvcUuid.getLeastSignificantBits(),
                 srvcUuid.getMostSignificantBits(), charInstanceId,
                 charUuid.getLeastSignificantBits(), charUuid.getMostSignificantBits(),
@@ -1504,7 +1707,7 @@ public class GattService extends ProfileService {
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
         if (connId != null)
-            gattClientReadDescriptorNative(connId, srvcType,
+            mNativeInterface.gattClientReadDescriptorNative(connId, srvcType,
                 srvcInstanceId,
                 srvcUuid.getLeastSignificantBits(), srvcUuid.getMostSignificantBits(),
                 charInstanceId,
@@ -1528,7 +1731,7 @@ public class GattService extends ProfileService {
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
         if (connId != null)
-            gattClientWriteDescriptorNative(connId, srvcType,
+            mNativeInterface.gattClientWriteDescriptorNative(connId, srvcType,
                 srvcInstanceId,
                 srvcUuid.getLeastSignificantBits(), srvcUuid.getMostSignificantBits(),
                 charInstanceId,
@@ -1555,7 +1758,7 @@ public class GattService extends ProfileService {
         mReliableQueue.remove(address);
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
-        if (connId != null) gattClientExecuteWriteNative(connId, execute);
+        if (connId != null) mNativeInterface.gattClientExecuteWriteNative(connId, execute);
     }
 
     void registerForNotification(int clientIf, String address, int srvcType,
@@ -1569,7 +1772,7 @@ public class GattService extends ProfileService {
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
         if (connId != null) {
-            gattClientRegisterForNotificationsNative(clientIf, address,
+            mNativeInterface.gattClientRegisterForNotificationsNative(clientIf, address,
                 srvcType, srvcInstanceId, srvcUuid.getLeastSignificantBits(),
                 srvcUuid.getMostSignificantBits(), charInstanceId,
                 charUuid.getLeastSignificantBits(), charUuid.getMostSignificantBits(),
@@ -1583,7 +1786,7 @@ public class GattService extends ProfileService {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
 
         if (DBG) Log.d(TAG, "readRemoteRssi() - address=" + address);
-        gattClientReadRemoteRssiNative(clientIf, address);
+        mNativeInterface.gattClientReadRemoteRssiNative(clientIf, address);
     }
 
     void configureMTU(int clientIf, String address, int mtu) {
@@ -1592,7 +1795,7 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "configureMTU() - address=" + address + " mtu=" + mtu);
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
         if (connId != null) {
-            gattClientConfigureMTUNative(connId, mtu);
+            mNativeInterface.gattClientConfigureMTUNative(connId, mtu);
         } else {
             Log.e(TAG, "configureMTU() - No connection for " + address + "...");
         }
@@ -1627,7 +1830,7 @@ public class GattService extends ProfileService {
 
         if (DBG) Log.d(TAG, "connectionParameterUpdate() - address=" + address
             + "params=" + connectionPriority + " interval=" + minInterval + "/" + maxInterval);
-        gattConnectionParameterUpdateNative(clientIf, address, minInterval, maxInterval,
+        mNativeInterface.gattConnectionParameterUpdateNative(clientIf, address, minInterval, maxInterval,
                                             latency, timeout);
     }
 
@@ -1637,152 +1840,208 @@ public class GattService extends ProfileService {
 
     void onServerRegistered(int status, int serverIf, long uuidLsb, long uuidMsb)
             throws RemoteException {
+        final long callbackStart = CallbackLatency.start();
+        try {
 
-        UUID uuid = new UUID(uuidMsb, uuidLsb);
-        if (DBG) Log.d(TAG, "onServerRegistered() - UUID=" + uuid + ", serverIf=" + serverIf);
-        ServerMap.App app = mServerMap.getByUuid(uuid);
-        if (app != null) {
-            app.id = serverIf;
-            app.linkToDeath(new ServerDeathRecipient(serverIf));
-            app.callback.onServerRegistered(status, serverIf);
+            UUID uuid = new UUID(uuidMsb, uuidLsb);
+            if (DBG) Log.d(TAG, "onServerRegistered() - UUID=" + uuid + ", serverIf=" + serverIf);
+            ServerMap.App app = mServerMap.getByUuid(uuid);
+            if (app != null) {
+                app.id = serverIf;
+                app.linkToDeath(new ServerDeathRecipient(serverIf));
+                app.callback.onServerRegistered(status, serverIf);
+            }
+        } finally {
+            mCallbackLatency.end("onServerRegistered", callbackStart);
         }
     }
 
     void onServiceAdded(int status, int serverIf, int srvcType, int srvcInstId,
                         long srvcUuidLsb, long srvcUuidMsb, int srvcHandle)
                         throws RemoteException {
-        UUID uuid = new UUID(srvcUuidMsb, srvcUuidLsb);
-        if (DBG) Log.d(TAG, "onServiceAdded() UUID=" + uuid + ", status=" + status
-            + ", handle=" + srvcHandle);
-        if (status == 0) {
-            mHandleMap.addService(serverIf, srvcHandle, uuid, srvcType, srvcInstId,
-                mAdvertisingServiceUuids.remove(uuid));
-        }
+        final long callbackStart = CallbackLatency.start();
+        try {
+            UUID uuid = new UUID(srvcUuidMsb, srvcUuidLsb);
+            if (DBG) Log.d(TAG, "onServiceAdded() UUID=" + uuid + ", status=" + status
+                + ", handle=" + srvcHandle);
+            if (status == 0) {
+                mHandleMap.addService(serverIf, srvcHandle, uuid, srvcType, srvcInstId,
+                    mAdvertisingServiceUuids.remove(uuid));
+            }
 
-        continueServiceDeclaration(serverIf, status, srvcHandle);
+            continueServiceDeclaration(serverIf, status, srvcHandle);
+        } finally {
+            mCallbackLatency.end("onServiceAdded", callbackStart);
+        }
     }
 
     void onIncludedServiceAdded(int status, int serverIf, int srvcHandle,
                                 int includedSrvcHandle) throws RemoteException {
-        if (DBG) Log.d(TAG, "onIncludedServiceAdded() status=" + status
-            + ", service=" + srvcHandle + ", included=" + includedSrvcHandle);
-        continueServiceDeclaration(serverIf, status, srvcHandle);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (DBG) Log.d(TAG, "onIncludedServiceAdded() status=" + status
+                + ", service=" + srvcHandle + ", included=" + includedSrvcHandle);
+            continueServiceDeclaration(serverIf, status, srvcHandle);
+        } finally {
+            mCallbackLatency.end("onIncludedServiceAdded", callbackStart);
+        }
     }
 
     void onCharacteristicAdded(int status, int serverIf,
                                long charUuidLsb, long charUuidMsb,
                                int srvcHandle, int charHandle)
                                throws RemoteException {
-            UUID uuid = new UUID(charUuidMsb, charUuidLsb);
-        if (DBG) Log.d(TAG, "onCharacteristicAdded() UUID=" + uuid + ", status=" + status
-            + ", srvcHandle=" + srvcHandle + ", charHandle=" + charHandle);
-        if (status == 0)
-            mHandleMap.addCharacteristic(serverIf, charHandle, uuid, srvcHandle);
-        continueServiceDeclaration(serverIf, status, srvcHandle);
+        final long callbackStart = CallbackLatency.start();
+        try {
+                UUID uuid = new UUID(charUuidMsb, charUuidLsb);
+            if (DBG) Log.d(TAG, "onCharacteristicAdded() UUID=" + uuid + ", status=" + status
+                + ", srvcHandle=" + srvcHandle + ", charHandle=" + charHandle);
+            if (status == 0)
+                mHandleMap.addCharacteristic(serverIf, charHandle, uuid, srvcHandle);
+            continueServiceDeclaration(serverIf, status, srvcHandle);
+        } finally {
+            mCallbackLatency.end("onCharacteristicAdded", callbackStart);
+        }
     }
 
     void onDescriptorAdded(int status, int serverIf,
                            long descrUuidLsb, long descrUuidMsb,
                            int srvcHandle, int descrHandle)
                            throws RemoteException {
-            UUID uuid = new UUID(descrUuidMsb, descrUuidLsb);
-        if (DBG) Log.d(TAG, "onDescriptorAdded() UUID=" + uuid + ", status=" + status
-            + ", srvcHandle=" + srvcHandle + ", descrHandle=" + descrHandle);
-        if (status == 0)
-            mHandleMap.addDescriptor(serverIf, descrHandle, uuid, srvcHandle);
-        continueServiceDeclaration(serverIf, status, srvcHandle);
+        final long callbackStart = CallbackLatency.start();
+        try {
+                UUID uuid = new UUID(descrUuidMsb, descrUuidLsb);
+            if (DBG) Log.d(TAG, "onDescriptorAdded() UUID=" + uuid + ", status=" + status
+                + ", srvcHandle=" + srvcHandle + ", descrHandle=" + descrHandle);
+            if (status == 0)
+                mHandleMap.addDescriptor(serverIf, descrHandle, uuid, srvcHandle);
+            continueServiceDeclaration(serverIf, status, srvcHandle);
+        } finally {
+            mCallbackLatency.end("onDescriptorAdded", callbackStart);
+        }
     }
 
     void onServiceStarted(int status, int serverIf, int srvcHandle)
             throws RemoteException {
-        if (DBG) Log.d(TAG, "onServiceStarted() srvcHandle=" + srvcHandle
-            + ", status=" + status);
-        if (status == 0)
-            mHandleMap.setStarted(serverIf, srvcHandle, true);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (DBG) Log.d(TAG, "onServiceStarted() srvcHandle=" + srvcHandle
+                + ", status=" + status);
+            if (status == 0)
+                mHandleMap.setStarted(serverIf, srvcHandle, true);
+        } finally {
+            mCallbackLatency.end("onServiceStarted", callbackStart);
+        }
     }
 
     void onServiceStopped(int status, int serverIf, int srvcHandle)
             throws RemoteException {
-        if (DBG) Log.d(TAG, "onServiceStopped() srvcHandle=" + srvcHandle
-            + ", status=" + status);
-        if (status == 0)
-            mHandleMap.setStarted(serverIf, srvcHandle, false);
-        stopNextService(serverIf, status);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (DBG) Log.d(TAG, "onServiceStopped() srvcHandle=" + srvcHandle
+                + ", status=" + status);
+            if (status == 0)
+                mHandleMap.setStarted(serverIf, srvcHandle, false);
+            stopNextService(serverIf, status);
+        } finally {
+            mCallbackLatency.end("onServiceStopped", callbackStart);
+        }
     }
 
     void onServiceDeleted(int status, int serverIf, int srvcHandle) {
-        if (DBG) Log.d(TAG, "onServiceDeleted() srvcHandle=" + srvcHandle
-            + ", status=" + status);
-        mHandleMap.deleteService(serverIf, srvcHandle);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (DBG) Log.d(TAG, "onServiceDeleted() srvcHandle=" + srvcHandle
+                + ", status=" + status);
+            mHandleMap.deleteService(serverIf, srvcHandle);
+        } finally {
+            mCallbackLatency.end("onServiceDeleted", callbackStart);
+        }
     }
 
     void onClientConnected(String address, boolean connected, int connId, int serverIf)
             throws RemoteException {
+        final long callbackStart = CallbackLatency.start();
+        try {
 
-        if (DBG) Log.d(TAG, "onConnected() connId=" + connId
-            + ", address=" + address + ", connected=" + connected);
+            if (DBG) Log.d(TAG, "onConnected() connId=" + connId
+                + ", address=" + address + ", connected=" + connected);
 
-        ServerMap.App app = mServerMap.getById(serverIf);
-        if (app == null) return;
+            ServerMap.App app = mServerMap.getById(serverIf);
+            if (app == null) {
+                return;
+            }
 
-        if (connected) {
-            mServerMap.addConnection(serverIf, connId, address);
-        } else {
-            mServerMap.removeConnection(serverIf, connId);
-        }
+            if (connected) {
+                mServerMap.addConnection(serverIf, connId, address);
+            } else {
+                mServerMap.removeConnection(serverIf, connId);
+            }
 
-        app.callback.onServerConnectionState((byte)0, serverIf, connected, address);
+            app.callback.onServerConnectionState((byte)0, serverIf, connected, address);
+        } finally {
+            mCallbackLatency.end("onClientConnected", callbackStart);
+        }
     }
 
     void onAttributeRead(String address, int connId, int transId,
                             int attrHandle, int offset, boolean isLong)
                             throws RemoteException {
-        if (VDBG) Log.d(TAG, "onAttributeRead() connId=" + connId
-            + ", address=" + address + ", handle=" + attrHandle
-            + ", requestId=" + transId + ", offset=" + offset);
-
-        HandleMap.Entry entry = mHandleMap.getByHandle(attrHandle);
-        if (entry == null) return;
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (VDBG) Log.d(TAG, "onAttributeRead() connId=" + connId
+                + ", address=" + address + ", handle=" + attrHandle
+                + ", requestId=" + transId + ", offset=" + offset);
+
+            HandleMap.Entry entry = mHandleMap.getByHandle(attrHandle);
+            if (entry == null) {
+                return;
+            }
 
-        mHandleMap.addRequest(transId, attrHandle);
+            mHandleMap.addRequest(transId, attrHandle);
 
-        ServerMap.App app = mServerMap.getById(entry.serverIf);
-        if (app == null) return;
+            ServerMap.App app = mServerMap.getById(entry.serverIf);
+            if (app == null) {
+                return;
+            }
 
-        switch(entry.type) {
-            case HandleMap.TYPE_CHARACTERISTIC:
-            {
-                HandleMap.Entry serviceEntry = mHandleMap.getByHandle(entry.serviceHandle);
-                if (null != serviceEntry) {
-                app.callback.onCharacteristicReadRequest(address, transId, offset, isLong,
-                    serviceEntry.serviceType, serviceEntry.instance,
-                    new ParcelUuid(serviceEntry.uuid), entry.instance,
-                    new ParcelUuid(entry.uuid));
-                }else {
-                    Log.d(TAG, "null == serviceEntry");
+            switch(entry.type) {
+                case HandleMap.TYPE_CHARACTERISTIC:
+                {
+                    HandleMap.Entry serviceEntry = mHandleMap.getByHandle(entry.serviceHandle);
+                    if (null != serviceEntry) {
+                    app.callback.onCharacteristicReadRequest(address, transId, offset, isLong,
+                        serviceEntry.serviceType, serviceEntry.instance,
+                        new ParcelUuid(serviceEntry.uuid), entry.instance,
+                        new ParcelUuid(entry.uuid));
+                    }else {
+                        Log.d(TAG, "null == serviceEntry");
+                    }
+                    break;
                 }
-                break;
-            }
 
-            case HandleMap.TYPE_DESCRIPTOR:
-            {
-                HandleMap.Entry serviceEntry = mHandleMap.getByHandle(entry.serviceHandle);
-                HandleMap.Entry charEntry = mHandleMap.getByHandle(entry.charHandle);
-                if (null != serviceEntry && null != charEntry) {
-                    app.callback.onDescriptorReadRequest(address, transId, offset, isLong,
-                    serviceEntry.serviceType, serviceEntry.instance,
-                    new ParcelUuid(serviceEntry.uuid), charEntry.instance,
-                    new ParcelUuid(charEntry.uuid),
-                    new ParcelUuid(entry.uuid));
-                } else {
-                 Log.d(TAG, "null == serviceEntry || null == charEntry");
+                case HandleMap.TYPE_DESCRIPTOR:
+                {
+                    HandleMap.Entry serviceEntry = mHandleMap.getByHandle(entry.serviceHandle);
+                    HandleMap.Entry charEntry = mHandleMap.getByHandle(entry.charHandle);
+                    if (null != serviceEntry && null != charEntry) {
+                        app.callback.onDescriptorReadRequest(address, transId, offset, isLong,
+                        serviceEntry.serviceType, serviceEntry.instance,
+                        new ParcelUuid(serviceEntry.uuid), charEntry.instance,
+                        new ParcelUuid(charEntry.uuid),
+                        new ParcelUuid(entry.uuid));
+                    } else {
+                     Log.d(TAG, "null == serviceEntry || null == charEntry");
+                    }
+                    break;
                 }
-                break;
-            }
 
-            default:
-                Log.e(TAG, "onAttributeRead() - Requested unknown attribute type.");
-                break;
+                default:
+                    Log.e(TAG, "onAttributeRead() - Requested unknown attribute type.");
+                    break;
+            }
+        } finally {
+            mCallbackLatency.end("onAttributeRead", callbackStart);
         }
     }
 
@@ -1791,116 +2050,164 @@ public class GattService extends ProfileService {
                             boolean needRsp, boolean isPrep,
                             byte[] data)
                             throws RemoteException {
-        if (VDBG) Log.d(TAG, "onAttributeWrite() connId=" + connId
-            + ", address=" + address + ", handle=" + attrHandle
-            + ", requestId=" + transId + ", isPrep=" + isPrep
-            + ", offset=" + offset);
-
-        HandleMap.Entry entry = mHandleMap.getByHandle(attrHandle);
-        if (entry == null) return;
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (VDBG) Log.d(TAG, "onAttributeWrite() connId=" + connId
+                + ", address=" + address + ", handle=" + attrHandle
+                + ", requestId=" + transId + ", isPrep=" + isPrep
+                + ", offset=" + offset);
+
+            HandleMap.Entry entry = mHandleMap.getByHandle(attrHandle);
+            if (entry == null) {
+                return;
+            }
 
-        mHandleMap.addRequest(transId, attrHandle);
+            mHandleMap.addRequest(transId, attrHandle);
 
-        ServerMap.App app = mServerMap.getById(entry.serverIf);
-        if (app == null) return;
+            ServerMap.App app = mServerMap.getById(entry.serverIf);
+            if (app == null) {
+                return;
+            }
 
-        switch(entry.type) {
-            case HandleMap.TYPE_CHARACTERISTIC:
-            {
-                HandleMap.Entry serviceEntry = mHandleMap.getByHandle(entry.serviceHandle);
-                if (null != serviceEntry) {
-                app.callback.onCharacteristicWriteRequest(address, transId,
-                            offset, length, isPrep, needRsp,
-                            serviceEntry.serviceType, serviceEntry.instance,
-                            new ParcelUuid(serviceEntry.uuid), entry.instance,
-                            new ParcelUuid(entry.uuid), data);
-                }else {
-                    Log.d(TAG, "null == serviceEntry");
+            switch(entry.type) {
+                case HandleMap.TYPE_CHARACTERISTIC:
+                {
+                    HandleMap.Entry serviceEntry = mHandleMap.getByHandle(entry.serviceHandle);
+                    if (null != serviceEntry) {
+                    app.callback.onCharacteristicWriteRequest(address, transId,
+                                offset, length, isPrep, needRsp,
+                                serviceEntry.serviceType, serviceEntry.instance,
+                                new ParcelUuid(serviceEntry.uuid), entry.instance,
+                                new ParcelUuid(entry.uuid), data);
+                    }else {
+                        Log.d(TAG, "null == serviceEntry");
+                    }
+                    break;
                 }
-                break;
-            }
 
-            case HandleMap.TYPE_DESCRIPTOR:
-            {
-                HandleMap.Entry serviceEntry = mHandleMap.getByHandle(entry.serviceHandle);
-                HandleMap.Entry charEntry = mHandleMap.getByHandle(entry.charHandle);
-                if (null != serviceEntry && null != charEntry) {
-                app.callback.onDescriptorWriteRequest(address, transId,
-                            offset, length, isPrep, needRsp,
-                            serviceEntry.serviceType, serviceEntry.instance,
-                            new ParcelUuid(serviceEntry.uuid), charEntry.instance,
-                            new ParcelUuid(charEntry.uuid),
-                            new ParcelUuid(entry.uuid), data);
-                } else {
-                    Log.d(TAG, "null == serviceEntry || null == charEntry");
+                case HandleMap.TYPE_DESCRIPTOR:
+                {
+                    HandleMap.Entry serviceEntry = mHandleMap.getByHandle(entry.serviceHandle);
+                    HandleMap.Entry charEntry = mHandleMap.getByHandle(entry.charHandle);
+                    if (null != serviceEntry && null != charEntry) {
+                    app.callback.onDescriptorWriteRequest(address, transId,
+                                offset, length, isPrep, needRsp,
+                                serviceEntry.serviceType, serviceEntry.instance,
+                                new ParcelUuid(serviceEntry.uuid), charEntry.instance,
+                                new ParcelUuid(charEntry.uuid),
+                                new ParcelUuid(entry.uuid), data);
+                    } else {
+                        Log.d(TAG, "null == serviceEntry || null == charEntry");
+                    }
+                    break;
                 }
-                break;
-            }
 
-            default:
-                Log.e(TAG, "onAttributeWrite() - Requested unknown attribute type.");
-                break;
+                default:
+                    Log.e(TAG, "onAttributeWrite() - Requested unknown attribute type.");
+                    break;
+            }
+        } finally {
+            mCallbackLatency.end("onAttributeWrite", callbackStart);
         }
     }
 
     void onExecuteWrite(String address, int connId, int transId, int execWrite)
             throws RemoteException {
-        if (DBG) Log.d(TAG, "onExecuteWrite() connId=" + connId
-            + ", address=" + address + ", transId=" + transId);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (DBG) Log.d(TAG, "onExecuteWrite() connId=" + connId
+                + ", address=" + address + ", transId=" + transId);
 
-        ServerMap.App app = mServerMap.getByConnId(connId);
-        if (app == null) return;
+            ServerMap.App app = mServerMap.getByConnId(connId);
+            if (app == null) {
+                return;
+            }
 
-        app.callback.onExecuteWrite(address, transId, execWrite == 1);
+            app.callback.onExecuteWrite(address, transId, execWrite == 1);
+        } finally {
+            mCallbackLatency.end("onExecuteWrite", callbackStart);
+        }
     }
 
     void onResponseSendCompleted(int status, int attrHandle) {
-        if (DBG) Log.d(TAG, "onResponseSendCompleted() handle=" + attrHandle);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (DBG) Log.d(TAG, "onResponseSendCompleted() handle=" + attrHandle);
+        } finally {
+            mCallbackLatency.end("onResponseSendCompleted", callbackStart);
+        }
     }
 
     void onNotificationSent(int connId, int status) throws RemoteException {
-        if (VDBG) Log.d(TAG, "onNotificationSent() connId=" + connId + ", status=" + status);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (VDBG) Log.d(TAG, "onNotificationSent() connId=" + connId + ", status=" + status);
 
-        String address = mServerMap.addressByConnId(connId);
-        if (address == null) return;
+            String address = mServerMap.addressByConnId(connId);
+            if (address == null) {
+                return;
+            }
 
-        ServerMap.App app = mServerMap.getByConnId(connId);
-        if (app == null) return;
+            ServerMap.App app = mServerMap.getByConnId(connId);
+            if (app == null) {
+                return;
+            }
 
-        if (!app.isCongested) {
-            app.callback.onNotificationSent(address, status);
-        } else {
-            if (status == BluetoothGatt.GATT_CONNECTION_CONGESTED) {
-                status = BluetoothGatt.GATT_SUCCESS;
+            if (!app.isCongested) {
+                app.callback.onNotificationSent(address, status);
+            } else {
+                if (status == BluetoothGatt.GATT_CONNECTION_CONGESTED) {
+                    status = BluetoothGatt.GATT_SUCCESS;
+                }
+                app.queueCallback(new CallbackInfo(address, status));
             }
-            app.queueCallback(new CallbackInfo(address, status));
+        } finally {
+            mCallbackLatency.end("onNotificationSent", callbackStart);
         }
     }
 
     void onServerCongestion(int connId, boolean congested) throws RemoteException {
-        if (DBG) Log.d(TAG, "onServerCongestion() - connId=" + connId + ", congested=" + congested);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (DBG) Log.d(TAG, "onServerCongestion() - connId=" + connId + ", congested=" + congested);
 
-        ServerMap.App app = mServerMap.getByConnId(connId);
-        if (app == null) return;
+            ServerMap.App app = mServerMap.getByConnId(connId);
+            if (app == null) {
+                return;
+            }
 
-        app.isCongested = congested;
-        while(!app.isCongested) {
-            CallbackInfo callbackInfo = app.popQueuedCallback();
-            if (callbackInfo == null) return;
-            app.callback.onNotificationSent(callbackInfo.address, callbackInfo.status);
+            app.isCongested = congested;
+            while(!app.isCongested) {
+                CallbackInfo callbackInfo = app.popQueuedCallback();
+                if (callbackInfo == null) {
+                    return;
+                }
+                app.callback.onNotificationSent(callbackInfo.address, callbackInfo.status);
+            }
+        } finally {
+            mCallbackLatency.end("onServerCongestion", callbackStart);
         }
     }
 
     void onMtuChanged(int connId, int mtu) throws RemoteException {
-        if (DBG) Log.d(TAG, "onMtuChanged() - connId=" + connId + ", mtu=" + mtu);
+        final long callbackStart = CallbackLatency.start();
+        try {
+            if (DBG) Log.d(TAG, "onMtuChanged() - connId=" + connId + ", mtu=" + mtu);
 
-        String address = mServerMap.addressByConnId(connId);
-        if (address == null) return;
+            String address = mServerMap.addressByConnId(connId);
+            if (address == null) {
+                return;
+            }
 
-        ServerMap.App app = mServerMap.getByConnId(connId);
-        if (app == null) return;
+            ServerMap.App app = mServerMap.getByConnId(connId);
+            if (app == null) {
+                return;
+            }
 
-        app.callback.onMtuChanged(address, mtu);
+            app.callback.onMtuChanged(address, mtu);
+        } finally {
+            mCallbackLatency.end("onMtuChanged", callbackStart);
+        }
     }
 
     /**************************************************************************
@@ -1912,7 +2219,7 @@ public class GattService extends ProfileService {
 
         if (DBG) Log.d(TAG, "registerServer() - UUID=" + uuid);
         mServerMap.add(uuid, callback);
-        gattServerRegisterAppNative(uuid.getLeastSignificantBits(),
+        mNativeInterface.gattServerRegisterAppNative(uuid.getLeastSignificantBits(),
                                     uuid.getMostSignificantBits());
     }
 
@@ -1924,14 +2231,14 @@ public class GattService extends ProfileService {
         deleteServices(serverIf);
 
         mServerMap.remove(serverIf);
-        gattServerUnregisterAppNative(serverIf);
+        mNativeInterface.gattServerUnregisterAppNative(serverIf);
     }
 
     void serverConnect(int serverIf, String address, boolean isDirect, int transport) {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
 
         if (DBG) Log.d(TAG, "serverConnect() - address=" + address);
-        gattServerConnectNative(serverIf, address, isDirect,transport);
+        mNativeInterface.gattServerConnectNative(serverIf, address, isDirect,transport);
     }
 
     void serverDisconnect(int serverIf, String address) {
@@ -1940,7 +2247,7 @@ public class GattService extends ProfileService {
         Integer connId = mServerMap.connIdByAddress(serverIf, address);
         if (DBG) Log.d(TAG, "serverDisconnect() - address=" + address + ", connId=" + connId);
 
-        gattServerDisconnectNative(serverIf, address, connId != null ? connId : 0);
+        mNativeInterface.gattServerDisconnectNative(serverIf, address, connId != null ? connId : 0);
     }
 
     void beginServiceDeclaration(int serverIf, int srvcType, int srvcInstanceId,
@@ -2021,7 +2328,7 @@ public class GattService extends ProfileService {
 
         int srvcHandle = mHandleMap.getServiceHandle(srvcUuid, srvcType, srvcInstanceId);
         if (srvcHandle == 0) return;
-        gattServerDeleteServiceNative(serverIf, srvcHandle);
+        mNativeInterface.gattServerDeleteServiceNative(serverIf, srvcHandle);
     }
 
     void clearServices(int serverIf) {
@@ -2043,7 +2350,7 @@ public class GattService extends ProfileService {
 
         Integer connId;
         if(null != (connId = mServerMap.connIdByAddress(serverIf, address))) {
-            gattServerSendResponseNative(serverIf, connId, requestId, (byte)status,
+            mNativeInterface.gattServerSendResponseNative(serverIf, connId, requestId, (byte)status,
                                      handle, offset, value, (byte)0);
         }
         mHandleMap.deleteRequest(requestId);
@@ -2066,9 +2373,9 @@ public class GattService extends ProfileService {
         Integer connId = mServerMap.connIdByAddress(serverIf, address);
         if (connId == null) return;
         if (confirm) {
-            gattServerSendIndicationNative(serverIf, charHandle, connId, value);
+            mNativeInterface.gattServerSendIndicationNative(serverIf, charHandle, connId, value);
         } else {
-            gattServerSendNotificationNative(serverIf, charHandle, connId, value);
+            mNativeInterface.gattServerSendNotificationNative(serverIf, charHandle, connId, value);
         }
     }
 
@@ -2085,7 +2392,7 @@ public class GattService extends ProfileService {
     }
 
     private int getDeviceType(BluetoothDevice device) {
-        int type = gattClientGetDeviceTypeNative(device.getAddress());
+        int type = mNativeInterface.gattClientGetDeviceTypeNative(device.getAddress());
         if (DBG) Log.d(TAG, "getDeviceType() - device=" + device
             + ", type=" + type);
         return type;
@@ -2125,11 +2432,11 @@ public class GattService extends ProfileService {
 
             if (svc.charUuidLsb == 0) {
                 // Characteristic is up next
-                gattClientGetCharacteristicNative(svc.connId, svc.srvcType,
+                mNativeInterface.gattClientGetCharacteristicNative(svc.connId, svc.srvcType,
                     svc.srvcInstId, svc.srvcUuidLsb, svc.srvcUuidMsb, 0, 0, 0);
             } else {
                 // Descriptor is up next
-                gattClientGetDescriptorNative(svc.connId, svc.srvcType,
+                mNativeInterface.gattClientGetDescriptorNative(svc.connId, svc.srvcType,
                     svc.srvcInstId, svc.srvcUuidLsb, svc.srvcUuidMsb,
                     svc.charInstId, svc.charUuidLsb, svc.charUuidMsb, 0, 0, 0);
             }
@@ -2162,7 +2469,7 @@ public class GattService extends ProfileService {
                         mAdvertisingServiceUuids.add(entry.uuid);
                     }
                     if (null != (serviceDeclaration = getPendingDeclaration())) {
-                        gattServerAddServiceNative(serverIf, entry.serviceType,
+                        mNativeInterface.gattServerAddServiceNative(serverIf, entry.serviceType,
                         entry.instance,
                         entry.uuid.getLeastSignificantBits(),
                         entry.uuid.getMostSignificantBits(),
@@ -2171,14 +2478,14 @@ public class GattService extends ProfileService {
                     break;
 
                 case ServiceDeclaration.TYPE_CHARACTERISTIC:
-                    gattServerAddCharacteristicNative(serverIf, srvcHandle,
+                    mNativeInterface.gattServerAddCharacteristicNative(serverIf, srvcHandle,
                         entry.uuid.getLeastSignificantBits(),
                         entry.uuid.getMostSignificantBits(),
                         entry.properties, entry.permissions);
                     break;
 
                 case ServiceDeclaration.TYPE_DESCRIPTOR:
-                    gattServerAddDescriptorNative(serverIf, srvcHandle,
+                    mNativeInterface.gattServerAddDescriptorNative(serverIf, srvcHandle,
                         entry.uuid.getLeastSignificantBits(),
                         entry.uuid.getMostSignificantBits(),
                         entry.permissions);
@@ -2189,7 +2496,7 @@ public class GattService extends ProfileService {
                     int inclSrvc = mHandleMap.getServiceHandle(entry.uuid,
                                             entry.serviceType, entry.instance);
                     if (inclSrvc != 0) {
-                        gattServerAddIncludedServiceNative(serverIf, srvcHandle,
+                        mNativeInterface.gattServerAddIncludedServiceNative(serverIf, srvcHandle,
                                                            inclSrvc);
                     } else {
                         finished = true;
@@ -2198,7 +2505,7 @@ public class GattService extends ProfileService {
                 }
             }
         } else {
-            gattServerStartServiceNative(serverIf, srvcHandle,
+            mNativeInterface.gattServerStartServiceNative(serverIf, srvcHandle,
                 (byte)BluetoothDevice.TRANSPORT_BREDR | BluetoothDevice.TRANSPORT_LE);
             finished = true;
         }
@@ -2236,7 +2543,7 @@ public class GattService extends ProfileService {
                     entry.started == false)
                         continue;
 
-                gattServerStopServiceNative(serverIf, entry.handle);
+                mNativeInterface.gattServerStopServiceNative(serverIf, entry.handle);
                 return;
             }
         }
@@ -2260,7 +2567,7 @@ public class GattService extends ProfileService {
 
         /* Now actually delete the services.... */
         for(Integer handle : handleList) {
-            gattServerDeleteServiceNative(serverIf, handle);
+            mNativeInterface.gattServerDeleteServiceNative(serverIf, handle);
         }
     }
 
@@ -2297,6 +2604,7 @@ public class GattService extends ProfileService {
     @Override
     public void dump(StringBuilder sb) {
         super.dump(sb);
+        BluetoothGattBinder.sCallStats.dump(sb);
         println(sb, "mAdvertisingServiceUuids:");
         for (UUID uuid : mAdvertisingServiceUuids) {
             println(sb, "  " + uuid);
@@ -2329,10 +2637,280 @@ public class GattService extends ProfileService {
                          int p1, int p2, int p3, int p4, int p5) {
         if (bda1 == null) bda1 = "00:00:00:00:00:00";
         if (uuid1 != null)
-            gattTestNative(command, uuid1.getLeastSignificantBits(),
+            mNativeInterface.gattTestNative(command, uuid1.getLeastSignificantBits(),
                        uuid1.getMostSignificantBits(), bda1, p1, p2, p3, p4, p5);
         else
-            gattTestNative(command, 0,0, bda1, p1, p2, p3, p4, p5);
+            mNativeInterface.gattTestNative(command, 0,0, bda1, p1, p2, p3, p4, p5);
+    }
+
+    private static NativeInterfaceFactory<GattService, GattNativeInterface> sNativeInterfaceFactory;
+    private GattNativeInterface mNativeInterface;
+
+    /**
+     * Replace the JNI layer of the instances created from now on, for tests.
+     * @param factory null to go back to JNI
+     */
+    @VisibleForTesting
+    static void setNativeInterfaceFactory(
+            NativeInterfaceFactory<GattService, GattNativeInterface> factory) {
+        sNativeInterfaceFactory = factory;
+    }
+
+    private GattNativeInterface createNativeInterface() {
+        if (sNativeInterfaceFactory != null) return sNativeInterfaceFactory.create(this);
+        return new JniNativeInterface();
+    }
+
+    /** The scan manager, which scans with its own native calls, null when stopped. */
+    @VisibleForTesting
+    ScanManager getScanManager() {
+        return mScanManager;
+    }
+
+    private class JniNativeInterface implements GattNativeInterface {
+        @Override
+        public void gattTestNative(int command, long uuid1_lsb, long uuid1_msb, String bda1, int p1,
+                int p2, int p3, int p4, int p5) {
+            GattService.this.gattTestNative(command, uuid1_lsb, uuid1_msb, bda1, p1, p2, p3, p4,
+                    p5);
+        }
+
+        @Override
+        public void initializeNative() {
+            GattService.this.initializeNative();
+        }
+
+        @Override
+        public void cleanupNative() {
+            GattService.this.cleanupNative();
+        }
+
+        @Override
+        public int gattClientGetDeviceTypeNative(String address) {
+            return GattService.this.gattClientGetDeviceTypeNative(address);
+        }
+
+        @Override
+        public void gattClientRegisterAppNative(long app_uuid_lsb, long app_uuid_msb) {
+            GattService.this.gattClientRegisterAppNative(app_uuid_lsb, app_uuid_msb);
+        }
+
+        @Override
+        public void gattClientUnregisterAppNative(int clientIf) {
+            GattService.this.gattClientUnregisterAppNative(clientIf);
+        }
+
+        @Override
+        public void gattClientConnectNative(int clientIf, String address, boolean isDirect,
+                int transport) {
+            GattService.this.gattClientConnectNative(clientIf, address, isDirect, transport);
+        }
+
+        @Override
+        public void gattClientDisconnectNative(int clientIf, String address, int conn_id) {
+            GattService.this.gattClientDisconnectNative(clientIf, address, conn_id);
+        }
+
+        @Override
+        public void gattClientRefreshNative(int clientIf, String address) {
+            GattService.this.gattClientRefreshNative(clientIf, address);
+        }
+
+        @Override
+        public void gattClientSearchServiceNative(int conn_id, boolean search_all,
+                long service_uuid_lsb, long service_uuid_msb) {
+            GattService.this.gattClientSearchServiceNative(conn_id, search_all, service_uuid_lsb,
+                    service_uuid_msb);
+        }
+
+        @Override
+        public void gattClientGetCharacteristicNative(int conn_id, int service_type,
+                int service_id_inst_id, long service_id_uuid_lsb, long service_id_uuid_msb,
+                int char_id_inst_id, long char_id_uuid_lsb, long char_id_uuid_msb) {
+            GattService.this.gattClientGetCharacteristicNative(conn_id, service_type,
+                    service_id_inst_id, service_id_uuid_lsb, service_id_uuid_msb, char_id_inst_id,
+                    char_id_uuid_lsb, char_id_uuid_msb);
+        }
+
+        @Override
+        public void gattClientGetDescriptorNative(int conn_id, int service_type,
+                int service_id_inst_id, long service_id_uuid_lsb, long service_id_uuid_msb,
+                int char_id_inst_id, long char_id_uuid_lsb, long char_id_uuid_msb,
+                int descr_id_inst_id, long descr_id_uuid_lsb, long descr_id_uuid_msb) {
+            GattService.this.gattClientGetDescriptorNative(conn_id, service_type,
+                    service_id_inst_id, service_id_uuid_lsb, service_id_uuid_msb, char_id_inst_id,
+                    char_id_uuid_lsb, char_id_uuid_msb, descr_id_inst_id, descr_id_uuid_lsb,
+                    descr_id_uuid_msb);
+        }
+
+        @Override
+        public void gattClientGetIncludedServiceNative(int conn_id, int service_type,
+                int service_id_inst_id, long service_id_uuid_lsb, long service_id_uuid_msb,
+                int incl_service_id_inst_id, int incl_service_type, long incl_service_id_uuid_lsb,
+                long incl_service_id_uuid_msb) {
+            GattService.this.gattClientGetIncludedServiceNative(conn_id, service_type,
+                    service_id_inst_id, service_id_uuid_lsb, service_id_uuid_msb,
+                    incl_service_id_inst_id, incl_service_type, incl_service_id_uuid_lsb,
+                    incl_service_id_uuid_msb);
+        }
+
+        @Override
+        public void gattClientReadCharacteristicNative(int conn_id, int service_type,
+                int service_id_inst_id, long service_id_uuid_lsb, long service_id_uuid_msb,
+                int char_id_inst_id, long char_id_uuid_lsb, long char_id_uuid_msb, int authReq) {
+            GattService.this.gattClientReadCharacteristicNative(conn_id, service_type,
+                    service_id_inst_id, service_id_uuid_lsb, service_id_uuid_msb, char_id_inst_id,
+                    char_id_uuid_lsb, char_id_uuid_msb, authReq);
+        }
+
+        @Override
+        public void gattClientReadDescriptorNative(int conn_id, int service_type,
+                int service_id_inst_id, long service_id_uuid_lsb, long service_id_uuid_msb,
+                int char_id_inst_id, long char_id_uuid_lsb, long char_id_uuid_msb,
+                int descr_id_inst_id, long descr_id_uuid_lsb, long descr_id_uuid_msb, int authReq) {
+            GattService.this.gattClientReadDescriptorNative(conn_id, service_type,
+                    service_id_inst_id, service_id_uuid_lsb, service_id_uuid_msb, char_id_inst_id,
+                    char_id_uuid_lsb, char_id_uuid_msb, descr_id_inst_id, descr_id_uuid_lsb,
+                    descr_id_uuid_msb, authReq);
+        }
+
+        @Override
+        public void gattClientWriteCharacteristicNative(int conn_id, int service_type,
+                int service_id_inst_id, long service_id_uuid_lsb, long service_id_uuid_msb,
+                int char_id_inst_id, long char_id_uuid_lsb, long char_id_uuid_msb, int write_type,
+                int auth_req, byte[] value) {
+            GattService.this.gattClientWriteCharacteristicNative(conn_id, service_type,
+                    service_id_inst_id, service_id_uuid_lsb, service_id_uuid_msb, char_id_inst_id,
+                    char_id_uuid_lsb, char_id_uuid_msb, write_type, auth_req, value);
+        }
+
+        @Override
+        public void gattClientWriteDescriptorNative(int conn_id, int service_type,
+                int service_id_inst_id, long service_id_uuid_lsb, long service_id_uuid_msb,
+                int char_id_inst_id, long char_id_uuid_lsb, long char_id_uuid_msb,
+                int descr_id_inst_id, long descr_id_uuid_lsb, long descr_id_uuid_msb,
+                int write_type, int auth_req, byte[] value) {
+            GattService.this.gattClientWriteDescriptorNative(conn_id, service_type,
+                    service_id_inst_id, service_id_uuid_lsb, service_id_uuid_msb, char_id_inst_id,
+                    char_id_uuid_lsb, char_id_uuid_msb, descr_id_inst_id, descr_id_uuid_lsb,
+                    descr_id_uuid_msb, write_type, auth_req, value);
+        }
+
+        @Override
+        public void gattClientExecuteWriteNative(int conn_id, boolean execute) {
+            GattService.this.gattClientExecuteWriteNative(conn_id, execute);
+        }
+
+        @Override
+        public void gattClientRegisterForNotificationsNative(int clientIf, String address,
+                int service_type, int service_id_inst_id, long service_id_uuid_lsb,
+                long service_id_uuid_msb, int char_id_inst_id, long char_id_uuid_lsb,
+                long char_id_uuid_msb, boolean enable) {
+            GattService.this.gattClientRegisterForNotificationsNative(clientIf, address,
+                    service_type, service_id_inst_id, service_id_uuid_lsb, service_id_uuid_msb,
+                    char_id_inst_id, char_id_uuid_lsb, char_id_uuid_msb, enable);
+        }
+
+        @Override
+        public void gattClientReadRemoteRssiNative(int clientIf, String address) {
+            GattService.this.gattClientReadRemoteRssiNative(clientIf, address);
+        }
+
+        @Override
+        public void gattClientConfigureMTUNative(int conn_id, int mtu) {
+            GattService.this.gattClientConfigureMTUNative(conn_id, mtu);
+        }
+
+        @Override
+        public void gattConnectionParameterUpdateNative(int client_if, String address,
+                int minInterval, int maxInterval, int latency, int timeout) {
+            GattService.this.gattConnectionParameterUpdateNative(client_if, address, minInterval,
+                    maxInterval, latency, timeout);
+        }
+
+        @Override
+        public void gattServerRegisterAppNative(long app_uuid_lsb, long app_uuid_msb) {
+            GattService.this.gattServerRegisterAppNative(app_uuid_lsb, app_uuid_msb);
+        }
+
+        @Override
+        public void gattServerUnregisterAppNative(int serverIf) {
+            GattService.this.gattServerUnregisterAppNative(serverIf);
+        }
+
+        @Override
+        public void gattServerConnectNative(int server_if, String address, boolean is_direct,
+                int transport) {
+            GattService.this.gattServerConnectNative(server_if, address, is_direct, transport);
+        }
+
+        @Override
+        public void gattServerDisconnectNative(int serverIf, String address, int conn_id) {
+            GattService.this.gattServerDisconnectNative(serverIf, address, conn_id);
+        }
+
+        @Override
+        public void gattServerAddServiceNative(int server_if, int service_type,
+                int service_id_inst_id, long service_id_uuid_lsb, long service_id_uuid_msb,
+                int num_handles) {
+            GattService.this.gattServerAddServiceNative(server_if, service_type, service_id_inst_id,
+                    service_id_uuid_lsb, service_id_uuid_msb, num_handles);
+        }
+
+        @Override
+        public void gattServerAddIncludedServiceNative(int server_if, int svc_handle,
+                int included_svc_handle) {
+            GattService.this.gattServerAddIncludedServiceNative(server_if, svc_handle,
+                    included_svc_handle);
+        }
+
+        @Override
+        public void gattServerAddCharacteristicNative(int server_if, int svc_handle,
+                long char_uuid_lsb, long char_uuid_msb, int properties, int permissions) {
+            GattService.this.gattServerAddCharacteristicNative(server_if, svc_handle, char_uuid_lsb,
+                    char_uuid_msb, properties, permissions);
+        }
+
+        @Override
+        public void gattServerAddDescriptorNative(int server_if, int svc_handle, long desc_uuid_lsb,
+                long desc_uuid_msb, int permissions) {
+            GattService.this.gattServerAddDescriptorNative(server_if, svc_handle, desc_uuid_lsb,
+                    desc_uuid_msb, permissions);
+        }
+
+        @Override
+        public void gattServerStartServiceNative(int server_if, int svc_handle, int transport) {
+            GattService.this.gattServerStartServiceNative(server_if, svc_handle, transport);
+        }
+
+        @Override
+        public void gattServerStopServiceNative(int server_if, int svc_handle) {
+            GattService.this.gattServerStopServiceNative(server_if, svc_handle);
+        }
+
+        @Override
+        public void gattServerDeleteServiceNative(int server_if, int svc_handle) {
+            GattService.this.gattServerDeleteServiceNative(server_if, svc_handle);
+        }
+
+        @Override
+        public void gattServerSendIndicationNative(int server_if, int attr_handle, int conn_id,
+                byte[] val) {
+            GattService.this.gattServerSendIndicationNative(server_if, attr_handle, conn_id, val);
+        }
+
+        @Override
+        public void gattServerSendNotificationNative(int server_if, int attr_handle, int conn_id,
+                byte[] val) {
+            GattService.this.gattServerSendNotificationNative(server_if, attr_handle, conn_id, val);
+        }
+
+        @Override
+        public void gattServerSendResponseNative(int server_if, int conn_id, int trans_id,
+                int status, int handle, int offset, byte[] val, int auth_req) {
+            GattService.this.gattServerSendResponseNative(server_if, conn_id, trans_id, status,
+                    handle, offset, val, auth_req);
+        }
     }
 
     private native void gattTestNative(int command,
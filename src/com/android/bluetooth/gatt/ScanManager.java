@@ -222,6 +222,7 @@ public class ScanManager {
                 mScanNative.startRegularScan(client);
                 mScanNative.configureRegularScanParams();
             }
+            reportScanClients();
         }
 
         void handleStopScan(ScanClient client) {
@@ -233,6 +234,7 @@ public class ScanManager {
             } else {
                 mScanNative.stopBatchScan(client);
             }
+            reportScanClients();
             if (client.appDied) {
                 logd("app died, unregister client - " + client.clientIf);
                 mService.unregisterClient(client.clientIf);
@@ -247,6 +249,17 @@ public class ScanManager {
             mScanNative.flushBatchResults(client.clientIf);
         }
 
+        // Lets the adapter attribute controller energy to the scanning clients
+        private void reportScanClients() {
+            AdapterService adapterService = AdapterService.getAdapterService();
+            if (adapterService == null) return;
+            int[] appUids = new int[mRegularScanClients.size() + mBatchClients.size()];
+            int i = 0;
+            for (ScanClient client : mRegularScanClients) appUids[i++] = client.appUid;
+            for (ScanClient client : mBatchClients) appUids[i++] = client.appUid;
+            adapterService.onLeScanClientsChanged(appUids);
+        }
+
         private boolean isBatchClient(ScanClient client) {
             if (client == null || client.settings == null) {
                 return false;
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hdp;
+
+/**
+ * Calls from {@link HealthService} into the native HDP interface.
+ */
+interface HealthNativeInterface {
+    void initializeNative();
+    void cleanupNative();
+    int registerHealthAppNative(int dataType, int role, String name, int channelType);
+    boolean unregisterHealthAppNative(int appId);
+    int connectChannelNative(byte[] btAddress, int appId);
+    boolean disconnectChannelNative(int channelId);
+}
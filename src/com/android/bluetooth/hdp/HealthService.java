@@ -26,18 +26,22 @@ import android.bluetooth.IBluetoothHealthCallback;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.IBinder.DeathRecipient;
 import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelFileDescriptor;
+import android.os.Parcel;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.util.Log;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.btservice.ProfileService.IProfileServiceBinder;
 import com.android.bluetooth.Utils;
+import com.android.bluetooth.util.BinderCallStats;
+import com.android.bluetooth.util.NativeInterfaceFactory;
+import com.android.bluetooth.util.SharedLooperPool;
+import com.android.internal.annotations.VisibleForTesting;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -90,11 +94,10 @@ public class HealthService extends ProfileService {
                                             AppInfo>());
         mHealthDevices = Collections.synchronizedMap(new HashMap<BluetoothDevice, Integer>());
 
-        HandlerThread thread = new HandlerThread("BluetoothHdpHandler");
-        thread.start();
-        Looper looper = thread.getLooper();
+        Looper looper = SharedLooperPool.acquire("BluetoothHdpHandler");
         mHandler = new HealthServiceMessageHandler(looper);
-        initializeNative();
+        mNativeInterface = createNativeInterface();
+        mNativeInterface.initializeNative();
         mNativeAvailable=true;
         return true;
     }
@@ -104,7 +107,7 @@ public class HealthService extends ProfileService {
             mHandler.removeCallbacksAndMessages(null);
             Looper looper = mHandler.getLooper();
             if (looper != null) {
-                looper.quit();
+                SharedLooperPool.release(looper, "BluetoothHdpHandler");
             }
         }
         cleanupApps();
@@ -128,7 +131,7 @@ public class HealthService extends ProfileService {
         mHandler = null;
         //Cleanup native
         if (mNativeAvailable) {
-            cleanupNative();
+            mNativeInterface.cleanupNative();
             mNativeAvailable=false;
         }
         if(mHealthChannels != null) {
@@ -163,7 +166,7 @@ public class HealthService extends ProfileService {
                     if (VDBG) log("register datatype: " + appConfig.getDataType() + " role: " +
                                  halRole + " name: " + appConfig.getName() + " channeltype: " +
                                  halChannelType);
-                    int appId = registerHealthAppNative(appConfig.getDataType(), halRole,
+                    int appId = mNativeInterface.registerHealthAppNative(appConfig.getDataType(), halRole,
                                                         appConfig.getName(), halChannelType);
                     if (appId == -1) {
                         callStatusCallback(appConfig,
@@ -195,7 +198,7 @@ public class HealthService extends ProfileService {
                         break;
                     }
                     int appId = appInfo.mAppId;
-                    if (!unregisterHealthAppNative(appId)) {
+                    if (!mNativeInterface.unregisterHealthAppNative(appId)) {
                         Log.e(TAG, "Failed to unregister application: id: " + appId);
                         callStatusCallback(appConfig,
                                            BluetoothHealth.APP_CONFIG_UNREGISTRATION_FAILURE);
@@ -212,7 +215,7 @@ public class HealthService extends ProfileService {
                         break;
                     }
                     int appId = appInfo.mAppId;
-                    chan.mChannelId = connectChannelNative(devAddr, appId);
+                    chan.mChannelId = mNativeInterface.connectChannelNative(devAddr, appId);
                     if (chan.mChannelId == -1) {
                         callHealthChannelCallback(chan.mConfig, chan.mDevice,
                                                   BluetoothHealth.STATE_CHANNEL_DISCONNECTING,
@@ -228,7 +231,7 @@ public class HealthService extends ProfileService {
                 case MESSAGE_DISCONNECT_CHANNEL:
                 {
                     HealthChannel chan = (HealthChannel) msg.obj;
-                    if (!disconnectChannelNative(chan.mChannelId)) {
+                    if (!mNativeInterface.disconnectChannelNative(chan.mChannelId)) {
                         callHealthChannelCallback(chan.mConfig, chan.mDevice,
                                                   BluetoothHealth.STATE_CHANNEL_DISCONNECTING,
                                                   BluetoothHealth.STATE_CHANNEL_CONNECTED,
@@ -331,7 +334,23 @@ public class HealthService extends ProfileService {
     /**
      * Handlers for incoming service calls
      */
-    private static class BluetoothHealthBinder extends IBluetoothHealth.Stub implements IProfileServiceBinder {
+    private static class BluetoothHealthBinder extends IBluetoothHealth.Stub
+            implements IProfileServiceBinder, BinderCallStats.Transactor {
+        private static final BinderCallStats sCallStats =
+                new BinderCallStats(IBluetoothHealth.Stub.class);
+
+        @Override
+        public boolean onTransact(int code, Parcel data, Parcel reply, int flags)
+                throws RemoteException {
+            return sCallStats.onTransact(this, code, data, reply, flags);
+        }
+
+        @Override
+        public boolean onTransactDirect(int code, Parcel data, Parcel reply, int flags)
+                throws RemoteException {
+            return super.onTransact(code, data, reply, flags);
+        }
+
         private HealthService mService;
 
         public BluetoothHealthBinder(HealthService svc) {
@@ -499,14 +518,14 @@ public class HealthService extends ProfileService {
         return devices;
     }
 
-    private void onAppRegistrationState(int appId, int state) {
+    void onAppRegistrationState(int appId, int state) {
         Message msg = mHandler.obtainMessage(MESSAGE_APP_REGISTRATION_CALLBACK);
         msg.arg1 = appId;
         msg.arg2 = state;
         mHandler.sendMessage(msg);
     }
 
-    private void onChannelStateChanged(int appId, byte[] addr, int cfgIndex,
+    void onChannelStateChanged(int appId, byte[] addr, int cfgIndex,
                                        int channelId, int state, FileDescriptor pfd) {
         Message msg = mHandler.obtainMessage(MESSAGE_CHANNEL_STATE_CALLBACK);
         ChannelStateEvent channelStateEvent = new ChannelStateEvent(appId, addr, cfgIndex,
@@ -816,6 +835,7 @@ public class HealthService extends ProfileService {
     @Override
     public void dump(StringBuilder sb) {
         super.dump(sb);
+        BluetoothHealthBinder.sCallStats.dump(sb);
         println(sb, "mHealthChannels:");
         for (HealthChannel channel : mHealthChannels) {
             println(sb, "  " + channel);
@@ -904,17 +924,17 @@ public class HealthService extends ProfileService {
 
     // Constants matching Hal header file bt_hl.h
     // bthl_app_reg_state_t
-    private static final int APP_REG_STATE_REG_SUCCESS = 0;
-    private static final int APP_REG_STATE_REG_FAILED = 1;
-    private static final int APP_REG_STATE_DEREG_SUCCESS = 2;
-    private static final int APP_REG_STATE_DEREG_FAILED = 3;
+    static final int APP_REG_STATE_REG_SUCCESS = 0;
+    static final int APP_REG_STATE_REG_FAILED = 1;
+    static final int APP_REG_STATE_DEREG_SUCCESS = 2;
+    static final int APP_REG_STATE_DEREG_FAILED = 3;
 
     // bthl_channel_state_t
-    private static final int CONN_STATE_CONNECTING = 0;
-    private static final int CONN_STATE_CONNECTED = 1;
-    private static final int CONN_STATE_DISCONNECTING = 2;
-    private static final int CONN_STATE_DISCONNECTED = 3;
-    private static final int CONN_STATE_DESTROYED = 4;
+    static final int CONN_STATE_CONNECTING = 0;
+    static final int CONN_STATE_CONNECTED = 1;
+    static final int CONN_STATE_DISCONNECTING = 2;
+    static final int CONN_STATE_DISCONNECTED = 3;
+    static final int CONN_STATE_DESTROYED = 4;
 
     // bthl_mdep_role_t
     private static final int MDEP_ROLE_SOURCE = 0;
@@ -925,6 +945,57 @@ public class HealthService extends ProfileService {
     private static final int CHANNEL_TYPE_STREAMING = 1;
     private static final int CHANNEL_TYPE_ANY =2;
 
+    private static NativeInterfaceFactory<HealthService, HealthNativeInterface>
+            sNativeInterfaceFactory;
+    private HealthNativeInterface mNativeInterface;
+
+    /**
+     * Replace the JNI layer of the instances created from now on, for tests.
+     * @param factory null to go back to JNI
+     */
+    @VisibleForTesting
+    static void setNativeInterfaceFactory(
+            NativeInterfaceFactory<HealthService, HealthNativeInterface> factory) {
+        sNativeInterfaceFactory = factory;
+    }
+
+    private HealthNativeInterface createNativeInterface() {
+        if (sNativeInterfaceFactory != null) return sNativeInterfaceFactory.create(this);
+        return new JniNativeInterface();
+    }
+
+    private class JniNativeInterface implements HealthNativeInterface {
+        @Override
+        public void initializeNative() {
+            HealthService.this.initializeNative();
+        }
+
+        @Override
+        public void cleanupNative() {
+            HealthService.this.cleanupNative();
+        }
+
+        @Override
+        public int registerHealthAppNative(int dataType, int role, String name, int channelType) {
+            return HealthService.this.registerHealthAppNative(dataType, role, name, channelType);
+        }
+
+        @Override
+        public boolean unregisterHealthAppNative(int appId) {
+            return HealthService.this.unregisterHealthAppNative(appId);
+        }
+
+        @Override
+        public int connectChannelNative(byte[] btAddress, int appId) {
+            return HealthService.this.connectChannelNative(btAddress, appId);
+        }
+
+        @Override
+        public boolean disconnectChannelNative(int channelId) {
+            return HealthService.this.disconnectChannelNative(channelId);
+        }
+    }
+
     private native static void classInitNative();
     private native void initializeNative();
     private native void cleanupNative();
@@ -175,7 +175,7 @@ public class AtPhonebook {
                 log("handleCscsCommand - Set Command");
                 String[] args = atString.split("=");
                 if (args.length < 2 || !(args[1] instanceof String)) {
-                    mStateMachine.atResponseCodeNative(atCommandResult,
+                    mStateMachine.atResponseCode(atCommandResult,
                            atCommandErrorCode, getByteAddress(device));
                     break;
                 }
@@ -195,8 +195,8 @@ public class AtPhonebook {
                 atCommandErrorCode = BluetoothCmeError.TEXT_HAS_INVALID_CHARS;
         }
         if (atCommandResponse != null)
-            mStateMachine.atResponseStringNative(atCommandResponse, getByteAddress(device));
-        mStateMachine.atResponseCodeNative(atCommandResult, atCommandErrorCode,
+            mStateMachine.atResponseString(atCommandResponse, getByteAddress(device));
+        mStateMachine.atResponseCode(atCommandResult, atCommandErrorCode,
                                          getByteAddress(device));
     }
 
@@ -214,9 +214,9 @@ public class AtPhonebook {
                     atCommandResponse = "+CPBS: \"SM\",0," + getMaxPhoneBookSize(0);
                     atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
                     if (atCommandResponse != null)
-                        mStateMachine.atResponseStringNative(atCommandResponse,
+                        mStateMachine.atResponseString(atCommandResponse,
                                              getByteAddress(device));
-                    mStateMachine.atResponseCodeNative(atCommandResult,
+                    mStateMachine.atResponseCode(atCommandResult,
                          atCommandErrorCode, getByteAddress(device));
                     return;
                 }
@@ -261,8 +261,8 @@ public class AtPhonebook {
                 atCommandErrorCode = BluetoothCmeError.TEXT_HAS_INVALID_CHARS;
         }
         if (atCommandResponse != null)
-            mStateMachine.atResponseStringNative(atCommandResponse, getByteAddress(device));
-        mStateMachine.atResponseCodeNative(atCommandResult, atCommandErrorCode,
+            mStateMachine.atResponseString(atCommandResponse, getByteAddress(device));
+        mStateMachine.atResponseCode(atCommandResult, atCommandErrorCode,
                                              getByteAddress(device));
     }
 
@@ -286,7 +286,7 @@ public class AtPhonebook {
                     PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true); //false);
                     if (pbr == null) {
                         atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_ALLOWED;
-                        mStateMachine.atResponseCodeNative(atCommandResult,
+                        mStateMachine.atResponseCode(atCommandResult,
                            atCommandErrorCode, getByteAddress(remoteDevice));
                         break;
                     }
@@ -302,9 +302,9 @@ public class AtPhonebook {
                 atCommandResponse = "+CPBR: (1-" + size + "),30,30";
                 atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
                 if (atCommandResponse != null)
-                    mStateMachine.atResponseStringNative(atCommandResponse,
+                    mStateMachine.atResponseString(atCommandResponse,
                                          getByteAddress(remoteDevice));
-                mStateMachine.atResponseCodeNative(atCommandResult, atCommandErrorCode,
+                mStateMachine.atResponseCode(atCommandResult, atCommandErrorCode,
                                          getByteAddress(remoteDevice));
                 break;
             // Read PhoneBook Entries
@@ -316,7 +316,7 @@ public class AtPhonebook {
                 if (mCpbrIndex1 != -1) {
                    /* handling a CPBR at the moment, reject this CPBR command */
                    atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_ALLOWED;
-                   mStateMachine.atResponseCodeNative(atCommandResult, atCommandErrorCode,
+                   mStateMachine.atResponseCode(atCommandResult, atCommandErrorCode,
                                          getByteAddress(remoteDevice));
                    break;
                 }
@@ -324,7 +324,7 @@ public class AtPhonebook {
                 int index1;
                 int index2;
                 if ((atString.split("=")).length < 2) {
-                    mStateMachine.atResponseCodeNative(atCommandResult, atCommandErrorCode,
+                    mStateMachine.atResponseCode(atCommandResult, atCommandErrorCode,
                                          getByteAddress(remoteDevice));
                     break;
                 }
@@ -343,7 +343,7 @@ public class AtPhonebook {
                 catch (Exception e) {
                     log("handleCpbrCommand - exception - invalid chars: " + e.toString());
                     atCommandErrorCode = BluetoothCmeError.TEXT_HAS_INVALID_CHARS;
-                    mStateMachine.atResponseCodeNative(atCommandResult, atCommandErrorCode,
+                    mStateMachine.atResponseCode(atCommandResult, atCommandErrorCode,
                                          getByteAddress(remoteDevice));
                     break;
                 }
@@ -356,13 +356,13 @@ public class AtPhonebook {
                     mCheckingAccessPermission = false;
                     atCommandResult = processCpbrCommand(remoteDevice);
                     mCpbrIndex1 = mCpbrIndex2 = -1;
-                    mStateMachine.atResponseCodeNative(atCommandResult, atCommandErrorCode,
+                    mStateMachine.atResponseCode(atCommandResult, atCommandErrorCode,
                                          getByteAddress(remoteDevice));
                     break;
                 } else if (permission == BluetoothDevice.ACCESS_REJECTED) {
                     mCheckingAccessPermission = false;
                     mCpbrIndex1 = mCpbrIndex2 = -1;
-                    mStateMachine.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR,
+                    mStateMachine.atResponseCode(HeadsetHalConstants.AT_RESPONSE_ERROR,
                             BluetoothCmeError.AG_FAILURE, getByteAddress(remoteDevice));
                 }
                 // If checkAccessPermission(remoteDevice) has returned
@@ -374,7 +374,7 @@ public class AtPhonebook {
             default:
                 log("handleCpbrCommand - invalid chars");
                 atCommandErrorCode = BluetoothCmeError.TEXT_HAS_INVALID_CHARS;
-                mStateMachine.atResponseCodeNative(atCommandResult, atCommandErrorCode,
+                mStateMachine.atResponseCode(atCommandResult, atCommandErrorCode,
                         getByteAddress(remoteDevice));
         }
     }
@@ -581,7 +581,7 @@ public class AtPhonebook {
             record = record + "\r\n\r\n";
             atCommandResponse = record;
             log("processCpbrCommand - atCommandResponse = "+atCommandResponse);
-            mStateMachine.atResponseStringNative(atCommandResponse, getByteAddress(device));
+            mStateMachine.atResponseString(atCommandResponse, getByteAddress(device));
             if (!pbr.cursor.moveToNext()) {
                 break;
             }
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hfp;
+
+/**
+ * Calls from {@link HeadsetStateMachine} into the native HFP audio gateway
+ * interface.
+ */
+interface HeadsetNativeInterface {
+    boolean atResponseCodeNative(int responseCode, int errorCode, byte[] address);
+    boolean atResponseStringNative(String responseString, byte[] address);
+    void initializeNative(int max_hf_clients);
+    void initializeFeaturesNative(int feature_bitmask);
+    void cleanupNative();
+    boolean connectHfpNative(byte[] address);
+    boolean disconnectHfpNative(byte[] address);
+    boolean connectAudioNative(byte[] address);
+    boolean disconnectAudioNative(byte[] address);
+    boolean startVoiceRecognitionNative(byte[] address);
+    boolean stopVoiceRecognitionNative(byte[] address);
+    boolean setVolumeNative(int volumeType, int volume, byte[] address);
+    boolean cindResponseNative(int service, int numActive, int numHeld, int callState, int signal,
+            int roam, int batteryCharge, byte[] address);
+    boolean notifyDeviceStatusNative(int networkState, int serviceType, int signal,
+            int batteryCharge);
+    boolean clccResponseNative(int index, int dir, int status, int mode, boolean mpty,
+            String number, int type, byte[] address);
+    boolean copsResponseNative(String operatorName, byte[] address);
+    boolean phoneStateChangeNative(int numActive, int numHeld, int callState, String number,
+            int type);
+    boolean configureWBSNative(byte[] address, int condec_config);
+    int getRemoteFeaturesNative(byte[] address);
+}
@@ -52,6 +52,7 @@ import android.content.ActivityNotFoundException;
 import android.media.AudioManager;
 import android.net.Uri;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
@@ -64,6 +65,11 @@ import android.util.Log;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.btservice.ProfileService;
+import com.android.bluetooth.util.CallbackLatency;
+import com.android.bluetooth.util.EventTrace;
+import com.android.bluetooth.util.NativeInterfaceFactory;
+import com.android.bluetooth.util.SharedLooperPool;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.IState;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
@@ -201,6 +207,7 @@ final class HeadsetStateMachine extends StateMachine {
     private BluetoothAdapter mAdapter;
     private IBluetoothHeadsetPhone mPhoneProxy;
     private boolean mNativeAvailable;
+    private final CallbackLatency mCallbackLatency = new CallbackLatency();
 
     private boolean mAudioFocused;
     private boolean mA2dpSuspend;
@@ -258,7 +265,7 @@ final class HeadsetStateMachine extends StateMachine {
     }
 
     private HeadsetStateMachine(HeadsetService context) {
-        super(TAG);
+        super(TAG, SharedLooperPool.acquire(TAG));
         mService = context;
         mVoiceRecognitionStarted = false;
         mWaitingForVoiceRecognition = false;
@@ -284,7 +291,8 @@ final class HeadsetStateMachine extends StateMachine {
         if (!max_hfp_clients.isEmpty() && (Integer.parseInt(max_hfp_clients) == 2))
             max_hf_connections = Integer.parseInt(max_hfp_clients);
         Log.d(TAG, "max_hf_connections = " + max_hf_connections);
-        initializeNative(max_hf_connections);
+        mNativeInterface = createNativeInterface();
+        mNativeInterface.initializeNative(max_hf_connections);
         mNativeAvailable=true;
 
         mLocalBrsf = BRSF_AG_THREE_WAY_CALLING |
@@ -314,7 +322,7 @@ final class HeadsetStateMachine extends StateMachine {
         } else {
             if (DBG) Log.d(TAG, "BRSF_AG_CODEC_NEGOTIATION is disabled");
         }
-        initializeFeaturesNative(mLocalBrsf);
+        mNativeInterface.initializeFeaturesNative(mLocalBrsf);
         addState(mDisconnected);
         addState(mPending);
         addState(mConnected);
@@ -336,7 +344,9 @@ final class HeadsetStateMachine extends StateMachine {
 
     public void doQuit() {
         log("quit");
+        Looper looper = getHandler().getLooper();
         quitNow();
+        SharedLooperPool.release(looper, TAG);
     }
 
     public void cleanup() {
@@ -368,12 +378,13 @@ final class HeadsetStateMachine extends StateMachine {
             mConnectedDevicesList.clear();
         }
         if (mNativeAvailable) {
-            cleanupNative();
+            mNativeInterface.cleanupNative();
             mNativeAvailable = false;
         }
     }
 
     public void dump(StringBuilder sb) {
+        mCallbackLatency.dump(sb);
         ProfileService.println(sb, "mCurrentDevice: " + mCurrentDevice);
         ProfileService.println(sb, "mTargetDevice: " + mTargetDevice);
         ProfileService.println(sb, "mIncomingDevice: " + mIncomingDevice);
@@ -424,7 +435,7 @@ final class HeadsetStateMachine extends StateMachine {
                         broadcastConnectionState(device, BluetoothProfile.STATE_CONNECTING,
                                    BluetoothProfile.STATE_DISCONNECTED);
 
-                        if (!connectHfpNative(getByteAddress(device)) ) {
+                        if (!mNativeInterface.connectHfpNative(getByteAddress(device)) ) {
                             broadcastConnectionState(device,
                                        BluetoothProfile.STATE_DISCONNECTED,
                                        BluetoothProfile.STATE_CONNECTING);
@@ -525,7 +536,7 @@ final class HeadsetStateMachine extends StateMachine {
                     Log.d(TAG, "Incoming Hf rejected. priority=" + mService.getPriority(device)+
                               " bondState=" + device.getBondState());
                     //reject the connection and stay in Disconnected state itself
-                    disconnectHfpNative(getByteAddress(device));
+                    mNativeInterface.disconnectHfpNative(getByteAddress(device));
                     // the other profile connection should be initiated
                     AdapterService adapterService = AdapterService.getAdapterService();
                     if (adapterService != null) {
@@ -562,7 +573,7 @@ final class HeadsetStateMachine extends StateMachine {
                     //reject the connection and stay in Disconnected state itself
                     Log.d(TAG, "Incoming Hf rejected. priority=" + mService.getPriority(device) +
                               " bondState=" + device.getBondState());
-                    disconnectHfpNative(getByteAddress(device));
+                    mNativeInterface.disconnectHfpNative(getByteAddress(device));
                     // the other profile connection should be initiated
                     AdapterService adapterService = AdapterService.getAdapterService();
                     if (adapterService != null) {
@@ -671,7 +682,7 @@ final class HeadsetStateMachine extends StateMachine {
                         }
 
                         if (mTargetDevice != null) {
-                            if (!connectHfpNative(getByteAddress(mTargetDevice))) {
+                            if (!mNativeInterface.connectHfpNative(getByteAddress(mTargetDevice))) {
                                 broadcastConnectionState(mTargetDevice,
                                                          BluetoothProfile.STATE_DISCONNECTED,
                                                          BluetoothProfile.STATE_CONNECTING);
@@ -784,7 +795,7 @@ final class HeadsetStateMachine extends StateMachine {
                             Log.d(TAG, "Incoming Hf rejected. priority=" +
                                 mService.getPriority(device) + " bondState=" +
                                                device.getBondState());
-                            disconnectHfpNative(getByteAddress(device));
+                            mNativeInterface.disconnectHfpNative(getByteAddress(device));
                             // the other profile connection should be initiated
                             AdapterService adapterService = AdapterService.getAdapterService();
                             if (adapterService != null) {
@@ -906,7 +917,7 @@ final class HeadsetStateMachine extends StateMachine {
                             broadcastConnectionState(device, BluetoothProfile.STATE_CONNECTING,
                                         BluetoothProfile.STATE_DISCONNECTED);
 
-                            if (!disconnectHfpNative(getByteAddress(DisconnectConnectedDevice))) {
+                            if (!mNativeInterface.disconnectHfpNative(getByteAddress(DisconnectConnectedDevice))) {
                                 broadcastConnectionState(device,
                                             BluetoothProfile.STATE_DISCONNECTED,
                                             BluetoothProfile.STATE_CONNECTING);
@@ -930,7 +941,7 @@ final class HeadsetStateMachine extends StateMachine {
                         } else if (mConnectedDevicesList.size() < max_hf_connections) {
                             broadcastConnectionState(device, BluetoothProfile.STATE_CONNECTING,
                                 BluetoothProfile.STATE_DISCONNECTED);
-                            if (!connectHfpNative(getByteAddress(device))) {
+                            if (!mNativeInterface.connectHfpNative(getByteAddress(device))) {
                                 broadcastConnectionState(device,
                                         BluetoothProfile.STATE_DISCONNECTED,
                                         BluetoothProfile.STATE_CONNECTING);
@@ -964,7 +975,7 @@ final class HeadsetStateMachine extends StateMachine {
                     }
                     broadcastConnectionState(device, BluetoothProfile.STATE_DISCONNECTING,
                                    BluetoothProfile.STATE_CONNECTED);
-                    if (!disconnectHfpNative(getByteAddress(device))) {
+                    if (!mNativeInterface.disconnectHfpNative(getByteAddress(device))) {
                         broadcastConnectionState(device, BluetoothProfile.STATE_CONNECTED,
                                        BluetoothProfile.STATE_DISCONNECTING);
                         break;
@@ -988,7 +999,7 @@ final class HeadsetStateMachine extends StateMachine {
                         device = mActiveScoDevice;
                     }
                     log("connectAudioNative in Connected for device = " + device);
-                    connectAudioNative(getByteAddress(device));
+                    mNativeInterface.connectAudioNative(getByteAddress(device));
                 }
                     break;
                 case VOICE_RECOGNITION_START:
@@ -1012,7 +1023,7 @@ final class HeadsetStateMachine extends StateMachine {
                 case CLCC_RSP_TIMEOUT:
                 {
                     BluetoothDevice device = (BluetoothDevice) message.obj;
-                    clccResponseNative(0, 0, 0, 0, false, "", 0, getByteAddress(device));
+                    mNativeInterface.clccResponseNative(0, 0, 0, 0, false, "", 0, getByteAddress(device));
                 }
                     break;
                 case SEND_VENDOR_SPECIFIC_RESULT_CODE:
@@ -1024,7 +1035,7 @@ final class HeadsetStateMachine extends StateMachine {
                     BluetoothDevice device = (BluetoothDevice) message.obj;
                     if (mDialingOut) {
                         mDialingOut= false;
-                        atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR,
+                        mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR,
                                                    0, getByteAddress(device));
                     }
                 }
@@ -1038,13 +1049,13 @@ final class HeadsetStateMachine extends StateMachine {
                 case ENABLE_WBS:
                 {
                     BluetoothDevice device = (BluetoothDevice) message.obj;
-                    configureWBSNative(getByteAddress(device),WBS_CODEC);
+                    mNativeInterface.configureWBSNative(getByteAddress(device),WBS_CODEC);
                 }
                     break;
                 case DISABLE_WBS:
                 {
                     BluetoothDevice device = (BluetoothDevice) message.obj;
-                    configureWBSNative(getByteAddress(device),NBS_CODEC);
+                    mNativeInterface.configureWBSNative(getByteAddress(device),NBS_CODEC);
                 }
                     break;
                 case UPDATE_A2DP_PLAY_STATE:
@@ -1060,7 +1071,7 @@ final class HeadsetStateMachine extends StateMachine {
                         device = (BluetoothDevice) message.obj;
                         mWaitingForVoiceRecognition = false;
                         Log.e(TAG, "Timeout waiting for voice recognition to start");
-                        atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR,
+                        mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR,
                                                    0, getByteAddress(device));
                     }
                 }
@@ -1174,7 +1185,7 @@ final class HeadsetStateMachine extends StateMachine {
                     }
                     break;
                 case HeadsetHalConstants.CONNECTION_STATE_SLC_CONNECTED:
-                    int RemoteBrsf = getRemoteFeaturesNative(getByteAddress(device));
+                    int RemoteBrsf = mNativeInterface.getRemoteFeaturesNative(getByteAddress(device));
                     Log.d(TAG, "Remote Brsf: " + RemoteBrsf + " for device: " + device);
                     mHeadsetBrsf.put(device, RemoteBrsf);
                     if (mRetryConnect.containsKey(device)) {
@@ -1211,7 +1222,7 @@ final class HeadsetStateMachine extends StateMachine {
                         Log.d(TAG, "Incoming Hf rejected. priority=" +
                                mService.getPriority(device) + " bondState=" +
                                         device.getBondState());
-                        disconnectHfpNative(getByteAddress(device));
+                        mNativeInterface.disconnectHfpNative(getByteAddress(device));
                         // the other profile connection should be initiated
                         AdapterService adapterService = AdapterService.getAdapterService();
                         if (adapterService != null) {
@@ -1237,7 +1248,7 @@ final class HeadsetStateMachine extends StateMachine {
                 case HeadsetHalConstants.AUDIO_STATE_CONNECTED:
                     if (!isScoAcceptable()) {
                         Log.e(TAG,"Audio Connected without any listener");
-                        disconnectAudioNative(getByteAddress(device));
+                        mNativeInterface.disconnectAudioNative(getByteAddress(device));
                         break;
                     }
 
@@ -1342,7 +1353,7 @@ final class HeadsetStateMachine extends StateMachine {
                     if (max_hf_connections == 1) {
                         deferMessage(obtainMessage(DISCONNECT, mCurrentDevice));
                         deferMessage(obtainMessage(CONNECT, device));
-                        if (disconnectAudioNative(getByteAddress(mCurrentDevice))) {
+                        if (mNativeInterface.disconnectAudioNative(getByteAddress(mCurrentDevice))) {
                             Log.d(TAG, "Disconnecting SCO audio for device = " + mCurrentDevice);
                         } else {
                             Log.e(TAG, "disconnectAudioNative failed");
@@ -1372,7 +1383,7 @@ final class HeadsetStateMachine extends StateMachine {
                             broadcastConnectionState(device, BluetoothProfile.STATE_CONNECTING,
                                        BluetoothProfile.STATE_DISCONNECTED);
 
-                            if (!disconnectHfpNative(getByteAddress(DisconnectConnectedDevice))) {
+                            if (!mNativeInterface.disconnectHfpNative(getByteAddress(DisconnectConnectedDevice))) {
                                 broadcastConnectionState(device,
                                                BluetoothProfile.STATE_DISCONNECTED,
                                                BluetoothProfile.STATE_CONNECTING);
@@ -1392,7 +1403,7 @@ final class HeadsetStateMachine extends StateMachine {
                         } else if(mConnectedDevicesList.size() < max_hf_connections) {
                             broadcastConnectionState(device, BluetoothProfile.STATE_CONNECTING,
                             BluetoothProfile.STATE_DISCONNECTED);
-                            if (!connectHfpNative(getByteAddress(device))) {
+                            if (!mNativeInterface.connectHfpNative(getByteAddress(device))) {
                                 broadcastConnectionState(device,
                                         BluetoothProfile.STATE_DISCONNECTED,
                                         BluetoothProfile.STATE_CONNECTING);
@@ -1434,7 +1445,7 @@ final class HeadsetStateMachine extends StateMachine {
                                             "is active SCO device");
                         deferMessage(obtainMessage(DISCONNECT, message.obj));
                         // Disconnect BT SCO first
-                        if (disconnectAudioNative(getByteAddress(mActiveScoDevice))) {
+                        if (mNativeInterface.disconnectAudioNative(getByteAddress(mActiveScoDevice))) {
                             log("Disconnecting SCO audio");
                         } else {
                             // if disconnect BT SCO failed, transition to mConnected state
@@ -1448,7 +1459,7 @@ final class HeadsetStateMachine extends StateMachine {
                         broadcastConnectionState(device, BluetoothProfile.STATE_DISCONNECTING,
                                    BluetoothProfile.STATE_CONNECTED);
                         // Should be still in AudioOn state
-                        if (!disconnectHfpNative(getByteAddress(device))) {
+                        if (!mNativeInterface.disconnectHfpNative(getByteAddress(device))) {
                             Log.w(TAG, "AudioOn, disconnect device failed");
                             broadcastConnectionState(device, BluetoothProfile.STATE_CONNECTED,
                                        BluetoothProfile.STATE_DISCONNECTING);
@@ -1465,7 +1476,7 @@ final class HeadsetStateMachine extends StateMachine {
                 break;
                 case DISCONNECT_AUDIO:
                     if (mActiveScoDevice != null) {
-                        if (disconnectAudioNative(getByteAddress(mActiveScoDevice))) {
+                        if (mNativeInterface.disconnectAudioNative(getByteAddress(mActiveScoDevice))) {
                             log("Disconnecting SCO audio for device = " +
                                                  mActiveScoDevice);
                         } else {
@@ -1500,7 +1511,7 @@ final class HeadsetStateMachine extends StateMachine {
                 case CLCC_RSP_TIMEOUT:
                 {
                     BluetoothDevice device = (BluetoothDevice) message.obj;
-                    clccResponseNative(0, 0, 0, 0, false, "", 0, getByteAddress(device));
+                    mNativeInterface.clccResponseNative(0, 0, 0, 0, false, "", 0, getByteAddress(device));
                 }
                     break;
                 case SEND_VENDOR_SPECIFIC_RESULT_CODE:
@@ -1525,7 +1536,7 @@ final class HeadsetStateMachine extends StateMachine {
                     if (mDialingOut) {
                         BluetoothDevice device = (BluetoothDevice)message.obj;
                         mDialingOut= false;
-                        atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR,
+                        mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR,
                                                0, getByteAddress(device));
                     }
                 }
@@ -1533,13 +1544,13 @@ final class HeadsetStateMachine extends StateMachine {
                 case ENABLE_WBS:
                 {
                     BluetoothDevice device = (BluetoothDevice) message.obj;
-                    configureWBSNative(getByteAddress(device),WBS_CODEC);
+                    mNativeInterface.configureWBSNative(getByteAddress(device),WBS_CODEC);
                 }
                     break;
                 case DISABLE_WBS:
                 {
                     BluetoothDevice device = (BluetoothDevice) message.obj;
-                    configureWBSNative(getByteAddress(device),NBS_CODEC);
+                    mNativeInterface.configureWBSNative(getByteAddress(device),NBS_CODEC);
                 }
                     break;
                 case START_VR_TIMEOUT:
@@ -1549,7 +1560,7 @@ final class HeadsetStateMachine extends StateMachine {
                         mWaitingForVoiceRecognition = false;
                         Log.e(TAG, "Timeout waiting for voice recognition" +
                                                      "to start");
-                        atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR,
+                        mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR,
                                                0, getByteAddress(device));
                     }
                 }
@@ -1662,7 +1673,7 @@ final class HeadsetStateMachine extends StateMachine {
                     }
                     break;
                case HeadsetHalConstants.CONNECTION_STATE_SLC_CONNECTED:
-                    int RemoteBrsf = getRemoteFeaturesNative(getByteAddress(device));
+                    int RemoteBrsf = mNativeInterface.getRemoteFeaturesNative(getByteAddress(device));
                     Log.d(TAG, "Remote Brsf: " + RemoteBrsf + " for device: " + device);
                     mHeadsetBrsf.put(device, RemoteBrsf);
                     if (mRetryConnect.containsKey(device)) {
@@ -1698,7 +1709,7 @@ final class HeadsetStateMachine extends StateMachine {
                          Log.i(TAG,"Incoming Hf rejected. priority="
                                       + mService.getPriority(device) +
                                        " bondState=" + device.getBondState());
-                         disconnectHfpNative(getByteAddress(device));
+                         mNativeInterface.disconnectHfpNative(getByteAddress(device));
                          // the other profile connection should be initiated
                          AdapterService adapterService = AdapterService.getAdapterService();
                          if (adapterService != null) {
@@ -1772,7 +1783,7 @@ final class HeadsetStateMachine extends StateMachine {
             int volumeValue = intent.getIntExtra(AudioManager.EXTRA_VOLUME_STREAM_VALUE, 0);
             if (mPhoneState.getSpeakerVolume() != volumeValue) {
                 mPhoneState.setSpeakerVolume(volumeValue);
-                setVolumeNative(HeadsetHalConstants.VOLUME_TYPE_SPK,
+                mNativeInterface.setVolumeNative(HeadsetHalConstants.VOLUME_TYPE_SPK,
                                         volumeValue, getByteAddress(device));
             }
         }
@@ -1819,7 +1830,7 @@ final class HeadsetStateMachine extends StateMachine {
 
                 case CONNECT_AUDIO:
                     if (mCurrentDevice != null) {
-                        connectAudioNative(getByteAddress(mCurrentDevice));
+                        mNativeInterface.connectAudioNative(getByteAddress(mCurrentDevice));
                     }
                     break;
                 case CONNECT_TIMEOUT:
@@ -1829,7 +1840,7 @@ final class HeadsetStateMachine extends StateMachine {
 
                 case DISCONNECT_AUDIO:
                     if (mActiveScoDevice != null) {
-                        if (disconnectAudioNative(getByteAddress(mActiveScoDevice))) {
+                        if (mNativeInterface.disconnectAudioNative(getByteAddress(mActiveScoDevice))) {
                             Log.d(TAG, "MultiHFPending, Disconnecting SCO audio for " +
                                                  mActiveScoDevice);
                         } else {
@@ -1886,7 +1897,7 @@ final class HeadsetStateMachine extends StateMachine {
                 case CLCC_RSP_TIMEOUT:
                 {
                     device = (BluetoothDevice) message.obj;
-                    clccResponseNative(0, 0, 0, 0, false, "", 0, getByteAddress(device));
+                    mNativeInterface.clccResponseNative(0, 0, 0, 0, false, "", 0, getByteAddress(device));
                 }
                     break;
                 case UPDATE_A2DP_PLAY_STATE:
@@ -1899,7 +1910,7 @@ final class HeadsetStateMachine extends StateMachine {
                     if (mDialingOut) {
                         device = (BluetoothDevice) message.obj;
                         mDialingOut= false;
-                        atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR,
+                        mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR,
                                              0, getByteAddress(device));
                     }
                     break;
@@ -1918,13 +1929,13 @@ final class HeadsetStateMachine extends StateMachine {
                 case ENABLE_WBS:
                 {
                     device = (BluetoothDevice) message.obj;
-                    configureWBSNative(getByteAddress(device),WBS_CODEC);
+                    mNativeInterface.configureWBSNative(getByteAddress(device),WBS_CODEC);
                 }
                     break;
                 case DISABLE_WBS:
                 {
                     device = (BluetoothDevice) message.obj;
-                    configureWBSNative(getByteAddress(device),NBS_CODEC);
+                    mNativeInterface.configureWBSNative(getByteAddress(device),NBS_CODEC);
                 }
                     break;
                 case START_VR_TIMEOUT:
@@ -1933,7 +1944,7 @@ final class HeadsetStateMachine extends StateMachine {
                         mWaitingForVoiceRecognition = false;
                         Log.e(TAG, "Timeout waiting for voice" +
                                              "recognition to start");
-                        atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR,
+                        mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR,
                                                0, getByteAddress(device));
                     }
                     break;
@@ -2039,7 +2050,7 @@ final class HeadsetStateMachine extends StateMachine {
                           }
 
                           if (mTargetDevice != null) {
-                              if (!connectHfpNative(getByteAddress(mTargetDevice))) {
+                              if (!mNativeInterface.connectHfpNative(getByteAddress(mTargetDevice))) {
 
                                 broadcastConnectionState(mTargetDevice,
                                           BluetoothProfile.STATE_DISCONNECTED,
@@ -2158,7 +2169,7 @@ final class HeadsetStateMachine extends StateMachine {
                         Log.i(TAG,"Incoming Hf rejected. priority=" +
                                           mService.getPriority(device) +
                                   " bondState=" + device.getBondState());
-                        disconnectHfpNative(getByteAddress(device));
+                        mNativeInterface.disconnectHfpNative(getByteAddress(device));
                         // the other profile connection should be initiated
                         AdapterService adapterService = AdapterService.getAdapterService();
                         if (adapterService != null) {
@@ -2169,7 +2180,7 @@ final class HeadsetStateMachine extends StateMachine {
                 }
                 break;
             case HeadsetHalConstants.CONNECTION_STATE_SLC_CONNECTED:
-                int RemoteBrsf = getRemoteFeaturesNative(getByteAddress(device));
+                int RemoteBrsf = mNativeInterface.getRemoteFeaturesNative(getByteAddress(device));
                 Log.d(TAG, "Remote Brsf: " + RemoteBrsf + " for device: " + device);
                 mHeadsetBrsf.put(device, RemoteBrsf);
                 if (mRetryConnect.containsKey(device)) {
@@ -2217,7 +2228,7 @@ final class HeadsetStateMachine extends StateMachine {
                 case HeadsetHalConstants.AUDIO_STATE_CONNECTED:
                     if (!isScoAcceptable()) {
                         Log.e(TAG,"Audio Connected without any listener");
-                        disconnectAudioNative(getByteAddress(device));
+                        mNativeInterface.disconnectAudioNative(getByteAddress(device));
                         break;
                     }
                     mAudioState = BluetoothHeadset.STATE_AUDIO_CONNECTED;
@@ -2292,7 +2303,7 @@ final class HeadsetStateMachine extends StateMachine {
             int volumeValue = intent.getIntExtra(AudioManager.EXTRA_VOLUME_STREAM_VALUE, 0);
             if (mPhoneState.getSpeakerVolume() != volumeValue) {
                 mPhoneState.setSpeakerVolume(volumeValue);
-                setVolumeNative(HeadsetHalConstants.VOLUME_TYPE_SPK,
+                mNativeInterface.setVolumeNative(HeadsetHalConstants.VOLUME_TYPE_SPK,
                                     volumeValue, getByteAddress(device));
             }
         }
@@ -2474,7 +2485,7 @@ final class HeadsetStateMachine extends StateMachine {
                 try {
                     mService.startActivity(sVoiceCommandIntent);
                 } catch (ActivityNotFoundException e) {
-                    atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR,
+                    mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR,
                                         0, getByteAddress(device));
                     return;
                 }
@@ -2483,18 +2494,18 @@ final class HeadsetStateMachine extends StateMachine {
         } else if (state == HeadsetHalConstants.VR_STATE_STOPPED) {
             if (mVoiceRecognitionStarted || mWaitingForVoiceRecognition)
             {
-                atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_OK,
+                mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_OK,
                                          0, getByteAddress(device));
                 mVoiceRecognitionStarted = false;
                 mWaitingForVoiceRecognition = false;
                 if (!isInCall() && (mActiveScoDevice != null)) {
-                    disconnectAudioNative(getByteAddress(mActiveScoDevice));
+                    mNativeInterface.disconnectAudioNative(getByteAddress(mActiveScoDevice));
                     mAudioManager.setParameters("A2dpSuspended=false");
                 }
             }
             else
             {
-                atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR,
+                mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR,
                                         0, getByteAddress(device));
             }
         } else {
@@ -2524,14 +2535,14 @@ final class HeadsetStateMachine extends StateMachine {
 
                 Log.d(TAG, "Voice recognition started successfully");
                 mWaitingForVoiceRecognition = false;
-                atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_OK,
+                mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_OK,
                                         0, getByteAddress(device));
                 removeMessages(START_VR_TIMEOUT);
             }
             else
             {
                 Log.d(TAG, "Voice recognition started locally");
-                needAudio = startVoiceRecognitionNative(getByteAddress(mCurrentDevice));
+                needAudio = mNativeInterface.startVoiceRecognitionNative(getByteAddress(mCurrentDevice));
                 if (mCurrentDevice != null)
                     device = mCurrentDevice;
             }
@@ -2549,7 +2560,7 @@ final class HeadsetStateMachine extends StateMachine {
                 // in MODE_NORMAL and hence the need to explicitly suspend the A2DP stream
                 mAudioManager.setParameters("A2dpSuspended=true");
                 if (device != null) {
-                    connectAudioNative(getByteAddress(device));
+                    mNativeInterface.connectAudioNative(getByteAddress(device));
                 } else {
                     Log.e(TAG, "device not found for VR");
                 }
@@ -2569,10 +2580,10 @@ final class HeadsetStateMachine extends StateMachine {
                 mWaitingForVoiceRecognition = false;
 
                 if (mActiveScoDevice != null &&
-                           stopVoiceRecognitionNative(getByteAddress(mActiveScoDevice))
+                           mNativeInterface.stopVoiceRecognitionNative(getByteAddress(mActiveScoDevice))
                            && (!isInCall() || (mPhoneState.getCallState() ==
                            HeadsetHalConstants.CALL_STATE_INCOMING))) {
-                    disconnectAudioNative(getByteAddress(mActiveScoDevice));
+                    mNativeInterface.disconnectAudioNative(getByteAddress(mActiveScoDevice));
                     mAudioManager.setParameters("A2dpSuspended=false");
                 }
             }
@@ -2903,7 +2914,7 @@ final class HeadsetStateMachine extends StateMachine {
                 } else {
                     //send incomming phone status to remote device
                     log("A2dp is suspended, updating phone status if any");
-                    phoneStateChangeNative( mPhoneState.getNumActiveCall(),
+                    mNativeInterface.phoneStateChangeNative( mPhoneState.getNumActiveCall(),
                                             mPhoneState.getNumHeldCall(),mPhoneState.getCallState(),
                                             mPhoneState.getNumber(),mPhoneState.getType());
                 }
@@ -2986,7 +2997,7 @@ final class HeadsetStateMachine extends StateMachine {
         String dialNumber;
         if (mDialingOut) {
             log("processDialCall, already dialling");
-            atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR, 0,
+            mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR, 0,
                                        getByteAddress(device));
             return;
         }
@@ -2994,7 +3005,7 @@ final class HeadsetStateMachine extends StateMachine {
             dialNumber = mPhonebook.getLastDialledNumber();
             if (dialNumber == null) {
                 log("processDialCall, last dial number null");
-                atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR, 0,
+                mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR, 0,
                                        getByteAddress(device));
                 return;
             }
@@ -3002,7 +3013,7 @@ final class HeadsetStateMachine extends StateMachine {
             // Yuck - memory dialling requested.
             // Just dial last number for now
             if (number.startsWith(">9999")) {   // for PTS test
-                atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR, 0,
+                mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR, 0,
                                        getByteAddress(device));
                 return;
             }
@@ -3010,7 +3021,7 @@ final class HeadsetStateMachine extends StateMachine {
             dialNumber = mPhonebook.getLastDialledNumber();
             if (dialNumber == null) {
                 log("processDialCall, last dial number null");
-                atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR, 0,
+                mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR, 0,
                                        getByteAddress(device));
                 return;
             }
@@ -3089,7 +3100,7 @@ final class HeadsetStateMachine extends StateMachine {
                 if (device == null) {
                     return;
                 }
-                atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_OK,
+                mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_OK,
                                                        0, getByteAddress(device));
                 removeMessages(DIALING_OUT_TIMEOUT);
                 mDialingOut = false;
@@ -3148,7 +3159,7 @@ final class HeadsetStateMachine extends StateMachine {
         }
         if (getCurrentState() != mDisconnected) {
             log("No A2dp playing to suspend");
-            phoneStateChangeNative(callState.mNumActive, callState.mNumHeld,
+            mNativeInterface.phoneStateChangeNative(callState.mNumActive, callState.mNumHeld,
                 callState.mCallState, callState.mNumber, callState.mType);
         }
         if (mA2dpSuspend && (!isAudioOn())) {
@@ -3206,20 +3217,20 @@ final class HeadsetStateMachine extends StateMachine {
         if (mPhoneProxy != null) {
             try {
                 if (mPhoneProxy.processChld(chld)) {
-                    atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_OK,
+                    mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_OK,
                                                0, getByteAddress(device));
                 } else {
-                    atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR,
+                    mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR,
                                                0, getByteAddress(device));
                 }
             } catch (RemoteException e) {
                 Log.e(TAG, Log.getStackTraceString(new Throwable()));
-                atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR,
+                mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR,
                                                0, getByteAddress(device));
             }
         } else {
             Log.e(TAG, "Handsfree phone proxy null for At+Chld");
-            atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR,
+            mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR,
                                                0, getByteAddress(device));
         }
     }
@@ -3234,19 +3245,19 @@ final class HeadsetStateMachine extends StateMachine {
             try {
                 String number = mPhoneProxy.getSubscriberNumber();
                 if (number != null) {
-                    atResponseStringNative("+CNUM: ,\"" + number + "\"," +
+                    mNativeInterface.atResponseStringNative("+CNUM: ,\"" + number + "\"," +
                                                 PhoneNumberUtils.toaFromString(number) +
                                                 ",,4", getByteAddress(device));
-                    atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_OK,
+                    mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_OK,
                                                 0, getByteAddress(device));
                 } else {
                     Log.e(TAG, "getSubscriberNumber returns null");
-                    atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_OK,
+                    mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_OK,
                                                 0, getByteAddress(device));
                 }
             } catch (RemoteException e) {
                 Log.e(TAG, Log.getStackTraceString(new Throwable()));
-                atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR,
+                mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR,
                                                  0, getByteAddress(device));
             }
         } else {
@@ -3274,7 +3285,7 @@ final class HeadsetStateMachine extends StateMachine {
             call_setup = mPhoneState.getNumHeldCall();
         }
 
-        cindResponseNative(mPhoneState.getService(), call,
+        mNativeInterface.cindResponseNative(mPhoneState.getService(), call,
                            call_setup, mPhoneState.getCallState(),
                            mPhoneState.getSignal(), mPhoneState.getRoam(),
                            mPhoneState.getBatteryCharge(), getByteAddress(device));
@@ -3292,14 +3303,14 @@ final class HeadsetStateMachine extends StateMachine {
                 if (operatorName == null) {
                     operatorName = "";
                 } 
-                copsResponseNative(operatorName, getByteAddress(device));
+                mNativeInterface.copsResponseNative(operatorName, getByteAddress(device));
             } catch (RemoteException e) {
                 Log.e(TAG, Log.getStackTraceString(new Throwable()));
-                copsResponseNative("", getByteAddress(device));
+                mNativeInterface.copsResponseNative("", getByteAddress(device));
             }
         } else {
             Log.e(TAG, "Handsfree phone proxy null for At+COPS");
-            copsResponseNative("", getByteAddress(device));
+            mNativeInterface.copsResponseNative("", getByteAddress(device));
         }
     }
 
@@ -3322,12 +3333,12 @@ final class HeadsetStateMachine extends StateMachine {
                             "using IBluetoothHeadsetPhone proxy");
                         phoneNumber = "";
                     }
-                    clccResponseNative(1, 0, 0, 0, false, phoneNumber, type,
+                    mNativeInterface.clccResponseNative(1, 0, 0, 0, false, phoneNumber, type,
                                                        getByteAddress(device));
-                    clccResponseNative(0, 0, 0, 0, false, "", 0, getByteAddress(device));
+                    mNativeInterface.clccResponseNative(0, 0, 0, 0, false, "", 0, getByteAddress(device));
                 }
                 else if (!mPhoneProxy.listCurrentCalls()) {
-                    clccResponseNative(0, 0, 0, 0, false, "", 0,
+                    mNativeInterface.clccResponseNative(0, 0, 0, 0, false, "", 0,
                                                        getByteAddress(device));
                 }
                 else
@@ -3340,11 +3351,11 @@ final class HeadsetStateMachine extends StateMachine {
                 }
             } catch (RemoteException e) {
                 Log.e(TAG, Log.getStackTraceString(new Throwable()));
-                clccResponseNative(0, 0, 0, 0, false, "", 0, getByteAddress(device));
+                mNativeInterface.clccResponseNative(0, 0, 0, 0, false, "", 0, getByteAddress(device));
             }
         } else {
             Log.e(TAG, "Handsfree phone proxy null for At+CLCC");
-            clccResponseNative(0, 0, 0, 0, false, "", 0, getByteAddress(device));
+            mNativeInterface.clccResponseNative(0, 0, 0, 0, false, "", 0, getByteAddress(device));
         }
     }
 
@@ -3355,7 +3366,7 @@ final class HeadsetStateMachine extends StateMachine {
         }
         else {
             Log.e(TAG, "Phonebook handle null for At+CSCS");
-            atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR, 0, getByteAddress(device));
+            mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR, 0, getByteAddress(device));
         }
     }
 
@@ -3366,7 +3377,7 @@ final class HeadsetStateMachine extends StateMachine {
         }
         else {
             Log.e(TAG, "Phonebook handle null for At+CPBS");
-            atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR, 0, getByteAddress(device));
+            mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR, 0, getByteAddress(device));
         }
     }
 
@@ -3377,7 +3388,7 @@ final class HeadsetStateMachine extends StateMachine {
         }
         else {
             Log.e(TAG, "Phonebook handle null for At+CPBR");
-            atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR, 0, getByteAddress(device));
+            mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR, 0, getByteAddress(device));
         }
     }
 
@@ -3456,7 +3467,7 @@ final class HeadsetStateMachine extends StateMachine {
                                            BluetoothHeadset.AT_CMD_TYPE_SET,
                                            args,
                                            mCurrentDevice);
-        atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_OK, 0, getByteAddress(mCurrentDevice));
+        mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_OK, 0, getByteAddress(mCurrentDevice));
         return true;
     }
 
@@ -3477,7 +3488,7 @@ final class HeadsetStateMachine extends StateMachine {
         else if (atCommand.startsWith("+CPBR"))
             processAtCpbr(atCommand.substring(5), commandType, device);
         else if (!processVendorSpecificAt(atCommand))
-            atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR, 0, getByteAddress(device));
+            mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR, 0, getByteAddress(device));
     }
 
     private void processKeyPressed(BluetoothDevice device) {
@@ -3499,7 +3510,7 @@ final class HeadsetStateMachine extends StateMachine {
         } else if (mPhoneState.getNumActiveCall() > 0) {
             if (!isAudioOn())
             {
-                connectAudioNative(getByteAddress(mCurrentDevice));
+                mNativeInterface.connectAudioNative(getByteAddress(mCurrentDevice));
             }
             else
             {
@@ -3526,117 +3537,216 @@ final class HeadsetStateMachine extends StateMachine {
         }
     }
 
-    private void onConnectionStateChanged(int state, byte[] address) {
-        StackEvent event = new StackEvent(EVENT_TYPE_CONNECTION_STATE_CHANGED);
-        event.valueInt = state;
-        event.device = getDevice(address);
-        sendMessage(STACK_EVENT, event);
+    void onConnectionStateChanged(int state, byte[] address) {
+        final long callbackStart = CallbackLatency.start();
+        try {
+            StackEvent event = new StackEvent(EVENT_TYPE_CONNECTION_STATE_CHANGED);
+            event.valueInt = state;
+            event.device = getDevice(address);
+            sendMessage(STACK_EVENT, event);
+        } finally {
+            mCallbackLatency.end("onConnectionStateChanged", callbackStart);
+        }
     }
 
-    private void onAudioStateChanged(int state, byte[] address) {
-        StackEvent event = new StackEvent(EVENT_TYPE_AUDIO_STATE_CHANGED);
-        event.valueInt = state;
-        event.device = getDevice(address);
-        sendMessage(STACK_EVENT, event);
+    void onAudioStateChanged(int state, byte[] address) {
+        final long callbackStart = CallbackLatency.start();
+        try {
+            StackEvent event = new StackEvent(EVENT_TYPE_AUDIO_STATE_CHANGED);
+            event.valueInt = state;
+            event.device = getDevice(address);
+            sendMessage(STACK_EVENT, event);
+        } finally {
+            mCallbackLatency.end("onAudioStateChanged", callbackStart);
+        }
     }
 
-    private void onVrStateChanged(int state, byte[] address) {
-        StackEvent event = new StackEvent(EVENT_TYPE_VR_STATE_CHANGED);
-        event.valueInt = state;
-        event.device = getDevice(address);
-        sendMessage(STACK_EVENT, event);
+    void onVrStateChanged(int state, byte[] address) {
+        final long callbackStart = CallbackLatency.start();
+        try {
+            StackEvent event = new StackEvent(EVENT_TYPE_VR_STATE_CHANGED);
+            event.valueInt = state;
+            event.device = getDevice(address);
+            sendMessage(STACK_EVENT, event);
+        } finally {
+            mCallbackLatency.end("onVrStateChanged", callbackStart);
+        }
     }
 
-    private void onAnswerCall(byte[] address) {
-        StackEvent event = new StackEvent(EVENT_TYPE_ANSWER_CALL);
-        event.device = getDevice(address);
-        sendMessage(STACK_EVENT, event);
+    void onAnswerCall(byte[] address) {
+        final long callbackStart = CallbackLatency.start();
+        try {
+            StackEvent event = new StackEvent(EVENT_TYPE_ANSWER_CALL);
+            event.device = getDevice(address);
+            EventTrace.log(EventTrace.TYPE_AT_COMMAND, address, event.type, event.valueInt);
+            sendMessage(STACK_EVENT, event);
+        } finally {
+            mCallbackLatency.end("onAnswerCall", callbackStart);
+        }
     }
 
-    private void onHangupCall(byte[] address) {
-        StackEvent event = new StackEvent(EVENT_TYPE_HANGUP_CALL);
-        event.device = getDevice(address);
-        sendMessage(STACK_EVENT, event);
+    void onHangupCall(byte[] address) {
+        final long callbackStart = CallbackLatency.start();
+        try {
+            StackEvent event = new StackEvent(EVENT_TYPE_HANGUP_CALL);
+            event.device = getDevice(address);
+            EventTrace.log(EventTrace.TYPE_AT_COMMAND, address, event.type, event.valueInt);
+            sendMessage(STACK_EVENT, event);
+        } finally {
+            mCallbackLatency.end("onHangupCall", callbackStart);
+        }
     }
 
-    private void onVolumeChanged(int type, int volume, byte[] address) {
-        StackEvent event = new StackEvent(EVENT_TYPE_VOLUME_CHANGED);
-        event.valueInt = type;
-        event.valueInt2 = volume;
-        event.device = getDevice(address);
-        sendMessage(STACK_EVENT, event);
+    void onVolumeChanged(int type, int volume, byte[] address) {
+        final long callbackStart = CallbackLatency.start();
+        try {
+            StackEvent event = new StackEvent(EVENT_TYPE_VOLUME_CHANGED);
+            event.valueInt = type;
+            event.valueInt2 = volume;
+            event.device = getDevice(address);
+            EventTrace.log(EventTrace.TYPE_AT_COMMAND, address, event.type, event.valueInt2);
+            sendMessage(STACK_EVENT, event);
+        } finally {
+            mCallbackLatency.end("onVolumeChanged", callbackStart);
+        }
     }
 
-    private void onDialCall(String number, byte[] address) {
-        StackEvent event = new StackEvent(EVENT_TYPE_DIAL_CALL);
-        event.valueString = number;
-        event.device = getDevice(address);
-        sendMessage(STACK_EVENT, event);
+    void onDialCall(String number, byte[] address) {
+        final long callbackStart = CallbackLatency.start();
+        try {
+            StackEvent event = new StackEvent(EVENT_TYPE_DIAL_CALL);
+            event.valueString = number;
+            event.device = getDevice(address);
+            EventTrace.log(EventTrace.TYPE_AT_COMMAND, address, event.type, event.valueInt);
+            sendMessage(STACK_EVENT, event);
+        } finally {
+            mCallbackLatency.end("onDialCall", callbackStart);
+        }
     }
 
-    private void onSendDtmf(int dtmf, byte[] address) {
-        StackEvent event = new StackEvent(EVENT_TYPE_SEND_DTMF);
-        event.valueInt = dtmf;
-        event.device = getDevice(address);
-        sendMessage(STACK_EVENT, event);
+    void onSendDtmf(int dtmf, byte[] address) {
+        final long callbackStart = CallbackLatency.start();
+        try {
+            StackEvent event = new StackEvent(EVENT_TYPE_SEND_DTMF);
+            event.valueInt = dtmf;
+            event.device = getDevice(address);
+            EventTrace.log(EventTrace.TYPE_AT_COMMAND, address, event.type, event.valueInt);
+            sendMessage(STACK_EVENT, event);
+        } finally {
+            mCallbackLatency.end("onSendDtmf", callbackStart);
+        }
     }
 
-    private void onNoiceReductionEnable(boolean enable,  byte[] address) {
-        StackEvent event = new StackEvent(EVENT_TYPE_NOICE_REDUCTION);
-        event.valueInt = enable ? 1 : 0;
-        event.device = getDevice(address);
-        sendMessage(STACK_EVENT, event);
+    void onNoiceReductionEnable(boolean enable,  byte[] address) {
+        final long callbackStart = CallbackLatency.start();
+        try {
+            StackEvent event = new StackEvent(EVENT_TYPE_NOICE_REDUCTION);
+            event.valueInt = enable ? 1 : 0;
+            event.device = getDevice(address);
+            EventTrace.log(EventTrace.TYPE_AT_COMMAND, address, event.type, event.valueInt);
+            sendMessage(STACK_EVENT, event);
+        } finally {
+            mCallbackLatency.end("onNoiceReductionEnable", callbackStart);
+        }
     }
 
-    private void onWBS(int codec, byte[] address) {
-        StackEvent event = new StackEvent(EVENT_TYPE_WBS);
-        event.valueInt = codec;
-        event.device = getDevice(address);
-        sendMessage(STACK_EVENT, event);
+    void onWBS(int codec, byte[] address) {
+        final long callbackStart = CallbackLatency.start();
+        try {
+            StackEvent event = new StackEvent(EVENT_TYPE_WBS);
+            event.valueInt = codec;
+            event.device = getDevice(address);
+            EventTrace.log(EventTrace.TYPE_AT_COMMAND, address, event.type, event.valueInt);
+            sendMessage(STACK_EVENT, event);
+        } finally {
+            mCallbackLatency.end("onWBS", callbackStart);
+        }
     }
 
-    private void onAtChld(int chld, byte[] address) {
-        StackEvent event = new StackEvent(EVENT_TYPE_AT_CHLD);
-        event.valueInt = chld;
-        event.device = getDevice(address);
-        sendMessage(STACK_EVENT, event);
+    void onAtChld(int chld, byte[] address) {
+        final long callbackStart = CallbackLatency.start();
+        try {
+            StackEvent event = new StackEvent(EVENT_TYPE_AT_CHLD);
+            event.valueInt = chld;
+            event.device = getDevice(address);
+            EventTrace.log(EventTrace.TYPE_AT_COMMAND, address, event.type, event.valueInt);
+            sendMessage(STACK_EVENT, event);
+        } finally {
+            mCallbackLatency.end("onAtChld", callbackStart);
+        }
     }
 
-    private void onAtCnum(byte[] address) {
-        StackEvent event = new StackEvent(EVENT_TYPE_SUBSCRIBER_NUMBER_REQUEST);
-        event.device = getDevice(address);
-        sendMessage(STACK_EVENT, event);
+    void onAtCnum(byte[] address) {
+        final long callbackStart = CallbackLatency.start();
+        try {
+            StackEvent event = new StackEvent(EVENT_TYPE_SUBSCRIBER_NUMBER_REQUEST);
+            event.device = getDevice(address);
+            EventTrace.log(EventTrace.TYPE_AT_COMMAND, address, event.type, event.valueInt);
+            sendMessage(STACK_EVENT, event);
+        } finally {
+            mCallbackLatency.end("onAtCnum", callbackStart);
+        }
     }
 
-    private void onAtCind(byte[] address) {
-        StackEvent event = new StackEvent(EVENT_TYPE_AT_CIND);
-        event.device = getDevice(address);
-        sendMessage(STACK_EVENT, event);
+    void onAtCind(byte[] address) {
+        final long callbackStart = CallbackLatency.start();
+        try {
+            StackEvent event = new StackEvent(EVENT_TYPE_AT_CIND);
+            event.device = getDevice(address);
+            EventTrace.log(EventTrace.TYPE_AT_COMMAND, address, event.type, event.valueInt);
+            sendMessage(STACK_EVENT, event);
+        } finally {
+            mCallbackLatency.end("onAtCind", callbackStart);
+        }
     }
 
-    private void onAtCops(byte[] address) {
-        StackEvent event = new StackEvent(EVENT_TYPE_AT_COPS);
-        event.device = getDevice(address);
-        sendMessage(STACK_EVENT, event);
+    void onAtCops(byte[] address) {
+        final long callbackStart = CallbackLatency.start();
+        try {
+            StackEvent event = new StackEvent(EVENT_TYPE_AT_COPS);
+            event.device = getDevice(address);
+            EventTrace.log(EventTrace.TYPE_AT_COMMAND, address, event.type, event.valueInt);
+            sendMessage(STACK_EVENT, event);
+        } finally {
+            mCallbackLatency.end("onAtCops", callbackStart);
+        }
     }
 
-    private void onAtClcc(byte[] address) {
-        StackEvent event = new StackEvent(EVENT_TYPE_AT_CLCC);
-        event.device = getDevice(address);
-        sendMessage(STACK_EVENT, event);
+    void onAtClcc(byte[] address) {
+        final long callbackStart = CallbackLatency.start();
+        try {
+            StackEvent event = new StackEvent(EVENT_TYPE_AT_CLCC);
+            event.device = getDevice(address);
+            EventTrace.log(EventTrace.TYPE_AT_COMMAND, address, event.type, event.valueInt);
+            sendMessage(STACK_EVENT, event);
+        } finally {
+            mCallbackLatency.end("onAtClcc", callbackStart);
+        }
     }
 
-    private void onUnknownAt(String atString, byte[] address) {
-        StackEvent event = new StackEvent(EVENT_TYPE_UNKNOWN_AT);
-        event.valueString = atString;
-        event.device = getDevice(address);
-        sendMessage(STACK_EVENT, event);
+    void onUnknownAt(String atString, byte[] address) {
+        final long callbackStart = CallbackLatency.start();
+        try {
+            StackEvent event = new StackEvent(EVENT_TYPE_UNKNOWN_AT);
+            event.valueString = atString;
+            event.device = getDevice(address);
+            EventTrace.log(EventTrace.TYPE_AT_COMMAND, address, event.type, event.valueInt);
+            sendMessage(STACK_EVENT, event);
+        } finally {
+            mCallbackLatency.end("onUnknownAt", callbackStart);
+        }
     }
 
-    private void onKeyPressed(byte[] address) {
-        StackEvent event = new StackEvent(EVENT_TYPE_KEY_PRESSED);
-        event.device = getDevice(address);
-        sendMessage(STACK_EVENT, event);
+    void onKeyPressed(byte[] address) {
+        final long callbackStart = CallbackLatency.start();
+        try {
+            StackEvent event = new StackEvent(EVENT_TYPE_KEY_PRESSED);
+            event.device = getDevice(address);
+            EventTrace.log(EventTrace.TYPE_AT_COMMAND, address, event.type, event.valueInt);
+            sendMessage(STACK_EVENT, event);
+        } finally {
+            mCallbackLatency.end("onKeyPressed", callbackStart);
+        }
     }
 
     private void processIntentBatteryChanged(Intent intent) {
@@ -3651,7 +3761,7 @@ final class HeadsetStateMachine extends StateMachine {
     }
 
     private void processDeviceStateChanged(HeadsetDeviceState deviceState) {
-        notifyDeviceStatusNative(deviceState.mService, deviceState.mRoam, deviceState.mSignal,
+        mNativeInterface.notifyDeviceStatusNative(deviceState.mService, deviceState.mRoam, deviceState.mSignal,
                                  deviceState.mBatteryCharge);
     }
 
@@ -3663,7 +3773,7 @@ final class HeadsetStateMachine extends StateMachine {
         if (clcc.mIndex == 0) {
             removeMessages(CLCC_RSP_TIMEOUT);
         }
-        clccResponseNative(clcc.mIndex, clcc.mDirection, clcc.mStatus, clcc.mMode, clcc.mMpty,
+        mNativeInterface.clccResponseNative(clcc.mIndex, clcc.mDirection, clcc.mStatus, clcc.mMode, clcc.mMpty,
                            clcc.mNumber, clcc.mType, getByteAddress(device));
     }
 
@@ -3672,7 +3782,7 @@ final class HeadsetStateMachine extends StateMachine {
         if (resultCode.mArg != null) {
             stringToSend += resultCode.mArg;
         }
-        atResponseStringNative(stringToSend, getByteAddress(resultCode.mDevice));
+        mNativeInterface.atResponseStringNative(stringToSend, getByteAddress(resultCode.mDevice));
     }
 
     private String getCurrentDeviceName(BluetoothDevice device) {
@@ -3775,14 +3885,14 @@ final class HeadsetStateMachine extends StateMachine {
             mPhonebook.setCheckingAccessPermission(false);
 
             if (atCommandResult >= 0) {
-                atResponseCodeNative(atCommandResult, atCommandErrorCode, getByteAddress(device));
+                mNativeInterface.atResponseCodeNative(atCommandResult, atCommandErrorCode, getByteAddress(device));
             } else {
                 log("handleAccessPermissionResult - RESULT_NONE");
             }
         } else {
             Log.e(TAG, "Phonebook handle null");
             if (device != null) {
-                atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR, 0,
+                mNativeInterface.atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR, 0,
                                      getByteAddress(device));
             }
         }
@@ -3822,9 +3932,142 @@ final class HeadsetStateMachine extends StateMachine {
         }
     }
 
-    /*package*/native boolean atResponseCodeNative(int responseCode, int errorCode,
+    // AT command responses of AtPhonebook
+    /*package*/ boolean atResponseCode(int responseCode, int errorCode, byte[] address) {
+        return mNativeInterface.atResponseCodeNative(responseCode, errorCode, address);
+    }
+
+    /*package*/ boolean atResponseString(String responseString, byte[] address) {
+        return mNativeInterface.atResponseStringNative(responseString, address);
+    }
+
+    private static NativeInterfaceFactory<HeadsetStateMachine, HeadsetNativeInterface>
+            sNativeInterfaceFactory;
+    private HeadsetNativeInterface mNativeInterface;
+
+    /**
+     * Replace the JNI layer of the instances created from now on, for tests.
+     * @param factory null to go back to JNI
+     */
+    @VisibleForTesting
+    static void setNativeInterfaceFactory(
+            NativeInterfaceFactory<HeadsetStateMachine, HeadsetNativeInterface> factory) {
+        sNativeInterfaceFactory = factory;
+    }
+
+    private HeadsetNativeInterface createNativeInterface() {
+        if (sNativeInterfaceFactory != null) return sNativeInterfaceFactory.create(this);
+        return new JniNativeInterface();
+    }
+
+    private class JniNativeInterface implements HeadsetNativeInterface {
+        @Override
+        public boolean atResponseCodeNative(int responseCode, int errorCode, byte[] address) {
+            return HeadsetStateMachine.this.atResponseCodeNative(responseCode, errorCode, address);
+        }
+
+        @Override
+        public boolean atResponseStringNative(String responseString, byte[] address) {
+            return HeadsetStateMachine.this.atResponseStringNative(responseString, address);
+        }
+
+        @Override
+        public void initializeNative(int max_hf_clients) {
+            HeadsetStateMachine.this.initializeNative(max_hf_clients);
+        }
+
+        @Override
+        public void initializeFeaturesNative(int feature_bitmask) {
+            HeadsetStateMachine.this.initializeFeaturesNative(feature_bitmask);
+        }
+
+        @Override
+        public void cleanupNative() {
+            HeadsetStateMachine.this.cleanupNative();
+        }
+
+        @Override
+        public boolean connectHfpNative(byte[] address) {
+            return HeadsetStateMachine.this.connectHfpNative(address);
+        }
+
+        @Override
+        public boolean disconnectHfpNative(byte[] address) {
+            return HeadsetStateMachine.this.disconnectHfpNative(address);
+        }
+
+        @Override
+        public boolean connectAudioNative(byte[] address) {
+            return HeadsetStateMachine.this.connectAudioNative(address);
+        }
+
+        @Override
+        public boolean disconnectAudioNative(byte[] address) {
+            return HeadsetStateMachine.this.disconnectAudioNative(address);
+        }
+
+        @Override
+        public boolean startVoiceRecognitionNative(byte[] address) {
+            return HeadsetStateMachine.this.startVoiceRecognitionNative(address);
+        }
+
+        @Override
+        public boolean stopVoiceRecognitionNative(byte[] address) {
+            return HeadsetStateMachine.this.stopVoiceRecognitionNative(address);
+        }
+
+        @Override
+        public boolean setVolumeNative(int volumeType, int volume, byte[] address) {
+            return HeadsetStateMachine.this.setVolumeNative(volumeType, volume, address);
+        }
+
+        @Override
+        public boolean cindResponseNative(int service, int numActive, int numHeld, int callState,
+                int signal, int roam, int batteryCharge, byte[] address) {
+            return HeadsetStateMachine.this.cindResponseNative(service, numActive, numHeld,
+                    callState, signal, roam, batteryCharge, address);
+        }
+
+        @Override
+        public boolean notifyDeviceStatusNative(int networkState, int serviceType, int signal,
+                int batteryCharge) {
+            return HeadsetStateMachine.this.notifyDeviceStatusNative(networkState, serviceType,
+                    signal, batteryCharge);
+        }
+
+        @Override
+        public boolean clccResponseNative(int index, int dir, int status, int mode, boolean mpty,
+                String number, int type, byte[] address) {
+            return HeadsetStateMachine.this.clccResponseNative(index, dir, status, mode, mpty,
+                    number, type, address);
+        }
+
+        @Override
+        public boolean copsResponseNative(String operatorName, byte[] address) {
+            return HeadsetStateMachine.this.copsResponseNative(operatorName, address);
+        }
+
+        @Override
+        public boolean phoneStateChangeNative(int numActive, int numHeld, int callState,
+                String number, int type) {
+            return HeadsetStateMachine.this.phoneStateChangeNative(numActive, numHeld, callState,
+                    number, type);
+        }
+
+        @Override
+        public boolean configureWBSNative(byte[] address, int condec_config) {
+            return HeadsetStateMachine.this.configureWBSNative(address, condec_config);
+        }
+
+        @Override
+        public int getRemoteFeaturesNative(byte[] address) {
+            return HeadsetStateMachine.this.getRemoteFeaturesNative(address);
+        }
+    }
+
+    private native boolean atResponseCodeNative(int responseCode, int errorCode,
                                                                           byte[] address);
-    /*package*/ native boolean atResponseStringNative(String responseString, byte[] address);
+    private native boolean atResponseStringNative(String responseString, byte[] address);
 
     private native static void classInitNative();
     private native void initializeNative(int max_hf_clients);
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hid;
+
+/**
+ * Calls from {@link HidService} into the native HID host interface.
+ */
+interface HidNativeInterface {
+    void initializeNative();
+    void cleanupNative();
+    boolean connectHidNative(byte[] btAddress);
+    boolean disconnectHidNative(byte[] btAddress);
+    boolean getProtocolModeNative(byte[] btAddress);
+    boolean virtualUnPlugNative(byte[] btAddress);
+    boolean setProtocolModeNative(byte[] btAddress, byte protocolMode);
+    boolean getReportNative(byte[] btAddress, byte reportType, byte reportId, int bufferSize);
+    boolean setReportNative(byte[] btAddress, byte reportType, String report);
+    boolean sendDataNative(byte[] btAddress, String report);
+    boolean setIdleTimeNative(byte[] btAddress, byte idleTime);
+    boolean getIdleTimeNative(byte[] btAddress);
+    boolean setPriorityNative(byte[] btAddress, int priority);
+}
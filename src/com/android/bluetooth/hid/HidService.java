@@ -27,6 +27,7 @@ import android.os.Bundle;
 import android.os.IBinder;
 import android.os.Handler;
 import android.os.Message;
+import android.os.Parcel;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.provider.Settings;
@@ -34,6 +35,9 @@ import android.util.Log;
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.Utils;
+import com.android.bluetooth.util.BinderCallStats;
+import com.android.bluetooth.util.NativeInterfaceFactory;
+import com.android.internal.annotations.VisibleForTesting;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -87,7 +91,8 @@ public class HidService extends ProfileService {
 
     protected boolean start() {
         mInputDevices = Collections.synchronizedMap(new HashMap<BluetoothDevice, Integer>());
-        initializeNative();
+        mNativeInterface = createNativeInterface();
+        mNativeInterface.initializeNative();
         mNativeAvailable=true;
         setHidService(this);
         return true;
@@ -100,7 +105,7 @@ public class HidService extends ProfileService {
 
     protected boolean cleanup() {
         if (mNativeAvailable) {
-            cleanupNative();
+            mNativeInterface.cleanupNative();
             mNativeAvailable=false;
         }
 
@@ -154,7 +159,7 @@ public class HidService extends ProfileService {
                 case MESSAGE_CONNECT:
                 {
                     BluetoothDevice device = (BluetoothDevice) msg.obj;
-                    if (!connectHidNative(Utils.getByteAddress(device)) ) {
+                    if (!mNativeInterface.connectHidNative(Utils.getByteAddress(device)) ) {
                         broadcastConnectionState(device, BluetoothProfile.STATE_DISCONNECTING);
                         broadcastConnectionState(device, BluetoothProfile.STATE_DISCONNECTED);
                         break;
@@ -165,7 +170,7 @@ public class HidService extends ProfileService {
                 case MESSAGE_DISCONNECT:
                 {
                     BluetoothDevice device = (BluetoothDevice) msg.obj;
-                    if (!disconnectHidNative(Utils.getByteAddress(device)) ) {
+                    if (!mNativeInterface.disconnectHidNative(Utils.getByteAddress(device)) ) {
                         broadcastConnectionState(device, BluetoothProfile.STATE_DISCONNECTING);
                         broadcastConnectionState(device, BluetoothProfile.STATE_DISCONNECTED);
                         break;
@@ -185,7 +190,7 @@ public class HidService extends ProfileService {
                        prevState == BluetoothInputDevice.STATE_DISCONNECTED &&
                        (!okToConnect(device))) {
                         if (DBG) Log.d(TAG,"Incoming HID connection rejected");
-                        disconnectHidNative(Utils.getByteAddress(device));
+                        mNativeInterface.disconnectHidNative(Utils.getByteAddress(device));
                     } else {
                         broadcastConnectionState(device, convertHalState(halState));
                     }
@@ -202,7 +207,7 @@ public class HidService extends ProfileService {
                 case MESSAGE_GET_PROTOCOL_MODE:
                 {
                     BluetoothDevice device = (BluetoothDevice) msg.obj;
-                    if(!getProtocolModeNative(Utils.getByteAddress(device)) ) {
+                    if(!mNativeInterface.getProtocolModeNative(Utils.getByteAddress(device)) ) {
                         Log.e(TAG, "Error: get protocol mode native returns false");
                     }
                 }
@@ -218,7 +223,7 @@ public class HidService extends ProfileService {
                 case MESSAGE_VIRTUAL_UNPLUG:
                 {
                     BluetoothDevice device = (BluetoothDevice) msg.obj;
-                    if(!virtualUnPlugNative(Utils.getByteAddress(device))) {
+                    if(!mNativeInterface.virtualUnPlugNative(Utils.getByteAddress(device))) {
                         Log.e(TAG, "Error: virtual unplug native returns false");
                     }
                 }
@@ -228,7 +233,7 @@ public class HidService extends ProfileService {
                     BluetoothDevice device = (BluetoothDevice) msg.obj;
                     byte protocolMode = (byte) msg.arg1;
                     log("sending set protocol mode(" + protocolMode + ")");
-                    if(!setProtocolModeNative(Utils.getByteAddress(device), protocolMode)) {
+                    if(!mNativeInterface.setProtocolModeNative(Utils.getByteAddress(device), protocolMode)) {
                         Log.e(TAG, "Error: set protocol mode native returns false");
                     }
                 }
@@ -240,7 +245,7 @@ public class HidService extends ProfileService {
                     byte reportType = data.getByte(BluetoothInputDevice.EXTRA_REPORT_TYPE);
                     byte reportId = data.getByte(BluetoothInputDevice.EXTRA_REPORT_ID);
                     int bufferSize = data.getInt(BluetoothInputDevice.EXTRA_REPORT_BUFFER_SIZE);
-                    if(!getReportNative(Utils.getByteAddress(device), reportType, reportId, bufferSize)) {
+                    if(!mNativeInterface.getReportNative(Utils.getByteAddress(device), reportType, reportId, bufferSize)) {
                         Log.e(TAG, "Error: get report native returns false");
                     }
                 }
@@ -267,7 +272,7 @@ public class HidService extends ProfileService {
                     Bundle data = msg.getData();
                     byte reportType = data.getByte(BluetoothInputDevice.EXTRA_REPORT_TYPE);
                     String report = data.getString(BluetoothInputDevice.EXTRA_REPORT);
-                    if(!setReportNative(Utils.getByteAddress(device), reportType, report)) {
+                    if(!mNativeInterface.setReportNative(Utils.getByteAddress(device), reportType, report)) {
                         Log.e(TAG, "Error: set report native returns false");
                     }
                 }
@@ -277,7 +282,7 @@ public class HidService extends ProfileService {
                     BluetoothDevice device = (BluetoothDevice) msg.obj;
                     Bundle data = msg.getData();
                     String report = data.getString(BluetoothInputDevice.EXTRA_REPORT);
-                    if(!sendDataNative(Utils.getByteAddress(device), report)) {
+                    if(!mNativeInterface.sendDataNative(Utils.getByteAddress(device), report)) {
                         Log.e(TAG, "Error: send data native returns false");
                     }
                 }
@@ -292,7 +297,7 @@ public class HidService extends ProfileService {
                 case MESSAGE_GET_IDLE_TIME:
                 {
                     BluetoothDevice device = (BluetoothDevice) msg.obj;
-                    if(!getIdleTimeNative(Utils.getByteAddress(device)) ) {
+                    if(!mNativeInterface.getIdleTimeNative(Utils.getByteAddress(device)) ) {
                         Log.e(TAG, "Error: get idle time native returns false");
                     }
                 }
@@ -309,7 +314,7 @@ public class HidService extends ProfileService {
                     BluetoothDevice device = (BluetoothDevice) msg.obj;
                     Bundle data = msg.getData();
                     byte idleTime = data.getByte(BluetoothInputDevice.EXTRA_IDLE_TIME);
-                    if(!setIdleTimeNative(Utils.getByteAddress(device), idleTime)) {
+                    if(!mNativeInterface.setIdleTimeNative(Utils.getByteAddress(device), idleTime)) {
                         Log.e(TAG, "Error: get idle time native returns false");
                     }
                 }
@@ -318,7 +323,7 @@ public class HidService extends ProfileService {
                 {
                     BluetoothDevice device = (BluetoothDevice) msg.obj;
                     int priority = msg.arg1;
-                    if (!setPriorityNative(Utils.getByteAddress(device), priority)) {
+                    if (!mNativeInterface.setPriorityNative(Utils.getByteAddress(device), priority)) {
                         Log.e(TAG, "Error: set priority native returns false");
                     }
                 }
@@ -330,7 +335,23 @@ public class HidService extends ProfileService {
     /**
      * Handlers for incoming service calls
      */
-    private static class BluetoothInputDeviceBinder extends IBluetoothInputDevice.Stub implements IProfileServiceBinder{
+    private static class BluetoothInputDeviceBinder extends IBluetoothInputDevice.Stub
+            implements IProfileServiceBinder, BinderCallStats.Transactor {
+        private static final BinderCallStats sCallStats =
+                new BinderCallStats(IBluetoothInputDevice.Stub.class);
+
+        @Override
+        public boolean onTransact(int code, Parcel data, Parcel reply, int flags)
+                throws RemoteException {
+            return sCallStats.onTransact(this, code, data, reply, flags);
+        }
+
+        @Override
+        public boolean onTransactDirect(int code, Parcel data, Parcel reply, int flags)
+                throws RemoteException {
+            return super.onTransact(code, data, reply, flags);
+        }
+
         private HidService mService;
         public BluetoothInputDeviceBinder(HidService svc) {
             mService = svc;
@@ -599,7 +620,7 @@ public class HidService extends ProfileService {
             return false;
         }
 
-        return sendDataNative(Utils.getByteAddress(device), report);
+        return mNativeInterface.sendDataNative(Utils.getByteAddress(device), report);
         /*Message msg = mHandler.obtainMessage(MESSAGE_SEND_DATA);
         msg.obj = device;
         Bundle data = new Bundle();
@@ -637,21 +658,21 @@ public class HidService extends ProfileService {
         return true;
     }
 
-    private void onGetProtocolMode(byte[] address, int mode) {
+    void onGetProtocolMode(byte[] address, int mode) {
         Message msg = mHandler.obtainMessage(MESSAGE_ON_GET_PROTOCOL_MODE);
         msg.obj = address;
         msg.arg1 = mode;
         mHandler.sendMessage(msg);
     }
 
-    private void onGetIdleTime(byte[] address, int idleTime) {
+    void onGetIdleTime(byte[] address, int idleTime) {
         Message msg = mHandler.obtainMessage(MESSAGE_ON_GET_IDLE_TIME);
         msg.obj = address;
         msg.arg1 = idleTime;
         mHandler.sendMessage(msg);
     }
 
-    private void onGetReport(byte[] address, byte[] report, int rpt_size) {
+    void onGetReport(byte[] address, byte[] report, int rpt_size) {
         Message msg = mHandler.obtainMessage(MESSAGE_ON_GET_REPORT);
         msg.obj = address;
         Bundle data = new Bundle();
@@ -661,21 +682,21 @@ public class HidService extends ProfileService {
         mHandler.sendMessage(msg);
     }
 
-    private void onHandshake(byte[] address, int status) {
+    void onHandshake(byte[] address, int status) {
         Message msg = mHandler.obtainMessage(MESSAGE_ON_HANDSHAKE);
         msg.obj = address;
         msg.arg1 = status;
         mHandler.sendMessage(msg);
     }
 
-    private void onVirtualUnplug(byte[] address, int status) {
+    void onVirtualUnplug(byte[] address, int status) {
         Message msg = mHandler.obtainMessage(MESSAGE_ON_VIRTUAL_UNPLUG);
         msg.obj = address;
         msg.arg1 = status;
         mHandler.sendMessage(msg);
     }
 
-    private void onConnectStateChanged(byte[] address, int state) {
+    void onConnectStateChanged(byte[] address, int state) {
         Message msg = mHandler.obtainMessage(MESSAGE_CONNECT_STATE_CHANGED);
         msg.obj = address;
         msg.arg1 = state;
@@ -781,6 +802,7 @@ public class HidService extends ProfileService {
     @Override
     public void dump(StringBuilder sb) {
         super.dump(sb);
+        BluetoothInputDeviceBinder.sCallStats.dump(sb);
         println(sb, "mTargetDevice: " + mTargetDevice);
         println(sb, "mInputDevices:");
         for (BluetoothDevice device : mInputDevices.keySet()) {
@@ -790,10 +812,96 @@ public class HidService extends ProfileService {
 
     // Constants matching Hal header file bt_hh.h
     // bthh_connection_state_t
-    private final static int CONN_STATE_CONNECTED = 0;
-    private final static int CONN_STATE_CONNECTING = 1;
-    private final static int CONN_STATE_DISCONNECTED = 2;
-    private final static int CONN_STATE_DISCONNECTING = 3;
+    final static int CONN_STATE_CONNECTED = 0;
+    final static int CONN_STATE_CONNECTING = 1;
+    final static int CONN_STATE_DISCONNECTED = 2;
+    final static int CONN_STATE_DISCONNECTING = 3;
+
+    private static NativeInterfaceFactory<HidService, HidNativeInterface> sNativeInterfaceFactory;
+    private HidNativeInterface mNativeInterface;
+
+    /**
+     * Replace the JNI layer of the instances created from now on, for tests.
+     * @param factory null to go back to JNI
+     */
+    @VisibleForTesting
+    static void setNativeInterfaceFactory(
+            NativeInterfaceFactory<HidService, HidNativeInterface> factory) {
+        sNativeInterfaceFactory = factory;
+    }
+
+    private HidNativeInterface createNativeInterface() {
+        if (sNativeInterfaceFactory != null) return sNativeInterfaceFactory.create(this);
+        return new JniNativeInterface();
+    }
+
+    private class JniNativeInterface implements HidNativeInterface {
+        @Override
+        public void initializeNative() {
+            HidService.this.initializeNative();
+        }
+
+        @Override
+        public void cleanupNative() {
+            HidService.this.cleanupNative();
+        }
+
+        @Override
+        public boolean connectHidNative(byte[] btAddress) {
+            return HidService.this.connectHidNative(btAddress);
+        }
+
+        @Override
+        public boolean disconnectHidNative(byte[] btAddress) {
+            return HidService.this.disconnectHidNative(btAddress);
+        }
+
+        @Override
+        public boolean getProtocolModeNative(byte[] btAddress) {
+            return HidService.this.getProtocolModeNative(btAddress);
+        }
+
+        @Override
+        public boolean virtualUnPlugNative(byte[] btAddress) {
+            return HidService.this.virtualUnPlugNative(btAddress);
+        }
+
+        @Override
+        public boolean setProtocolModeNative(byte[] btAddress, byte protocolMode) {
+            return HidService.this.setProtocolModeNative(btAddress, protocolMode);
+        }
+
+        @Override
+        public boolean getReportNative(byte[] btAddress, byte reportType, byte reportId,
+                int bufferSize) {
+            return HidService.this.getReportNative(btAddress, reportType, reportId, bufferSize);
+        }
+
+        @Override
+        public boolean setReportNative(byte[] btAddress, byte reportType, String report) {
+            return HidService.this.setReportNative(btAddress, reportType, report);
+        }
+
+        @Override
+        public boolean sendDataNative(byte[] btAddress, String report) {
+            return HidService.this.sendDataNative(btAddress, report);
+        }
+
+        @Override
+        public boolean setIdleTimeNative(byte[] btAddress, byte idleTime) {
+            return HidService.this.setIdleTimeNative(btAddress, idleTime);
+        }
+
+        @Override
+        public boolean getIdleTimeNative(byte[] btAddress) {
+            return HidService.this.getIdleTimeNative(btAddress);
+        }
+
+        @Override
+        public boolean setPriorityNative(byte[] btAddress, int priority) {
+            return HidService.this.setPriorityNative(btAddress, priority);
+        }
+    }
 
     private native static void classInitNative();
     private native void initializeNative();
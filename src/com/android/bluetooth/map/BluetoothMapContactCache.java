@@ -0,0 +1,229 @@
+/*
+* Copyright (C) 2014 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.android.bluetooth.map;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.PhoneLookup;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Contacts of the phone numbers seen by the MAS sessions.
+ *
+ * Message listings and bMessages name the sender and the recipients of each
+ * message, and a conversation repeats the same few numbers. The contact of a
+ * number is looked up once and kept, together with its e-mail addresses once
+ * a bMessage has needed them. Numbers without a contact are kept as well. The
+ * least recently used numbers are evicted above {@link #MAX_ENTRIES}, and the
+ * whole cache is dropped when the contacts change.
+ *
+ * The sessions of every MCE share one cache and one contacts observer, see
+ * {@link #acquire}. It is dropped once the last session has released it.
+ */
+public class BluetoothMapContactCache {
+    private static final String TAG = "BluetoothMapContactCache";
+
+    private static final boolean V = Log.isLoggable(BluetoothMapService.LOG_TAG, Log.VERBOSE) ? true : false;
+
+    static final int MAX_ENTRIES = 256;
+
+    private static final String[] CONTACT_PROJECTION = {Contacts._ID, Contacts.DISPLAY_NAME};
+    private static final String[] EMAIL_PROJECTION =
+            {ContactsContract.CommonDataKinds.Email.ADDRESS};
+
+    /** The contact of a phone number, id and name are null when there is none. */
+    public static class Contact {
+        public final String id;
+        public final String name;
+        private String[] mEmailAddresses;
+
+        Contact(String id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    private static final Contact NO_CONTACT = new Contact(null, null);
+
+    // The shared cache, guarded by the class
+    private static BluetoothMapContactCache sInstance = null;
+    private static int sRefCount = 0;
+
+    private final ContentResolver mResolver;
+    private final Map<String, Contact> mContacts =
+            new LinkedHashMap<String, Contact>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Contact> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            if (V) Log.v(TAG, "Contacts changed, clearing cache");
+            clear();
+        }
+    };
+    private boolean mRegistered = false;
+    // Incremented by clear(), a lookup started before is not cached
+    private int mGeneration = 0;
+
+    BluetoothMapContactCache(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Get the shared cache, observing the contacts, for a MAS session.
+     * Each call must be matched by a {@link #release}.
+     */
+    public static synchronized BluetoothMapContactCache acquire(ContentResolver resolver) {
+        if (sInstance == null) {
+            sInstance = new BluetoothMapContactCache(resolver);
+            sInstance.register();
+        }
+        sRefCount++;
+        return sInstance;
+    }
+
+    /** Release the shared cache, it is dropped when no session uses it. */
+    public static synchronized void release(BluetoothMapContactCache cache) {
+        if (cache != sInstance || sRefCount == 0) {
+            Log.w(TAG, "Releasing a contact cache which is not in use");
+            return;
+        }
+        if (--sRefCount == 0) {
+            if (V) Log.v(TAG, "Last session closed, dropping the contact cache");
+            sInstance.unregister();
+            sInstance = null;
+        }
+    }
+
+    /** Start dropping the cache on contact changes. */
+    public synchronized void register() {
+        if (mRegistered || mResolver == null) return;
+        mResolver.registerContentObserver(Contacts.CONTENT_URI, true, mObserver);
+        mRegistered = true;
+    }
+
+    public synchronized void unregister() {
+        if (!mRegistered) return;
+        mResolver.unregisterContentObserver(mObserver);
+        mRegistered = false;
+        clear();
+    }
+
+    public synchronized void clear() {
+        mContacts.clear();
+        mGeneration++;
+    }
+
+    /**
+     * Get the contact of a phone number.
+     * @return the contact, with null id and name when the number has none
+     */
+    public Contact getContact(String phone) {
+        if (TextUtils.isEmpty(phone)) {
+            return NO_CONTACT;
+        }
+        int generation;
+        synchronized (this) {
+            Contact contact = mContacts.get(phone);
+            if (contact != null) return contact;
+            generation = mGeneration;
+        }
+        // Not holding the lock, the query may wait for the contacts provider
+        Contact contact = queryContact(phone);
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mContacts.put(phone, contact);
+            } else if (V) {
+                Log.v(TAG, "Contacts changed during the lookup, not caching it");
+            }
+        }
+        return contact;
+    }
+
+    /**
+     * Get the display name of the contact of a phone number.
+     * @return the name, or an empty string when the number has no contact
+     */
+    public String getName(String phone) {
+        String name = getContact(phone).name;
+        return name != null ? name : "";
+    }
+
+    /**
+     * Get the e-mail addresses of a contact.
+     * @return the addresses, or null when there is no contact
+     */
+    public String[] getEmailAddresses(Contact contact) {
+        if (contact.id == null) {
+            return null;
+        }
+        synchronized (this) {
+            if (contact.mEmailAddresses != null) return contact.mEmailAddresses;
+        }
+        String[] emailAddresses = queryEmailAddresses(contact.id);
+        synchronized (this) {
+            contact.mEmailAddresses = emailAddresses;
+        }
+        return emailAddresses;
+    }
+
+    private Contact queryContact(String phone) {
+        Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(phone));
+        String selection = Contacts.IN_VISIBLE_GROUP + "=1";
+        String orderBy = Contacts.DISPLAY_NAME + " ASC";
+
+        Cursor c = mResolver.query(uri, CONTACT_PROJECTION, selection, null, orderBy);
+        try {
+            if (c != null && c.moveToFirst()) {
+                return new Contact(c.getString(c.getColumnIndex(Contacts._ID)),
+                        c.getString(c.getColumnIndex(Contacts.DISPLAY_NAME)));
+            }
+        } finally {
+            if (c != null) c.close();
+        }
+        return NO_CONTACT;
+    }
+
+    private String[] queryEmailAddresses(String contactId) {
+        Cursor c = mResolver.query(ContactsContract.CommonDataKinds.Email.CONTENT_URI,
+                EMAIL_PROJECTION, ContactsContract.CommonDataKinds.Email.CONTACT_ID + " = ?",
+                new String[] {contactId}, null);
+        if (c == null) {
+            return new String[0];
+        }
+        try {
+            String[] emailAddresses = new String[c.getCount()];
+            int i = 0;
+            while (c.moveToNext() && i < emailAddresses.length) {
+                emailAddresses[i++] = c.getString(0);
+            }
+            return emailAddresses;
+        } finally {
+            c.close();
+        }
+    }
+}
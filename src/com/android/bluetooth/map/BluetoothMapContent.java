@@ -35,8 +35,6 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.provider.BaseColumns;
 import android.provider.ContactsContract;
-import android.provider.ContactsContract.Contacts;
-import android.provider.ContactsContract.PhoneLookup;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.Sms;
 import android.provider.Telephony.Threads;
@@ -60,6 +58,7 @@ import com.android.bluetooth.map.BluetoothMapAppParams;
 
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.OutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -102,6 +101,8 @@ public class BluetoothMapContent {
     private static final int MASK_PROTECTED = 0x4000;
     private static final int MASK_REPLYTO_ADDRESSING = 0x8000;
     private static final String HONDA_CARKIT = "64:D4:BD";
+    private static final String PCM_CARKIT = "9C:DF:03";
+    private static final String FORD_SYNC_CARKIT = "00:1E:AE";
 
     /* OMA-TS-MMS-ENC defined many types in X-Mms-Message-Type.
        Only m-send-req (128) m-retrieve-conf (132), m-notification-ind (130)
@@ -141,6 +142,13 @@ public class BluetoothMapContent {
 
     private Context mContext;
     private ContentResolver mResolver;
+    private final BluetoothMapContactCache mContactCache;
+    private boolean mClosed = false;
+    private static final String[] COUNT_PROJECTION = new String[] {"count(*)"};
+    private static final String[] ID_PROJECTION = new String[] {BaseColumns._ID};
+
+    /* Observer of the SMS and MMS tables, whose indexes answer listing size queries */
+    private BluetoothMapContentObserver mObserver;
     private static final String[] ACCOUNT_ID_PROJECTION = new String[] {
                          RECORD_ID, EMAIL_ADDRESS, IS_DEFAULT
     };
@@ -201,12 +209,79 @@ public class BluetoothMapContent {
         String phoneAlphaTag = null;
     }
 
-    public BluetoothMapContent(final Context context) {
+    /* The address of the MCE of the session, for its workarounds */
+    private final String mRemoteAddress;
+
+    public BluetoothMapContent(final Context context, String remoteAddress) {
         mContext = context;
+        mRemoteAddress = remoteAddress != null ? remoteAddress : "";
         mResolver = mContext.getContentResolver();
         if (mResolver == null) {
             Log.e(TAG, "getContentResolver failed");
         }
+        mContactCache = BluetoothMapContactCache.acquire(mResolver);
+    }
+
+    /**
+     * Release the resources of the session, the content cannot be used afterwards.
+     */
+    public synchronized void close() {
+        if (mClosed) return;
+        mClosed = true;
+        BluetoothMapContactCache.release(mContactCache);
+    }
+
+    /**
+     * Set the observer of the SMS and MMS messages of the session. While it is
+     * registered, its indexes answer the listing size and unread queries.
+     */
+    public void setContentObserver(BluetoothMapContentObserver observer) {
+        mObserver = observer;
+    }
+
+    /**
+     * Count the rows matching a where clause, with a COUNT(*) in the provider
+     * when it accepts one, else without reading more than the ids.
+     */
+    private int countRows(Uri uri, String where) {
+        Cursor c = null;
+        try {
+            c = mResolver.query(uri, COUNT_PROJECTION, where, null, null);
+            if (c != null && c.moveToFirst()) {
+                return c.getInt(0);
+            }
+        } catch (RuntimeException e) {
+            if (V) Log.v(TAG, "countRows: no COUNT(*) for " + uri + ": " + e);
+        } finally {
+            close(c);
+        }
+
+        c = mResolver.query(uri, ID_PROJECTION, where, null, null);
+        try {
+            return c != null ? c.getCount() : 0;
+        } finally {
+            close(c);
+        }
+    }
+
+    /**
+     * Check if a row matches a where clause, without reading past the first one.
+     */
+    private boolean hasRows(Uri uri, String where) {
+        Cursor c = mResolver.query(uri, ID_PROJECTION, where, null,
+                BaseColumns._ID + " LIMIT 1");
+        try {
+            return c != null && c.moveToFirst();
+        } finally {
+            close(c);
+        }
+    }
+
+    private int getIndexedMessageCount(FilterInfo fi, String folder, BluetoothMapAppParams ap,
+            boolean unreadOnly, boolean listedOnly) {
+        if (mObserver == null) return -1;
+        return mObserver.getIndexedMessageCount(fi.msgType == FilterInfo.TYPE_MMS, folder, ap,
+                unreadOnly, listedOnly);
     }
 
     private void addSmsEntry() {
@@ -1035,7 +1110,7 @@ public class BluetoothMapContent {
         if(subLength == BluetoothMapAppParams.INVALID_VALUE_PARAMETER)
             subLength = 256;
 
-        if (BluetoothMapService.getRemoteDevice().getAddress().startsWith(HONDA_CARKIT) ||
+        if (mRemoteAddress.startsWith(HONDA_CARKIT) ||
                          (ap.getParameterMask() & MASK_SUBJECT) != 0) {
             if (fi.msgType == FilterInfo.TYPE_SMS) {
                 subject = c.getString(c.getColumnIndex(Sms.BODY));
@@ -1108,27 +1183,7 @@ public class BluetoothMapContent {
     }
 
     private String getContactNameFromPhone(String phone) {
-        String name = "";
-        if (TextUtils.isEmpty(phone)) {
-           return name;
-        }
-        Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,
-            Uri.encode(phone));
-
-        String[] projection = {Contacts._ID, Contacts.DISPLAY_NAME};
-        String selection = Contacts.IN_VISIBLE_GROUP + "=1";
-        String orderBy = Contacts.DISPLAY_NAME + " ASC";
-
-        Cursor c = mResolver.query(uri, projection, selection, null, orderBy);
-        try {
-            if (c != null && c.getCount() >= 1) {
-                c.moveToFirst();
-                name = c.getString(c.getColumnIndex(Contacts.DISPLAY_NAME));
-            };
-        } finally {
-            close(c);
-        }
-        return name;
+        return mContactCache.getName(phone);
     }
 
     static public String getAddressMms(ContentResolver r, long id, int type) {
@@ -2177,6 +2232,10 @@ public class BluetoothMapContent {
      * which is guaranteed to be supported on an android device
      */
     public byte[] getEmailMessage(long id, BluetoothMapAppParams appParams) throws UnsupportedEncodingException {
+        return getEmailBMessage(id, appParams).encodeEmail();
+    }
+
+    private BluetoothMapbMessageMmsEmail getEmailBMessage(long id, BluetoothMapAppParams appParams) {
         if (V) Log.v(TAG, "getEmailMessage with is " + id);
         int msgBox, threadId;
         String urlEmail = "content://com.android.email.provider/message";
@@ -2209,7 +2268,7 @@ public class BluetoothMapContent {
 
             c.close();
 
-            return message.encodeEmail();
+            return message;
         }
         else if(c != null) {
             c.close();
@@ -2288,13 +2347,7 @@ public class BluetoothMapContent {
         if (emailSelected(fi, ap)) {
             fi.msgType = FilterInfo.TYPE_EMAIL;
             String where = setWhereFilter(folder, fi, ap);
-            Cursor c = mResolver.query(uriEmail,
-                EMAIL_PROJECTION, where, null, "timeStamp desc");
-
-            if (c != null) {
-                cnt += c.getCount();
-                c.close();
-            }
+            cnt += countRows(uriEmail, where);
         }
 
         if (D) Log.d(TAG, "msgListingSize: size = " + cnt);
@@ -2321,13 +2374,7 @@ public class BluetoothMapContent {
             String where = setWhereFilterFolderType(folder, fi);
             where += " AND flagRead=0 ";
             where += setWhereFilterPeriod(ap, fi);
-            Cursor c = mResolver.query(uriEmail,
-                EMAIL_PROJECTION, where, null, "timeStamp desc");
-
-            if (c != null) {
-                cnt += c.getCount();
-                c.close();
-            }
+            if (hasRows(uriEmail, where)) cnt++;
         }
 
         if (D) Log.d(TAG, "msgListingHasUnread: numUnread = " + cnt);
@@ -2351,52 +2398,76 @@ public class BluetoothMapContent {
         /* Cache some info used throughout filtering */
         FilterInfo fi = new FilterInfo();
         setFilterInfo(fi);
-        if (smsSelected(fi, ap)) {
-            fi.msgType = FilterInfo.TYPE_SMS;
-            if(ap.getFilterPriority() != 1){ /*SMS cannot have high priority*/
-                String where = setWhereFilter(folder, fi, ap);
 
-                Cursor c = mResolver.query(Sms.CONTENT_URI,
-                    SMS_PROJECTION, where, null, "date DESC");
-
-                if (c != null) {
-                    while (c.moveToNext()) {
-                        if (matchAddresses(c, fi, ap)) {
-                            printSms(c);
-                            e = element(c, fi, ap);
-                            bmList.add(e);
-                        }
-                    }
-                    c.close();
-                }
-            }
+        /* The page is cut from the SMS and MMS lists merged on date, so each list
+         * contributes at most offset + count rows. When no address filter is set,
+         * every row of the queries goes in the listing and the limit can be
+         * pushed down to the provider. */
+        int offset = Math.max(ap.getStartOffset(), 0);
+        int count = ap.getMaxListCount();
+        if (count < 0) count = Integer.MAX_VALUE - offset;
+        String orderBy = "date DESC";
+        if (ap.getFilterOriginator() == null && ap.getFilterRecipient() == null) {
+            orderBy += " LIMIT " + (offset + count);
         }
 
-        if (mmsSelected(fi, ap)) {
-            fi.msgType = FilterInfo.TYPE_MMS;
+        Cursor smsCursor = null;
+        Cursor mmsCursor = null;
+        try {
+            if (smsSelected(fi, ap) && ap.getFilterPriority() != 1) {
+                /*SMS cannot have high priority*/
+                fi.msgType = FilterInfo.TYPE_SMS;
+                String where = setWhereFilter(folder, fi, ap);
+                smsCursor = mResolver.query(Sms.CONTENT_URI,
+                    SMS_PROJECTION, where, null, orderBy);
+            }
 
-            String where = setWhereFilter(folder, fi, ap);
-            where += " AND " + INTERESTED_MESSAGE_TYPE_CLAUSE;
-            Cursor c = mResolver.query(Mms.CONTENT_URI,
-                MMS_PROJECTION, where, null, "date DESC");
-
-            if (c != null) {
-                int cnt = 0;
-                while (c.moveToNext()) {
-                    if (matchAddresses(c, fi, ap)) {
-                        printMms(c);
+            if (mmsSelected(fi, ap)) {
+                fi.msgType = FilterInfo.TYPE_MMS;
+                String where = setWhereFilter(folder, fi, ap);
+                where += " AND " + INTERESTED_MESSAGE_TYPE_CLAUSE;
+                mmsCursor = mResolver.query(Mms.CONTENT_URI,
+                    MMS_PROJECTION, where, null, orderBy);
+            }
+
+            boolean smsNext = smsCursor != null && smsCursor.moveToNext();
+            boolean mmsNext = mmsCursor != null && mmsCursor.moveToNext();
+            int smsDate = smsNext ? smsCursor.getColumnIndex(Sms.DATE) : -1;
+            int mmsDate = mmsNext ? mmsCursor.getColumnIndex(Mms.DATE) : -1;
+            int skipped = 0;
+            int added = 0;
+            while ((smsNext || mmsNext) && added < count) {
+                /* MMS dates are in seconds, SMS dates in milliseconds. On equal
+                 * dates the SMS goes first, as the listing sort used to do. */
+                boolean sms = smsNext && (!mmsNext
+                        || smsCursor.getLong(smsDate) >= mmsCursor.getLong(mmsDate) * 1000L);
+                Cursor c = sms ? smsCursor : mmsCursor;
+                fi.msgType = sms ? FilterInfo.TYPE_SMS : FilterInfo.TYPE_MMS;
+                if (matchAddresses(c, fi, ap)) {
+                    if (skipped < offset) {
+                        skipped++;
+                    } else {
+                        if (sms) {
+                            printSms(c);
+                        } else {
+                            printMms(c);
+                        }
                         e = element(c, fi, ap);
                         bmList.add(e);
+                        added++;
                     }
                 }
-                c.close();
+                if (sms) {
+                    smsNext = smsCursor.moveToNext();
+                } else {
+                    mmsNext = mmsCursor.moveToNext();
+                }
             }
+        } finally {
+            if (smsCursor != null) smsCursor.close();
+            if (mmsCursor != null) mmsCursor.close();
         }
 
-        /* Enable this if post sorting and segmenting needed */
-        bmList.sort();
-        bmList.segment(ap.getMaxListCount(), ap.getStartOffset());
-
         return bmList;
     }
 
@@ -2410,26 +2481,24 @@ public class BluetoothMapContent {
 
         if (smsSelected(fi, ap)) {
             fi.msgType = FilterInfo.TYPE_SMS;
-            String where = setWhereFilter(folder, fi, ap);
-            Cursor c = mResolver.query(Sms.CONTENT_URI,
-                SMS_PROJECTION, where, null, "date DESC");
-
-            if (c != null) {
-               cnt = c.getCount();
-               c.close();
+            int indexed = getIndexedMessageCount(fi, folder, ap, false, false);
+            if (indexed != -1) {
+                cnt = indexed;
+            } else {
+                String where = setWhereFilter(folder, fi, ap);
+                cnt = countRows(Sms.CONTENT_URI, where);
             }
         }
 
         if (mmsSelected(fi, ap)) {
             fi.msgType = FilterInfo.TYPE_MMS;
-            String where = setWhereFilter(folder, fi, ap);
-            where += " AND " + INTERESTED_MESSAGE_TYPE_CLAUSE;
-            Cursor c = mResolver.query(Mms.CONTENT_URI,
-                MMS_PROJECTION, where, null, "date DESC");
-
-            if (c != null) {
-                cnt += c.getCount();
-                c.close();
+            int indexed = getIndexedMessageCount(fi, folder, ap, false, true);
+            if (indexed != -1) {
+                cnt += indexed;
+            } else {
+                String where = setWhereFilter(folder, fi, ap);
+                where += " AND " + INTERESTED_MESSAGE_TYPE_CLAUSE;
+                cnt += countRows(Mms.CONTENT_URI, where);
             }
         }
 
@@ -2452,27 +2521,28 @@ public class BluetoothMapContent {
 
         if (smsSelected(fi, ap)) {
             fi.msgType = FilterInfo.TYPE_SMS;
-            String where = setWhereFilterFolderType(folder, fi);
-            where += " AND read=0 ";
-            where += setWhereFilterPeriod(ap, fi);
-            Cursor c = mResolver.query(Sms.CONTENT_URI,
-                    SMS_PROJECTION, where, null, "date DESC");
-
-            if (c != null) cnt += c.getCount();
-            c.close();
+            int indexed = getIndexedMessageCount(fi, folder, ap, true, false);
+            if (indexed != -1) {
+                cnt += indexed;
+            } else {
+                String where = setWhereFilterFolderType(folder, fi);
+                where += " AND read=0 ";
+                where += setWhereFilterPeriod(ap, fi);
+                if (hasRows(Sms.CONTENT_URI, where)) cnt++;
+            }
         }
 
-        if (mmsSelected(fi, ap)) {
+        /* One unread message is enough */
+        if (cnt == 0 && mmsSelected(fi, ap)) {
             fi.msgType = FilterInfo.TYPE_MMS;
-            String where = setWhereFilterFolderType(folder, fi);
-            where += " AND read=0 ";
-            where += setWhereFilterPeriod(ap, fi);
-            Cursor c = mResolver.query(Mms.CONTENT_URI,
-                MMS_PROJECTION, where, null, "date DESC");
-
-            if (c != null) {
-               cnt += c.getCount();
-               c.close();
+            int indexed = getIndexedMessageCount(fi, folder, ap, true, false);
+            if (indexed != -1) {
+                cnt += indexed;
+            } else {
+                String where = setWhereFilterFolderType(folder, fi);
+                where += " AND read=0 ";
+                where += setWhereFilterPeriod(ap, fi);
+                if (hasRows(Mms.CONTENT_URI, where)) cnt++;
             }
         }
 
@@ -2515,6 +2585,29 @@ public class BluetoothMapContent {
     }
 
     public byte[] getMessage(String handle, BluetoothMapAppParams appParams) throws UnsupportedEncodingException{
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            getMessage(handle, appParams, out);
+        } catch (UnsupportedEncodingException e) {
+            throw e;
+        } catch (IOException e) {
+            Log.w(TAG, "getMessage", e);
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Write the bMessage of a message to a stream. The message is looked up
+     * before anything is written, MMS attachments are read from the provider
+     * while they are written.
+     * @param handle the MAP handle of the message
+     * @param appParams The application parameter object received from the client.
+     * @param out the stream to write to, it is not closed
+     * @throws IllegalArgumentException if the handle or the charset is invalid
+     */
+    public void getMessage(String handle, BluetoothMapAppParams appParams, OutputStream out)
+            throws IOException {
         TYPE type = BluetoothMapUtils.getMsgTypeFromHandle(handle);
         long id = BluetoothMapUtils.getCpHandle(handle);
         if(appParams == null){
@@ -2523,17 +2616,20 @@ public class BluetoothMapContent {
         switch(type) {
         case SMS_GSM:
         case SMS_CDMA:
-            return getSmsMessage(id, appParams.getCharset());
+            out.write(getSmsMessage(id, appParams.getCharset()));
+            return;
         case MMS:
             if(appParams.getCharset()== MAP_MESSAGE_CHARSET_NATIVE) {
                 throw new IllegalArgumentException("Invalid Charset: Native for Message Type MMS");
             }
-            return getMmsMessage(id, appParams);
+            getMmsBMessage(id, appParams).encodeMms(out);
+            return;
         case EMAIL:
             if(appParams.getCharset()== MAP_MESSAGE_CHARSET_NATIVE) {
                 throw new IllegalArgumentException("Invalid Charset: Native for Message Type Email");
             }
-            return getEmailMessage(id, appParams);
+            getEmailBMessage(id, appParams).encodeEmail(out);
+            return;
         }
         throw new IllegalArgumentException("Invalid message handle.");
     }
@@ -2563,55 +2659,11 @@ public class BluetoothMapContent {
         if (TextUtils.isEmpty(phone)) {
            return;
         }
-        String contactId = null, contactName = null;
-        String[] phoneNumbers = null;
-        String[] emailAddresses = null;
-
-        Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,
-                Uri.encode(phone));
-
-        String[] projection = {Contacts._ID, Contacts.DISPLAY_NAME};
-        String selection = Contacts.IN_VISIBLE_GROUP + "=1";
-        String orderBy = Contacts._ID + " ASC";
-
-        // Get the contact _ID and name
-        Cursor p = mResolver.query(uri, projection, selection, null, orderBy);
-
-        try {
-            if (p != null && p.getCount() >= 1) {
-                p.moveToFirst();
-                contactId = p.getString(p.getColumnIndex(Contacts._ID));
-                contactName = p.getString(p.getColumnIndex(Contacts.DISPLAY_NAME));
-            }
-
-            // Bail out if we are unable to find a contact, based on the phone number
-            if(contactId == null) {
-                phoneNumbers = new String[1];
-                phoneNumbers[0] = phone;
-            } else {
-                // use only actual phone number
-                phoneNumbers = new String[1];
-                phoneNumbers[0] = phone;
-
-                // Fetch contact e-mail addresses
-                close (p);
-                p = mResolver.query(ContactsContract.CommonDataKinds.Email.CONTENT_URI, null,
-                        ContactsContract.CommonDataKinds.Phone.CONTACT_ID + " = ?",
-                        new String[]{contactId},
-                        null);
-                if (p != null) {
-                    int i = 0;
-                    emailAddresses = new String[p.getCount()];
-                    while (p != null && p.moveToNext()) {
-                        String emailAddress = p.getString(
-                            p.getColumnIndex(ContactsContract.CommonDataKinds.Email.ADDRESS));
-                        emailAddresses[i++] = emailAddress;
-                    }
-                }
-            }
-        } finally {
-            close(p);
-        }
+        BluetoothMapContactCache.Contact contact = mContactCache.getContact(phone);
+        String contactName = contact.name;
+        // use only actual phone number
+        String[] phoneNumbers = new String[] {phone};
+        String[] emailAddresses = mContactCache.getEmailAddresses(contact);
         if(incoming == true)
             message.addOriginator(contactName, contactName, phoneNumbers, emailAddresses); // Use version 3.0 as we only have a formatted name
         else
@@ -2666,11 +2718,17 @@ public class BluetoothMapContent {
                 setVCardFromPhoneNumber(message, phone, false);
 
             if(charset == MAP_MESSAGE_CHARSET_NATIVE) {
-                if(type == 1) //Inbox
-                    message.setSmsBodyPdus(BluetoothMapSmsPdu.getDeliverPdus(msgBody, phone, time));
-                else
-                    message.setSmsBodyPdus(BluetoothMapSmsPdu.getSubmitPdus(msgBody, phone));
+                // Inbox messages are sent as deliver PDUs
+                message.setSmsBodyPdus(BluetoothMapSmsPduCache.getInstance().getPdus(id,
+                        msgBody, phone, time, type == 1, tm.getPhoneType()));
             } else /*if (charset == MAP_MESSAGE_CHARSET_UTF8)*/ {
+                /* fix iot issue with PCM carkit where carkit is unable to parse
+                   message if carriage return is present in it */
+                if (msgBody != null && mRemoteAddress.startsWith(PCM_CARKIT)) {
+                    msgBody = msgBody.replaceAll("\r", "");
+                } else if (msgBody != null && mRemoteAddress.startsWith(FORD_SYNC_CARKIT)) {
+                    msgBody = msgBody.replaceAll("\n", "");
+                }
                 message.setSmsBody(msgBody);
             }
         } finally {
@@ -2762,6 +2820,13 @@ public class BluetoothMapContent {
         return retVal;
     }
 
+    /* Text parts are sent as they are, the others are Base64 encoded */
+    private static boolean isTextPart(String contentType) {
+        if (contentType == null) return false;
+        String type = contentType.toUpperCase();
+        return type.contains("TEXT") || type.contains("SMIL");
+    }
+
     /**
      * Read out the mms parts and update the bMessage object provided i {@linkplain message}
      * @param id the content provider ID of the message
@@ -2819,17 +2884,30 @@ public class BluetoothMapContent {
                         part.charsetName = "utf-8";
                     }
                     else {
-                        part.data = readMmsDataPart(partId);
+                        if (isTextPart(contentType)) {
+                            part.data = readMmsDataPart(partId);
+                        } else if (message.getIncludeAttachments()) {
+                            // Streamed from the provider when the bMessage is written
+                            MmsPartData data = new MmsPartData(partId);
+                            try {
+                                data.getLength();
+                                part.dataSource = data;
+                            } catch (IOException e) {
+                                Log.w(TAG,"Error reading part data",e);
+                            }
+                        }
                         if(charset != null)
                             part.charsetName = CharacterSets.getMimeName(Integer.parseInt(charset));
                     }
                 } catch (NumberFormatException e) {
                     Log.d(TAG,"extractMmsParts",e);
                     part.data = null;
+                    part.dataSource = null;
                     part.charsetName = null;
                 } catch (UnsupportedEncodingException e) {
                     Log.d(TAG,"extractMmsParts",e);
                     part.data = null;
+                    part.dataSource = null;
                     part.charsetName = null;
                 } finally {
                 }
@@ -2850,6 +2928,14 @@ public class BluetoothMapContent {
      * which is guaranteed to be supported on an android device
      */
     public byte[] getMmsMessage(long id, BluetoothMapAppParams appParams) throws UnsupportedEncodingException {
+        return getMmsBMessage(id, appParams).encodeMms();
+    }
+
+    /**
+     * Look up a MMS, with the data of its non-text parts left in the provider.
+     * @throws IllegalArgumentException if there is no such MMS
+     */
+    private BluetoothMapbMessageMmsEmail getMmsBMessage(long id, BluetoothMapAppParams appParams) {
         int msgBox, threadId;
         BluetoothMapbMessageMmsEmail message = new BluetoothMapbMessageMmsEmail();
         Cursor c = mResolver.query(Mms.CONTENT_URI, MMS_PROJECTION, "_ID = " + id, null, null);
@@ -2884,6 +2970,58 @@ public class BluetoothMapContent {
             close(c);
         }
 
-        return message.encode();
+        return message;
+    }
+
+    /* The data of a MMS part, read from the provider when the bMessage is written */
+    private class MmsPartData implements BluetoothMapbMessageMmsEmail.DataSource {
+        private final Uri mUri;
+        private long mLength = -1;
+
+        MmsPartData(long partId) {
+            mUri = Uri.parse(String.format("content://mms/part/%d", partId));
+        }
+
+        @Override
+        public long getLength() throws IOException {
+            if (mLength < 0) {
+                mLength = queryLength();
+            }
+            return mLength;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            InputStream is = mResolver.openInputStream(mUri);
+            if (is == null) {
+                throw new FileNotFoundException(mUri.toString());
+            }
+            return is;
+        }
+
+        private long queryLength() throws IOException {
+            ParcelFileDescriptor fd = mResolver.openFileDescriptor(mUri, "r");
+            if (fd != null) {
+                try {
+                    long size = fd.getStatSize();
+                    if (size >= 0) return size;
+                } finally {
+                    fd.close();
+                }
+            }
+            // Not a file, count the data
+            InputStream is = open();
+            try {
+                byte[] buffer = new byte[8192];
+                long length = 0;
+                int len;
+                while ((len = is.read(buffer)) != -1) {
+                    length += len;
+                }
+                return length;
+            } finally {
+                is.close();
+            }
+        }
     }
 }
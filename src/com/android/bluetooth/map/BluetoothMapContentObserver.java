@@ -20,6 +20,7 @@ import java.io.Closeable;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
@@ -45,6 +46,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.text.format.Time;
 import android.os.Handler;
@@ -154,7 +156,7 @@ public class BluetoothMapContentObserver {
                 Log.d(TAG, "onChange on thread: " + Thread.currentThread().getId()
                    + " Uri: " + uri.toString() + " selfchange: " + selfChange);
 
-            handleMsgListChanges();
+            handleMsgListChanges(uri);
         }
     };
 
@@ -178,7 +180,7 @@ public class BluetoothMapContentObserver {
         "outbox",
     };
 
-    public class Event {
+    public static class Event {
         String eventType;
         long handle;
         String folder;
@@ -241,21 +243,57 @@ public class BluetoothMapContentObserver {
         }
     }
 
-    public class Msg {
-        long id;
-        int type;
+    /* The messages known to the MCE. Changes are found by comparing the tables to these.
+     * Holding the lock of an index while changing its table keeps the change from
+     * being reported, for operations initiated by the MCE. */
+    private final BluetoothMapMessageIndex mMsgListSms = new BluetoothMapMessageIndex(false);
+    private final BluetoothMapMessageIndex mMsgListMms = new BluetoothMapMessageIndex(true);
 
-        public Msg(long id, int type) {
-            this.id = id;
-            this.type = type;
-        }
-    }
+    /* The indexes are only kept up to date while the observer is registered */
+    private volatile boolean mIndexReady = false;
+
+    /* Columns of the message indexes */
+    private static final String[] SMS_INDEX_PROJECTION = new String[] {
+        BaseColumns._ID,
+        Sms.THREAD_ID,
+        Sms.TYPE,
+        Sms.READ,
+        Sms.DATE,
+    };
+
+    private static final String[] MMS_INDEX_PROJECTION = new String[] {
+        BaseColumns._ID,
+        Mms.THREAD_ID,
+        Mms.MESSAGE_BOX,
+        Mms.MESSAGE_TYPE,
+        Mms.READ,
+        Mms.DATE,
+    };
+
+    /* Aggregates of the tables, in the order of BluetoothMapMessageIndex.getSummary() */
+    private static final String[] SMS_SUMMARY_PROJECTION = new String[] {
+        "count(*)",
+        "ifnull(max(" + BaseColumns._ID + "), -1)",
+        "sum(" + Sms.READ + " <> 0)",
+        "sum(" + Sms.THREAD_ID + " = " + DELETED_THREAD_ID + ")",
+        "count(*)",
+        "sum(" + Sms.TYPE + ")",
+    };
 
-    private Map<Long, Msg> mMsgListSms =
-        Collections.synchronizedMap(new HashMap<Long, Msg>());
+    private static final String[] MMS_SUMMARY_PROJECTION = new String[] {
+        "count(*)",
+        "ifnull(max(" + BaseColumns._ID + "), -1)",
+        "sum(" + Mms.READ + " <> 0)",
+        "sum(" + Mms.THREAD_ID + " = " + DELETED_THREAD_ID + ")",
+        "sum(" + Mms.MESSAGE_TYPE + " IN (" + PduHeaders.MESSAGE_TYPE_SEND_REQ + ", "
+            + PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND + ", "
+            + PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF + "))",
+        "sum(" + Mms.MESSAGE_BOX + ")",
+    };
 
-    private Map<Long, Msg> mMsgListMms =
-        Collections.synchronizedMap(new HashMap<Long, Msg>());
+    /* Message boxes of the SMS and MMS content URIs, other paths are not single messages */
+    private static final Set<String> MESSAGE_BOX_PATHS = new HashSet<String>(Arrays.asList(
+        "inbox", "sent", "draft", "drafts", "outbox", "failed", "queued"));
 
     /*
      * Class to hold message handle for MCE Initiated operation
@@ -331,11 +369,16 @@ public class BluetoothMapContentObserver {
         mMasId = masId;
         mMnsClient = mns;
         mResolver.registerContentObserver(MmsSms.CONTENT_URI, false, mObserver);
+        /* The Sms and Mms Uris tell which message changed, when only one did */
+        mResolver.registerContentObserver(Sms.CONTENT_URI, true, mObserver);
+        mResolver.registerContentObserver(Mms.CONTENT_URI, true, mObserver);
         initMsgList();
+        mIndexReady = true;
     }
 
     public void unregisterObserver() {
         if (V) Log.d(TAG, "unregisterObserver");
+        mIndexReady = false;
         mResolver.unregisterContentObserver(mObserver);
         mMnsClient = null;
     }
@@ -355,11 +398,7 @@ public class BluetoothMapContentObserver {
         Log.d(TAG, "location is "+location);
         // 'SendingSuccess' is triggered only for MCE initiated case
         if(location == -1 || evt.eventType.equalsIgnoreCase("SendingSuccess")) {
-            try {
-                mMnsClient.sendEvent(evt.encode(), mMasId);
-            } catch (UnsupportedEncodingException ex) {
-                Log.w(TAG, ex);
-            }
+            mMnsClient.queueEvent(evt, mMasId);
         } else {
             Log.d(TAG, "Not MCE initiated operation" +location);
             return;
@@ -369,177 +408,348 @@ public class BluetoothMapContentObserver {
     private void initMsgList() {
         if (V) Log.d(TAG, "initMsgList");
 
-        mMsgListSms.clear();
-        mMsgListMms.clear();
-
-
-        HashMap<Long, Msg> msgListSms = new HashMap<Long, Msg>();
-
         Cursor c = mResolver.query(Sms.CONTENT_URI,
-            SMS_PROJECTION, null, null, null);
-
+            SMS_INDEX_PROJECTION, null, null, null);
 
+        synchronized(mMsgListSms) {
+            mMsgListSms.clear();
             try {
                 while (c != null && c.moveToNext()) {
-                    long id = c.getLong(c.getColumnIndex(Sms._ID));
-                    int type = c.getInt(c.getColumnIndex(Sms.TYPE));
+                    mMsgListSms.put(c.getLong(0), getSmsIndexEntry(c));
+                }
+            } finally {
+                close(c);
+            }
+        }
 
-                    Msg msg = new Msg(id, type);
-                    msgListSms.put(id, msg);
+        c = mResolver.query(Mms.CONTENT_URI,
+            MMS_INDEX_PROJECTION, null, null, null);
+
+        synchronized(mMsgListMms) {
+            mMsgListMms.clear();
+            try {
+                while (c != null && c.moveToNext()) {
+                    mMsgListMms.put(c.getLong(0), getMmsIndexEntry(c));
                 }
             } finally {
                 close(c);
             }
+        }
+    }
 
-            synchronized(mMsgListSms) {
-                mMsgListSms.clear();
-                mMsgListSms = msgListSms;
+    /* Index entry of the SMS under a cursor of SMS_INDEX_PROJECTION */
+    private static long getSmsIndexEntry(Cursor c) {
+        long flags = BluetoothMapMessageIndex.FLAG_LISTED;
+        if (c.getLong(1) == DELETED_THREAD_ID) flags |= BluetoothMapMessageIndex.FLAG_DELETED;
+        if (c.getInt(3) != 0) flags |= BluetoothMapMessageIndex.FLAG_READ;
+        return BluetoothMapMessageIndex.entry(c.getInt(2), c.getLong(4), flags);
+    }
+
+    /* Index entry of the MMS under a cursor of MMS_INDEX_PROJECTION */
+    private static long getMmsIndexEntry(Cursor c) {
+        long flags = 0;
+        if (c.getLong(1) == DELETED_THREAD_ID) flags |= BluetoothMapMessageIndex.FLAG_DELETED;
+        int mtype = c.getInt(3);
+        /* m-send-req, m-notification-ind and m-retrieve-conf, as in the listings */
+        if (mtype == PduHeaders.MESSAGE_TYPE_SEND_REQ
+                || mtype == PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND
+                || mtype == PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF) {
+            flags |= BluetoothMapMessageIndex.FLAG_LISTED;
+        }
+        if (c.getInt(4) != 0) flags |= BluetoothMapMessageIndex.FLAG_READ;
+        return BluetoothMapMessageIndex.entry(c.getInt(2), c.getLong(5), flags);
+    }
+
+    /**
+     * Get the id of the message a content Uri points to.
+     * @return the id, or -1 when the Uri is not the Uri of a single message
+     */
+    private static long getMessageId(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() == 0 || segments.size() > 2) return -1;
+        if (segments.size() == 2 && !MESSAGE_BOX_PATHS.contains(segments.get(0))) return -1;
+        try {
+            return Long.parseLong(segments.get(segments.size() - 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /* Send the events of a change of an SMS, entry is NONE when it is gone */
+    private void handleSmsChange(long id, long entry) {
+        long old = mMsgListSms.get(id);
+        if (entry == BluetoothMapMessageIndex.NONE) {
+            BluetoothMapSmsPduCache.getInstance().remove(id);
+            if (old != BluetoothMapMessageIndex.NONE) {
+                mMsgListSms.remove(id);
+                Event evt = new Event("MessageDeleted", id, "deleted",
+                    null, mSmsType);
+                sendEvent(evt);
             }
+            return;
+        }
 
-        c = mResolver.query(Mms.CONTENT_URI,
-            MMS_PROJECTION, null, null, null);
+        int type = BluetoothMapMessageIndex.getBox(entry);
+        if (old == BluetoothMapMessageIndex.NONE) {
+            /* New message */
+            mMsgListSms.put(id, entry);
 
-        HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
+            if (folderSms[type].equals("inbox")) {
+                Event evt = new Event("NewMessage", id, folderSms[type],
+                    null, mSmsType);
+                sendEvent(evt);
+            }
+        } else {
+            /* Existing message */
+            int oldType = BluetoothMapMessageIndex.getBox(old);
+            if (type != oldType) {
+                Log.d(TAG, "new type: " + type + " old type: " + oldType);
+                // Moved to or from the inbox, the PDUs change type
+                BluetoothMapSmsPduCache.getInstance().remove(id);
+                Event evt = new Event("MessageShift", id, folderSms[type],
+                    folderSms[oldType], mSmsType);
+                sendEvent(evt);
+            }
+            mMsgListSms.put(id, entry);
+        }
+    }
 
-            try {
-                while (c != null && c.moveToNext()) {
-                    long id = c.getLong(c.getColumnIndex(Mms._ID));
-                    int type = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX));
+    /* Send the events of a change of an MMS, entry is NONE when it is gone */
+    private void handleMmsChange(long id, long entry, int mtype) {
+        long old = mMsgListMms.get(id);
+        /* MMS not retrieved yet are indexed, but not known to the MCE */
+        boolean known = old != BluetoothMapMessageIndex.NONE
+            && !BluetoothMapMessageIndex.hasFlag(old, BluetoothMapMessageIndex.FLAG_PENDING);
+        if (entry == BluetoothMapMessageIndex.NONE) {
+            if (old != BluetoothMapMessageIndex.NONE) {
+                mMsgListMms.remove(id);
+            }
+            if (known) {
+                Event evt = new Event("MessageDeleted", id, "deleted",
+                    null, TYPE.MMS);
+                sendEvent(evt);
+            }
+            return;
+        }
+
+        int type = BluetoothMapMessageIndex.getBox(entry);
+        if (!known) {
+            /* New message - only notify on retrieve conf */
+            if (folderMms[type].equals("inbox") &&
+                mtype != MESSAGE_TYPE_RETRIEVE_CONF) {
+                    mMsgListMms.put(id, entry | BluetoothMapMessageIndex.FLAG_PENDING);
+                    return;
+            }
 
+            mMsgListMms.put(id, entry);
+
+            if (folderMms[type].equals("inbox")) {
+                Event evt = new Event("NewMessage", id, folderMms[type],
+                    null, TYPE.MMS);
+                sendEvent(evt);
+            }
+        } else {
+            /* Existing message */
+            int oldType = BluetoothMapMessageIndex.getBox(old);
+            mMsgListMms.put(id, entry);
+            if (type != oldType) {
+                Log.d(TAG, "new type: " + type + " old type: " + oldType);
+                Event evt = new Event("MessageShift", id, folderMms[type],
+                    folderMms[oldType], TYPE.MMS);
+                sendEvent(evt);
 
-                    Msg msg = new Msg(id, type );
-                    msgListMms.put(id, msg);
+                // Trigger 'SendingSuccess' for MMS ONLY when local initiated
+                int loc = findLocationMceInitiatedOperation(Long.toString(id));
+                if (folderMms[type].equals("sent")&& loc != -1) {
+                    evt = new Event("SendingSuccess", id,
+                        folderMms[type], null, TYPE.MMS);
+                    sendEvent(evt);
+                    removeMceInitiatedOperation(loc);
                 }
+            }
+        }
+    }
+
+    private void handleMsgChangeSms(long id) {
+        if (V) Log.d(TAG, "handleMsgChangeSms " + id);
+
+        Cursor c = mResolver.query(Sms.CONTENT_URI,
+            SMS_INDEX_PROJECTION, BaseColumns._ID + "=" + id, null, null);
+
+        synchronized(mMsgListSms) {
+            try {
+                handleSmsChange(id, (c != null && c.moveToFirst()) ?
+                    getSmsIndexEntry(c) : BluetoothMapMessageIndex.NONE);
             } finally {
                 close(c);
             }
+        }
+    }
 
-            synchronized(mMsgListMms) {
-                mMsgListMms.clear();
-                mMsgListMms = msgListMms;
+    private void handleMsgChangeMms(long id) {
+        if (V) Log.d(TAG, "handleMsgChangeMms " + id);
+
+        Cursor c = mResolver.query(Mms.CONTENT_URI,
+            MMS_INDEX_PROJECTION, BaseColumns._ID + "=" + id, null, null);
+
+        synchronized(mMsgListMms) {
+            try {
+                if (c != null && c.moveToFirst()) {
+                    handleMmsChange(id, getMmsIndexEntry(c), c.getInt(3));
+                } else {
+                    handleMmsChange(id, BluetoothMapMessageIndex.NONE, 0);
+                }
+            } finally {
+                close(c);
             }
+        }
     }
 
     private void handleMsgListChangesSms() {
         if (V) Log.d(TAG, "handleMsgListChangesSms");
 
-        HashMap<Long, Msg> msgListSms = new HashMap<Long, Msg>();
-
         Cursor c = mResolver.query(Sms.CONTENT_URI,
-            SMS_PROJECTION, null, null, null);
+            SMS_INDEX_PROJECTION, null, null, null);
 
         synchronized(mMsgListSms) {
-            if (c != null && c.moveToFirst()) {
-                do {
-                    long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-                    int type = c.getInt(c.getColumnIndex(Sms.TYPE));
-
-                    Msg msg = mMsgListSms.remove(id);
-
-                    if (msg == null) {
-                        /* New message */
-                        msg = new Msg(id, type);
-                        msgListSms.put(id, msg);
-
-                        if (folderSms[type].equals("inbox")) {
-                            Event evt = new Event("NewMessage", id, folderSms[type],
-                                null, mSmsType);
-                            sendEvent(evt);
-                        }
-                    } else {
-                        /* Existing message */
-                        if (type != msg.type) {
-                            Log.d(TAG, "new type: " + type + " old type: " + msg.type);
-                            Event evt = new Event("MessageShift", id, folderSms[type],
-                                folderSms[msg.type], mSmsType);
-                            sendEvent(evt);
-                            msg.type = type;
-                        }
-                        msgListSms.put(id, msg);
-                    }
-                } while (c.moveToNext());
-                c.close();
+            BluetoothMapMessageIndex current = new BluetoothMapMessageIndex(false);
+            try {
+                while (c != null && c.moveToNext()) {
+                    long id = c.getLong(0);
+                    long entry = getSmsIndexEntry(c);
+                    current.put(id, entry);
+                    handleSmsChange(id, entry);
+                }
+            } finally {
+                close(c);
             }
 
-            for (Msg msg : mMsgListSms.values()) {
-                Event evt = new Event("MessageDeleted", msg.id, "deleted",
-                    null, mSmsType);
-                sendEvent(evt);
+            for (long id : mMsgListSms.getIds()) {
+                if (current.get(id) == BluetoothMapMessageIndex.NONE) {
+                    handleSmsChange(id, BluetoothMapMessageIndex.NONE);
+                }
             }
-
-            mMsgListSms = msgListSms;
         }
     }
 
     private void handleMsgListChangesMms() {
         if (V) Log.d(TAG, "handleMsgListChangesMms");
 
-        HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
-
         Cursor c = mResolver.query(Mms.CONTENT_URI,
-            MMS_PROJECTION, null, null, null);
+            MMS_INDEX_PROJECTION, null, null, null);
 
         synchronized(mMsgListMms) {
-            if (c != null && c.moveToFirst()) {
-                do {
-                    long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-                    int type = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX));
-                    int mtype = c.getInt(c.getColumnIndex(Mms.MESSAGE_TYPE));
-
-                    Msg msg = mMsgListMms.remove(id);
-
-                    if (msg == null) {
-                        /* New message - only notify on retrieve conf */
-                        if (folderMms[type].equals("inbox") &&
-                            mtype != MESSAGE_TYPE_RETRIEVE_CONF) {
-                                continue;
-                        }
-
-                        msg = new Msg(id, type);
-                        msgListMms.put(id, msg);
+            BluetoothMapMessageIndex current = new BluetoothMapMessageIndex(true);
+            try {
+                while (c != null && c.moveToNext()) {
+                    long id = c.getLong(0);
+                    long entry = getMmsIndexEntry(c);
+                    current.put(id, entry);
+                    handleMmsChange(id, entry, c.getInt(3));
+                }
+            } finally {
+                close(c);
+            }
 
-                        if (folderMms[type].equals("inbox")) {
-                            Event evt = new Event("NewMessage", id, folderMms[type],
-                                null, TYPE.MMS);
-                            sendEvent(evt);
-                        }
-                    } else {
-                        /* Existing message */
-                        if (type != msg.type) {
-                            Log.d(TAG, "new type: " + type + " old type: " + msg.type);
-                            Event evt = new Event("MessageShift", id, folderMms[type],
-                                folderMms[msg.type], TYPE.MMS);
-                            sendEvent(evt);
-                            msg.type = type;
-
-                            // Trigger 'SendingSuccess' for MMS ONLY when local initiated
-                            int loc = findLocationMceInitiatedOperation(Long.toString(id));
-                            if (folderMms[type].equals("sent")&& loc != -1) {
-                                evt = new Event("SendingSuccess", id,
-                                    folderMms[type], null, TYPE.MMS);
-                                sendEvent(evt);
-                                removeMceInitiatedOperation(loc);
-                            }
-                        }
-                        msgListMms.put(id, msg);
-                    }
-                } while (c.moveToNext());
-                c.close();
+            for (long id : mMsgListMms.getIds()) {
+                if (current.get(id) == BluetoothMapMessageIndex.NONE) {
+                    handleMmsChange(id, BluetoothMapMessageIndex.NONE, 0);
+                }
             }
+        }
+    }
 
-            for (Msg msg : mMsgListMms.values()) {
-                Event evt = new Event("MessageDeleted", msg.id, "deleted",
-                    null, TYPE.MMS);
-                sendEvent(evt);
+    /**
+     * Find the changes of the messages and send their events. A Uri of a
+     * single message only updates that message, the tables are compared to
+     * the indexes otherwise.
+     */
+    private void handleMsgListChanges(Uri uri) {
+        if (uri == null) {
+            handleMsgListChangesSms();
+            handleMsgListChangesMms();
+            return;
+        }
+
+        String authority = uri.getAuthority();
+        long id = getMessageId(uri);
+        if (Sms.CONTENT_URI.getAuthority().equals(authority)) {
+            if (id != -1) {
+                handleMsgChangeSms(id);
+            } else {
+                handleMsgListChangesSms();
             }
+        } else if (Mms.CONTENT_URI.getAuthority().equals(authority)) {
+            if (id != -1) {
+                handleMsgChangeMms(id);
+            } else {
+                handleMsgListChangesMms();
+            }
+        } else {
+            /* MmsSms is notified with every change of a single message, after its
+             * own Uri, and alone when threads are deleted, marked read or moved.
+             * Only compare a table to its index when their aggregates differ. */
+            if (isTableChanged(Sms.CONTENT_URI, SMS_SUMMARY_PROJECTION, mMsgListSms)) {
+                handleMsgListChangesSms();
+            }
+            if (isTableChanged(Mms.CONTENT_URI, MMS_SUMMARY_PROJECTION, mMsgListMms)) {
+                handleMsgListChangesMms();
+            }
+        }
+    }
 
-            mMsgListMms = msgListMms;
+    /**
+     * Compare the aggregates of a table to those of its index, with a single
+     * row query. Changes that keep all the aggregates, such as a date update,
+     * are only found through the Uri of their message.
+     * @return false when the table matches its index
+     */
+    private boolean isTableChanged(Uri uri, String[] projection,
+            BluetoothMapMessageIndex index) {
+        synchronized(index) {
+            long[] summary = index.getSummary();
+            Cursor c = null;
+            try {
+                c = mResolver.query(uri, projection, null, null, null);
+                if (c == null || !c.moveToFirst()) return true;
+                for (int i = 0; i < summary.length; i++) {
+                    if (c.getLong(i) != summary[i]) {
+                        if (V) Log.v(TAG, uri + " changed, aggregate " + i + ": "
+                            + c.getLong(i) + " indexed " + summary[i]);
+                        return true;
+                    }
+                }
+                return false;
+            } catch (SQLiteException e) {
+                Log.w(TAG, "Cannot compare " + uri + " to its index", e);
+                return true;
+            } finally {
+                close(c);
+            }
         }
     }
 
-    private void handleMsgListChanges() {
-        handleMsgListChangesSms();
-        handleMsgListChangesMms();
+    /**
+     * Count the SMS or MMS messages a listing query would return, from the
+     * message indexes.
+     * @param mms count MMS messages, else SMS messages
+     * @param unreadOnly count only unread messages, ignoring the read status filter
+     * @param listedOnly count only the MMS of the types shown in listings
+     * @return the count, or -1 when the indexes cannot answer
+     */
+    public int getIndexedMessageCount(boolean mms, String folder, BluetoothMapAppParams ap,
+            boolean unreadOnly, boolean listedOnly) {
+        if (!mIndexReady) return -1;
+        int readStatus = ap.getFilterReadStatus();
+        if (unreadOnly) {
+            readStatus = 0x01;
+        } else if (mms && (ap.getFilterPriority() == 1 || ap.getFilterPriority() == 2)) {
+            /* Priority is not indexed */
+            return -1;
+        }
+        BluetoothMapMessageIndex index = mms ? mMsgListMms : mMsgListSms;
+        return index.count(folder, readStatus, ap.getFilterPeriodBegin(),
+            ap.getFilterPeriodEnd(), listedOnly);
     }
 
     private boolean deleteMessageMms(long handle) {
@@ -801,15 +1011,13 @@ public class BluetoothMapContentObserver {
                                 if (D) Log.d(TAG, "pushMessage - failure on add to uri " + contentUri);
                                 return -1;
                             }
-                            Cursor c = mResolver.query(uri, SMS_PROJECTION, null, null, null);
+                            Cursor c = mResolver.query(uri, SMS_INDEX_PROJECTION, null, null, null);
                             try {
                                 /* Extract the data for the inserted message, and store in local mirror, to
                                 * avoid sending a NewMessage Event. */
                                 if (c != null && c.moveToFirst()) {
                                     long id = c.getLong(c.getColumnIndex(Sms._ID));
-                                    int type = c.getInt(c.getColumnIndex(Sms.TYPE));
-                                    Msg newMsg = new Msg(id, type );
-                                    mMsgListSms.put(id, newMsg);
+                                    mMsgListSms.put(id, getSmsIndexEntry(c));
                                 } else {
                                     return -1; // This can only happen, if the message is deleted just as it is added
                                 }
@@ -962,17 +1170,15 @@ public class BluetoothMapContentObserver {
             /* As we already have all the values we need, we could skip the query, but
                doing the query ensures we get any changes made by the content provider
                at insert. */
-            Cursor c = mResolver.query(uri, MMS_PROJECTION, null, null, null);
+            Cursor c = mResolver.query(uri, MMS_INDEX_PROJECTION, null, null, null);
             try {
                 if (c != null && c.moveToFirst()) {
                     long id = c.getLong(c.getColumnIndex(Mms._ID));
-                    int type = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX));
 
                     /* We must filter out any actions made by the MCE. Add the new message to
                      * the list of known messages. */
 
-                    Msg newMsg = new Msg(id, type);
-                    mMsgListMms.put(id, newMsg);
+                    mMsgListMms.put(id, getMmsIndexEntry(c));
                 }
             } finally {
                 close(c);
@@ -1106,8 +1312,25 @@ public class BluetoothMapContentObserver {
 
         // Add data to part
         OutputStream os = mResolver.openOutputStream(res);
-        os.write(part.data);
-        os.close();
+        try {
+            if (part.data != null) {
+                os.write(part.data);
+            } else if (part.dataSource != null) {
+                // Spooled while parsing, copy a buffer at a time
+                InputStream is = part.dataSource.open();
+                try {
+                    byte[] buffer = new byte[8192];
+                    int len;
+                    while ((len = is.read(buffer)) != -1) {
+                        os.write(buffer, 0, len);
+                    }
+                } finally {
+                    is.close();
+                }
+            }
+        } finally {
+            os.close();
+        }
     }
 
 
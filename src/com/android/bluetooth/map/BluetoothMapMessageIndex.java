@@ -0,0 +1,238 @@
+/*
+* Copyright (C) 2014 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.android.bluetooth.map;
+
+import java.util.Arrays;
+
+/**
+ * Index of the messages of the SMS or the MMS table, kept by
+ * {@link BluetoothMapContentObserver} to find what changed in the table and
+ * to answer listing size queries without a provider query.
+ *
+ * Each message is a single long, holding its message box (the SMS type or
+ * the MMS msg_box), its flags and its date, in sorted parallel arrays of ids
+ * and entries. Message ids are allocated in increasing order, so new
+ * messages are appended.
+ *
+ * The messages are also counted by box and flags, so that counts without a
+ * period filter take a constant time.
+ */
+class BluetoothMapMessageIndex {
+    /** Returned for ids not in the index. */
+    static final long NONE = -1;
+
+    private static final long BOX_MASK = 0xf;
+    /** The message has been read. */
+    static final long FLAG_READ = 1 << 4;
+    /** The message is in the deleted folder, its thread id is -1. */
+    static final long FLAG_DELETED = 1 << 5;
+    /** The message is of an MMS type shown in listings, always set for SMS. */
+    static final long FLAG_LISTED = 1 << 6;
+    /** The MMS has not been retrieved yet, no NewMessage event has been sent for it. */
+    static final long FLAG_PENDING = 1 << 7;
+    private static final int DATE_SHIFT = 8;
+
+    /* The counts are by the low bits of the entries: the box, then the read,
+     * deleted and listed flags */
+    private static final int SLOTS = 1 << 7;
+
+    private final boolean mMms;
+    private long[] mIds = new long[64];
+    private long[] mEntries = new long[64];
+    private int mSize = 0;
+    private final int[] mCounts = new int[SLOTS];
+
+    /**
+     * @param mms true for the MMS table, whose dates are in seconds. SMS dates
+     *            are in milliseconds.
+     */
+    BluetoothMapMessageIndex(boolean mms) {
+        mMms = mms;
+    }
+
+    static long entry(int box, long date, long flags) {
+        return (Math.max(date, 0) << DATE_SHIFT) | (flags & ~BOX_MASK) | (box & BOX_MASK);
+    }
+
+    static int getBox(long entry) {
+        return (int) (entry & BOX_MASK);
+    }
+
+    static long getDate(long entry) {
+        return entry >>> DATE_SHIFT;
+    }
+
+    static boolean hasFlag(long entry, long flag) {
+        return (entry & flag) != 0;
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    /** @return the largest id in the index, or -1 when it is empty */
+    synchronized long getMaxId() {
+        return mSize > 0 ? mIds[mSize - 1] : -1;
+    }
+
+    /**
+     * Aggregates of the messages, to be compared with the same aggregates of
+     * the table: the number of messages, the largest id (-1 when empty), the
+     * number read, deleted and listed, and the sum of the message boxes.
+     * Computed from the counts, in a constant time.
+     */
+    synchronized long[] getSummary() {
+        long[] summary = new long[] {mSize, getMaxId(), 0, 0, 0, 0};
+        for (int slot = 0; slot < SLOTS; slot++) {
+            int count = mCounts[slot];
+            if ((slot & FLAG_READ) != 0) summary[2] += count;
+            if ((slot & FLAG_DELETED) != 0) summary[3] += count;
+            if ((slot & FLAG_LISTED) != 0) summary[4] += count;
+            summary[5] += (long) getBox(slot) * count;
+        }
+        return summary;
+    }
+
+    synchronized long[] getIds() {
+        return Arrays.copyOf(mIds, mSize);
+    }
+
+    synchronized long get(long id) {
+        int i = indexOf(id);
+        return i >= 0 ? mEntries[i] : NONE;
+    }
+
+    synchronized void put(long id, long entry) {
+        int i = indexOf(id);
+        if (i >= 0) {
+            mCounts[getSlot(mEntries[i])]--;
+            mCounts[getSlot(entry)]++;
+            mEntries[i] = entry;
+            return;
+        }
+        mCounts[getSlot(entry)]++;
+        i = ~i;
+        if (mSize == mIds.length) {
+            mIds = Arrays.copyOf(mIds, mSize * 2);
+            mEntries = Arrays.copyOf(mEntries, mSize * 2);
+        }
+        System.arraycopy(mIds, i, mIds, i + 1, mSize - i);
+        System.arraycopy(mEntries, i, mEntries, i + 1, mSize - i);
+        mIds[i] = id;
+        mEntries[i] = entry;
+        mSize++;
+    }
+
+    /** @return the entry removed, or {@link #NONE} */
+    synchronized long remove(long id) {
+        int i = indexOf(id);
+        if (i < 0) return NONE;
+        long entry = mEntries[i];
+        mCounts[getSlot(entry)]--;
+        System.arraycopy(mIds, i + 1, mIds, i, mSize - i - 1);
+        System.arraycopy(mEntries, i + 1, mEntries, i, mSize - i - 1);
+        mSize--;
+        return entry;
+    }
+
+    synchronized void clear() {
+        mSize = 0;
+        Arrays.fill(mCounts, 0);
+    }
+
+    private static int getSlot(long entry) {
+        return (int) (entry & (SLOTS - 1));
+    }
+
+    private int indexOf(long id) {
+        // Fast path for the newest message
+        if (mSize > 0 && mIds[mSize - 1] < id) return ~mSize;
+        return Arrays.binarySearch(mIds, 0, mSize, id);
+    }
+
+    /**
+     * Count the messages in a folder, filtered as the where clause of a
+     * listing query would be.
+     * @param folder the MAP folder name
+     * @param readStatus the read status filter of the listing, -1 for none
+     * @param periodBegin the start of the period filter in milliseconds, -1 for none
+     * @param periodEnd the end of the period filter in milliseconds, -1 for none
+     * @param listedOnly count only the messages of the listed MMS types
+     * @return the count, or -1 for a folder the index does not know
+     */
+    synchronized int count(String folder, int readStatus, long periodBegin, long periodEnd,
+            boolean listedOnly) {
+        int folderBoxes = getFolderBoxes(folder);
+        if (folderBoxes == -1) return -1;
+        boolean deletedFolder = folderBoxes == 0;
+
+        long required = listedOnly ? FLAG_LISTED : 0;
+        long mask = required | FLAG_DELETED;
+        long value = required | (deletedFolder ? FLAG_DELETED : 0);
+        if (readStatus != -1) {
+            /* As in the listing query, "read" wins when both are asked */
+            if ((readStatus & 0x02) != 0) {
+                mask |= FLAG_READ;
+                value |= FLAG_READ;
+            } else if ((readStatus & 0x01) != 0) {
+                mask |= FLAG_READ;
+            }
+        }
+        if (periodBegin == -1 && periodEnd == -1) {
+            int count = 0;
+            for (int slot = 0; slot < SLOTS; slot++) {
+                if ((slot & mask) != value) continue;
+                if (!deletedFolder && (folderBoxes & (1 << getBox(slot))) == 0) continue;
+                count += mCounts[slot];
+            }
+            return count;
+        }
+
+        long begin = periodBegin == -1 ? Long.MIN_VALUE : (mMms ? periodBegin / 1000L : periodBegin);
+        long end = periodEnd == -1 ? Long.MAX_VALUE : (mMms ? periodEnd / 1000L : periodEnd);
+
+        int count = 0;
+        for (int i = 0; i < mSize; i++) {
+            long entry = mEntries[i];
+            if ((entry & mask) != value) continue;
+            if (!deletedFolder && (folderBoxes & (1 << getBox(entry))) == 0) continue;
+            long date = getDate(entry);
+            if (date < begin || date > end) continue;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return a bit mask of the message boxes of a folder, 0 for the deleted
+     *         folder, or -1 for an unknown folder
+     */
+    private int getFolderBoxes(String folder) {
+        if ("inbox".equalsIgnoreCase(folder)) {
+            return 1 << 1;
+        } else if ("sent".equalsIgnoreCase(folder)) {
+            return 1 << 2;
+        } else if ("draft".equalsIgnoreCase(folder)) {
+            return 1 << 3;
+        } else if ("outbox".equalsIgnoreCase(folder)) {
+            /* SMS outbox, failed and queued */
+            return mMms ? 1 << 4 : (1 << 4) | (1 << 5) | (1 << 6);
+        } else if ("deleted".equalsIgnoreCase(folder)) {
+            return 0;
+        }
+        return -1;
+    }
+}
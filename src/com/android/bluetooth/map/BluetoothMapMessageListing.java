@@ -15,16 +15,14 @@
 package com.android.bluetooth.map;
 
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import com.android.internal.util.FastXmlSerializer;
-import java.io.UnsupportedEncodingException;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.OutputStreamWriter;
 import org.xmlpull.v1.XmlSerializer;
 
 import android.util.Log;
@@ -33,6 +31,11 @@ import android.util.Xml;
 public class BluetoothMapMessageListing {
     private boolean hasUnread = false;
     private static final String TAG = "BluetoothMapMessageListing";
+    private static final boolean V = Log.isLoggable(BluetoothMapService.LOG_TAG, Log.VERBOSE) ? true : false;
+    /* Written in place of the declaration of the serializer, which carries
+     * the encoding and standalone attributes */
+    private static final byte[] XML_DECLARATION =
+            "<?xml version=\"1.0\"?>".getBytes(Charset.forName("UTF-8"));
     private List<BluetoothMapMessageListingElement> list;
 
     public BluetoothMapMessageListing(){
@@ -80,65 +83,51 @@ public class BluetoothMapMessageListing {
      *             if UTF-8 encoding is unsupported on the platform.
      */
     public byte[] encode() throws UnsupportedEncodingException {
-        Log.d(TAG, "encoding to UTF-8 format");
-        XmlSerializer xmlMsgElement = new FastXmlSerializer();
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        OutputStreamWriter myOutputStreamWriter = null;
         try {
-            myOutputStreamWriter = new OutputStreamWriter(outputStream, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            Log.e(TAG, "Failed to encode: charset=" + "UTF-8");
+            encode(outputStream);
+        } catch (IOException e) {
+            Log.e(TAG, e.toString());
             return null;
         }
+        return outputStream.toByteArray();
+    }
 
-       try {
-            String str1;
-            String str2 = "<?xml version=\"1.0\"?>";
-            xmlMsgElement.setOutput(myOutputStreamWriter);
-            xmlMsgElement.startDocument("UTF-8", true);
-            xmlMsgElement.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
-            xmlMsgElement.text("\n");
-            xmlMsgElement.startTag(null, "MAP-msg-listing");
-            xmlMsgElement.attribute(null, "version", "1.0");
-            // Do the XML encoding of list
-            if(list != null) {
+    /**
+     * Encode the list of BluetoothMapMessageListingElement(s) into a UTF-8
+     * formatted XML-string, written to a stream one element at a time.
+     *
+     * The serializer encodes into a fixed size byte buffer, which is written
+     * to the stream each time it fills up, so the listing is never held in
+     * memory as a whole.
+     *
+     * @param out the stream to write to, it is flushed but not closed
+     * @throws IOException if writing to the stream failed
+     */
+    public void encode(OutputStream out) throws IOException {
+        if (V) Log.v(TAG, "encoding " + getCount() + " elements to UTF-8 format");
+        XmlSerializer xmlMsgElement = new FastXmlSerializer();
+        out.write(XML_DECLARATION);
+        xmlMsgElement.setOutput(out, "UTF-8");
+        xmlMsgElement.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        xmlMsgElement.text("\n");
+        xmlMsgElement.startTag(null, "MAP-msg-listing");
+        xmlMsgElement.attribute(null, "version", "1.0");
+        // Do the XML encoding of list
+        if (list != null) {
             for (BluetoothMapMessageListingElement element : list) {
-                   try {
-                element.encode(xmlMsgElement); // Append the list element
-        } catch (IllegalArgumentException e) {
-                        xmlMsgElement.endTag(null, "msg");
-            Log.w(TAG, e.toString());
-        } catch (IllegalStateException e) {
-            Log.w(TAG, e.toString());
-        } catch (IOException e) {
-            Log.w(TAG, e.toString());
-        }
-               }
-            }
-            xmlMsgElement.endTag(null, "MAP-msg-listing");
-            xmlMsgElement.endDocument();
-
-            try {
-                str1 = outputStream.toString("UTF-8");
-                Log.v(TAG, "Printing XML-Converted String: " + str1);
-                int line1 = 0;
-                line1 = str1.indexOf("\n");
-                str2 += str1.substring(line1 + 1);
-                if (list != null  && list.size() > 0) {
-                    int indxHandle = str2.indexOf("msg handle");
-                    str1 = "<" + str2.substring(indxHandle);
-                    str2 = str2.substring(0, (indxHandle - 1)) + str1;
+                try {
+                    element.encode(xmlMsgElement); // Append the list element
+                } catch (IllegalArgumentException e) {
+                    xmlMsgElement.endTag(null, "msg");
+                    Log.w(TAG, e.toString());
+                } catch (IllegalStateException e) {
+                    Log.w(TAG, e.toString());
                 }
-
-                return str2.getBytes("UTF-8");
-            } catch (UnsupportedEncodingException e) {
-                Log.e(TAG, "Failed to encode: charset=" + "UTF-8");
-                return null;
             }
-        } catch (IOException e) {
-            Log.e(TAG, e.toString());
-            return null;
         }
+        xmlMsgElement.endTag(null, "MAP-msg-listing");
+        xmlMsgElement.endDocument();
     }
 
     public void sort() {
@@ -24,10 +24,6 @@ import org.xmlpull.v1.XmlSerializer;
 import android.telephony.PhoneNumberUtils;
 import android.util.Log;
 import android.util.Xml;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.ByteArrayInputStream;
-import java.io.BufferedReader;
 import java.io.StringWriter;
 import java.util.List;
 import java.nio.charset.Charset;
@@ -231,32 +227,18 @@ public class BluetoothMapMessageListingElement
      * */
     public void encode(XmlSerializer xmlMsgElement) throws IllegalArgumentException, IllegalStateException, IOException
     {
-            Log.d(TAG, "Inside encode");
+            if (V) Log.v(TAG, "Inside encode");
             // contruct the XML tag for a single msg in the msglisting
             xmlMsgElement.startTag(null, "msg");
             xmlMsgElement.attribute(null, "handle", mapHandle);
             if(subject != null) {
-               InputStreamReader isr = new InputStreamReader(new ByteArrayInputStream(subject.getBytes(Charset.forName("UTF-8"))), Charset.forName("UTF-8"));
-               BufferedReader reader = new BufferedReader(isr);
-               StringBuilder sb = new StringBuilder();
-               String line = null;
-               while ((line = reader.readLine()) != null) {
-                     sb.append(line);
-               }
-               xmlMsgElement.attribute(null, "subject", sb.toString());
+               xmlMsgElement.attribute(null, "subject", stripLineBreaks(subject));
             }
 
             if(dateTime != 0)
                 xmlMsgElement.attribute(null, "datetime", this.getDateTimeString());
             if(senderName != null) {
-               InputStreamReader isr = new InputStreamReader(new ByteArrayInputStream(senderName.getBytes(Charset.forName("UTF-8"))), Charset.forName("UTF-8"));
-               BufferedReader reader = new BufferedReader(isr);
-               StringBuilder sb = new StringBuilder();
-               String line = null;
-               while ((line = reader.readLine()) != null) {
-                     sb.append(line);
-               }
-               xmlMsgElement.attribute(null, "sender_name", sb.toString());
+               xmlMsgElement.attribute(null, "sender_name", stripLineBreaks(senderName));
             }
             if(senderAddressing != null)
                 xmlMsgElement.attribute(null, "sender_addressing", senderAddressing);
@@ -285,9 +267,18 @@ public class BluetoothMapMessageListingElement
             if(protect != null)
                 xmlMsgElement.attribute(null, "protected", protect);
             xmlMsgElement.endTag(null, "msg");
-            Log.d(TAG, "Exiting encode");
+            if (V) Log.v(TAG, "Exiting encode");
 
     }
-}
-
 
+    /* Join the lines of a string, as attribute values are on a single line */
+    private static String stripLineBreaks(String value) {
+        if (value.indexOf('\n') < 0 && value.indexOf('\r') < 0) return value;
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c != '\n' && c != '\r') sb.append(c);
+        }
+        return sb.toString();
+    }
+}
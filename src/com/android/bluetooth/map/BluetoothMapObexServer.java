@@ -14,6 +14,7 @@
 */
 package com.android.bluetooth.map;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -28,6 +29,7 @@ import javax.btobex.ServerRequestHandler;
 import com.android.bluetooth.map.BluetoothMapUtils;
 import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
 
+import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Message;
@@ -97,18 +99,24 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
     private static final String[] SPECIAL_MAILBOX_MAP_NAME
             = {INBOX, DRAFT, OUTBOX, SENT, DELETED};
 
-    public static boolean sIsAborted = false;
+    /* Set when the MCE of this session aborts the current operation */
+    private volatile boolean mIsAborted = false;
 
     BluetoothMapContent mOutContent;
 
     public BluetoothMapObexServer(Handler callback, Context context,
-                                  BluetoothMnsObexClient mns, int masId) {
+                                  BluetoothMnsObexClient mns, int masId,
+                                  BluetoothDevice remoteDevice) {
         super();
         mCallback = callback;
         mContext = context;
         mMasId = masId;
         mMnsClient = mns;
-        mOutContent = new BluetoothMapContent(mContext);
+        mOutContent = new BluetoothMapContent(mContext,
+                remoteDevice != null ? remoteDevice.getAddress() : null);
+        if (mMasId == 0 && mns != null) {
+            mOutContent.setContentObserver(mns.getContentObserver(mMasId));
+        }
         if(mMasId == 0) {
            buildFolderStructure();
         } else {
@@ -221,7 +229,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
     public int onAbort(HeaderSet request, HeaderSet reply) {
         if (D) Log.d(TAG, "onAbort(): enter.");
         notifyUpdateWakeLock();
-        sIsAborted = true;
+        mIsAborted = true;
         return ResponseCodes.OBEX_HTTP_OK;
     }
 
@@ -308,6 +316,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             if(D) Log.d(TAG, "Missing charset - unable to decode message content. appParams.getCharset() = " + appParams.getCharset());
             return ResponseCodes.OBEX_HTTP_PRECON_FAILED;
         }
+        BluetoothMapbMessage message = null;
         try {
             if(folderName == null || folderName.equals("")) {
                 folderName = mCurrentFolder.getName();
@@ -322,7 +331,6 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
              *  - send it.
              */
             InputStream bMsgStream;
-            BluetoothMapbMessage message;
             bMsgStream = op.openInputStream();
             message = BluetoothMapbMessage.parse(bMsgStream, appParams.getCharset()); // Decode the messageBody
             // Send message
@@ -350,6 +358,10 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             // TODO: Change to IOException after debug
             Log.e(TAG, "Exception occured: ", e);
             return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+        } finally {
+            if (message != null) {
+                message.release(); // The message has been stored
+            }
         }
         return ResponseCodes.OBEX_HTTP_OK;
     }
@@ -445,10 +457,12 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
     @Override
     public void onClose() {
         if (V) Log.v(TAG, "BluetoothMapObexServer: onClose");
+        mOutContent.close();
         if (mCallback != null) {
             Message msg = Message.obtain(mCallback);
             msg.what = BluetoothMapService.MSG_SERVERSESSION_CLOSE;
             msg.arg1 = mMasId;
+            msg.obj = this;
             msg.sendToTarget();
             if (D) Log.d(TAG, "onClose(): msg MSG_SERVERSESSION_CLOSE sent out.");
         }
@@ -458,7 +472,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
     public int onGet(Operation op) {
         if (V) Log.v(TAG, "BluetoothMapObexServer: onGet");
         notifyUpdateWakeLock();
-        sIsAborted = false;
+        mIsAborted = false;
         HeaderSet request;
         String type;
         String name;
@@ -536,12 +550,11 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
      */
     private int sendMessageListingRsp(Operation op, BluetoothMapAppParams appParams, String folderName){
         OutputStream outStream = null;
-        byte[] outBytes = null;
-        int maxChunkSize, bytesToWrite, bytesWritten = 0, listSize;
+        int maxChunkSize, listSize;
         boolean hasUnread = false;
         HeaderSet replyHeaders = new HeaderSet();
         BluetoothMapAppParams outAppParams = new BluetoothMapAppParams();
-        BluetoothMapMessageListing outList;
+        BluetoothMapMessageListing outList = null;
         if(folderName == null || folderName.length() == 0 ) {
             folderName = mCurrentFolder.getName();
         } else if(folderName.equalsIgnoreCase("draft") && mMasId ==1) {
@@ -579,14 +592,16 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                 appParams.setStartOffset(0);
 
             if(appParams.getMaxListCount() != 0) {
-               if(mMasId == 0)
+               // The listing holds the requested page only, NewMessage is for the whole list
+               if(mMasId == 0) {
                 outList = mOutContent.msgListing(folderName, appParams);
-               else
+                hasUnread = mOutContent.msgListingHasUnread(folderName, appParams);
+               } else {
                   outList = mOutContent.msgListingEmail(folderName, appParams);
-                // Generate the byte stream
+                  hasUnread = mOutContent.msgListingHasUnreadEmail(folderName, appParams);
+               }
+                // The body is encoded once the headers are sent
                 outAppParams.setMessageListingSize(outList.getCount());
-                outBytes = outList.encode();
-                hasUnread = outList.hasUnread();
             }
             else {
                if(mMasId == 0){
@@ -625,28 +640,16 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
         }
 
         maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-        if(outBytes != null) {
-            try {
-                while (bytesWritten < outBytes.length && sIsAborted == false) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
-            } catch (IOException e) {
-                if(V) Log.w(TAG,e);
-                // We were probably aborted or disconnected
-            } finally {
-                if(outStream != null) {
-                    try {
-                        outStream.close();
-                    } catch (IOException e) {
-                        // If an error occurs during close, there is no more cleanup to do
-                    }
-                }
+        try {
+            if (outList != null) {
+                // Encode the listing straight into the body, packet by packet
+                outList.encode(new AbortableOutputStream(outStream, maxChunkSize));
             }
-            if(bytesWritten != outBytes.length)
-                return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
-        } else {
+        } catch (IOException e) {
+            if(V) Log.w(TAG,e);
+            // We were probably aborted or disconnected
+            return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+        } finally {
             try {
                 outStream.close();
             } catch (IOException e) {
@@ -656,6 +659,36 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
         return ResponseCodes.OBEX_HTTP_OK;
     }
 
+    /**
+     * Body stream of a response, writing at most a packet at a time and failing
+     * as soon as the peer has aborted the operation.
+     */
+    private class AbortableOutputStream extends FilterOutputStream {
+        private final int mMaxChunkSize;
+
+        AbortableOutputStream(OutputStream out, int maxChunkSize) {
+            super(out);
+            mMaxChunkSize = maxChunkSize;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mIsAborted) throw new IOException("Operation aborted");
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (mIsAborted) throw new IOException("Operation aborted");
+                int bytesToWrite = Math.min(mMaxChunkSize, len);
+                out.write(b, off, bytesToWrite);
+                off += bytesToWrite;
+                len -= bytesToWrite;
+            }
+        }
+    }
+
     /**
      * Generate and send the Folder listing response based on an application
      * parameter header. This function call will block until complete or aborted
@@ -776,7 +809,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
 
         if(outBytes != null) {
             try {
-                while (bytesWritten < outBytes.length && sIsAborted == false) {
+                while (bytesWritten < outBytes.length && mIsAborted == false) {
                     bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
                     outStream.write(outBytes, bytesWritten, bytesToWrite);
                     bytesWritten += bytesToWrite;
@@ -817,17 +850,19 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
      *         {@link ResponseCodes.OBEX_HTTP_BAD_REQUEST} on error.
      */
     private int sendGetMessageRsp(Operation op, String handle, BluetoothMapAppParams appParams){
-        OutputStream outStream ;
-        byte[] outBytes;
-        int maxChunkSize, bytesToWrite, bytesWritten = 0;
-        long msgHandle;
+        OutputStream outStream = null;
+        int maxChunkSize;
         if (V) Log.v(TAG, "sendGetMessageRsp for handle " + handle);
 
         try {
-            outBytes = mOutContent.getMessage(handle, appParams);
             outStream = op.openOutputStream();
+            maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
 
+            // Write the bMessage straight into the body, packet by packet
+            mOutContent.getMessage(handle, appParams,
+                    new AbortableOutputStream(outStream, maxChunkSize));
         } catch (IOException e) {
+            // We were probably aborted or disconnected
             Log.w(TAG,"sendGetMessageRsp: IOException - sending OBEX_HTTP_BAD_REQUEST", e);
             return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         } catch (IllegalArgumentException e) {
@@ -835,32 +870,14 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                      "sendGetMessageRsp: IllegalArgumentException (e.g. invalid handle or charset) - sending OBEX_HTTP_BAD_REQUEST"
                          , e);
             return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
-        }
-
-        maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-
-        if(outBytes != null) {
-            try {
-                while (bytesWritten < outBytes.length && sIsAborted == false) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
-            } catch (IOException e) {
-                // We were probably aborted or disconnected
-            } finally {
-                if(outStream != null) {
-                    try {
-                        outStream.close();
-                    } catch (IOException e) {
-                        // If an error occurs during close, there is no more cleanup to do
-                    }
+        } finally {
+            if(outStream != null) {
+                try {
+                    outStream.close();
+                } catch (IOException e) {
+                    // If an error occurs during close, there is no more cleanup to do
                 }
             }
-            if(bytesWritten == outBytes.length)
-                return ResponseCodes.OBEX_HTTP_OK;
-            else
-                return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         }
 
         return ResponseCodes.OBEX_HTTP_OK;
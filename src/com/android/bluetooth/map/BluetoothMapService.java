@@ -21,6 +21,8 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 
 import android.app.AlarmManager;
 import javax.btobex.ServerSession;
@@ -128,17 +130,12 @@ public class BluetoothMapService extends ProfileService {
 
     private BluetoothAdapter mAdapter;
 
-    private BluetoothMapAuthenticator mAuth = null;
+    /* The device of the latest session */
+    private volatile BluetoothDevice mRemoteDevice = null;
 
-    private ServerSession mServerSession = null;
-
-    private BluetoothMnsObexClient mBluetoothMnsObexClient = null;
-
-    private BluetoothSocket mConnSocket = null;
-
-    private static BluetoothDevice mRemoteDevice = null;
-
-    private static String sRemoteDeviceName = null;
+    /* The connection state of each device with a session */
+    private final HashMap<BluetoothDevice, Integer> mDeviceStates =
+            new HashMap<BluetoothDevice, Integer>();
 
     private volatile boolean mInterrupted;
 
@@ -148,9 +145,6 @@ public class BluetoothMapService extends ProfileService {
     private boolean mAccountChanged = false;
     private int mState;
 
-    private boolean isWaitingAuthorization = false;
-    private boolean removeTimeoutMsg = false;
-
     // package and class name to which we send intent to check message access access permission
     private static final String ACCESS_AUTHORITY_PACKAGE = "com.android.settings";
     private static final String ACCESS_AUTHORITY_CLASS =
@@ -170,6 +164,8 @@ public class BluetoothMapService extends ProfileService {
 
     private boolean mIsEmailEnabled = true;
     public static final int MAX_INSTANCES = 2;
+    /** The number of MCEs connected at the same time to a MAS instance. */
+    public static final int MAX_SESSIONS = 3;
     BluetoothMapObexConnectionManager mConnectionManager = null;
     public static final int MAS_INS_INFO[] = {MESSAGE_TYPE_SMS_MMS, MESSAGE_TYPE_EMAIL};
     private ContentObserver mEmailAccountObserver;
@@ -242,19 +238,15 @@ public class BluetoothMapService extends ProfileService {
                     break;
 
                 case USER_TIMEOUT:
-                    Intent intent = new Intent(BluetoothDevice.ACTION_CONNECTION_ACCESS_CANCEL);
-                    intent.putExtra(BluetoothDevice.EXTRA_DEVICE, mRemoteDevice);
-                    intent.putExtra(BluetoothDevice.EXTRA_ACCESS_REQUEST_TYPE,
-                                    BluetoothDevice.REQUEST_TYPE_MESSAGE_ACCESS);
-                    intent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
-                    sendBroadcast(intent, BLUETOOTH_PERM);
-                    isWaitingAuthorization = false;
-                    removeTimeoutMsg = false;
-                    mConnectionManager.stopObexServerSessionWaiting();
+                    BluetoothDevice waitingDevice = ((BluetoothMapMasSession) msg.obj).mDevice;
+                    if (mConnectionManager.isWaitingForConfirmation(waitingDevice)) {
+                        cancelAuthorization(waitingDevice);
+                    }
                     break;
                 case MSG_SERVERSESSION_CLOSE:
                     final int masId = msg.arg1;
-                    mConnectionManager.stopObexServerSession(masId);
+                    mConnectionManager.stopObexServerSession(masId,
+                            (BluetoothMapObexServer)msg.obj);
                     break;
                 case MSG_SESSION_ESTABLISHED:
                     break;
@@ -296,34 +288,58 @@ public class BluetoothMapService extends ProfileService {
         return mState;
     }
 
-    public static BluetoothDevice getRemoteDevice() {
+    /**
+     * @return the device of the latest session, several devices can be
+     *         connected at the same time
+     */
+    public BluetoothDevice getRemoteDevice() {
         return mRemoteDevice;
     }
-    private void setState(int state) {
-        setState(state, BluetoothMap.RESULT_SUCCESS);
+    private void setState(BluetoothDevice device, int state) {
+        setState(device, state, BluetoothMap.RESULT_SUCCESS);
     }
 
-    private synchronized void setState(int state, int result) {
-        if (state != mState) {
-            if (DEBUG) Log.d(TAG, "Map state " + mState + " -> " + state + ", result = "
-                    + result);
-            int prevState = mState;
-            mState = state;
+    private synchronized void setState(BluetoothDevice device, int state, int result) {
+        Integer deviceState = mDeviceStates.get(device);
+        int prevState = deviceState != null ? deviceState : BluetoothMap.STATE_DISCONNECTED;
+        if (state != prevState) {
+            if (DEBUG) Log.d(TAG, "Map state of " + device + " " + prevState + " -> " + state
+                    + ", result = " + result);
+            if (state == BluetoothMap.STATE_DISCONNECTED) {
+                mDeviceStates.remove(device);
+            } else {
+                mDeviceStates.put(device, state);
+            }
+            mState = mDeviceStates.isEmpty() ? BluetoothMap.STATE_DISCONNECTED
+                    : BluetoothMap.STATE_CONNECTED;
             Intent intent = new Intent(BluetoothMap.ACTION_CONNECTION_STATE_CHANGED);
             intent.putExtra(BluetoothProfile.EXTRA_PREVIOUS_STATE, prevState);
-            intent.putExtra(BluetoothProfile.EXTRA_STATE, mState);
-            intent.putExtra(BluetoothDevice.EXTRA_DEVICE, mRemoteDevice);
+            intent.putExtra(BluetoothProfile.EXTRA_STATE, state);
+            intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
             sendBroadcast(intent, BLUETOOTH_PERM);
             AdapterService s = AdapterService.getAdapterService();
             if (s != null) {
-                s.onProfileConnectionStateChanged(mRemoteDevice, BluetoothProfile.MAP,
-                        mState, prevState);
+                s.onProfileConnectionStateChanged(device, BluetoothProfile.MAP,
+                        state, prevState);
             }
         }
     }
 
-    public static String getRemoteDeviceName() {
-        return sRemoteDeviceName;
+    private synchronized void setStateAll(int state, int result) {
+        for (BluetoothDevice device : new ArrayList<BluetoothDevice>(mDeviceStates.keySet())) {
+            setState(device, state, result);
+        }
+    }
+
+    /* Tell the user the authorization request of a device is no longer valid */
+    private void cancelAuthorization(BluetoothDevice device) {
+        Intent intent = new Intent(BluetoothDevice.ACTION_CONNECTION_ACCESS_CANCEL);
+        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
+        intent.putExtra(BluetoothDevice.EXTRA_ACCESS_REQUEST_TYPE,
+                        BluetoothDevice.REQUEST_TYPE_MESSAGE_ACCESS);
+        intent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
+        sendBroadcast(intent, BLUETOOTH_PERM);
+        mConnectionManager.stopObexServerSessionWaiting(device);
     }
 
     public boolean disconnect(BluetoothDevice device) {
@@ -334,18 +350,12 @@ public class BluetoothMapService extends ProfileService {
     public boolean disconnectMap(BluetoothDevice device) {
         boolean result = false;
         if (DEBUG) Log.d(TAG, "disconnectMap");
-        if (getRemoteDevice().equals(device)) {
-            switch (mState) {
-                case BluetoothMap.STATE_CONNECTED:
-                    //do no call close service else map service will close
-                    //closeService();
-                    mConnectionManager.stopObexServerSessionAll();
-                    setState(BluetoothMap.STATE_DISCONNECTED, BluetoothMap.RESULT_CANCELED);
-                    result = true;
-                    break;
-                default:
-                    break;
-                }
+        if (getConnectionState(device) == BluetoothProfile.STATE_CONNECTED) {
+            //do no call close service else map service will close
+            //closeService();
+            setState(device, BluetoothMap.STATE_DISCONNECTED, BluetoothMap.RESULT_CANCELED);
+            mConnectionManager.stopObexServerSessions(device);
+            result = true;
         }
         return result;
     }
@@ -353,8 +363,10 @@ public class BluetoothMapService extends ProfileService {
     public List<BluetoothDevice> getConnectedDevices() {
         List<BluetoothDevice> devices = new ArrayList<BluetoothDevice>();
         synchronized(this) {
-            if (mState == BluetoothMap.STATE_CONNECTED && mRemoteDevice != null) {
-                devices.add(mRemoteDevice);
+            for (BluetoothDevice device : mDeviceStates.keySet()) {
+                if (mDeviceStates.get(device) == BluetoothMap.STATE_CONNECTED) {
+                    devices.add(device);
+                }
             }
         }
         return devices;
@@ -385,7 +397,8 @@ public class BluetoothMapService extends ProfileService {
 
     public int getConnectionState(BluetoothDevice device) {
         synchronized(this) {
-            if (getState() == BluetoothMap.STATE_CONNECTED && getRemoteDevice().equals(device)) {
+            Integer state = mDeviceStates.get(device);
+            if (state != null && state == BluetoothMap.STATE_CONNECTED) {
                 return BluetoothProfile.STATE_CONNECTED;
             } else {
                 return BluetoothProfile.STATE_DISCONNECTED;
@@ -457,7 +470,7 @@ public class BluetoothMapService extends ProfileService {
             Log.w(TAG,"Unable to unregister map receiver",e);
         }
 
-        setState(BluetoothMap.STATE_DISCONNECTED, BluetoothMap.RESULT_CANCELED);
+        setStateAll(BluetoothMap.STATE_DISCONNECTED, BluetoothMap.RESULT_CANCELED);
         closeService();
         try {
             if (DEBUG) Log.d(TAG,"Unregistering Email account observer");
@@ -470,15 +483,27 @@ public class BluetoothMapService extends ProfileService {
 
     public boolean cleanup()  {
         if (DEBUG) Log.d(TAG, "cleanup()");
-        setState(BluetoothMap.STATE_DISCONNECTED, BluetoothMap.RESULT_CANCELED);
+        setStateAll(BluetoothMap.STATE_DISCONNECTED, BluetoothMap.RESULT_CANCELED);
         closeService();
         return true;
     }
 
+    @Override
+    public void dump(StringBuilder sb) {
+        super.dump(sb);
+        BluetoothMapObexConnectionManager connectionManager = mConnectionManager;
+        if (connectionManager != null) {
+            connectionManager.dump(sb);
+        }
+    }
+
     class BluetoothMapObexConnectionManager {
         private ArrayList<BluetoothMapObexConnection> mConnections =
                 new ArrayList<BluetoothMapObexConnection>();
-                private HashMap<Integer, String> MapClientList = new HashMap<Integer, String>();
+        /* The MNS client of each device with a session, shared by its MAS instances,
+         * guarded by itself */
+        private final HashMap<BluetoothDevice, BluetoothMnsObexClient> mMnsClients =
+                new HashMap<BluetoothDevice, BluetoothMnsObexClient>();
 
         public BluetoothMapObexConnectionManager() {
             int numberOfSupportedInstances = MAX_INSTANCES;
@@ -490,54 +515,35 @@ public class BluetoothMapService extends ProfileService {
             for (int i = 0; i < numberOfSupportedInstances; i ++) {
                 mConnections.add(new BluetoothMapObexConnection(
                         MAS_INS_INFO[i], i ));
-            MapClientList.put(i, null);
             }
         }
 
+        /** Start the sessions of a device, once the user has accepted it. */
         public void initiateObexServerSession(BluetoothDevice device) {
-            try {Log.d(TAG, "inside initiateObexServerSession");
-                for (BluetoothMapObexConnection connection : mConnections) {
-                    if (connection.mConnSocket != null && connection.mWaitingForConfirmation) {
-                        connection.mWaitingForConfirmation = false;
-                        Log.d(TAG, "calling startobexServerSession for masid  "+connection.mMasId);
-                        connection.startObexServerSession(device);
-                    }
+            Log.d(TAG, "inside initiateObexServerSession");
+            for (BluetoothMapObexConnection connection : mConnections) {
+                BluetoothMapMasSession session = connection.takePendingSession(device);
+                if (session == null) {
+                    continue;
+                }
+                try {
+                    Log.d(TAG, "calling startobexServerSession for masid  "+connection.mMasId);
+                    connection.startObexServerSession(session);
+                } catch (IOException ex) {
+                    Log.e(TAG, "Caught the error: " + ex.toString());
+                    connection.closeSession(session);
+                    session.closeSocket();
                 }
-            } catch (IOException ex) {
-                Log.e(TAG, "Caught the error: " + ex.toString());
             }
         }
 
-        public void setWaitingForConfirmation(int masId) {
-            Log.d(TAG, "Inside setWaitingForConfirmation");
+        /** Stop the session of a MAS instance, whose OBEX server has closed. */
+        public void stopObexServerSession(int masId, BluetoothMapObexServer server) {
             if (masId < mConnections.size()) {
                 final BluetoothMapObexConnection connect = mConnections.get(masId);
-                connect.mWaitingForConfirmation = true;
-            } else {
-                Log.e(TAG, "Attempt to set waiting for user confirmation for MAS id: " + masId);
-                Log.e(TAG, "out of index");
-            }
-        }
-
-        public void stopObexServerSession(int masId) {
-            int serverSessionConnected = 0;
-            for (BluetoothMapObexConnection connection : mConnections) {
-                if (connection.mConnSocket != null) {
-                    serverSessionConnected++;
-                }
-            }
-            // stop mnsclient session if only one session was connected.
-            if(serverSessionConnected == 1) {
-               if (mBluetoothMnsObexClient != null) {
-                   mBluetoothMnsObexClient.shutdown();
-                   mBluetoothMnsObexClient = null;
-               }
-            }
-
-         if (masId < mConnections.size()) {
-                final BluetoothMapObexConnection connect = mConnections.get(masId);
-                if (connect.mConnSocket != null) {
-                    connect.stopObexServerSession();
+                BluetoothMapMasSession session = connect.getSession(server);
+                if (session != null) {
+                    connect.stopObexServerSession(session);
                 } else {
                     Log.w(TAG, "Attempt to stop OBEX Server session for MAS id: " + masId);
                     Log.w(TAG, "when there is no connected socket");
@@ -546,55 +552,44 @@ public class BluetoothMapService extends ProfileService {
                 Log.e(TAG, "Attempt to stop OBEX Server session for MAS id: " + masId);
                 Log.e(TAG, "out of index");
             }
-
         }
 
-        public void stopObexServerSessionWaiting() {
-
-            int serverSessionConnected = 0;
+        /** Drop the connections of a device waiting for the user to accept it. */
+        public void stopObexServerSessionWaiting(BluetoothDevice device) {
             for (BluetoothMapObexConnection connection : mConnections) {
-                 if (connection.mConnSocket != null) {
-                     serverSessionConnected++;
-                 }
-            }
-            // stop mnsclient session if only one session was connected.
-            if(serverSessionConnected == 1) {
-               if (mBluetoothMnsObexClient != null) {
-                    mBluetoothMnsObexClient.shutdown();
-                    mBluetoothMnsObexClient = null;
-               }
+                BluetoothMapMasSession session = connection.takePendingSession(device);
+                if (session != null) {
+                    session.closeSocket();
+                }
             }
+        }
 
-        for (BluetoothMapObexConnection connection : mConnections) {
-               if (connection.mConnSocket != null && connection.mWaitingForConfirmation) {
-                  connection.mWaitingForConfirmation = false;
-                  connection.stopObexServerSession();
+        public void stopObexServerSessions(BluetoothDevice device) {
+            for (BluetoothMapObexConnection connection : mConnections) {
+                for (BluetoothMapMasSession session : connection.getSessions()) {
+                    if (session.mDevice.equals(device)) {
+                        connection.stopObexServerSession(session);
+                    }
                 }
             }
-       }
-
-       public void stopObexServerSessionAll() {
-           if (mBluetoothMnsObexClient != null) {
-                   mBluetoothMnsObexClient.shutdown();
-                   mBluetoothMnsObexClient = null;
-           }
-           for (BluetoothMapObexConnection connection : mConnections) {
-               if (connection.mConnSocket != null) {
-                   connection.stopObexServerSession();
-               }
-           }
         }
 
         public void closeAll() {
-           if (mBluetoothMnsObexClient != null) {
-               mBluetoothMnsObexClient.shutdown();
-               mBluetoothMnsObexClient = null;
-           }
-
            for (BluetoothMapObexConnection connection : mConnections) {
                 connection.mInterrupted = true;
                 connection.closeConnection();
            }
+           ArrayList<BluetoothMnsObexClient> mnsClients;
+           synchronized (mMnsClients) {
+               mnsClients = new ArrayList<BluetoothMnsObexClient>(mMnsClients.values());
+               mMnsClients.clear();
+           }
+           for (BluetoothMnsObexClient mnsClient : mnsClients) {
+               mnsClient.shutdown();
+           }
+           if (mSessionStatusHandler != null) {
+               mSessionStatusHandler.removeCallbacksAndMessages(null);
+           }
         }
 
         public void startAll() {
@@ -628,11 +623,8 @@ public class BluetoothMapService extends ProfileService {
         public void closeMapEmail() {
             final BluetoothMapObexConnection connect = mConnections.get(1);
             if (connect != null) {
-                // Handle common flag for MAP instances
-                boolean isWaitingAuth = isWaitingAuthorization;
                 // Stop Listener and remove email support in SDP
                 connect.closeConnection();
-                isWaitingAuthorization = isWaitingAuth;
             }
         }
 
@@ -642,55 +634,126 @@ public class BluetoothMapService extends ProfileService {
             }
         }
 
-        public void addToMapClientList(String remoteAddr, int masId) {
-                        Log.d(TAG,"Adding to mapClient List masid "+masId+" bdaddr "+remoteAddr);
-                        MapClientList.put(masId, remoteAddr);
+        /** @return true if the device has a session on any MAS instance */
+        public boolean hasSession(BluetoothDevice device) {
+            for (BluetoothMapObexConnection connection : mConnections) {
+                if (connection.getSession(device) != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public boolean isWaitingForConfirmation(BluetoothDevice device) {
+            for (BluetoothMapObexConnection connection : mConnections) {
+                if (connection.isWaitingForConfirmation(device)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** @return the devices waiting for the user to accept them */
+        public Set<BluetoothDevice> getWaitingDevices() {
+            Set<BluetoothDevice> devices = new HashSet<BluetoothDevice>();
+            for (BluetoothMapObexConnection connection : mConnections) {
+                BluetoothMapMasSession session = connection.mPendingSession;
+                if (session != null) {
+                    devices.add(session.mDevice);
+                }
+            }
+            return devices;
         }
 
-        public void removeFromMapClientList(int masId) {
-                        Log.d(TAG,"Removing from the list, masid "+masId);
-                        MapClientList.put(masId, null);
+        private BluetoothMnsObexClient getMnsClient(BluetoothDevice device, Context context) {
+            synchronized (mMnsClients) {
+                BluetoothMnsObexClient mnsClient = mMnsClients.get(device);
+                if (mnsClient == null) {
+                    mnsClient = new BluetoothMnsObexClient(context, device);
+                    mMnsClients.put(device, mnsClient);
+                }
+                return mnsClient;
+            }
         }
 
-        public boolean isAllowedConnection(BluetoothDevice remoteDevice, int masId) {
-            String remoteAddress = remoteDevice.getAddress();
-            if (remoteAddress == null) {
-                if (VERBOSE) Log.v(TAG, "Connection request from unknown device");
-                return false;
+        /* The MNS client of a device, null when it has none */
+        private BluetoothMnsObexClient findMnsClient(BluetoothDevice device) {
+            synchronized (mMnsClients) {
+                return mMnsClients.get(device);
             }
-            if(MapClientList.get(masId)==null) {
-               if(MapClientList.get((masId^1)) == null) {
-                  if (VERBOSE) Log.v(TAG, "Allow Connection request from " +remoteAddress
-                                     + "when no other device is connected");
-                   return true;
-               } else {
-                   if(MapClientList.get((masId^1)).equalsIgnoreCase(remoteAddress)) {
-                         Log.d(TAG, "Allow Connection request from " +remoteAddress);
-                         Log.d(TAG, "when mas" +(masId^1) +"is connected to " +MapClientList.get((masId^1)));
-                                return true;
-                   } else {
-                         Log.d(TAG, "Dont Allow Connection request from " +remoteAddress
-                               + "when mas" +(masId^1) +"is connected to" +MapClientList.get((masId^1)));
-                         return false;
-                   }
-               }
+        }
+
+        /* Shut the MNS client of a device down, once it has no session left */
+        private void releaseMnsClient(BluetoothDevice device) {
+            if (hasSession(device)) {
+                return;
+            }
+            BluetoothMnsObexClient mnsClient;
+            synchronized (mMnsClients) {
+                mnsClient = mMnsClients.remove(device);
+            }
+            if (mnsClient != null) {
+                mnsClient.shutdown();
+            }
+        }
+
+        /* The event queue metrics of the MNS client of each device */
+        public void dump(StringBuilder sb) {
+            synchronized (mMnsClients) {
+                for (Map.Entry<BluetoothDevice, BluetoothMnsObexClient> entry
+                        : mMnsClients.entrySet()) {
+                    println(sb, "MNS events of " + entry.getKey() + ": "
+                            + entry.getValue().getEventQueue());
+                }
             }
-            Log.d(TAG,"connection not allowed from " + remoteAddress);
-            return false;
         }
     }
 
+    /**
+     * The connection of an MCE to a MAS instance. Each has its own OBEX server,
+     * with its folder state, and the MCE registers for notifications on the
+     * MNS client of its device.
+     */
+    private class BluetoothMapMasSession {
+        private final BluetoothDevice mDevice;
+        private final int mMasId;
+        private BluetoothSocket mConnSocket;
+        private ServerSession mServerSession = null;
+        private BluetoothMapObexServer mMapServer = null;
+
+        BluetoothMapMasSession(BluetoothDevice device, int masId, BluetoothSocket socket) {
+            mDevice = device;
+            mMasId = masId;
+            mConnSocket = socket;
+        }
+
+        private synchronized void closeSocket() {
+            if (mConnSocket != null) {
+                try {
+                    mConnSocket.close();
+                    mConnSocket = null;
+                } catch (IOException e) {
+                    Log.e(TAG, "Close Connection Socket error: " + e.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * A MAS instance: its RFCOMM listener, and the sessions of the MCEs
+     * connected to it. Up to {@link #MAX_SESSIONS} devices are connected at
+     * the same time, and one at a time waits for the user to accept it.
+     */
     private class BluetoothMapObexConnection {
         private volatile boolean mInterrupted;
-        private BluetoothMapObexServer mMapServer = null;
         private BluetoothServerSocket mServerSocket = null;
-        private SocketAcceptThread mAcceptThread = null;
-        private BluetoothSocket mConnSocket = null;
-        private ServerSession mServerSession = null;
+        private volatile SocketAcceptThread mAcceptThread = null;
+        private final ArrayList<BluetoothMapMasSession> mSessions =
+                new ArrayList<BluetoothMapMasSession>();
+        private volatile BluetoothMapMasSession mPendingSession = null;
         private int mSupportedMessageTypes;
         private int mMasId;
         private Context context;
-        boolean mWaitingForConfirmation = false;
 
         public BluetoothMapObexConnection(int supportedMessageTypes, int masId) {
             Log.d(TAG, "inside BluetoothMapObexConnection");
@@ -700,6 +763,60 @@ public class BluetoothMapService extends ProfileService {
             mMasId = masId;
         }
 
+        private synchronized ArrayList<BluetoothMapMasSession> getSessions() {
+            return new ArrayList<BluetoothMapMasSession>(mSessions);
+        }
+
+        private synchronized BluetoothMapMasSession getSession(BluetoothMapObexServer server) {
+            for (BluetoothMapMasSession session : mSessions) {
+                if (session.mMapServer == server) return session;
+            }
+            return null;
+        }
+
+        private synchronized BluetoothMapMasSession getSession(BluetoothDevice device) {
+            for (BluetoothMapMasSession session : mSessions) {
+                if (session.mDevice.equals(device)) return session;
+            }
+            return null;
+        }
+
+        private synchronized boolean isWaitingForConfirmation(BluetoothDevice device) {
+            return mPendingSession != null && mPendingSession.mDevice.equals(device);
+        }
+
+        private synchronized BluetoothMapMasSession takePendingSession(BluetoothDevice device) {
+            BluetoothMapMasSession session = mPendingSession;
+            if (session == null || !session.mDevice.equals(device)) {
+                return null;
+            }
+            mPendingSession = null;
+            // Devices are not compared by the handler, the session is the token of its timeout
+            mSessionStatusHandler.removeMessages(USER_TIMEOUT, session);
+            return session;
+        }
+
+        /* Take the connection of a device to wait for the user, if it can be served */
+        private synchronized boolean setPendingSession(BluetoothMapMasSession session) {
+            if (mPendingSession != null) {
+                Log.d(TAG, "Dont Allow Connection request from " + session.mDevice
+                        + " while mas" + mMasId + " waits for " + mPendingSession.mDevice);
+                return false;
+            }
+            if (getSession(session.mDevice) != null) {
+                Log.d(TAG, "connection not allowed from " + session.mDevice
+                        + ", already connected to mas" + mMasId);
+                return false;
+            }
+            if (mSessions.size() >= MAX_SESSIONS) {
+                Log.d(TAG, "Dont Allow Connection request from " + session.mDevice
+                        + " when mas" + mMasId + " has " + mSessions.size() + " sessions");
+                return false;
+            }
+            mPendingSession = session;
+            return true;
+        }
+
         private void startRfcommSocketListener() {
             if (VERBOSE){
                 Log.v(TAG, "Map Service startRfcommSocketListener");
@@ -721,10 +838,12 @@ public class BluetoothMapService extends ProfileService {
                     return;
                 }
             }
-            if (mAcceptThread == null) {
-                mAcceptThread = new SocketAcceptThread(mMasId);
-                mAcceptThread.setName("BluetoothMapAcceptThread " + mMasId);
-                mAcceptThread.start();
+            synchronized (this) {
+                if (mAcceptThread == null) {
+                    mAcceptThread = new SocketAcceptThread(mMasId);
+                    mAcceptThread.setName("BluetoothMapAcceptThread " + mMasId);
+                    mAcceptThread.start();
+                }
             }
         }
 
@@ -802,110 +921,104 @@ public class BluetoothMapService extends ProfileService {
                 }
             }
         }
-        private final synchronized void closeConnectionSocket() {
-            if (mConnSocket != null) {
-                try {
-                    mConnSocket.close();
-                    mConnSocket = null;
-                } catch (IOException e) {
-                    Log.e(TAG, "Close Connection Socket error: " + e.toString());
-                }
-            }
-        }
-
         private final void closeConnection() {
             if (DEBUG) Log.d(TAG, "MAP Service closeService in");
             // exit initSocket early
             mInterrupted = true;
             closeServerSocket();
-            if (mAcceptThread != null) {
+            SocketAcceptThread acceptThread = mAcceptThread;
+            if (acceptThread != null) {
                 try {
-                    mAcceptThread.shutdown();
-                    mAcceptThread.join();
-                    mAcceptThread = null;
+                    acceptThread.shutdown();
+                    acceptThread.join();
                 } catch (InterruptedException ex) {
                      Log.w(TAG, "mAcceptThread close error" + ex);
                 }
             }
-            if (mServerSession != null) {
-                    mServerSession.close();
-                    mServerSession = null;
+            BluetoothMapMasSession pending = mPendingSession;
+            if (pending != null && takePendingSession(pending.mDevice) != null) {
+                pending.closeSocket();
             }
-           closeConnectionSocket();
-            if (mSessionStatusHandler != null) {
-                mSessionStatusHandler.removeCallbacksAndMessages(null);
+            for (BluetoothMapMasSession session : getSessions()) {
+                closeSession(session);
             }
-            isWaitingAuthorization = false;
             if (VERBOSE) Log.v(TAG, "MAP Service closeService out");
         }
 
-        private final void startObexServerSession(BluetoothDevice device) throws IOException {
+        private final void startObexServerSession(BluetoothMapMasSession session)
+                throws IOException {
             if (DEBUG) {
                   Log.d(TAG, "Map Service startObexServerSession");
-                  Log.d(TAG, "mMasId is "+mMasId);
+                  Log.d(TAG, "mMasId is "+mMasId+" device "+session.mDevice);
+            }
+            if (session.mConnSocket == null) {
+                throw new IOException("Connection closed while waiting for authorization");
             }
             if(VERBOSE) Log.d(TAG, "after getting application context");
-            if(mBluetoothMnsObexClient == null)
-                mBluetoothMnsObexClient = new BluetoothMnsObexClient(context, mRemoteDevice);
-            mBluetoothMnsObexClient.initObserver(mSessionStatusHandler, mMasId);
-            mMapServer = new BluetoothMapObexServer(mSessionStatusHandler, context,
-            mBluetoothMnsObexClient, mMasId);
+            BluetoothMnsObexClient mnsClient =
+                    mConnectionManager.getMnsClient(session.mDevice, context);
+            mnsClient.initObserver(mSessionStatusHandler, mMasId);
             synchronized (this) {
-               // We need to get authentication now that obex server is up
-               mAuth = new BluetoothMapAuthenticator(mSessionStatusHandler);
-               mAuth.setChallenged(false);
-               mAuth.setCancelled(false);
+                mSessions.add(session);
             }
+            session.mMapServer = new BluetoothMapObexServer(mSessionStatusHandler, context,
+                    mnsClient, mMasId, session.mDevice);
+            // We need to get authentication now that obex server is up
+            BluetoothMapAuthenticator auth = new BluetoothMapAuthenticator(mSessionStatusHandler);
+            auth.setChallenged(false);
+            auth.setCancelled(false);
             // setup RFCOMM transport
-            BluetoothMapRfcommTransport transport = new BluetoothMapRfcommTransport(mConnSocket);
-            mServerSession = new ServerSession(transport, mMapServer, mAuth);
-            setState(BluetoothMap.STATE_CONNECTED);
+            BluetoothMapRfcommTransport transport =
+                    new BluetoothMapRfcommTransport(session.mConnSocket);
+            session.mServerSession = new ServerSession(transport, session.mMapServer, auth);
+            mRemoteDevice = session.mDevice;
+            setState(session.mDevice, BluetoothMap.STATE_CONNECTED);
             if (DEBUG) {
                 Log.d(TAG, "startObexServerSession() success!");
                 Log.d(TAG, "mMasId is "+mMasId);
             }
         }
 
-        private void stopObexServerSession() {
+        private void stopObexServerSession(BluetoothMapMasSession session) {
             if (DEBUG) {
                 Log.d(TAG, "Map Service stopObexServerSession ");
-                Log.d(TAG, "mMasId is "+mMasId);
-            }
-
-            if (mAcceptThread != null) {
-                try {
-                    mAcceptThread.shutdown();
-                    mAcceptThread.join();
-                } catch (InterruptedException ex) {
-                    Log.w(TAG, "mAcceptThread  close error" + ex);
-                } finally {
-                    mAcceptThread = null;
-                }
-            }
-
-            if (mServerSession != null) {
-                mServerSession.close();
-                mServerSession = null;
+                Log.d(TAG, "mMasId is "+mMasId+" device "+session.mDevice);
             }
 
-            if(mBluetoothMnsObexClient != null)
-               mBluetoothMnsObexClient.deinitObserver(mMasId);
-            mConnectionManager.removeFromMapClientList(mMasId);
-            closeConnectionSocket();
+            closeSession(session);
 
-            // Last obex transaction is finished, we start to listen for incoming
-            // connection again
+            // Listen for incoming connections again, if the listener was stopped
             if (mAdapter.isEnabled()) {
                 startRfcommSocketListener();
             }
-            setState(BluetoothMap.STATE_DISCONNECTED);
+        }
+
+        /* Close a session, and release what it used */
+        private void closeSession(BluetoothMapMasSession session) {
+            synchronized (this) {
+                if (!mSessions.remove(session)) {
+                    return;
+                }
+            }
+            if (session.mServerSession != null) {
+                session.mServerSession.close();
+                session.mServerSession = null;
+            }
+            BluetoothMnsObexClient mnsClient = mConnectionManager.findMnsClient(session.mDevice);
+            if (mnsClient != null) {
+                mnsClient.deinitObserver(mMasId);
+            }
+            session.closeSocket();
+            mConnectionManager.releaseMnsClient(session.mDevice);
+            if (!mConnectionManager.hasSession(session.mDevice)) {
+                setState(session.mDevice, BluetoothMap.STATE_DISCONNECTED);
+            }
         }
 
         /**
          * A thread that runs in the background waiting for remote rfcomm
-         * connect.Once a remote socket connected, this thread shall be
-         * shutdown.When the remote disconnect,this thread shall run again waiting
-         * for next request.
+         * connections. Each connection accepted waits for the user to accept
+         * the device, while the thread waits for the next one.
          */
         private class SocketAcceptThread extends Thread {
             private boolean stopped = false;
@@ -924,7 +1037,6 @@ public class BluetoothMapService extends ProfileService {
                   }
                }
 
-               mConnectionManager.removeFromMapClientList(mMasId);
                while (!stopped) {
                    try {
                        if (DEBUG) Log.d(TAG, "Accepting socket connection...");
@@ -933,58 +1045,58 @@ public class BluetoothMapService extends ProfileService {
                            Log.w(TAG, "mServerSocket is null");
                            break;
                        }
-                       mConnSocket = serverSocket.accept();
+                       BluetoothSocket connSocket = serverSocket.accept();
                        if (DEBUG) Log.d(TAG, "Accepted socket connection...");
-                       synchronized (BluetoothMapService.this) {
-                           if (mConnSocket == null) {
-                               Log.w(TAG, "mConnSocket is null");
-                               break;
-                           }
-                           mRemoteDevice = mConnSocket.getRemoteDevice();
+                       if (connSocket == null) {
+                           Log.w(TAG, "mConnSocket is null");
+                           break;
                        }
-                       if (mRemoteDevice == null) {
+                       BluetoothDevice device = connSocket.getRemoteDevice();
+                       if (device == null || device.getAddress() == null) {
                           Log.i(TAG, "getRemoteDevice() = null");
-                          break;
+                          connSocket.close();
+                          continue;
                        }
 
-                       sRemoteDeviceName = mRemoteDevice.getName();
+                       String remoteDeviceName = device.getName();
                       // In case getRemoteName failed and return null
-                      if (TextUtils.isEmpty(sRemoteDeviceName)) {
-                          sRemoteDeviceName = getString(R.string.defaultname);
+                      if (TextUtils.isEmpty(remoteDeviceName)) {
+                          remoteDeviceName = getString(R.string.defaultname);
                       }
-                      if (!mConnectionManager.isAllowedConnection(mRemoteDevice,mMasId)) {
-                          mConnSocket.close();
-                          mConnSocket = null;
+                      BluetoothMapMasSession session =
+                              new BluetoothMapMasSession(device, mMasId, connSocket);
+                      if (!setPendingSession(session)) {
+                          connSocket.close();
                           continue;
                       }
 
-                      mConnectionManager.addToMapClientList(mRemoteDevice.getAddress(), mMasId);
-
-                      mConnectionManager.setWaitingForConfirmation(mMasId);
-                      isWaitingAuthorization = true;
                       Intent intent = new
                           Intent(BluetoothDevice.ACTION_CONNECTION_ACCESS_REQUEST);
                       intent.setClassName(ACCESS_AUTHORITY_PACKAGE, ACCESS_AUTHORITY_CLASS);
                       intent.putExtra(BluetoothDevice.EXTRA_ACCESS_REQUEST_TYPE,
                                       BluetoothDevice.REQUEST_TYPE_MESSAGE_ACCESS);
-                      intent.putExtra(BluetoothDevice.EXTRA_DEVICE, mRemoteDevice);
+                      intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
                       intent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
                       sendBroadcast(intent, BLUETOOTH_ADMIN_PERM);
 
                       if (DEBUG) Log.d(TAG, "waiting for authorization for connection from: "
-                              + sRemoteDeviceName);
+                              + remoteDeviceName);
 
                       //Queue USER_TIMEOUT to disconnect MAP OBEX session. If user doesn't
-                      //accept or reject authorization request.
-                      removeTimeoutMsg = true;
+                      //accept or reject authorization request. It is removed with the session
+                      //once it stops waiting.
                       mSessionStatusHandler.sendMessageDelayed(mSessionStatusHandler
-                          .obtainMessage(USER_TIMEOUT), USER_CONFIRM_TIMEOUT_VALUE);
-                      stopped = true; // job done ,close this thread;
+                          .obtainMessage(USER_TIMEOUT, session), USER_CONFIRM_TIMEOUT_VALUE);
                     } catch (IOException ex) {
                        stopped=true;
                        if (DEBUG) Log.v(TAG, "Accept exception: " + ex.toString());
                    }
                }
+               synchronized (BluetoothMapObexConnection.this) {
+                   if (mAcceptThread == this) {
+                       mAcceptThread = null;
+                   }
+               }
             }
 
             void shutdown() {
@@ -1006,20 +1118,11 @@ public class BluetoothMapService extends ProfileService {
                 int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE,
                                                BluetoothAdapter.ERROR);
                 if (state == BluetoothAdapter.STATE_TURNING_OFF) {
-                    if (DEBUG) Log.d(TAG, "STATE_TURNING_OFF removeTimeoutMsg:" + removeTimeoutMsg);
+                    Set<BluetoothDevice> waitingDevices = mConnectionManager.getWaitingDevices();
+                    if (DEBUG) Log.d(TAG, "STATE_TURNING_OFF waiting:" + waitingDevices);
                     // Send any pending timeout now, as this service will be destroyed.
-                    if (removeTimeoutMsg) {
-                        mSessionStatusHandler.removeMessages(USER_TIMEOUT);
-
-                        Intent timeoutIntent =
-                                new Intent(BluetoothDevice.ACTION_CONNECTION_ACCESS_CANCEL);
-                        timeoutIntent.putExtra(BluetoothDevice.EXTRA_DEVICE, mRemoteDevice);
-                        timeoutIntent.putExtra(BluetoothDevice.EXTRA_ACCESS_REQUEST_TYPE,
-                                               BluetoothDevice.REQUEST_TYPE_MESSAGE_ACCESS);
-                        intent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
-                        sendBroadcast(timeoutIntent, BLUETOOTH_PERM);
-                        isWaitingAuthorization = false;
-                        removeTimeoutMsg = false;
+                    for (BluetoothDevice device : waitingDevices) {
+                        cancelAuthorization(device);
                     }
 
                     // Release all resources
@@ -1033,26 +1136,21 @@ public class BluetoothMapService extends ProfileService {
             } else if (action.equals(BluetoothDevice.ACTION_CONNECTION_ACCESS_REPLY)) {
                 int requestType = intent.getIntExtra(BluetoothDevice.EXTRA_ACCESS_REQUEST_TYPE,
                                                BluetoothDevice.REQUEST_TYPE_MESSAGE_ACCESS);
+                BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
                 if (DEBUG) Log.d(TAG, "Received ACTION_CONNECTION_ACCESS_REPLY:" +
-                           requestType + "isWaitingAuthorization:" + isWaitingAuthorization);
-                if ((!isWaitingAuthorization) ||
+                           requestType + " device:" + device);
+                if (device == null || !mConnectionManager.isWaitingForConfirmation(device) ||
                     (requestType != BluetoothDevice.REQUEST_TYPE_MESSAGE_ACCESS)) {
                     // this reply is not for us
                     return;
                 }
 
-                isWaitingAuthorization = false;
-                if (removeTimeoutMsg) {
-                    mSessionStatusHandler.removeMessages(USER_TIMEOUT);
-                    removeTimeoutMsg = false;
-                }
-
                 if (intent.getIntExtra(BluetoothDevice.EXTRA_CONNECTION_ACCESS_RESULT,
                                        BluetoothDevice.CONNECTION_ACCESS_NO) ==
                     BluetoothDevice.CONNECTION_ACCESS_YES) {
                     //bluetooth connection accepted by user
                     if (intent.getBooleanExtra(BluetoothDevice.EXTRA_ALWAYS_ALLOWED, false)) {
-                        boolean result = mRemoteDevice.setMessageAccessPermission(
+                        boolean result = device.setMessageAccessPermission(
                                 BluetoothDevice.ACCESS_ALLOWED);
                         if( DEBUG) Log.d(TAG, "setMessageAccessPermission(ACCESS_ALLOWED) result="
                            + result);
@@ -1062,43 +1160,31 @@ public class BluetoothMapService extends ProfileService {
                       //  todo updateEmailAccount();
                     }
                     if (DEBUG) Log.d(TAG, "calling initiateObexServerSession");
-                    mConnectionManager.initiateObexServerSession(mRemoteDevice);
+                    mConnectionManager.initiateObexServerSession(device);
 
                 } else {
                     if (intent.getBooleanExtra(BluetoothDevice.EXTRA_ALWAYS_ALLOWED, false)) {
-                        boolean result = mRemoteDevice.setMessageAccessPermission(
+                        boolean result = device.setMessageAccessPermission(
                                BluetoothDevice.ACCESS_REJECTED);
                         if(DEBUG) Log.d(TAG, "setMessageAccessPermission(ACCESS_REJECTED) result="
                             +result);
                     }
                    Log.d(TAG, "calling stopObexServerSessionWaiting");
-                   mConnectionManager.stopObexServerSessionWaiting();
+                   mConnectionManager.stopObexServerSessionWaiting(device);
                 }
-            } else if (action.equals(BluetoothDevice.ACTION_ACL_DISCONNECTED) &&
-                    isWaitingAuthorization) {
+            } else if (action.equals(BluetoothDevice.ACTION_ACL_DISCONNECTED)) {
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
 
-                if (mRemoteDevice == null || device == null) {
+                if (device == null) {
                     Log.e(TAG, "Unexpected error!");
                     return;
                 }
 
                 if (DEBUG) Log.d(TAG,"ACL disconnected for "+ device);
 
-                if (mRemoteDevice.equals(device) && removeTimeoutMsg) {
+                if (mConnectionManager.isWaitingForConfirmation(device)) {
                     // Send any pending timeout now, as ACL got disconnected.
-                    mSessionStatusHandler.removeMessages(USER_TIMEOUT);
-
-                    Intent timeoutIntent =
-                            new Intent(BluetoothDevice.ACTION_CONNECTION_ACCESS_CANCEL);
-                    timeoutIntent.putExtra(BluetoothDevice.EXTRA_DEVICE, mRemoteDevice);
-                    timeoutIntent.putExtra(BluetoothDevice.EXTRA_ACCESS_REQUEST_TYPE,
-                                           BluetoothDevice.REQUEST_TYPE_MESSAGE_ACCESS);
-                    intent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
-                    sendBroadcast(timeoutIntent, BLUETOOTH_PERM);
-                    isWaitingAuthorization = false;
-                    removeTimeoutMsg = false;
-                    mConnectionManager.stopObexServerSessionWaiting();
+                    cancelAuthorization(device);
                 }
             }
         }
@@ -1155,7 +1241,7 @@ public class BluetoothMapService extends ProfileService {
             if (VERBOSE) Log.v(TAG, "isConnected()");
             BluetoothMapService service = getService();
             if (service == null) return false;
-            return service.getState() == BluetoothMap.STATE_CONNECTED && service.getRemoteDevice().equals(device);
+            return service.getConnectionState(device) == BluetoothProfile.STATE_CONNECTED;
         }
 
         public boolean connect(BluetoothDevice device) {
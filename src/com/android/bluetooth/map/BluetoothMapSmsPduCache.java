@@ -0,0 +1,134 @@
+/*
+* Copyright (C) 2014 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.android.bluetooth.map;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.bluetooth.map.BluetoothMapSmsPdu.SmsPdu;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The PDUs of the SMS messages read in native format.
+ *
+ * Car kits read the same messages again after every reconnect, and encoding
+ * PDUs through the telephony classes is most of the cost of a native
+ * GetMessage. The PDUs are kept by message id, with what they were encoded
+ * from. The SMS table has no modification time, so an entry is only used
+ * while the body, address, date, PDU type and phone type still match.
+ *
+ * The cache is shared by the sessions, so it outlives disconnections. The
+ * content observers drop the entries of deleted and moved messages, and the
+ * least recently used entries are evicted above {@link #MAX_ENTRIES}.
+ */
+public class BluetoothMapSmsPduCache {
+    private static final String TAG = "BluetoothMapSmsPduCache";
+
+    private static final boolean V = Log.isLoggable(BluetoothMapService.LOG_TAG, Log.VERBOSE) ? true : false;
+
+    static final int MAX_ENTRIES = 128;
+
+    private static final BluetoothMapSmsPduCache sInstance = new BluetoothMapSmsPduCache();
+
+    private static class Entry {
+        final String body;
+        final String address;
+        final long date;
+        final boolean deliver;
+        final int phoneType;
+        final ArrayList<SmsPdu> pdus;
+
+        Entry(String body, String address, long date, boolean deliver, int phoneType,
+                ArrayList<SmsPdu> pdus) {
+            this.body = body;
+            this.address = address;
+            this.date = date;
+            this.deliver = deliver;
+            this.phoneType = phoneType;
+            this.pdus = pdus;
+        }
+
+        boolean matches(String body, String address, long date, boolean deliver, int phoneType) {
+            return this.date == date && this.deliver == deliver && this.phoneType == phoneType
+                    && TextUtils.equals(this.body, body) && TextUtils.equals(this.address, address);
+        }
+    }
+
+    private final Map<Long, Entry> mEntries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private int mHits = 0;
+    private int mMisses = 0;
+
+    BluetoothMapSmsPduCache() {
+    }
+
+    public static BluetoothMapSmsPduCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Get the PDUs of a message, encoding them if they are not cached.
+     * @param id the _id of the message in the SMS table
+     * @param deliver true for deliver PDUs, of received messages, false for submit PDUs
+     * @param phoneType the phone type the PDUs are encoded for
+     * @return the PDUs, in a list owned by the caller
+     */
+    public ArrayList<SmsPdu> getPdus(long id, String body, String address, long date,
+            boolean deliver, int phoneType) {
+        synchronized (this) {
+            Entry entry = mEntries.get(id);
+            if (entry != null && entry.matches(body, address, date, deliver, phoneType)) {
+                mHits++;
+                return new ArrayList<SmsPdu>(entry.pdus);
+            }
+            mMisses++;
+        }
+        if (V) Log.v(TAG, "Encoding PDUs of message " + id);
+        ArrayList<SmsPdu> pdus = deliver ? BluetoothMapSmsPdu.getDeliverPdus(body, address, date)
+                : BluetoothMapSmsPdu.getSubmitPdus(body, address);
+        synchronized (this) {
+            mEntries.put(id, new Entry(body, address, date, deliver, phoneType, pdus));
+        }
+        return new ArrayList<SmsPdu>(pdus);
+    }
+
+    public synchronized void remove(long id) {
+        mEntries.remove(id);
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+}
@@ -21,7 +21,9 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 
 import android.os.Environment;
@@ -36,6 +38,8 @@ public abstract class BluetoothMapbMessage {
     protected static final boolean D = BluetoothMapService.DEBUG;
     protected static final boolean V = Log.isLoggable(BluetoothMapService.LOG_TAG, Log.VERBOSE) ? true : false;
     private static final String VERSION = "VERSION:1.0";
+    private static final String MSG_END = "END:BBODY\r\n" + "END:BENV\r\n" + "END:BMSG\r\n";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
 
     public static int INVALID_VALUE = -1;
 
@@ -185,12 +189,13 @@ public abstract class BluetoothMapbMessage {
         }
 
         /**
-         * Parse a vCard from a BMgsReader, where a line containing "BEGIN:VCARD" have just been read.
+         * Parse a vCard from a bMessage parser, where a line containing "BEGIN:VCARD" have just been read.
          * @param reader
          * @param originator
          * @return
          */
-        public static vCard parseVcard(BMsgReader reader, int envLevel) {
+        public static vCard parseVcard(BluetoothMapbMessageParser reader, int envLevel)
+                throws IOException {
             String formattedName = null;
             String name = null;
             ArrayList<String> phoneNumbers = null;
@@ -244,218 +249,11 @@ public abstract class BluetoothMapbMessage {
         }
     };
 
-    private static class BMsgReader {
-        InputStream mInStream;
-        public BMsgReader(InputStream is)
-        {
-            this.mInStream = is;
-        }
-
-        private byte[] getLineTerminatorAsBytes() {
-            int readByte;
-
-            /* Donot skip Empty Line.
-             */
-
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-            try {
-                while ((readByte = mInStream.read()) != -1) {
-                    if (readByte == '\r') {
-                        if ((readByte = mInStream.read()) != -1 && readByte == '\n') {
-                            if(output.size() == 0){
-                               Log.v(TAG,"outputsize 0");
-                               output.write('\r');
-                               output.write('\n');
-                            }
-                            break;
-                        } else {
-                            output.write('\r');
-                        }
-                    }
-                    output.write(readByte);
-                }
-            } catch (IOException e) {
-                Log.w(TAG, e);
-                return null;
-            }
-            return output.toByteArray();
-        }
-
-        private byte[] getLineAsBytes() {
-            int readByte;
-
-            /* TODO: Actually the vCard spec. allows to break lines by using a newLine
-             * followed by a white space character(space or tab). Not sure this is a good idea to implement
-             * as the Bluetooth MAP spec. illustrates vCards using tab alignment, hence actually
-             * showing an invalid vCard format...
-             * If we read such a folded line, the folded part will be skipped in the parser
-             */
-
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-            try {
-                while ((readByte = mInStream.read()) != -1) {
-                    if (readByte == '\r') {
-                        if ((readByte = mInStream.read()) != -1 && readByte == '\n') {
-                            if(output.size() == 0)
-                                continue; /* Skip empty lines */
-                            else
-                                break;
-                        } else {
-                            output.write('\r');
-                        }
-                    } else if (readByte == '\n' && output.size() == 0) {
-                        /* Empty line - skip */
-                        continue;
-                    }
-
-                    output.write(readByte);
-                }
-            } catch (IOException e) {
-                Log.w(TAG, e);
-                return null;
-            }
-            return output.toByteArray();
-        }
-
-        /**
-         * Read a line of text from the BMessage including empty lines.
-         * @return the next line of text, or null at end of file, or if UTF-8 is not supported.
-         */
-        public String getLineTerminator() {
-            try {
-                byte[] line = getLineTerminatorAsBytes();
-                if (line == null) {
-                    return null;
-                } else if (line.length == 0){
-                    return null;
-                } else {
-                    return new String(line, "UTF-8");
-                }
-            } catch (UnsupportedEncodingException e) {
-                Log.w(TAG, e);
-                return null;
-            }
-        }
-        /**
-         * Read a line of text from the BMessage.
-         * @return the next line of text, or null at end of file, or if UTF-8 is not supported.
-         */
-        public String getLine() {
-            try {
-                byte[] line = getLineAsBytes();
-                if (line == null) {
-                   return null;
-                } else if (line.length == 0) {
-                   return null;
-                } else {
-                   return new String(line, "UTF-8");
-                }
-            } catch (UnsupportedEncodingException e) {
-                Log.w(TAG, e);
-                return null;
-            }
-        }
-
-        /**
-         * same as getLine(), but throws an exception, if we run out of lines.
-         * Use this function when ever more lines are needed for the bMessage to be complete.
-         * @return the next line
-         */
-        public String getLineEnforce() {
-        String line = getLine();
-        if (line == null)
-            throw new IllegalArgumentException("Bmessage too short");
-
-        return line;
-        }
-
-
-        /**
-         * Reads a line from the InputStream, and examines if the subString
-         * matches the line read.
-         * @param subString
-         * The string to match against the line.
-         * @throws IllegalArgumentException
-         * If the expected substring is not found.
-         *
-         */
-        public void expect(String subString) throws IllegalArgumentException{
-            String line = getLine();
-            if(line == null || subString == null){
-                throw new IllegalArgumentException("Line or substring is null");
-            }else if(!line.toUpperCase().contains(subString.toUpperCase()))
-                throw new IllegalArgumentException("Expected \"" + subString + "\" in: \"" + line + "\"");
-        }
-
-        /**
-         * Same as expect(String), but with two strings.
-         * @param subString
-         * @param subString2
-         * @throws IllegalArgumentException
-         * If one or all of the strings are not found.
-         */
-        public void expect(String subString, String subString2) throws IllegalArgumentException{
-            String line = getLine();
-            if(line == null || subString == null) {
-                throw new IllegalArgumentException("Line or substring is null");
-            } else if(!line.toUpperCase().contains(subString.toUpperCase()))
-                throw new IllegalArgumentException("Expected \"" + subString + "\" in: \"" + line + "\"");
-            if(line == null || subString2 == null) {
-                throw new IllegalArgumentException("Line or substring is null");
-            } else if(!line.toUpperCase().contains(subString2.toUpperCase()))
-                throw new IllegalArgumentException("Expected \"" + subString + "\" in: \"" + line + "\"");
-        }
-
-        /**
-         * Read a part of the bMessage as raw data.
-         * @param length the number of bytes to read
-         * @return the byte[] containing the number of bytes or null if an error occurs or EOF is reached
-         * before length bytes have been read.
-         */
-        public byte[] getDataBytes(int length) {
-            byte[] data = new byte[length];
-            try {
-                int bytesRead;
-                int offset=0;
-                while ((bytesRead = mInStream.read(data, offset, length-offset)) != (length - offset)) {
-                    if(bytesRead == -1)
-                        return null;
-                    offset += bytesRead;
-                }
-            } catch (IOException e) {
-                Log.w(TAG, e);
-                return null;
-            }
-            return data;
-        }
-
-        public String getStringTerminator(String terminator) {
-            StringBuilder dataStr= new StringBuilder();
-            String lineCur = getLineTerminator();
-           while( lineCur != null && (!lineCur.equals(terminator))) {
-                dataStr.append(lineCur);
-                if(! lineCur.equals("\r\n")) {
-                   dataStr.append("\r\n");
-                }
-                lineCur = getLineTerminator();
-           }
-           return dataStr.toString();
-        }
-    };
-
     public BluetoothMapbMessage(){
 
     }
 
     public static BluetoothMapbMessage parse(InputStream bMsgStream, int appParamCharset) throws IllegalArgumentException{
-        BMsgReader reader;
-        String line = "";
-        BluetoothMapbMessage newBMsg = null;
-        boolean status = false;
-        boolean statusFound = false;
-        TYPE type = null;
-        String folder = null;
-
         /* This section is used for debug. It will write the incoming message to a file on the SD-card,
          * hence should only be used for test/debug.
          * If an error occurs, it will result in a OBEX_HTTP_PRECON_FAILED to be send to the client,
@@ -518,214 +316,210 @@ public abstract class BluetoothMapbMessage {
             Log.i(TAG, "The incoming bMessage have been dumped to " + file.getAbsolutePath());
         } /* End of if(V) log-section */
 
-        reader = new BMsgReader(bMsgStream);
-        reader.expect("BEGIN:BMSG");
-        reader.expect("VERSION","1.0");
-
-        line = reader.getLineEnforce();
-        // Parse the properties - which end with either a VCARD or a BENV
-        while(!line.contains("BEGIN:VCARD") && !line.contains("BEGIN:BENV")) {
-            if(line.contains("STATUS")){
-                String arg[] = line.split(":");
-                if (arg != null && arg.length == 2) {
-                    if (arg[1].trim().equals("READ")) {
-                        status = true;
-                    } else if (arg[1].trim().equals("UNREAD")) {
-                        status =false;
-                    } else {
-                        throw new IllegalArgumentException("Wrong value in 'STATUS': " + arg[1]);
-                    }
-                } else {
-                    throw new IllegalArgumentException("Missing value for 'STATUS': " + line);
-                }
-            }
-            if(line.contains("TYPE")) {
-                String arg[] = line.split(":");
-                if (arg != null && arg.length == 2) {
-                    String value = arg[1].trim();
-                    type = TYPE.valueOf(value); // Will throw IllegalArgumentException if value is wrong
-                    if(appParamCharset == BluetoothMapAppParams.CHARSET_NATIVE
-                            && type != TYPE.SMS_CDMA && type != TYPE.SMS_GSM) {
-                        throw new IllegalArgumentException("Native appParamsCharset only supported for SMS");
-                    }
-                    switch(type) {
-                    case SMS_CDMA:
-                    case SMS_GSM:
-                        newBMsg = new BluetoothMapbMessageSms();
-                        break;
-                    case MMS:
-                    case EMAIL:
-                        newBMsg = new BluetoothMapbMessageMmsEmail();
-                        break;
-                    default:
-                        break;
-                    }
-                } else {
-                    throw new IllegalArgumentException("Missing value for 'TYPE':" + line);
-                }
-            }
-            if(line.contains("FOLDER")) {
-                String[] arg = line.split(":");
-                if (arg != null && arg.length == 2) {
-                    folder = arg[1].trim();
-                }
-                // This can be empty for push message - hence ignore if there is no value
-            }
-            line = reader.getLineEnforce();
-        }
-        if(newBMsg == null)
-            throw new IllegalArgumentException("Missing bMessage TYPE: - unable to parse body-content");
-        newBMsg.setType(type);
-        newBMsg.appParamCharset = appParamCharset;
-        if(folder != null)
-            newBMsg.setCompleteFolder(folder);
-        if(statusFound)
-            newBMsg.setStatus(status);
-
-        // Now check for originator VCARDs
-        while(line.contains("BEGIN:VCARD")){
-            if(D) Log.d(TAG,"Decoding vCard");
-            newBMsg.addOriginator(vCard.parseVcard(reader,0));
-            line = reader.getLineEnforce();
-        }
-        if(line.contains("BEGIN:BENV")) {
-            newBMsg.parseEnvelope(reader, 0);
-        } else
-            throw new IllegalArgumentException("Bmessage has no BEGIN:BENV - line:" + line);
-
-        /* TODO: Do we need to validate the END:* tags? They are only needed if someone puts additional info
-         *        below the END:MSG - in which case we don't handle it.
-         */
-
+        Builder builder = new Builder(appParamCharset);
         try {
-            bMsgStream.close();
+            new BluetoothMapbMessageParser(bMsgStream, builder).parse();
+            return builder.build();
         } catch (IOException e) {
-            /* Ignore if we cannot close the stream. */
+            Log.w(TAG, e);
+            builder.release();
+            throw new IllegalArgumentException("Failed to read bMessage");
+        } catch (RuntimeException e) {
+            builder.release();
+            throw e;
+        } finally {
+            try {
+                bMsgStream.close();
+            } catch (IOException e) {
+                /* Ignore if we cannot close the stream. */
+            }
         }
-
-        return newBMsg;
     }
 
-    private void parseEnvelope(BMsgReader reader, int level) {
-        String line;
-        line = reader.getLineEnforce();
-        if(D) Log.d(TAG,"Decoding envelope level " + level);
+    /**
+     * Builds the bMessage reported by a {@link BluetoothMapbMessageParser}.
+     * The content of SMS and MMS messages is passed on to the message a line
+     * at a time, e-mail bodies are collected and parsed once complete.
+     */
+    private static class Builder implements BluetoothMapbMessageParser.Callback {
+        private final int mAppParamCharset;
+        private BluetoothMapbMessage mMsg = null;
+        private TYPE mType = null;
+        private String mFolder = null;
+        private boolean mMsgInit = false;
+        private ByteArrayOutputStream mEmailBody = null;
+
+        Builder(int appParamCharset) {
+            mAppParamCharset = appParamCharset;
+        }
+
+        @Override
+        public void onProperty(String name, String value) {
+            if (name.equals("STATUS")) {
+                if (!value.equals("READ") && !value.equals("UNREAD")) {
+                    throw new IllegalArgumentException("Wrong value in 'STATUS': " + value);
+                }
+            } else if (name.equals("TYPE")) {
+                mType = TYPE.valueOf(value); // Will throw IllegalArgumentException if value is wrong
+                if(mAppParamCharset == BluetoothMapAppParams.CHARSET_NATIVE
+                        && mType != TYPE.SMS_CDMA && mType != TYPE.SMS_GSM) {
+                    throw new IllegalArgumentException("Native appParamsCharset only supported for SMS");
+                }
+                switch(mType) {
+                case SMS_CDMA:
+                case SMS_GSM:
+                    mMsg = new BluetoothMapbMessageSms();
+                    break;
+                case MMS:
+                case EMAIL:
+                    mMsg = new BluetoothMapbMessageMmsEmail();
+                    break;
+                default:
+                    break;
+                }
+            } else if (name.equals("FOLDER")) {
+                mFolder = value;
+            } else if (name.equals("PARTID")) {
+                mMsg.partId = Long.parseLong(value);
+            } else if (name.equals("ENCODING")) {
+                mMsg.encoding = value; // TODO: Validate ?
+            } else if (name.equals("CHARSET")) {
+                mMsg.charset = value; // TODO: Validate ?
+            } else if (name.equals("LANGUAGE")) {
+                mMsg.language = value; // TODO: Validate ?
+            } else if (name.equals("LENGTH")) {
+                mMsg.bMsgLength = Integer.parseInt(value);
+            }
+        }
 
-       while(line.contains("BEGIN:VCARD")){
-           if(D) Log.d(TAG,"Decoding recipient vCard level " + level);
-            if(recipient == null)
-                recipient = new ArrayList<vCard>(1);
-            recipient.add(vCard.parseVcard(reader, level));
-            line = reader.getLineEnforce();
+        @Override
+        public void onPropertiesEnd() {
+            if(mMsg == null)
+                throw new IllegalArgumentException("Missing bMessage TYPE: - unable to parse body-content");
+            mMsg.setType(mType);
+            mMsg.appParamCharset = mAppParamCharset;
+            if(mFolder != null)
+                mMsg.setCompleteFolder(mFolder);
         }
-        if(line.contains("BEGIN:BENV")) {
-            if(D) Log.d(TAG,"Decoding nested envelope");
-            parseEnvelope(reader, ++level); // Nested BENV
+
+        @Override
+        public void onOriginator(vCard originator) {
+            mMsg.addOriginator(originator);
         }
-        if(line.contains("BEGIN:BBODY")){
-            if(D) Log.d(TAG,"Decoding bbody");
 
-            if(type == TYPE.EMAIL){
-               //TODO: Support Attachments also.
-               parseBodyEmail(reader.getStringTerminator("END:BBODY"));
-            } else
-            parseBody(reader);
+        @Override
+        public void onRecipient(vCard recipient, int envLevel) {
+            if(mMsg.recipient == null)
+                mMsg.recipient = new ArrayList<vCard>(1);
+            mMsg.recipient.add(recipient);
         }
-    }
 
-    private void parseBody(BMsgReader reader) {
-        String line;
-        line = reader.getLineEnforce();
-        while(!line.contains("END:")) {
-            if(line.contains("PARTID:")) {
-                String arg[] = line.split(":");
-                if (arg != null && arg.length == 2) {
-                    try {
-                    partId = Long.parseLong(arg[1].trim());
-                    } catch (NumberFormatException e) {
-                        throw new IllegalArgumentException("Wrong value in 'PARTID': " + arg[1]);
-                    }
-                } else {
-                    throw new IllegalArgumentException("Missing value for 'PARTID': " + line);
-                }
+        @Override
+        public void onMessageStart() throws IOException {
+            if(V) Log.v(TAG,"MsgLength: " + mMsg.bMsgLength);
+            if(mType == TYPE.EMAIL) {
+                //TODO: Support Attachments also.
+                if(mEmailBody == null)
+                    mEmailBody = new ByteArrayOutputStream();
+                writeLine(mEmailBody, "BEGIN:MSG");
+                return;
             }
-            else if(line.contains("ENCODING:")) {
-                String arg[] = line.split(":");
-                if (arg != null && arg.length == 2) {
-                    encoding = arg[1].trim(); // TODO: Validate ?
-                } else {
-                    throw new IllegalArgumentException("Missing value for 'ENCODING': " + line);
-                }
-            }
-            else if(line.contains("CHARSET:")) {
-                String arg[] = line.split(":");
-                if (arg != null && arg.length == 2) {
-                    charset = arg[1].trim(); // TODO: Validate ?
-                } else {
-                    throw new IllegalArgumentException("Missing value for 'CHARSET': " + line);
-                }
+            /* PTS has a bug regarding the message length, and sets it 2 bytes too short, hence
+             * the END:MSG tag is used as terminator and the length is only required to be there. */
+            if(mMsg.bMsgLength == INVALID_VALUE)
+                throw new IllegalArgumentException("Missing value for 'LENGTH'. Unable to read remaining part of the message");
+            // The fragments of a message are all part of the same body
+            if(!mMsgInit) {
+                mMsg.parseMsgInit();
+                mMsgInit = true;
             }
-            else if(line.contains("LANGUAGE:")) {
-                String arg[] = line.split(":");
-                if (arg != null && arg.length == 2) {
-                    language = arg[1].trim(); // TODO: Validate ?
-                } else {
-                    throw new IllegalArgumentException("Missing value for 'LANGUAGE': " + line);
-                }
+            mMsg.parseMsgStart();
+        }
+
+        @Override
+        public void onMessageLine(byte[] line, int length, boolean complete)
+                throws IOException {
+            if(mEmailBody != null) {
+                mEmailBody.write(line, 0, length);
+                if(complete)
+                    writeLine(mEmailBody, "");
+            } else {
+                mMsg.parseMsgLine(line, length, complete);
             }
-            else if(line.contains("LENGTH:")) {
-                String arg[] = line.split(":");
-                if (arg != null && arg.length == 2) {
-                    try {
-                        bMsgLength = Integer.parseInt(arg[1].trim());
-                    } catch (NumberFormatException e) {
-                        throw new IllegalArgumentException("Wrong value in 'LENGTH': " + arg[1]);
-                    }
-                } else {
-                    throw new IllegalArgumentException("Missing value for 'LENGTH': " + line);
-                }
+        }
+
+        @Override
+        public void onMessageEnd() throws IOException {
+            if(mEmailBody != null) {
+                writeLine(mEmailBody, "END:MSG");
+            } else {
+                mMsg.parseMsgEnd();
             }
-            else if(line.contains("BEGIN:MSG")) {
-                if(bMsgLength == INVALID_VALUE)
-                    throw new IllegalArgumentException("Missing value for 'LENGTH'. Unable to read remaining part of the message");
-                // For SMS: Encoding of MSG is always UTF-8 compliant, regardless of any properties, since PDUs are encodes as hex-strings
-                /* PTS has a bug regarding the message length, and sets it 2 bytes too short, hence
-                 * using the length field to determine the amount of data to read, might not be the
-                 * best solution.
-                 * Since errata ???(bluetooth.org is down at the moment) introduced escaping of END:MSG
-                 * in the actual message content, it is now safe to use the END:MSG tag as terminator,
-                 * and simply ignore the length field.*/
-                //byte[] rawData = reader.getDataBytes(bMsgLength - (line.getBytes().length + 2)); // 2 added to compensate for the removed \r\n
-                String data = reader.getStringTerminator("END:MSG");
-                    if(V) {
-                        Log.v(TAG,"MsgLength: " + bMsgLength);
-                    Log.v(TAG,"data.getBytes().length: " + data.getBytes().length);
-                        String debug = line.replaceAll("\\n", "<LF>\n");
-                        debug = debug.replaceAll("\\r", "<CR>");
-                        Log.v(TAG,"The line: \"" + debug + "\"");
-                        debug = data.replaceAll("\\n", "<LF>\n");
-                        debug = debug.replaceAll("\\r", "<CR>");
-                    Log.v(TAG,"The msgString: \"" + data + "\"");
-                }
-                /* Decoding of MSG:
-                 * 1) split on "\r\nEND:MSG\r\n"
-                 * 2) delete "BEGIN:MSG\r\n" for each msg
-                 * 3) replace any occurrence of "\END:MSG" with "END:MSG"
-                 * 4) based on charset from application properties either store as String[] or decode to raw PDUs
-                 * */
-                String messages[] = data.split("\r\nEND:MSG\r\n");
-                parseMsgInit();
-                for(int i = 0; i < messages.length; i++) {
-                    messages[i] = messages[i].replaceFirst("^BEGIN:MSG\r\n", "");
-                    messages[i] = messages[i].replaceAll("\r\n([/]*)/END\\:MSG", "\r\n$1END:MSG");
-                    messages[i] = messages[i].trim();
-                    parseMsgPart(messages[i]);
-                }
+        }
+
+        BluetoothMapbMessage build() {
+            if(mEmailBody != null) {
+                mMsg.parseBodyEmail(new String(mEmailBody.toByteArray(), UTF_8));
             }
-            line = reader.getLineEnforce();
+            return mMsg;
+        }
+
+        void release() {
+            if(mMsg != null)
+                mMsg.release();
+        }
+
+        private static void writeLine(ByteArrayOutputStream out, String line) {
+            byte[] bytes = (line + "\r\n").getBytes(UTF_8);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
+    /* The content of the message being parsed by the default parseMsg* hooks */
+    private ByteArrayOutputStream msgContent = null;
+
+    /**
+     * Start of a message of the body, its content lines follow.
+     * By default the lines are collected, and passed to {@link #parseMsgPart(String)}
+     * once the message is complete.
+     */
+    protected void parseMsgStart() throws IOException {
+        msgContent = new ByteArrayOutputStream();
+    }
+
+    /**
+     * A line of the content of the current message, without its line break
+     * and with any END:MSG escaping removed.
+     * @param line the line, only valid during the call
+     * @param complete false if the line continues in the next call
+     */
+    protected void parseMsgLine(byte[] line, int length, boolean complete)
+            throws IOException {
+        msgContent.write(line, 0, length);
+        if(complete) {
+            msgContent.write('\r');
+            msgContent.write('\n');
         }
     }
 
+    /** End of the current message. */
+    protected void parseMsgEnd() throws IOException {
+        String data = new String(msgContent.toByteArray(), UTF_8);
+        msgContent = null;
+        if(V) {
+            String debug = data.replaceAll("\\n", "<LF>\n");
+            debug = debug.replaceAll("\\r", "<CR>");
+            Log.v(TAG,"The msgString: \"" + debug + "\"");
+        }
+        parseMsgPart(data.trim());
+    }
+
+    /**
+     * Release the resources held by a parsed message, once it has been stored.
+     */
+    public void release() {
+    }
+
     /**
      * Parse the 'message' part of <bmessage-body-content>"
      * @param msgPart
@@ -741,6 +535,18 @@ public abstract class BluetoothMapbMessage {
     }
     public abstract byte[] encode() throws UnsupportedEncodingException;
 
+    /**
+     * Write the encoded bMessage to a stream.
+     * @param out the stream to write to, it is not closed
+     */
+    public void encode(OutputStream out) throws IOException {
+        byte[] bytes = encode();
+        if (bytes == null) {
+            throw new IOException("Failed to encode bMessage");
+        }
+        out.write(bytes);
+    }
+
     public void setStatus(boolean read) {
         if(read)
             this.status = "READ";
@@ -884,8 +690,61 @@ public abstract class BluetoothMapbMessage {
 
     public byte[] encodeGeneric(ArrayList<byte[]> bodyFragments) throws UnsupportedEncodingException
     {
-        StringBuilder sb = new StringBuilder(256);
         byte[] msgStart, msgEnd;
+        int length = 0;
+        /* 22 is the length of the 'BEGIN:MSG' and 'END:MSG' + 3*CRLF */
+        for (byte[] fragment : bodyFragments) {
+            length += fragment.length + 22;
+        }
+
+        // Extract the initial part of the bMessage string
+        msgStart = encodeGenericStart(length);
+        msgEnd = MSG_END.getBytes("UTF-8");
+
+        try {
+
+            ByteArrayOutputStream stream = new ByteArrayOutputStream(msgStart.length + msgEnd.length + length);
+            stream.write(msgStart);
+
+            for (byte[] fragment : bodyFragments) {
+                stream.write("BEGIN:MSG\r\n".getBytes("UTF-8"));
+                stream.write(fragment);
+                stream.write("\r\nEND:MSG\r\n".getBytes("UTF-8"));
+            }
+            stream.write(msgEnd);
+
+            if(V) Log.v(TAG,stream.toString("UTF-8"));
+            return stream.toByteArray();
+        } catch (IOException e) {
+            Log.w(TAG,e);
+            return null;
+        }
+    }
+
+    /**
+     * Write the bMessage up to the content of its single body fragment, which
+     * the caller writes next, followed by {@link #writeGenericEnd}.
+     * @param out the stream to write to
+     * @param contentLength the length of the fragment content in bytes
+     */
+    protected void writeGenericStart(OutputStream out, long contentLength) throws IOException
+    {
+        out.write(encodeGenericStart(contentLength + 22));
+        out.write("BEGIN:MSG\r\n".getBytes("UTF-8"));
+    }
+
+    /**
+     * Write the end of a bMessage started by {@link #writeGenericStart}.
+     */
+    protected void writeGenericEnd(OutputStream out) throws IOException
+    {
+        out.write(("\r\nEND:MSG\r\n" + MSG_END).getBytes("UTF-8"));
+    }
+
+    /* The bMessage up to the BEGIN:MSG of the first fragment */
+    private byte[] encodeGenericStart(long length) throws UnsupportedEncodingException
+    {
+        StringBuilder sb = new StringBuilder(256);
         sb.append("BEGIN:BMSG").append("\r\n");
         sb.append(VERSION).append("\r\n");
         sb.append("STATUS:").append(status).append("\r\n");
@@ -913,41 +772,8 @@ public abstract class BluetoothMapbMessage {
         if(charset != null && charset != "")
             sb.append("CHARSET:").append(charset).append("\r\n");
 
-
-        int length = 0;
-        /* 22 is the length of the 'BEGIN:MSG' and 'END:MSG' + 3*CRLF */
-        for (byte[] fragment : bodyFragments) {
-            length += fragment.length + 22;
-        }
         sb.append("LENGTH:").append(length).append("\r\n");
 
-        // Extract the initial part of the bMessage string
-        msgStart = sb.toString().getBytes("UTF-8");
-
-        sb = new StringBuilder(31);
-        sb.append("END:BBODY").append("\r\n");
-        sb.append("END:BENV").append("\r\n");
-        sb.append("END:BMSG").append("\r\n");
-
-        msgEnd = sb.toString().getBytes("UTF-8");
-
-        try {
-
-            ByteArrayOutputStream stream = new ByteArrayOutputStream(msgStart.length + msgEnd.length + length);
-            stream.write(msgStart);
-
-            for (byte[] fragment : bodyFragments) {
-                stream.write("BEGIN:MSG\r\n".getBytes("UTF-8"));
-                stream.write(fragment);
-                stream.write("\r\nEND:MSG\r\n".getBytes("UTF-8"));
-            }
-            stream.write(msgEnd);
-
-            if(V) Log.v(TAG,stream.toString("UTF-8"));
-            return stream.toByteArray();
-        } catch (IOException e) {
-            Log.w(TAG,e);
-            return null;
-        }
+        return sb.toString().getBytes("UTF-8");
     }
 }
@@ -14,6 +14,13 @@
 */
 package com.android.bluetooth.map;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
@@ -36,6 +43,22 @@ public class BluetoothMapbMessageMmsEmail extends BluetoothMapbMessage {
     private static final boolean V = Log.isLoggable(BluetoothMapService.LOG_TAG, Log.VERBOSE) ? true : false;
     protected static String TAG = "BluetoothMapbMessageEmail";
     private static final String CRLF = "\r\n";
+    /* Whole lines of Base64.DEFAULT output, 57 bytes are encoded in 76 characters */
+    private static final int BASE64_BUFFER_SIZE = 57 * 144;
+    /* Base64 characters decoded at a time when parsing */
+    private static final int BASE64_DECODE_SIZE = 8192;
+    /* Non-text parts larger than this are spooled to a file when parsing */
+    static final int SPOOL_THRESHOLD = 64 * 1024;
+
+    /**
+     * The data of a part, read when the bMessage is written instead of being
+     * held in memory.
+     */
+    public interface DataSource {
+        /** @return the length of the data in bytes */
+        long getLength() throws IOException;
+        InputStream open() throws IOException;
+    }
 
     public static class MimePart {
         public long _id = INVALID_VALUE;   /* The _id from the content provider, can be used to sort the parts if needed */
@@ -48,10 +71,21 @@ public class BluetoothMapbMessageMmsEmail extends BluetoothMapbMessage {
                                                 holds a method for the mapping. */
         public String fileName = null;     /* Do not seem to be used */
         public byte[] data = null;        /* The raw un-encoded data e.g. the raw jpeg data or the text.getBytes("utf-8") */
+        public DataSource dataSource = null; /* Used in place of data for non-text parts, always Base64 encoded */
 
 
 
         public void encode(StringBuilder sb, String boundaryTag, boolean last) throws UnsupportedEncodingException {
+            if (data == null && dataSource != null) {
+                throw new IllegalStateException("A streamed part cannot be encoded to a string");
+            }
+            Body body = new Body();
+            encode(body, boundaryTag, last);
+            sb.append(body.text());
+        }
+
+        private void encode(Body body, String boundaryTag, boolean last) throws UnsupportedEncodingException {
+            StringBuilder sb = body.text();
             sb.append("--").append(boundaryTag).append("\r\n");
             if(contentType != null)
                 sb.append("Content-Type: ").append(contentType);
@@ -78,9 +112,13 @@ public class BluetoothMapbMessageMmsEmail extends BluetoothMapbMessage {
                     sb.append("Content-Transfer-Encoding: Base64\r\n\r\n"); // Add the header split empty line
                     sb.append(Base64.encodeToString(data, Base64.DEFAULT)).append("\r\n");
                 }
+            } else if (dataSource != null) {
+                sb.append("Content-Transfer-Encoding: Base64\r\n\r\n"); // Add the header split empty line
+                body.addBase64(dataSource);
+                body.text().append("\r\n");
             }
             if(last) {
-                sb.append("--").append(boundaryTag).append("--").append("\r\n");
+                body.text().append("--").append(boundaryTag).append("--").append("\r\n");
             }
         }
 
@@ -105,6 +143,94 @@ public class BluetoothMapbMessageMmsEmail extends BluetoothMapbMessage {
         }
     }
 
+    /**
+     * The <bmessage-body-content> of a message: text, with any occurrence of
+     * END:MSG escaped, and the data of streamed parts, in order. The length of
+     * the content is known before it is written, as the bMessage gives it
+     * first.
+     */
+    private static class Body {
+        private final ArrayList<Object> mSegments = new ArrayList<Object>(); // byte[] or DataSource
+        private StringBuilder mText = new StringBuilder();
+
+        StringBuilder text() {
+            return mText;
+        }
+
+        void addBase64(DataSource source) throws UnsupportedEncodingException {
+            flushText();
+            mSegments.add(source);
+        }
+
+        private void flushText() throws UnsupportedEncodingException {
+            if (mText.length() == 0) return;
+            String text = mText.toString().replaceAll("END:MSG", "/END\\:MSG"); // Replace any occurrences of END:MSG with \END:MSG
+            mSegments.add(text.getBytes("UTF-8"));
+            mText = new StringBuilder();
+        }
+
+        long getLength() throws IOException {
+            flushText();
+            long length = 0;
+            for (Object segment : mSegments) {
+                if (segment instanceof byte[]) {
+                    length += ((byte[]) segment).length;
+                } else {
+                    length += getBase64Length(((DataSource) segment).getLength());
+                }
+            }
+            return length;
+        }
+
+        void write(OutputStream out) throws IOException {
+            flushText();
+            byte[] buffer = null;
+            for (Object segment : mSegments) {
+                if (segment instanceof byte[]) {
+                    out.write((byte[]) segment);
+                    continue;
+                }
+                if (buffer == null) buffer = new byte[BASE64_BUFFER_SIZE];
+                DataSource source = (DataSource) segment;
+                long expected = source.getLength();
+                long length = 0;
+                InputStream is = source.open();
+                try {
+                    int len;
+                    while ((len = readFully(is, buffer)) > 0) {
+                        // Only the last block can end with a partial line
+                        out.write(Base64.encode(buffer, 0, len, Base64.DEFAULT));
+                        length += len;
+                    }
+                } finally {
+                    is.close();
+                }
+                if (length != expected) {
+                    // The LENGTH of the bMessage has been sent already
+                    throw new IOException("Part data changed while writing, "
+                            + length + " bytes instead of " + expected);
+                }
+            }
+        }
+
+        private static int readFully(InputStream is, byte[] buffer) throws IOException {
+            int offset = 0;
+            int len;
+            while (offset < buffer.length
+                    && (len = is.read(buffer, offset, buffer.length - offset)) != -1) {
+                offset += len;
+            }
+            return offset;
+        }
+
+        /* The length of data encoded with Base64.DEFAULT: groups of 4 characters,
+         * with a line feed after each 19 groups and after the last line */
+        private static long getBase64Length(long dataLength) {
+            long groups = (dataLength + 2) / 3;
+            return groups * 4 + (groups + 18) / 19;
+        }
+    }
+
     private long date = INVALID_VALUE;
     private String subject = null;
     private String emailBody = null;
@@ -282,7 +408,15 @@ public class BluetoothMapbMessageMmsEmail extends BluetoothMapbMessage {
             return message_size;
         }
         for(MimePart part : parts) {
-            message_size += part.data.length;
+            if (part.data != null) {
+                message_size += part.data.length;
+            } else if (part.dataSource != null) {
+                try {
+                    message_size += part.dataSource.getLength();
+                } catch (IOException e) {
+                    Log.w(TAG, e);
+                }
+            }
         }
         return message_size;
     }
@@ -377,12 +511,30 @@ public class BluetoothMapbMessageMmsEmail extends BluetoothMapbMessage {
      * @throws UnsupportedEncodingException
      */
     public byte[] encodeEmail() throws UnsupportedEncodingException
+    {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try {
+            encodeEmail(stream);
+        } catch (UnsupportedEncodingException e) {
+            throw e;
+        } catch (IOException e) {
+            Log.w(TAG,e);
+            return null;
+        }
+        return stream.toByteArray();
+    }
+
+    /**
+     * Write the bMessage as an EMAIL to a stream
+     * @param out the stream to write to, it is not closed
+     * @throws IOException
+     */
+    public void encodeEmail(OutputStream out) throws IOException
     {
         if (V) Log.v(TAG, "Inside encodeEmail ");
-        ArrayList<byte[]> bodyFragments = new ArrayList<byte[]>();
-        StringBuilder sb = new StringBuilder ();
+        Body body = new Body();
+        StringBuilder sb = body.text();
         int count = 0;
-        String emailBody;
         Random randomGenerator = new Random();
         int randomInt = randomGenerator.nextInt(1000);
         String boundary = "MessageBoundary."+randomInt;
@@ -396,35 +548,33 @@ public class BluetoothMapbMessageMmsEmail extends BluetoothMapbMessage {
                 .append("\r\n");
         sb.append("MIME Message").append("\r\n");
         sb.append("--"+boundary).append("\r\n");
-        Log.v(TAG, "after encode header sb is "+ sb.toString());
+        if (V) Log.v(TAG, "after encode header sb is "+ sb.toString());
 
         if (parts != null) {
             if(getIncludeAttachments() == false) {
                for(MimePart part : parts) {
-                   part.encodePlainText(sb); /* We call encode on all parts, to include a tag, where an attachment is missing. */
-                   sb.append("--"+boundary+"--").append("\r\n");
+                   part.encodePlainText(body.text()); /* We call encode on all parts, to include a tag, where an attachment is missing. */
+                   body.text().append("--"+boundary+"--").append("\r\n");
                }
            } else {
                for(MimePart part : parts) {
                    count++;
-                   part.encode(sb, getBoundary(), (count == parts.size()));
+                   part.encode(body, getBoundary(), (count == parts.size()));
                }
            }
         } else {
                Log.e(TAG, " parts is null.");
         }
 
-        emailBody = sb.toString();
-        if (V) Log.v(TAG, "emailBody is "+emailBody);
-
-        if(emailBody != null) {
-            String tmpBody = emailBody.replaceAll("END:MSG", "/END\\:MSG"); // Replace any occurrences of END:MSG with \END:MSG
-            bodyFragments.add(tmpBody.getBytes("UTF-8"));
-        } else {
-            bodyFragments.add(new byte[0]);
-        }
+        writeGeneric(out, body);
+    }
 
-        return encodeGeneric(bodyFragments);
+    /* Write the bMessage with the body as its single fragment */
+    private void writeGeneric(OutputStream out, Body body) throws IOException
+    {
+        writeGenericStart(out, body.getLength());
+        body.write(out);
+        writeGenericEnd(out);
     }
 
     /* Notes on MMS
@@ -463,37 +613,47 @@ public class BluetoothMapbMessageMmsEmail extends BluetoothMapbMessage {
      */
     public byte[] encodeMms() throws UnsupportedEncodingException
     {
-        ArrayList<byte[]> bodyFragments = new ArrayList<byte[]>();
-        StringBuilder sb = new StringBuilder();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try {
+            encodeMms(stream);
+        } catch (UnsupportedEncodingException e) {
+            throw e;
+        } catch (IOException e) {
+            Log.w(TAG,e);
+            return null;
+        }
+        return stream.toByteArray();
+    }
+
+    /**
+     * Write the bMessage as a MMS to a stream. The data of streamed parts is
+     * Base64 encoded as it is read, a buffer at a time.
+     * @param out the stream to write to, it is not closed
+     * @throws IOException
+     */
+    public void encodeMms(OutputStream out) throws IOException
+    {
+        Body body = new Body();
         int count = 0;
-        String mmsBody;
 
         encoding = "8BIT"; // The encoding used
 
-        encodeHeaders(sb);
+        encodeHeaders(body.text());
 
         if(parts != null) {
            if(getIncludeAttachments() == false) {
                for(MimePart part : parts) {
-                   part.encodePlainText(sb); /* We call encode on all parts, to include a tag, where an attachment is missing. */
+                   part.encodePlainText(body.text()); /* We call encode on all parts, to include a tag, where an attachment is missing. */
                }
            } else {
                for(MimePart part : parts) {
                    count++;
-                   part.encode(sb, getBoundary(), (count == parts.size()));
+                   part.encode(body, getBoundary(), (count == parts.size()));
                }
            }
         }
-        mmsBody = sb.toString();
 
-        if(mmsBody != null) {
-            String tmpBody = mmsBody.replaceAll("END:MSG", "/END\\:MSG"); // Replace any occurrences of END:MSG with \END:MSG
-            bodyFragments.add(tmpBody.getBytes("UTF-8"));
-        } else {
-            bodyFragments.add(new byte[0]);
-        }
-
-        return encodeGeneric(bodyFragments);
+        writeGeneric(out, body);
     }
 
 
@@ -584,18 +744,14 @@ public class BluetoothMapbMessageMmsEmail extends BluetoothMapbMessage {
         return null;
     }
 
-    private void parseMmsMimePart(String partStr) {
-        String[] parts = partStr.split("\r\n\r\n", 2); // Split the header from
-                                                       // the body
-        String body = null;
-        if (parts.length != 2) {
-            // body = partStr;
-            throw new IllegalArgumentException(
-                    "Mime part not formatted correctly: No Header");
-        } else {
-            body = parts[1];
-        }
-        String[] headers = parts[0].split("\r\n");
+    /**
+     * Parse the headers of a MIME part, and add the part. Its body is then
+     * written to parsePart.
+     * @throws IllegalArgumentException if a header is not formatted correctly,
+     *         no part is added then.
+     */
+    private void parseMmsPartHeaders(String headerPart) {
+        String[] headers = headerPart.split("\r\n");
         MimePart newPart = null;
         String partEncoding = encoding; /* Use the overall encoding as default */
 
@@ -614,6 +770,8 @@ public class BluetoothMapbMessageMmsEmail extends BluetoothMapbMessage {
                 continue;
             String[] headerParts = header.split(":", 2);
             if (headerParts.length != 2) {
+                if (newPart != null)
+                    parts.remove(newPart);
                 throw new IllegalArgumentException(
                         "part-Header not Formatted correctly: " + header);
             }
@@ -647,10 +805,10 @@ public class BluetoothMapbMessageMmsEmail extends BluetoothMapbMessage {
                             + " (" + header + ")");
             }
         }
-        // Now for the body
         if (newPart != null)
-           newPart.data = decodeBody(body, partEncoding);
+            parsePart = new PartWriter(newPart, partEncoding);
     }
+
     private static String parseSubjectEmail(String body) {
        int pos = body.indexOf("Subject:");
        if (pos > 0) {
@@ -662,26 +820,6 @@ public class BluetoothMapbMessageMmsEmail extends BluetoothMapbMessage {
        }
    }
 
-    private void parseMmsMimeBody(String body) {
-        MimePart newPart = addMimePart();
-        if(newPart != null) {
-           newPart.data = decodeBody(body, encoding);
-        }
-    }
-
-    private byte[] decodeBody(String body, String encoding) {
-        if(encoding != null && encoding.toUpperCase().contains("BASE64")) {
-            return Base64.decode(body, Base64.DEFAULT);
-        } else {
-            // TODO: handle other encoding types? - here we simply store the string data as bytes
-            try {
-                return body.getBytes("UTF-8");
-            } catch (UnsupportedEncodingException e) {
-                // This will never happen, as UTF-8 is mandatory on Android platforms
-            }
-        }
-        return null;
-    }
     private static String parseContentTypeEmail(String bmsg, String boundary) {
         int pos1 = bmsg.indexOf("--"+boundary);
         int pos = bmsg.indexOf("Content-Type:", pos1);
@@ -809,58 +947,347 @@ public class BluetoothMapbMessageMmsEmail extends BluetoothMapbMessage {
     Log.v(TAG, "fetch body Email NULL:");
     }
 
-    private void parseMms(String message) {
-        /* Overall strategy for decoding:
-         * 1) split on first empty line to extract the header
-         * 2) unfold and parse headers
-         * 3) split on boundary to split into parts (or use the remaining as a part,
-         *    if part is not found)
-         * 4) parse each part
-         * */
-        String[] messageParts;
-        String[] mimeParts;
-        String remaining = null;
-        String messageBody = null;
-        message = message.replaceAll("\\r\\n[ \\\t]+", ""); // Unfold
-        messageParts = message.split("\r\n\r\n", 2); // Split the header from the body
-        if(messageParts.length != 2) {
-            // Handle entire message as plain text
-            messageBody = message;
-        }
-        else
-        {
-            remaining = parseMmsHeaders(messageParts[0]);
-            // If we have some text not being a header, add it to the message body.
-            if(remaining != null) {
-                messageBody = remaining + messageParts[1];
+    /*
+     * The MMS content is parsed a line at a time:
+     * 1) read up to the first empty line, unfold and parse the headers
+     * 2) without a boundary the remaining is a single part, else the lines
+     *    between the boundaries are parts
+     * 3) the headers of each part are read up to its first empty line, and
+     *    its body is decoded as it is read
+     */
+    private static final int PARSE_HEADERS = 0;
+    private static final int PARSE_BODY = 1;
+    private static final int PARSE_PREAMBLE = 2;
+    private static final int PARSE_PART_HEADERS = 3;
+    private static final int PARSE_PART_BODY = 4;
+    private static final int PARSE_EPILOGUE = 5;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] CRLF_BYTES = CRLF.getBytes(UTF_8);
+
+    private int parseState;
+    private StringBuilder parseHeaders;
+    private ByteArrayOutputStream parseLine;   // A header line read in pieces
+    private boolean parseLineStart;
+    private boolean parseSkipLine;             // Skip the rest of a boundary line
+    private byte[] parseBoundary;
+    private PartWriter parsePart;
+    private boolean parseBodyStart;            // No text in the single part body yet
+    private int parseBodyBreaks;               // Line breaks not written to the body yet
+    private ArrayList<File> spoolFiles = null;
+
+    /**
+     * Receives the body of a part as it is parsed, decoding Base64 on the way.
+     * Non-text parts larger than {@link #SPOOL_THRESHOLD} are written to a
+     * temporary file, and get a {@link DataSource} in place of their data.
+     */
+    private class PartWriter {
+        private final MimePart mPart;
+        private final boolean mBase64;
+        private final boolean mSpool;
+        private ByteArrayOutputStream mData = new ByteArrayOutputStream();
+        private File mFile = null;
+        private OutputStream mFileOut = null;
+        private long mLength = 0;
+        private byte[] mBase64Chars = null;
+        private int mBase64Count = 0;
+
+        PartWriter(MimePart part, String partEncoding) {
+            mPart = part;
+            mBase64 = partEncoding != null && partEncoding.toUpperCase().contains("BASE64");
+            mSpool = !isTextPart(part.contentType);
+            if (mBase64) {
+                mBase64Chars = new byte[BASE64_DECODE_SIZE];
             }
-            else {
-                messageBody = messageParts[1];
+        }
+
+        void write(byte[] data, int offset, int length) throws IOException {
+            if (!mBase64) {
+                writeData(data, offset, length);
+                return;
+            }
+            for (int i = offset, end = offset + length; i < end; i++) {
+                byte b = data[i];
+                if (b == ' ' || b == '\t' || b == '\r' || b == '\n') continue;
+                if (mBase64Count == mBase64Chars.length) {
+                    decodeBase64(false);
+                }
+                mBase64Chars[mBase64Count++] = b;
             }
         }
-        if(boundary == null)
-        {
+
+        /* Decode the whole groups of 4 characters buffered, or all at the end */
+        private void decodeBase64(boolean last) throws IOException {
+            int count = last ? mBase64Count : mBase64Count - mBase64Count % 4;
+            if (count == 0) return;
+            // Will throw IllegalArgumentException if the data is not valid Base64
+            byte[] decoded = Base64.decode(mBase64Chars, 0, count, Base64.DEFAULT);
+            writeData(decoded, 0, decoded.length);
+            System.arraycopy(mBase64Chars, count, mBase64Chars, 0, mBase64Count - count);
+            mBase64Count -= count;
+        }
+
+        private void writeData(byte[] data, int offset, int length) throws IOException {
+            if (mFileOut == null && mSpool && mLength + length > SPOOL_THRESHOLD) {
+                mFile = File.createTempFile("bmsg", ".part");
+                if (spoolFiles == null)
+                    spoolFiles = new ArrayList<File>(1);
+                spoolFiles.add(mFile);
+                mFileOut = new BufferedOutputStream(new FileOutputStream(mFile));
+                mData.writeTo(mFileOut);
+                mData = null;
+                if (V) Log.v(TAG, "Spooling part to " + mFile);
+            }
+            if (mFileOut != null) {
+                mFileOut.write(data, offset, length);
+            } else {
+                mData.write(data, offset, length);
+            }
+            mLength += length;
+        }
+
+        void finish() throws IOException {
+            if (mBase64) {
+                decodeBase64(true);
+            }
+            if (mFileOut != null) {
+                mFileOut.close();
+                mFileOut = null;
+                mPart.dataSource = new FileDataSource(mFile, mLength);
+            } else {
+                mPart.data = mData.toByteArray();
+            }
+        }
+
+        void abort() {
+            if (mFileOut != null) {
+                try {
+                    mFileOut.close();
+                } catch (IOException e) {
+                    /* Ignore if we cannot close the stream. */
+                }
+                mFileOut = null;
+            }
+        }
+    }
+
+    /** The data of a part spooled to a file while the bMessage was parsed. */
+    private static class FileDataSource implements DataSource {
+        private final File mFile;
+        private final long mLength;
+
+        FileDataSource(File file, long length) {
+            mFile = file;
+            mLength = length;
+        }
+
+        @Override
+        public long getLength() {
+            return mLength;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            return new FileInputStream(mFile);
+        }
+    }
+
+    private static boolean isTextPart(String contentType) {
+        return contentType != null && (contentType.toUpperCase().contains("TEXT")
+                || contentType.toUpperCase().contains("SMIL"));
+    }
+
+    @Override
+    protected void parseMsgStart() {
+        parseState = PARSE_HEADERS;
+        parseHeaders = new StringBuilder();
+        parseLine = new ByteArrayOutputStream();
+        parseLineStart = true;
+        parseSkipLine = false;
+        parseBoundary = null;
+        parsePart = null;
+    }
+
+    @Override
+    protected void parseMsgLine(byte[] line, int length, boolean complete) throws IOException {
+        boolean lineStart = parseLineStart;
+        parseLineStart = complete;
+        if (!lineStart && parseSkipLine) {
+            parseSkipLine = !complete;
+            return;
+        }
+        if (lineStart && parseBoundary != null && parseState != PARSE_EPILOGUE
+                && startsWith(line, length, parseBoundary)) {
+            // The boundary ends the current part
+            if (parseState == PARSE_PART_BODY) {
+                finishPart();
+            } else if (parseState == PARSE_PART_HEADERS) {
+                Log.d(TAG, " part-Header not formatted correctly: no body");
+            }
+            boolean last = startsWith(line, length, parseBoundary, "--");
+            parseState = last ? PARSE_EPILOGUE : PARSE_PART_HEADERS;
+            parseHeaders = new StringBuilder();
+            parseSkipLine = !complete;
+            return;
+        }
+        switch (parseState) {
+        case PARSE_HEADERS:
+        case PARSE_PART_HEADERS:
+            parseLine.write(line, 0, length);
+            if (complete) {
+                String header = new String(parseLine.toByteArray(), UTF_8);
+                parseLine.reset();
+                parseHeaderLine(header);
+            }
+            break;
+        case PARSE_BODY:
+            if (lineStart && length == 0 && complete) {
+                // Empty lines are held back, as the end of the body is trimmed
+                if (!parseBodyStart) parseBodyBreaks++;
+                break;
+            }
+            if (lineStart && !parseBodyStart) parseBodyBreaks++;
+            for (; parseBodyBreaks > 0; parseBodyBreaks--) {
+                parsePart.write(CRLF_BYTES, 0, CRLF_BYTES.length);
+            }
+            parseBodyStart = false;
+            parsePart.write(line, 0, length);
+            break;
+        case PARSE_PART_BODY:
+            if (parsePart == null) break;
+            try {
+                parsePart.write(line, 0, length);
+                if (complete) {
+                    parsePart.write(CRLF_BYTES, 0, CRLF_BYTES.length);
+                }
+            } catch (IllegalArgumentException e) {
+                Log.d(TAG, " part not formatted correctly: " + e);
+                dropPart();
+            }
+            break;
+        default:
+            // The preamble and the epilogue are ignored
+            break;
+        }
+    }
+
+    private void parseHeaderLine(String header) throws IOException {
+        if (header.length() == 0) {
+            if (parseState == PARSE_HEADERS && parseHeaders.length() == 0) {
+                return; // Skip empty lines before the headers
+            }
+            if (parseState == PARSE_HEADERS) {
+                startBody(parseMmsHeaders(parseHeaders.toString()));
+            } else {
+                try {
+                    parseMmsPartHeaders(parseHeaders.toString());
+                } catch (IllegalArgumentException e) {
+                    Log.d(TAG, " part-Header not formatted correctly: " + e);
+                }
+                parseState = PARSE_PART_BODY;
+            }
+            parseHeaders = null;
+            return;
+        }
+        if (parseHeaders.length() > 0
+                && (header.charAt(0) == ' ' || header.charAt(0) == '\t')) {
+            // Unfold
+            int i = 0;
+            while (i < header.length() && (header.charAt(i) == ' ' || header.charAt(i) == '\t')) {
+                i++;
+            }
+            parseHeaders.append(header, i, header.length());
+        } else {
+            if (parseHeaders.length() > 0) {
+                parseHeaders.append(CRLF);
+            }
+            parseHeaders.append(header);
+        }
+    }
+
+    /* The headers of the message have been parsed, the body starts */
+    private void startBody(String remaining) throws IOException {
+        if (boundary == null) {
             // If the boundary is not set, handle as non-multi-part
-            parseMmsMimeBody(messageBody);
+            parseState = PARSE_BODY;
+            MimePart part = addMimePart();
+            part.contentType = contentType != null ? contentType : "text/plain";
+            parsePart = new PartWriter(part, encoding);
+            parseBodyStart = true;
+            parseBodyBreaks = 0;
+            // If we have some text not being a header, add it to the message body.
+            if (remaining != null) {
+                byte[] text = remaining.getBytes(UTF_8);
+                parsePart.write(text, 0, text.length);
+                parseBodyStart = text.length == 0;
+            }
+        } else {
+            parseState = PARSE_PREAMBLE;
+            parseBoundary = ("--" + boundary.replaceAll("\"", "")).getBytes(UTF_8);
+            if (remaining != null && D) Log.d(TAG, "Ignoring text before the first part");
+        }
+    }
+
+    private void finishPart() throws IOException {
+        if (parsePart == null) return;
+        try {
+            parsePart.finish();
+        } catch (IllegalArgumentException e) {
+            Log.d(TAG, " part not formatted correctly: " + e);
+            dropPart();
+        }
+        parsePart = null;
+    }
+
+    private void dropPart() {
+        parsePart.abort();
+        parts.remove(parsePart.mPart);
+        parsePart = null;
+    }
+
+    @Override
+    protected void parseMsgEnd() throws IOException {
+        switch (parseState) {
+        case PARSE_HEADERS:
+            // No empty line, handle the entire message as plain text
+            parseState = PARSE_BODY;
+            parsePart = new PartWriter(addMimePart(), encoding);
+            byte[] text = parseHeaders.toString().trim().getBytes(UTF_8);
+            parsePart.write(text, 0, text.length);
+            // Fall through
+        case PARSE_BODY:
+            parsePart.finish();
+            parsePart = null;
             setTextOnly(true);
             if(contentType == null)
                 contentType = "text/plain";
             parts.get(0).contentType = contentType;
-        }
-        else
-        {
-            mimeParts = messageBody.split("--" + boundary.replaceAll("\"",""));
-            for(int i = 0; i < mimeParts.length -1; i++) {
-                String part = mimeParts[i];
-                if (part != null && (part.length() > 0)) {
-                    try {
-                        parseMmsMimePart(part);
-                    } catch (IllegalArgumentException e) {
-                        Log.d(TAG, " part-Header not formatted correctly: " + e);
-                    }
-                }
+            break;
+        case PARSE_PART_BODY:
+            if (parsePart != null) {
+                Log.d(TAG, "Missing end boundary, dropping the last part");
+                dropPart();
             }
+            break;
+        default:
+            break;
         }
+        parseHeaders = null;
+        parseLine = null;
+    }
+
+    private static boolean startsWith(byte[] line, int length, byte[] prefix) {
+        if (length < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (line[i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private static boolean startsWith(byte[] line, int length, byte[] prefix, String suffix) {
+        return startsWith(line, length, prefix) && length >= prefix.length + 2
+                && line[prefix.length] == suffix.charAt(0)
+                && line[prefix.length + 1] == suffix.charAt(1);
     }
 
     /* Notes on SMIL decoding (from http://tools.ietf.org/html/rfc2557):
@@ -868,8 +1295,16 @@ public class BluetoothMapbMessageMmsEmail extends BluetoothMapbMessage {
      * src="cid:1234@hest.net" refers to a part with Content-ID:<1234@hest.net>*/
     @Override
     public void parseMsgPart(String msgPart) {
-        parseMms(msgPart);
-
+        try {
+            parseMsgStart();
+            for (String line : msgPart.split(CRLF, -1)) {
+                byte[] bytes = line.getBytes(UTF_8);
+                parseMsgLine(bytes, bytes.length, true);
+            }
+            parseMsgEnd();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to parse MMS: " + e);
+        }
     }
 
     @Override
@@ -878,9 +1313,30 @@ public class BluetoothMapbMessageMmsEmail extends BluetoothMapbMessage {
 
     }
 
+    /** Delete the parts spooled to files while parsing. */
+    @Override
+    public void release() {
+        if (parsePart != null) {
+            parsePart.abort();
+            parsePart = null;
+        }
+        if (spoolFiles == null) return;
+        for (File file : spoolFiles) {
+            if (!file.delete()) {
+                Log.w(TAG, "Failed to delete " + file);
+            }
+        }
+        spoolFiles = null;
+    }
+
     @Override
     public byte[] encode() throws UnsupportedEncodingException {
         return encodeMms();
     }
 
+    @Override
+    public void encode(OutputStream out) throws IOException {
+        encodeMms(out);
+    }
+
 }
@@ -0,0 +1,350 @@
+/*
+* Copyright (C) 2014 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.android.bluetooth.map;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Incremental parser of the bMessages pushed by the MCE.
+ *
+ * The bMessage is read through a fixed size buffer, a line at a time, and
+ * reported to a {@link Callback}: the properties and the vCards as strings,
+ * and the content of each message as lines of bytes, with the END:MSG
+ * escaping removed. Long content lines are reported in pieces. The content
+ * is never held as a whole, so the memory used by the parser does not
+ * depend on the size of the message.
+ */
+public class BluetoothMapbMessageParser {
+    private static final String TAG = "BluetoothMapbMessageParser";
+    private static final boolean D = BluetoothMapService.DEBUG;
+
+    private static final int BUFFER_SIZE = 8192;
+    /* Longer content lines are reported in pieces */
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int LINE_NONE = 0;
+    private static final int LINE_COMPLETE = 1;
+    private static final int LINE_PARTIAL = 2;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] END_MSG = "END:MSG".getBytes(UTF_8);
+
+    public interface Callback {
+        /**
+         * A property of the bMessage: STATUS, TYPE or FOLDER, or of its body:
+         * PARTID, ENCODING, CHARSET, LANGUAGE or LENGTH.
+         */
+        void onProperty(String name, String value);
+
+        /** The properties of the bMessage have all been reported. */
+        void onPropertiesEnd();
+
+        void onOriginator(BluetoothMapbMessage.vCard originator);
+
+        void onRecipient(BluetoothMapbMessage.vCard recipient, int envLevel);
+
+        /** A message of the body starts, the body properties have been reported. */
+        void onMessageStart() throws IOException;
+
+        /**
+         * A line of the content of the current message, without its line
+         * break. The array is reused for the next line.
+         * @param complete false for a piece of a long line, which continues
+         *            in the next call
+         */
+        void onMessageLine(byte[] line, int length, boolean complete) throws IOException;
+
+        void onMessageEnd() throws IOException;
+    }
+
+    private final InputStream mIn;
+    private final Callback mCallback;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mPos = 0;
+    private int mCount = 0;
+    private byte[] mLine = new byte[256];
+    private int mLineLength = 0;
+
+    public BluetoothMapbMessageParser(InputStream in, Callback callback) {
+        mIn = in;
+        mCallback = callback;
+    }
+
+    /**
+     * Parse the bMessage, reporting it to the callback as it is read.
+     * @throws IllegalArgumentException if the bMessage is not formatted correctly
+     * @throws IOException if reading the stream failed
+     */
+    public void parse() throws IOException {
+        expect("BEGIN:BMSG");
+        expect("VERSION", "1.0");
+
+        String line = getLineEnforce();
+        // Parse the properties - which end with either a VCARD or a BENV
+        while (!line.contains("BEGIN:VCARD") && !line.contains("BEGIN:BENV")) {
+            if (line.contains("STATUS")) {
+                mCallback.onProperty("STATUS", getValue("STATUS", line));
+            }
+            if (line.contains("TYPE")) {
+                mCallback.onProperty("TYPE", getValue("TYPE", line));
+            }
+            if (line.contains("FOLDER")) {
+                String[] arg = line.split(":");
+                if (arg.length == 2) {
+                    mCallback.onProperty("FOLDER", arg[1].trim());
+                }
+                // This can be empty for push message - hence ignore if there is no value
+            }
+            line = getLineEnforce();
+        }
+        mCallback.onPropertiesEnd();
+
+        // Now check for originator VCARDs
+        while (line.contains("BEGIN:VCARD")) {
+            if (D) Log.d(TAG, "Decoding vCard");
+            mCallback.onOriginator(BluetoothMapbMessage.vCard.parseVcard(this, 0));
+            line = getLineEnforce();
+        }
+        if (line.contains("BEGIN:BENV")) {
+            parseEnvelope(0);
+        } else {
+            throw new IllegalArgumentException("Bmessage has no BEGIN:BENV - line:" + line);
+        }
+        /* The END:* tags are not validated, nothing is expected after the body */
+    }
+
+    private void parseEnvelope(int level) throws IOException {
+        String line = getLineEnforce();
+        if (D) Log.d(TAG, "Decoding envelope level " + level);
+
+        while (line.contains("BEGIN:VCARD")) {
+            if (D) Log.d(TAG, "Decoding recipient vCard level " + level);
+            mCallback.onRecipient(BluetoothMapbMessage.vCard.parseVcard(this, level), level);
+            line = getLineEnforce();
+        }
+        if (line.contains("BEGIN:BENV")) {
+            if (D) Log.d(TAG, "Decoding nested envelope");
+            parseEnvelope(++level); // Nested BENV
+        } else if (line.contains("BEGIN:BBODY")) {
+            if (D) Log.d(TAG, "Decoding bbody");
+            parseBody();
+        }
+    }
+
+    private void parseBody() throws IOException {
+        String line = getLineEnforce();
+        while (!line.contains("END:")) {
+            if (line.contains("PARTID:")) {
+                String value = getValue("PARTID", line);
+                try {
+                    Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Wrong value in 'PARTID': " + value);
+                }
+                mCallback.onProperty("PARTID", value);
+            } else if (line.contains("ENCODING:")) {
+                mCallback.onProperty("ENCODING", getValue("ENCODING", line));
+            } else if (line.contains("CHARSET:")) {
+                mCallback.onProperty("CHARSET", getValue("CHARSET", line));
+            } else if (line.contains("LANGUAGE:")) {
+                mCallback.onProperty("LANGUAGE", getValue("LANGUAGE", line));
+            } else if (line.contains("LENGTH:")) {
+                String value = getValue("LENGTH", line);
+                try {
+                    Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Wrong value in 'LENGTH': " + value);
+                }
+                mCallback.onProperty("LENGTH", value);
+            } else if (line.contains("BEGIN:MSG")) {
+                /* The LENGTH is not used to read the content: PTS sets it 2 bytes too short, and
+                 * as END:MSG is escaped in the content, it is safe to use it as terminator. */
+                parseMessage();
+            }
+            line = getLineEnforce();
+        }
+    }
+
+    /* Report the content lines up to the END:MSG line */
+    private void parseMessage() throws IOException {
+        mCallback.onMessageStart();
+        boolean lineStart = true;
+        while (true) {
+            int state = readLine(MAX_LINE_LENGTH);
+            if (state == LINE_NONE) {
+                throw new IllegalArgumentException("Bmessage too short");
+            }
+            boolean complete = state == LINE_COMPLETE;
+            if (!lineStart) {
+                // The rest of a long line
+                mCallback.onMessageLine(mLine, mLineLength, complete);
+                lineStart = complete;
+                continue;
+            }
+            lineStart = complete;
+            if (complete && lineEquals(END_MSG)) {
+                break;
+            }
+            // A line starting with /END:MSG, //END:MSG... has been escaped, remove a '/'
+            int slashes = 0;
+            while (slashes < mLineLength && mLine[slashes] == '/') {
+                slashes++;
+            }
+            if (slashes > 0 && lineStartsWith(slashes, END_MSG)) {
+                System.arraycopy(mLine, 1, mLine, 0, mLineLength - 1);
+                mLineLength--;
+            }
+            mCallback.onMessageLine(mLine, mLineLength, complete);
+        }
+        mCallback.onMessageEnd();
+    }
+
+    private static String getValue(String name, String line) {
+        String[] arg = line.split(":");
+        if (arg.length != 2) {
+            throw new IllegalArgumentException("Missing value for '" + name + "': " + line);
+        }
+        return arg[1].trim();
+    }
+
+    /**
+     * Read the next non-empty line of text.
+     * @return the line, or null at the end of the stream
+     */
+    String getLine() throws IOException {
+        while (readLine(Integer.MAX_VALUE) != LINE_NONE) {
+            // Skip empty lines, and line feeds left at the start of a line
+            int start = 0;
+            while (start < mLineLength && mLine[start] == '\n') {
+                start++;
+            }
+            if (start < mLineLength) {
+                return new String(mLine, start, mLineLength - start, UTF_8);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Same as getLine(), but throws an exception if we run out of lines.
+     * Use this when more lines are needed for the bMessage to be complete.
+     */
+    String getLineEnforce() throws IOException {
+        String line = getLine();
+        if (line == null) {
+            throw new IllegalArgumentException("Bmessage too short");
+        }
+        return line;
+    }
+
+    /**
+     * Reads a line, and checks that it contains all the given strings, ignoring case.
+     * @throws IllegalArgumentException if a string is not found
+     */
+    private void expect(String... subStrings) throws IOException {
+        String line = getLine();
+        if (line == null) {
+            throw new IllegalArgumentException("Line or substring is null");
+        }
+        for (String subString : subStrings) {
+            if (!line.toUpperCase().contains(subString.toUpperCase())) {
+                throw new IllegalArgumentException(
+                        "Expected \"" + subString + "\" in: \"" + line + "\"");
+            }
+        }
+    }
+
+    /*
+     * Read a line into mLine, without its CRLF. A CR or a LF on its own is
+     * part of the line.
+     * @param maxLength the length at which a line is returned in pieces
+     * @return LINE_COMPLETE, LINE_PARTIAL when maxLength has been reached, or
+     *         LINE_NONE at the end of the stream
+     */
+    private int readLine(int maxLength) throws IOException {
+        mLineLength = 0;
+        boolean read = false;
+        while (true) {
+            if (mLineLength >= maxLength) {
+                return LINE_PARTIAL;
+            }
+            if (mPos == mCount && !fill()) {
+                return read ? LINE_COMPLETE : LINE_NONE;
+            }
+            read = true;
+            // Copy up to the next CR
+            int start = mPos;
+            int end = mCount - mPos > maxLength - mLineLength ? mPos + maxLength - mLineLength : mCount;
+            while (mPos < end && mBuffer[mPos] != '\r') {
+                mPos++;
+            }
+            append(mBuffer, start, mPos - start);
+            if (mPos == end) {
+                continue;
+            }
+            mPos++; // The CR
+            if (mPos == mCount && !fill()) {
+                append('\r');
+                return LINE_COMPLETE;
+            }
+            if (mBuffer[mPos] == '\n') {
+                mPos++;
+                return LINE_COMPLETE;
+            }
+            append('\r');
+        }
+    }
+
+    private boolean fill() throws IOException {
+        int count = mIn.read(mBuffer, 0, BUFFER_SIZE);
+        mPos = 0;
+        mCount = Math.max(count, 0);
+        return count > 0;
+    }
+
+    private void append(byte[] data, int offset, int length) {
+        ensureLineCapacity(mLineLength + length);
+        System.arraycopy(data, offset, mLine, mLineLength, length);
+        mLineLength += length;
+    }
+
+    private void append(int b) {
+        ensureLineCapacity(mLineLength + 1);
+        mLine[mLineLength++] = (byte) b;
+    }
+
+    private void ensureLineCapacity(int capacity) {
+        if (capacity > mLine.length) {
+            byte[] line = new byte[Math.max(capacity, mLine.length * 2)];
+            System.arraycopy(mLine, 0, line, 0, mLineLength);
+            mLine = line;
+        }
+    }
+
+    private boolean lineEquals(byte[] value) {
+        return mLineLength == value.length && lineStartsWith(0, value);
+    }
+
+    private boolean lineStartsWith(int offset, byte[] value) {
+        if (mLineLength - offset < value.length) return false;
+        for (int i = 0; i < value.length; i++) {
+            if (mLine[offset + i] != value[i]) return false;
+        }
+        return true;
+    }
+}
@@ -28,8 +28,6 @@ public class BluetoothMapbMessageSms extends BluetoothMapbMessage {
 
     private ArrayList<SmsPdu> smsBodyPdus = null;
     private String smsBody = null;
-    private String PCM_CARKIT = "9C:DF:03";
-    private String FORD_SYNC_CARKIT ="00:1E:AE";
 
     public void setSmsBodyPdus(ArrayList<SmsPdu> smsBodyPdus) {
         this.smsBodyPdus = smsBodyPdus;
@@ -83,14 +81,6 @@ public class BluetoothMapbMessageSms extends BluetoothMapbMessage {
             String tmpBody = smsBody.replaceAll("END:MSG", "/END\\:MSG"); // Replace any occurrences of END:MSG with \END:MSG
             if(V) Log.v(TAG,"smsBody is" +smsBody);
 
-            /* fix iot issue with PCM carkit where carkit is unable to parse
-               message if carriage return is present in it */
-            if(BluetoothMapService.getRemoteDevice().getAddress().startsWith(PCM_CARKIT)) {
-               tmpBody = tmpBody.replaceAll("\r", "");
-            } else if(BluetoothMapService.getRemoteDevice().getAddress().startsWith(FORD_SYNC_CARKIT)) {
-               tmpBody = tmpBody.replaceAll("\n", "");
-            }
-
             bodyFragments.add(tmpBody.getBytes("UTF-8"));
         }else if (smsBodyPdus != null && smsBodyPdus.size() > 0) {
             for (SmsPdu pdu : smsBodyPdus) {
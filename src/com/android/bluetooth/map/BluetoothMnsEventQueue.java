@@ -0,0 +1,274 @@
+/*
+* Copyright (C) 2014 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.android.bluetooth.map;
+
+import android.util.Log;
+
+import com.android.bluetooth.map.BluetoothMapContentObserver.Event;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * The events waiting to be sent to the MNS server of the MCE.
+ *
+ * An event report holds a single event, and each is sent in its own OBEX PUT,
+ * so a bulk change such as deleting a thread queues many events. While an
+ * event waits, later events of the same message are merged into it:
+ * <ul>
+ * <li>NewMessage then MessageDeleted: neither is sent.</li>
+ * <li>NewMessage then MessageShift: a NewMessage in the new folder.</li>
+ * <li>MessageShift then MessageShift: a single shift, none when the message
+ *     is back in its folder.</li>
+ * <li>MessageShift then MessageDeleted: the MessageDeleted.</li>
+ * </ul>
+ * Other events, such as the sending and delivery reports, are only dropped
+ * when the same event is already waiting.
+ *
+ * NewMessage events are sent before the others, in the order they arrived,
+ * unless an event of the same handle is waiting: SMS ids are reused once the
+ * newest message is deleted, so a NewMessage must not overtake the
+ * MessageDeleted of the previous message with its handle. At most one event
+ * is sent every {@link #EVENT_INTERVAL_MS}, which also gives the events of a
+ * bulk change the time to be merged.
+ */
+public class BluetoothMnsEventQueue {
+    private static final String TAG = "BluetoothMnsEventQueue";
+
+    private static final boolean V = Log.isLoggable(BluetoothMapService.LOG_TAG, Log.VERBOSE) ? true : false;
+
+    static final long EVENT_INTERVAL_MS = 50;
+
+    private static final String NEW_MESSAGE = "NewMessage";
+    private static final String MESSAGE_DELETED = "MessageDeleted";
+    private static final String MESSAGE_SHIFT = "MessageShift";
+
+    /** An event, with the MAS instance it is reported for. */
+    public static class Entry {
+        private final int mMasId;
+        private final String mKey;
+        private final long mQueueTime;
+        private final Event mEvent;
+        private boolean mRemoved = false;
+
+        Entry(Event event, int masId, String key, long queueTime) {
+            mEvent = event;
+            mMasId = masId;
+            mKey = key;
+            mQueueTime = queueTime;
+        }
+
+        public Event getEvent() {
+            return mEvent;
+        }
+
+        public int getMasId() {
+            return mMasId;
+        }
+    }
+
+    private final ArrayDeque<Entry> mNewMessages = new ArrayDeque<Entry>();
+    private final ArrayDeque<Entry> mEvents = new ArrayDeque<Entry>();
+    /* The waiting NewMessage, MessageShift or MessageDeleted of each message */
+    private final HashMap<String, Entry> mPending = new HashMap<String, Entry>();
+    private int mDepth = 0;
+    private long mLastSendTime = Long.MIN_VALUE;
+
+    private int mMaxDepth = 0;
+    private int mSentCount = 0;
+    private int mCoalescedCount = 0;
+    private long mTotalLatency = 0;
+    private long mMaxLatency = 0;
+
+    /**
+     * Queue an event.
+     * @param now the time, in milliseconds of {@link android.os.SystemClock#elapsedRealtime}
+     * @return true if an event was added, false if it was merged into a waiting one
+     */
+    public synchronized boolean add(Event event, int masId, long now) {
+        String key = masId + ":" + event.msgType + ":" + event.handle;
+        boolean messageEvent = NEW_MESSAGE.equals(event.eventType)
+                || MESSAGE_SHIFT.equals(event.eventType)
+                || MESSAGE_DELETED.equals(event.eventType);
+        Entry pending = messageEvent ? mPending.get(key) : null;
+
+        if (pending != null && coalesce(pending, event)) {
+            mCoalescedCount++;
+            if (V) Log.v(TAG, "Merged " + event.eventType + " of " + key + " into "
+                    + (pending.mRemoved ? "none" : pending.mEvent.eventType));
+            return false;
+        }
+        if (!messageEvent && isQueued(event, masId)) {
+            mCoalescedCount++;
+            return false;
+        }
+
+        Entry entry = new Entry(event, masId, key, now);
+        if (messageEvent) {
+            mPending.put(key, entry);
+        }
+        if (NEW_MESSAGE.equals(event.eventType) && (pending == null || pending.mRemoved)) {
+            mNewMessages.add(entry);
+        } else {
+            mEvents.add(entry);
+        }
+        mDepth++;
+        mMaxDepth = Math.max(mMaxDepth, mDepth);
+        return true;
+    }
+
+    /* Merge an event into the waiting event of its message, return false to queue it */
+    private boolean coalesce(Entry pending, Event event) {
+        Event old = pending.mEvent;
+        if (NEW_MESSAGE.equals(old.eventType)) {
+            if (MESSAGE_DELETED.equals(event.eventType)) {
+                remove(pending);
+                return true;
+            } else if (MESSAGE_SHIFT.equals(event.eventType)) {
+                old.folder = event.folder;
+                return true;
+            }
+            return false;
+        } else if (MESSAGE_SHIFT.equals(old.eventType)) {
+            if (MESSAGE_DELETED.equals(event.eventType)) {
+                remove(pending);
+                return false;
+            } else if (MESSAGE_SHIFT.equals(event.eventType)) {
+                if (old.oldFolder != null && old.oldFolder.equals(event.folder)) {
+                    remove(pending);
+                } else {
+                    old.folder = event.folder;
+                }
+                return true;
+            }
+            return false;
+        }
+        // A waiting MessageDeleted
+        return MESSAGE_DELETED.equals(event.eventType);
+    }
+
+    private boolean isQueued(Event event, int masId) {
+        for (Entry entry : mEvents) {
+            Event queued = entry.mEvent;
+            if (!entry.mRemoved && entry.mMasId == masId && queued.handle == event.handle
+                    && queued.msgType == event.msgType
+                    && queued.eventType.equals(event.eventType)
+                    && equals(queued.folder, event.folder)
+                    && equals(queued.oldFolder, event.oldFolder)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private void remove(Entry entry) {
+        // Left in its deque, and skipped when it is reached
+        entry.mRemoved = true;
+        mPending.remove(entry.mKey);
+        mDepth--;
+        mCoalescedCount++;
+    }
+
+    /**
+     * Take the next event to send, NewMessage events first.
+     * @param now the time the event is sent at
+     * @return the event, or null when the queue is empty
+     */
+    public synchronized Entry poll(long now) {
+        Entry entry = poll(mNewMessages);
+        if (entry == null) {
+            entry = poll(mEvents);
+        }
+        if (entry == null) {
+            return null;
+        }
+        if (mPending.get(entry.mKey) == entry) {
+            mPending.remove(entry.mKey);
+        }
+        mDepth--;
+        mLastSendTime = now;
+
+        long latency = now - entry.mQueueTime;
+        mSentCount++;
+        mTotalLatency += latency;
+        mMaxLatency = Math.max(mMaxLatency, latency);
+        return entry;
+    }
+
+    private static Entry poll(ArrayDeque<Entry> queue) {
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            if (!entry.mRemoved) return entry;
+        }
+        return null;
+    }
+
+    /** @return the time to wait before the next event can be sent */
+    public synchronized long getDelay(long now) {
+        if (mLastSendTime == Long.MIN_VALUE) return 0;
+        return Math.max(0, mLastSendTime + EVENT_INTERVAL_MS - now);
+    }
+
+    public synchronized boolean isEmpty() {
+        return mDepth == 0;
+    }
+
+    /** Drop the waiting events, the metrics are kept. */
+    public synchronized void clear() {
+        mNewMessages.clear();
+        mEvents.clear();
+        mPending.clear();
+        mDepth = 0;
+    }
+
+    /** @return the number of events waiting */
+    public synchronized int getDepth() {
+        return mDepth;
+    }
+
+    public synchronized int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    public synchronized int getSentCount() {
+        return mSentCount;
+    }
+
+    /** @return the number of events not sent, as they were merged or superseded */
+    public synchronized int getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /** @return the average time the sent events waited, in milliseconds */
+    public synchronized long getAverageLatency() {
+        return mSentCount > 0 ? mTotalLatency / mSentCount : 0;
+    }
+
+    public synchronized long getMaxLatency() {
+        return mMaxLatency;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "depth=" + mDepth + " maxDepth=" + mMaxDepth + " sent=" + mSentCount
+                + " coalesced=" + mCoalescedCount + " avgLatency=" + getAverageLatency()
+                + "ms maxLatency=" + mMaxLatency + "ms";
+    }
+}
@@ -22,6 +22,7 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.BufferedInputStream;
@@ -29,6 +30,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 
 import javax.btobex.ApplicationParameter;
 import javax.btobex.ClientOperation;
@@ -63,9 +65,12 @@ public class BluetoothMnsObexClient {
     private boolean mObserverRegistered = false;
     private boolean mEmailObserverRegistered = false;
     private Handler mCallback = null;
+    private final BluetoothMnsEventQueue mEventQueue = new BluetoothMnsEventQueue();
 
     // Used by the MAS to forward notification registrations
     public static final int MSG_MNS_NOTIFICATION_REGISTRATION = 1;
+    // Sends the next queued event
+    private static final int MSG_MNS_SEND_EVENT = 2;
 
 
     public static final ParcelUuid BluetoothUuid_ObexMns =
@@ -106,6 +111,9 @@ public class BluetoothMnsObexClient {
             case MSG_MNS_NOTIFICATION_REGISTRATION:
                 handleRegistration(msg.arg1 /*masId*/, msg.arg2 /*status*/);
                 break;
+            case MSG_MNS_SEND_EVENT:
+                handleSendEvent();
+                break;
             default:
                 break;
             }
@@ -151,6 +159,8 @@ public class BluetoothMnsObexClient {
                 Log.e(TAG, "mTransport.close error: " + e.getMessage());
             }
         }
+        if (D) Log.d(TAG, "Event queue: " + mEventQueue);
+        mEventQueue.clear();
         if(D) Log.d(TAG, "BluetoothMnsObexClient: exiting from disconnect");
     }
 
@@ -323,6 +333,54 @@ public class BluetoothMnsObexClient {
         }
     }
 
+    /**
+     * Queue an event, to be sent from the handler thread.
+     * See {@link BluetoothMnsEventQueue} for how events are merged and paced.
+     */
+    public void queueEvent(BluetoothMapContentObserver.Event event, int masInstanceId) {
+        Handler handler = mHandler;
+        if (handler == null) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (mEventQueue.add(event, masInstanceId, now)
+                && !handler.hasMessages(MSG_MNS_SEND_EVENT)) {
+            handler.sendEmptyMessageDelayed(MSG_MNS_SEND_EVENT, mEventQueue.getDelay(now));
+        }
+    }
+
+    public BluetoothMnsEventQueue getEventQueue() {
+        return mEventQueue;
+    }
+
+    private void handleSendEvent() {
+        long now = SystemClock.elapsedRealtime();
+        long delay = mEventQueue.getDelay(now);
+        if (delay > 0) {
+            scheduleSendEvent(delay);
+            return;
+        }
+        BluetoothMnsEventQueue.Entry entry = mEventQueue.poll(now);
+        if (entry == null) {
+            return;
+        }
+        try {
+            sendEvent(entry.getEvent().encode(), entry.getMasId());
+        } catch (UnsupportedEncodingException e) {
+            Log.w(TAG, e);
+        }
+        if (!mEventQueue.isEmpty()) {
+            scheduleSendEvent(mEventQueue.getDelay(SystemClock.elapsedRealtime()));
+        }
+    }
+
+    private void scheduleSendEvent(long delay) {
+        Handler handler = mHandler;
+        if (handler != null && !handler.hasMessages(MSG_MNS_SEND_EVENT)) {
+            handler.sendEmptyMessageDelayed(MSG_MNS_SEND_EVENT, delay);
+        }
+    }
+
     public int sendEvent(byte[] eventBytes, int masInstanceId) {
 
         Log.d(TAG, "BluetoothMnsObexClient: sendEvent");
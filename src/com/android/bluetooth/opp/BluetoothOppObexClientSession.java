@@ -52,6 +52,8 @@ import android.os.Process;
 import android.os.SystemProperties;
 import android.util.Log;
 
+import com.android.bluetooth.util.EventTrace;
+
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -424,14 +426,14 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
             request.setHeader(HeaderSet.NAME, fileInfo.mFileName);
             if(V) Log.v(TAG, "setHeader NAME:	" + fileInfo.mFileName);
             request.setHeader(HeaderSet.TYPE, fileInfo.mMimetype);
-            Log.v(TAG, "setHeader Type:	" + fileInfo.mMimetype);
+            if (V) Log.v(TAG, "setHeader Type:	" + fileInfo.mMimetype);
 
             applyRemoteDeviceQuirks(request, mInfo.mDestination, fileInfo.mFileName);
 
             Constants.updateShareStatus(mContext1, mInfo.mId, BluetoothShare.STATUS_RUNNING);
 
             request.setHeader(HeaderSet.LENGTH, fileInfo.mLength);
-            Log.v(TAG, "setHeader Len:  " + fileInfo.mLength);
+            if (V) Log.v(TAG, "setHeader Len:  " + fileInfo.mLength);
 
             // Turn on/off SRM based on transport capability
             //(whether this is OBEX-over-L2CAP, or not)
@@ -439,11 +441,11 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
 
             // Add the SRM header if both client is SRM capable
             if (mCs.mSrmClient.getLocalSrmCapability() == ObexHelper.SRM_CAPABLE) {
-                Log.v(TAG, "SRM status: Enable SRM for first PUT");
+                if (V) Log.v(TAG, "SRM status: Enable SRM for first PUT");
                 mCs.mSrmClient.setLocalSrmStatus(ObexHelper.LOCAL_SRM_ENABLED);
                 request.setHeader(HeaderSet.SINGLE_RESPONSE_MODE, ObexHelper.OBEX_SRM_ENABLED);
             } else {
-                Log.v(TAG, "SRM status: Disable SRM for first PUT");
+                if (V) Log.v(TAG, "SRM status: Disable SRM for first PUT");
                 mCs.mSrmClient.setLocalSrmStatus(ObexHelper.LOCAL_SRM_DISABLED);
             }
             mCs.mSrmClient.setLocalSrmpWait(false);
@@ -551,19 +553,19 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                             reply = putOperation.getReceivedHeader();
                             Byte srm = (Byte)reply.getHeader(HeaderSet.SINGLE_RESPONSE_MODE);
                             if (srm == ObexHelper.OBEX_SRM_ENABLED) {
-                                Log.v(TAG, "SRM status: Enabled by Server response");
+                                if (V) Log.v(TAG, "SRM status: Enabled by Server response");
                                 mCs.mSrmClient.setLocalSrmStatus(ObexHelper.LOCAL_SRM_ENABLED);
                                 Byte srmp = (Byte)reply.getHeader(HeaderSet.SINGLE_RESPONSE_MODE_PARAMETER);
-                                Log.v(TAG, "SRMP header (CONTINUE or OK): " + srmp);
+                                if (V) Log.v(TAG, "SRMP header (CONTINUE or OK): " + srmp);
                                 if (srmp == ObexHelper.OBEX_SRM_PARAM_WAIT) {
-                                    Log.v(TAG, "SRMP status: WAIT");
+                                    if (V) Log.v(TAG, "SRMP status: WAIT");
                                     mCs.mSrmClient.setLocalSrmpWait(true);
                                 } else {
-                                    Log.v(TAG, "SRMP status: NONE");
+                                    if (V) Log.v(TAG, "SRMP status: NONE");
                                     mCs.mSrmClient.setLocalSrmpWait(false);
                                 }
                             } else {
-                                Log.v(TAG, "SRM status: Disabled by Server response");
+                                if (V) Log.v(TAG, "SRM status: Disabled by Server response");
                                 mCs.mSrmClient.setLocalSrmStatus(ObexHelper.LOCAL_SRM_DISABLED);
                                 mCs.mSrmClient.setLocalSrmpWait(false);
                             }
@@ -615,7 +617,7 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                                     writtenLength = readLength;
                                 } catch (IOException e) {
                                     if (e.toString().contains("Try again")) {
-                                        Log.v(TAG, "Try Again Exception");
+                                        if (V) Log.v(TAG, "Try Again Exception");
                                         try {
                                             Thread.sleep(10);
                                         } catch (InterruptedException slpe) {
@@ -632,6 +634,8 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                             /* check remote abort */
                             responseCode = putOperation.getResponseCode();
                             if (V) Log.v(TAG, "Response code is " + responseCode);
+                            EventTrace.log(EventTrace.TYPE_OBEX_PACKET, mInfo.mDestination,
+                                    readLength, responseCode);
                             if (responseCode != ResponseCodes.OBEX_HTTP_CONTINUE
                                     && responseCode != ResponseCodes.OBEX_HTTP_OK) {
                                 /* abort happens */
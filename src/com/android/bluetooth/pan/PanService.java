@@ -34,6 +34,7 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.INetworkManagementService;
 import android.os.Message;
+import android.os.Parcel;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.UserManager;
@@ -42,6 +43,9 @@ import android.util.Log;
 
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.Utils;
+import com.android.bluetooth.util.BinderCallStats;
+import com.android.bluetooth.util.NativeInterfaceFactory;
+import com.android.internal.annotations.VisibleForTesting;
 
 import java.net.InetAddress;
 import java.util.ArrayList;
@@ -98,7 +102,8 @@ public class PanService extends ProfileService {
         } catch (NotFoundException e) {
             mMaxPanDevices = BLUETOOTH_MAX_PAN_CONNECTIONS;
         }
-        initializeNative();
+        mNativeInterface = createNativeInterface();
+        mNativeInterface.initializeNative();
         mNativeAvailable=true;
 
         mNetworkFactory = new BluetoothTetheringNetworkFactory(getBaseContext(), getMainLooper(),
@@ -114,7 +119,7 @@ public class PanService extends ProfileService {
 
     protected boolean cleanup() {
         if (mNativeAvailable) {
-            cleanupNative();
+            mNativeInterface.cleanupNative();
             mNativeAvailable=false;
         }
         if(mPanDevices != null) {
@@ -138,7 +143,7 @@ public class PanService extends ProfileService {
                 case MESSAGE_CONNECT:
                 {
                     BluetoothDevice device = (BluetoothDevice) msg.obj;
-                    if (!connectPanNative(Utils.getByteAddress(device),
+                    if (!mNativeInterface.connectPanNative(Utils.getByteAddress(device),
                             BluetoothPan.LOCAL_PANU_ROLE, BluetoothPan.REMOTE_NAP_ROLE)) {
                         handlePanDeviceStateChange(device, null, BluetoothProfile.STATE_CONNECTING,
                                 BluetoothPan.LOCAL_PANU_ROLE, BluetoothPan.REMOTE_NAP_ROLE);
@@ -152,7 +157,7 @@ public class PanService extends ProfileService {
                 case MESSAGE_DISCONNECT:
                 {
                     BluetoothDevice device = (BluetoothDevice) msg.obj;
-                    if (!disconnectPanNative(Utils.getByteAddress(device)) ) {
+                    if (!mNativeInterface.disconnectPanNative(Utils.getByteAddress(device)) ) {
                         handlePanDeviceStateChange(device, mPanIfName,
                                 BluetoothProfile.STATE_DISCONNECTING, BluetoothPan.LOCAL_PANU_ROLE,
                                 BluetoothPan.REMOTE_NAP_ROLE);
@@ -183,7 +188,22 @@ public class PanService extends ProfileService {
      * Handlers for incoming service calls
      */
     private static class BluetoothPanBinder extends IBluetoothPan.Stub
-            implements IProfileServiceBinder {
+            implements IProfileServiceBinder, BinderCallStats.Transactor {
+        private static final BinderCallStats sCallStats =
+                new BinderCallStats(IBluetoothPan.Stub.class);
+
+        @Override
+        public boolean onTransact(int code, Parcel data, Parcel reply, int flags)
+                throws RemoteException {
+            return sCallStats.onTransact(this, code, data, reply, flags);
+        }
+
+        @Override
+        public boolean onTransactDirect(int code, Parcel data, Parcel reply, int flags)
+                throws RemoteException {
+            return super.onTransact(code, data, reply, flags);
+        }
+
         private PanService mService;
         public BluetoothPanBinder(PanService svc) {
             mService = svc;
@@ -283,11 +303,11 @@ public class PanService extends ProfileService {
 
     boolean isPanNapOn() {
         if(DBG) Log.d(TAG, "isTetheringOn call getPanLocalRoleNative");
-        return (getPanLocalRoleNative() & BluetoothPan.LOCAL_NAP_ROLE) != 0;
+        return (mNativeInterface.getPanLocalRoleNative() & BluetoothPan.LOCAL_NAP_ROLE) != 0;
     }
      boolean isPanUOn() {
         if(DBG) Log.d(TAG, "isTetheringOn call getPanLocalRoleNative");
-        return (getPanLocalRoleNative() & BluetoothPan.LOCAL_PANU_ROLE) != 0;
+        return (mNativeInterface.getPanLocalRoleNative() & BluetoothPan.LOCAL_PANU_ROLE) != 0;
     }
      boolean isTetheringOn() {
         // TODO(BT) have a variable marking the on/off state
@@ -348,7 +368,7 @@ public class PanService extends ProfileService {
         int local_role;
         int remote_role;
     };
-    private void onConnectStateChanged(byte[] address, int state, int error, int local_role,
+    void onConnectStateChanged(byte[] address, int state, int error, int local_role,
             int remote_role) {
         if (DBG) {
             log("onConnectStateChanged: " + state + ", local role:" + local_role +
@@ -358,7 +378,7 @@ public class PanService extends ProfileService {
         msg.obj = new ConnectState(address, state, error, local_role, remote_role);
         mHandler.sendMessage(msg);
     }
-    private void onControlStateChanged(int local_role, int state, int error, String ifname) {
+    void onControlStateChanged(int local_role, int state, int error, String ifname) {
         if (DBG)
             log("onControlStateChanged: " + state + ", error: " + error + ", ifname: " + ifname);
         if(error == 0)
@@ -415,7 +435,7 @@ public class PanService extends ProfileService {
                 if((!mTetherOn)||(local_role == BluetoothPan.LOCAL_PANU_ROLE)){
                     Log.d(TAG,"handlePanDeviceStateChange BT tethering is off/Local role is PANU "+
                               "drop the connection");
-                    disconnectPanNative(Utils.getByteAddress(device));
+                    mNativeInterface.disconnectPanNative(Utils.getByteAddress(device));
                     return;
                 }
                 Log.d(TAG, "handlePanDeviceStateChange LOCAL_NAP_ROLE:REMOTE_PANU_ROLE");
@@ -565,6 +585,7 @@ public class PanService extends ProfileService {
     @Override
     public void dump(StringBuilder sb) {
         super.dump(sb);
+        BluetoothPanBinder.sCallStats.dump(sb);
         println(sb, "mMaxPanDevices: " + mMaxPanDevices);
         println(sb, "mPanIfName: " + mPanIfName);
         println(sb, "mTetherOn: " + mTetherOn);
@@ -594,10 +615,60 @@ public class PanService extends ProfileService {
 
     // Constants matching Hal header file bt_hh.h
     // bthh_connection_state_t
-    private final static int CONN_STATE_CONNECTED = 0;
-    private final static int CONN_STATE_CONNECTING = 1;
-    private final static int CONN_STATE_DISCONNECTED = 2;
-    private final static int CONN_STATE_DISCONNECTING = 3;
+    final static int CONN_STATE_CONNECTED = 0;
+    final static int CONN_STATE_CONNECTING = 1;
+    final static int CONN_STATE_DISCONNECTED = 2;
+    final static int CONN_STATE_DISCONNECTING = 3;
+
+    private static NativeInterfaceFactory<PanService, PanNativeInterface> sNativeInterfaceFactory;
+    private PanNativeInterface mNativeInterface;
+
+    /**
+     * Replace the JNI layer of the instances created from now on, for tests.
+     * @param factory null to go back to JNI
+     */
+    @VisibleForTesting
+    static void setNativeInterfaceFactory(
+            NativeInterfaceFactory<PanService, PanNativeInterface> factory) {
+        sNativeInterfaceFactory = factory;
+    }
+
+    private PanNativeInterface createNativeInterface() {
+        if (sNativeInterfaceFactory != null) return sNativeInterfaceFactory.create(this);
+        return new JniNativeInterface();
+    }
+
+    private class JniNativeInterface implements PanNativeInterface {
+        @Override
+        public void initializeNative() {
+            PanService.this.initializeNative();
+        }
+
+        @Override
+        public void cleanupNative() {
+            PanService.this.cleanupNative();
+        }
+
+        @Override
+        public boolean connectPanNative(byte[] btAddress, int local_role, int remote_role) {
+            return PanService.this.connectPanNative(btAddress, local_role, remote_role);
+        }
+
+        @Override
+        public boolean disconnectPanNative(byte[] btAddress) {
+            return PanService.this.disconnectPanNative(btAddress);
+        }
+
+        @Override
+        public boolean enablePanNative(int local_role) {
+            return PanService.this.enablePanNative(local_role);
+        }
+
+        @Override
+        public int getPanLocalRoleNative() {
+            return PanService.this.getPanLocalRoleNative();
+        }
+    }
 
     private native static void classInitNative();
     private native void initializeNative();
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.util;
+
+import android.os.Binder;
+import android.os.Parcel;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.os.UserHandle;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseLongArray;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Call counts per calling UID and latency of the methods of a binder stub.
+ *
+ * Stubs route their calls through {@link #onTransact}:
+ * <pre>
+ *     public boolean onTransact(int code, Parcel data, Parcel reply, int flags)
+ *             throws RemoteException {
+ *         return sCallStats.onTransact(this, code, data, reply, flags);
+ *     }
+ *
+ *     public boolean onTransactDirect(int code, Parcel data, Parcel reply, int flags)
+ *             throws RemoteException {
+ *         return super.onTransact(code, data, reply, flags);
+ *     }
+ * </pre>
+ * Read-only queries (get* and is* methods) of apps can be rate limited per
+ * UID with the {@link #PROPERTY_QUERY_RATE} system property, in calls per
+ * second. A call over the limit is answered with the reply the service
+ * gave the same UID for the same arguments, if it is at most
+ * {@link #REPLAY_MAX_AGE_MS} old, and executed otherwise: throttling saves
+ * the service work, it never answers something the service did not. Only
+ * replies of calls that returned are kept, so a UID is only replayed what
+ * it got after passing the permission and user checks of the method.
+ * System UIDs, including Bluetooth, are not limited.
+ */
+public final class BinderCallStats {
+    private static final String TAG = "BluetoothBinderCallStats";
+
+    public static final String PROPERTY_QUERY_RATE = "persist.bt.binder.query_rate";
+
+    static final long REPLAY_MAX_AGE_MS = 1000;
+    // Replies kept per method, one per calling UID and distinct arguments
+    private static final int MAX_REPLIES = 16;
+
+    /**
+     * A binder stub whose calls are accounted.
+     */
+    public interface Transactor {
+        /** Execute the call, that is super.onTransact() of the stub. */
+        boolean onTransactDirect(int code, Parcel data, Parcel reply, int flags)
+                throws RemoteException;
+    }
+
+    private static class MethodStats {
+        final String name;
+        final boolean readOnly;
+        final LatencyHistogram latency = new LatencyHistogram();
+        // Guarded by itself
+        final SparseLongArray callsByUid = new SparseLongArray();
+        long replayed;
+        // The last replies by caller and request, guarded by callsByUid
+        final LinkedHashMap<Request, Reply> replies =
+                new LinkedHashMap<Request, Reply>(MAX_REPLIES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Request, Reply> eldest) {
+                return size() > MAX_REPLIES;
+            }
+        };
+
+        MethodStats(String name) {
+            this.name = name;
+            readOnly = name.startsWith("get") || name.startsWith("is");
+        }
+    }
+
+    private static class Request {
+        final int uid;
+        final ByteBuffer data;
+
+        Request(int uid, ByteBuffer data) {
+            this.uid = uid;
+            this.data = data;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Request)) return false;
+            Request other = (Request) o;
+            return uid == other.uid && data.equals(other.data);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * uid + data.hashCode();
+        }
+    }
+
+    private static class Reply {
+        final byte[] bytes;
+        final long time;
+
+        Reply(byte[] bytes, long time) {
+            this.bytes = bytes;
+            this.time = time;
+        }
+    }
+
+    // Token bucket of a calling UID
+    private static class Bucket {
+        double tokens;
+        long updatedAt;
+    }
+
+    private static volatile int sQueryRate = SystemProperties.getInt(PROPERTY_QUERY_RATE, 0);
+
+    static {
+        SystemProperties.addChangeCallback(new Runnable() {
+            @Override
+            public void run() {
+                sQueryRate = SystemProperties.getInt(PROPERTY_QUERY_RATE, 0);
+            }
+        });
+    }
+
+    private final String mInterface;
+    private final SparseArray<MethodStats> mMethods = new SparseArray<MethodStats>();
+    // Guarded by itself
+    private final SparseArray<Bucket> mBuckets = new SparseArray<Bucket>();
+
+    /**
+     * @param stubClass the generated Stub class, the method names are read
+     *        from its TRANSACTION_ constants
+     */
+    public BinderCallStats(Class<?> stubClass) {
+        mInterface = stubClass.getEnclosingClass() != null
+                ? stubClass.getEnclosingClass().getSimpleName() : stubClass.getSimpleName();
+        for (Field field : stubClass.getDeclaredFields()) {
+            String name = field.getName();
+            if (!name.startsWith("TRANSACTION_") || field.getType() != int.class
+                    || !Modifier.isStatic(field.getModifiers())) {
+                continue;
+            }
+            try {
+                field.setAccessible(true);
+                mMethods.put(field.getInt(null),
+                        new MethodStats(name.substring("TRANSACTION_".length())));
+            } catch (IllegalAccessException e) {
+                Log.w(TAG, "Cannot read " + name, e);
+            }
+        }
+    }
+
+    /**
+     * Execute and account a call of the stub, or replay a recent reply when
+     * the caller is over its query rate.
+     */
+    public boolean onTransact(Transactor stub, int code, Parcel data, Parcel reply, int flags)
+            throws RemoteException {
+        MethodStats method = mMethods.get(code);
+        Request request = null;
+        if (method != null && method.readOnly && sQueryRate > 0 && reply != null) {
+            ByteBuffer bytes = marshall(data);
+            if (bytes != null) {
+                request = new Request(Binder.getCallingUid(), bytes);
+                if (isOverRate(request.uid) && replay(method, request, reply)) {
+                    return true;
+                }
+            }
+        }
+
+        final long start = System.nanoTime();
+        try {
+            boolean handled = stub.onTransactDirect(code, data, reply, flags);
+            if (handled && request != null) save(method, request, reply);
+            return handled;
+        } finally {
+            if (method != null) {
+                method.latency.record((System.nanoTime() - start) / 1000);
+                int uid = Binder.getCallingUid();
+                synchronized (method.callsByUid) {
+                    method.callsByUid.put(uid, method.callsByUid.get(uid) + 1);
+                }
+            }
+        }
+    }
+
+    // Parcels holding binders or file descriptors can not be marshalled, they are never replayed
+    private static ByteBuffer marshall(Parcel parcel) {
+        int position = parcel.dataPosition();
+        try {
+            return ByteBuffer.wrap(parcel.marshall());
+        } catch (RuntimeException e) {
+            return null;
+        } finally {
+            parcel.setDataPosition(position);
+        }
+    }
+
+    private static boolean replay(MethodStats method, Request request, Parcel reply) {
+        Reply last;
+        synchronized (method.callsByUid) {
+            last = method.replies.get(request);
+            if (last == null || SystemClock.elapsedRealtime() - last.time > REPLAY_MAX_AGE_MS) {
+                return false;
+            }
+            method.replayed++;
+        }
+        reply.unmarshall(last.bytes, 0, last.bytes.length);
+        return true;
+    }
+
+    private static void save(MethodStats method, Request request, Parcel reply) {
+        ByteBuffer bytes = marshall(reply);
+        if (bytes == null) return;
+        synchronized (method.callsByUid) {
+            method.replies.put(request, new Reply(bytes.array(), SystemClock.elapsedRealtime()));
+        }
+    }
+
+    /**
+     * Take a call from the token bucket of the calling app.
+     * @return true if the app is over its query rate
+     */
+    private boolean isOverRate(int uid) {
+        int rate = sQueryRate;
+        if (rate <= 0 || UserHandle.getAppId(uid) < Process.FIRST_APPLICATION_UID) return false;
+
+        long now = SystemClock.elapsedRealtime();
+        synchronized (mBuckets) {
+            Bucket bucket = mBuckets.get(uid);
+            if (bucket == null) {
+                bucket = new Bucket();
+                bucket.tokens = rate;
+                bucket.updatedAt = now;
+                mBuckets.put(uid, bucket);
+            }
+            bucket.tokens = Math.min(rate, bucket.tokens + (now - bucket.updatedAt) * rate / 1000.0);
+            bucket.updatedAt = now;
+            if (bucket.tokens >= 1) {
+                bucket.tokens--;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void dump(StringBuilder sb) {
+        sb.append("Binder calls of " + mInterface + " (latency in us):\n");
+        for (int i = 0; i < mMethods.size(); i++) {
+            MethodStats method = mMethods.valueAt(i);
+            if (method.latency.getCount() == 0 && method.replayed == 0) continue;
+            sb.append("  " + method.name + ": " + method.latency.summary());
+            synchronized (method.callsByUid) {
+                if (method.replayed > 0) sb.append(" replayed=" + method.replayed);
+                sb.append(" uids=");
+                for (int j = 0; j < method.callsByUid.size(); j++) {
+                    if (j > 0) sb.append(',');
+                    sb.append(method.callsByUid.keyAt(j) + ":" + method.callsByUid.valueAt(j));
+                }
+            }
+            sb.append("\n");
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.util;
+
+import android.os.SystemProperties;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Time spent on the Java side of native callbacks, per callback.
+ *
+ * A slow callback holds up the stack's callback thread. Callbacks are timed
+ * with
+ * <pre>
+ *     final long start = CallbackLatency.start();
+ *     try {
+ *         ...
+ *     } finally {
+ *         mCallbackLatency.end("onFoo", start);
+ *     }
+ * </pre>
+ * The end call goes in a finally block, so that a callback that returns
+ * early or throws is still counted. Timing is off unless the
+ * {@link #PROPERTY} system property is set, and can be toggled at runtime.
+ * When off, start() and end() do nothing more than a field read. The cost
+ * of both, against the work of a scan result callback, is measured by
+ * CallbackLatencyBenchmark.
+ */
+public final class CallbackLatency {
+    public static final String PROPERTY = "persist.bt.callback.latency";
+
+    private static volatile boolean sEnabled = SystemProperties.getBoolean(PROPERTY, false);
+
+    static {
+        SystemProperties.addChangeCallback(new Runnable() {
+            @Override
+            public void run() {
+                sEnabled = SystemProperties.getBoolean(PROPERTY, false);
+            }
+        });
+    }
+
+    private final ConcurrentHashMap<String, LatencyHistogram> mHistograms =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+
+    /** Turn timing on or off until the property changes. */
+    @VisibleForTesting
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * @return the start time to pass to {@link #end}, 0 when timing is off
+     */
+    public static long start() {
+        return sEnabled ? System.nanoTime() : 0;
+    }
+
+    public void end(String callback, long start) {
+        if (start == 0) return;
+        long elapsedUs = (System.nanoTime() - start) / 1000;
+        LatencyHistogram histogram = mHistograms.get(callback);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram previous = mHistograms.putIfAbsent(callback, histogram);
+            if (previous != null) histogram = previous;
+        }
+        histogram.record(elapsedUs);
+    }
+
+    public void dump(StringBuilder sb) {
+        if (mHistograms.isEmpty()) return;
+        sb.append("Callback latency (us):\n");
+        for (Map.Entry<String, LatencyHistogram> entry
+                : new TreeMap<String, LatencyHistogram>(mHistograms).entrySet()) {
+            sb.append("  " + entry.getKey() + ": " + entry.getValue().summary() + "\n");
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.util;
+
+import android.os.SystemClock;
+import android.os.SystemProperties;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * Ring buffer of typed stack events, kept as primitives.
+ *
+ * An event is a timestamp, a type, the remote address packed in 48 bits and
+ * two numeric arguments whose meaning depends on the type (see the TYPE_
+ * constants). Recording does not build strings, so events can be logged from
+ * paths that are too hot for Log.v. Tracing is off unless the
+ * {@link #PROPERTY} system property is set, and can be toggled at runtime;
+ * when off, log() returns after a field read.
+ *
+ * The last events are printed by dumpsys. While tracing is on, the dump also
+ * has every kept event as a Chrome JSON trace, on the line after
+ * {@link #JSON_HEADER}, which Perfetto and chrome://tracing open once it is
+ * cut from the output.
+ */
+public final class EventTrace {
+    public static final String PROPERTY = "persist.bt.event_trace";
+    public static final String JSON_HEADER = "Event trace JSON:";
+
+    /** arg1: profile, arg2: (previous state << 8) | new state */
+    public static final int TYPE_CONNECTION = 1;
+    /** arg1: rssi, arg2: length of the advertising data */
+    public static final int TYPE_SCAN_RESULT = 2;
+    /** arg1: bytes written, arg2: OBEX response code */
+    public static final int TYPE_OBEX_PACKET = 3;
+    /** arg1: headset stack event type, arg2: value */
+    public static final int TYPE_AT_COMMAND = 4;
+    /** arg1: AVRCP PDU id or pass through opcode, arg2: parameter */
+    public static final int TYPE_AVRCP_COMMAND = 5;
+
+    private static final String[] TYPE_NAMES = {
+        "unknown", "connection", "scan_result", "obex_packet", "at_command", "avrcp_command"
+    };
+    private static final String[][] ARG_NAMES = {
+        {"arg1", "arg2"},
+        {"profile", "states"},
+        {"rssi", "adv_len"},
+        {"bytes", "response"},
+        {"event", "value"},
+        {"pdu", "param"},
+    };
+
+    @VisibleForTesting
+    static final int CAPACITY = 4096;
+    // Timestamp, type and address, arg1, arg2
+    private static final int RECORD_SIZE = 4;
+    private static final int ADDRESS_BITS = 48;
+    private static final long ADDRESS_MASK = (1L << ADDRESS_BITS) - 1;
+    // Events printed by dumpsys, the JSON trace has all of them
+    @VisibleForTesting
+    static final int DUMP_EVENTS = 100;
+
+    private static volatile boolean sEnabled = SystemProperties.getBoolean(PROPERTY, false);
+
+    static {
+        SystemProperties.addChangeCallback(new Runnable() {
+            @Override
+            public void run() {
+                sEnabled = SystemProperties.getBoolean(PROPERTY, false);
+            }
+        });
+    }
+
+    private static final Object sLock = new Object();
+    // Allocated on the first event, guarded by sLock
+    private static long[] sEvents;
+    private static long sWritten;
+
+    private EventTrace() {
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Turn tracing on or off until the property changes, for tests.
+     */
+    @VisibleForTesting
+    static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * Drop every event, for tests.
+     */
+    @VisibleForTesting
+    static void clear() {
+        synchronized (sLock) {
+            sEvents = null;
+            sWritten = 0;
+        }
+    }
+
+    public static void log(int type, String address, long arg1, long arg2) {
+        if (!sEnabled) return;
+        record(type, packAddress(address), arg1, arg2);
+    }
+
+    public static void log(int type, byte[] address, long arg1, long arg2) {
+        if (!sEnabled) return;
+        record(type, packAddress(address), arg1, arg2);
+    }
+
+    private static void record(int type, long address, long arg1, long arg2) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        synchronized (sLock) {
+            if (sEvents == null) sEvents = new long[CAPACITY * RECORD_SIZE];
+            int i = (int) (sWritten % CAPACITY) * RECORD_SIZE;
+            sEvents[i] = now;
+            sEvents[i + 1] = ((long) type << ADDRESS_BITS) | address;
+            sEvents[i + 2] = arg1;
+            sEvents[i + 3] = arg2;
+            sWritten++;
+        }
+    }
+
+    static long packAddress(String address) {
+        if (address == null) return 0;
+        long packed = 0;
+        for (int i = 0; i < address.length(); i++) {
+            int digit = Character.digit(address.charAt(i), 16);
+            if (digit >= 0) packed = (packed << 4) | digit;
+        }
+        return packed & ADDRESS_MASK;
+    }
+
+    static long packAddress(byte[] address) {
+        if (address == null) return 0;
+        long packed = 0;
+        for (int i = 0; i < address.length && i < 6; i++) {
+            packed = (packed << 8) | (address[i] & 0xff);
+        }
+        return packed;
+    }
+
+    static String formatAddress(long packed) {
+        StringBuilder sb = new StringBuilder(17);
+        for (int shift = ADDRESS_BITS - 8; shift >= 0; shift -= 8) {
+            int b = (int) (packed >>> shift) & 0xff;
+            sb.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 0xf, 16));
+            if (shift > 0) sb.append(':');
+        }
+        return sb.toString().toUpperCase();
+    }
+
+    private static String typeName(int type) {
+        return type > 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type] : TYPE_NAMES[0];
+    }
+
+    private static String[] argNames(int type) {
+        return type > 0 && type < ARG_NAMES.length ? ARG_NAMES[type] : ARG_NAMES[0];
+    }
+
+    /**
+     * @return the kept events, oldest first
+     */
+    @VisibleForTesting
+    static long[] snapshot() {
+        synchronized (sLock) {
+            if (sEvents == null) return new long[0];
+            int count = (int) Math.min(sWritten, CAPACITY);
+            long[] events = new long[count * RECORD_SIZE];
+            int first = (int) ((sWritten - count) % CAPACITY);
+            for (int n = 0; n < count; n++) {
+                System.arraycopy(sEvents, ((first + n) % CAPACITY) * RECORD_SIZE,
+                        events, n * RECORD_SIZE, RECORD_SIZE);
+            }
+            return events;
+        }
+    }
+
+    public static void dump(StringBuilder sb) {
+        long[] events = snapshot();
+        long written;
+        synchronized (sLock) {
+            written = sWritten;
+        }
+        if (written == 0 && !sEnabled) return;
+        int count = events.length / RECORD_SIZE;
+        sb.append("Event trace (" + (sEnabled ? "on" : "off") + "): " + written
+                + " events, " + count + " kept\n");
+        for (int n = Math.max(0, count - DUMP_EVENTS); n < count; n++) {
+            int i = n * RECORD_SIZE;
+            int type = (int) (events[i + 1] >>> ADDRESS_BITS);
+            String[] names = argNames(type);
+            sb.append("  " + (events[i] / 1000000) + " " + typeName(type) + " "
+                    + formatAddress(events[i + 1] & ADDRESS_MASK) + " " + names[0] + "="
+                    + events[i + 2] + " " + names[1] + "=" + events[i + 3] + "\n");
+        }
+        if (sEnabled) {
+            sb.append(JSON_HEADER + "\n");
+            appendJson(sb, events);
+            sb.append("\n");
+        }
+    }
+
+    /**
+     * Append the events as a Chrome JSON trace on a single line, one instant
+     * event per stack event and one track per event type.
+     */
+    @VisibleForTesting
+    static void appendJson(StringBuilder sb, long[] events) {
+        sb.append("{\"traceEvents\":[");
+        // Name the track of each type
+        for (int type = 1; type < TYPE_NAMES.length; type++) {
+            if (type > 1) sb.append(',');
+            sb.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + type
+                    + ",\"args\":{\"name\":\"" + TYPE_NAMES[type] + "\"}}");
+        }
+        for (int i = 0; i < events.length; i += RECORD_SIZE) {
+            int type = (int) (events[i + 1] >>> ADDRESS_BITS);
+            String[] names = argNames(type);
+            sb.append(",{\"name\":\"" + typeName(type) + "\",\"ph\":\"i\",\"s\":\"t\""
+                    + ",\"pid\":1,\"tid\":" + type + ",\"ts\":" + (events[i] / 1000)
+                    + ",\"args\":{\"address\":\""
+                    + formatAddress(events[i + 1] & ADDRESS_MASK) + "\",\""
+                    + names[0] + "\":" + events[i + 2] + ",\""
+                    + names[1] + "\":" + events[i + 3] + "}}");
+        }
+        sb.append("],\"displayTimeUnit\":\"ms\"}");
+    }
+}
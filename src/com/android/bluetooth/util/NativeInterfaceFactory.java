@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.util;
+
+/**
+ * Creates the native interface of a profile component.
+ *
+ * Profile components make their calls into the stack through a native
+ * interface, which is JNI unless a factory has been set. Tests set a factory
+ * to run a component against an in-process fake stack, which answers the
+ * calls and delivers callbacks to the owner as the native layer would.
+ *
+ * @param <O> the component owning the interface, callbacks go to it
+ * @param <N> the native interface
+ */
+public interface NativeInterfaceFactory<O, N> {
+    N create(O owner);
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.util;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Small pool of looper threads shared by the components that used to start
+ * a HandlerThread each.
+ *
+ * A component gets the looper of the least loaded pool thread and keeps its
+ * own Handler (or StateMachine) on it, so its messages are still handled in
+ * order. Pool threads are started on demand and quit once their last
+ * component has released them. Components that block their looper (waiting
+ * on a latch or on the network) must keep a dedicated thread.
+ *
+ * The pool size is set with {@link #PROPERTY_SIZE}; 0 gives every
+ * component its own thread as before.
+ */
+public final class SharedLooperPool {
+    private static final String TAG = "BluetoothSharedLooperPool";
+
+    public static final String PROPERTY_SIZE = "persist.bt.shared_loopers";
+    private static final int DEFAULT_SIZE = 2;
+    // Default stack size of a thread, for the savings estimate
+    private static final long THREAD_STACK_BYTES = 1024 * 1024;
+
+    private static class PoolThread {
+        final HandlerThread thread;
+        final boolean dedicated;
+        final ArrayList<String> components = new ArrayList<String>();
+
+        PoolThread(String name, boolean dedicated) {
+            this.dedicated = dedicated;
+            thread = new HandlerThread(name);
+            thread.start();
+        }
+    }
+
+    private static final ArrayList<PoolThread> sThreads = new ArrayList<PoolThread>();
+    private static int sNextId;
+    private static int sPeakComponents;
+    private static int sPeakThreads;
+
+    private SharedLooperPool() {
+    }
+
+    /**
+     * @param component name of the component, for dumpsys
+     * @return a looper to host the component, to give back with
+     *         {@link #release}
+     */
+    public static synchronized Looper acquire(String component) {
+        int size = SystemProperties.getInt(PROPERTY_SIZE, DEFAULT_SIZE);
+        PoolThread target = null;
+        int shared = 0;
+        for (PoolThread t : sThreads) {
+            if (t.dedicated) continue;
+            shared++;
+            if (target == null || t.components.size() < target.components.size()) target = t;
+        }
+        if (size <= 0) {
+            target = new PoolThread(component, true);
+            sThreads.add(target);
+        } else if (target == null || (shared < size && !target.components.isEmpty())) {
+            target = new PoolThread("BluetoothLooper-" + sNextId++, false);
+            sThreads.add(target);
+        }
+        target.components.add(component);
+        updatePeaks();
+        return target.thread.getLooper();
+    }
+
+    public static synchronized void release(Looper looper, String component) {
+        for (int i = 0; i < sThreads.size(); i++) {
+            PoolThread t = sThreads.get(i);
+            if (t.thread.getLooper() != looper) continue;
+            t.components.remove(component);
+            if (t.components.isEmpty()) {
+                t.thread.quitSafely();
+                sThreads.remove(i);
+            }
+            return;
+        }
+        Log.w(TAG, "Release of unknown looper by " + component);
+    }
+
+    private static void updatePeaks() {
+        int components = 0;
+        for (PoolThread t : sThreads) {
+            components += t.components.size();
+        }
+        sPeakComponents = Math.max(sPeakComponents, components);
+        sPeakThreads = Math.max(sPeakThreads, sThreads.size());
+    }
+
+    public static synchronized void dump(StringBuilder sb) {
+        sb.append("Shared loopers:\n");
+        int components = 0;
+        for (PoolThread t : sThreads) {
+            components += t.components.size();
+            sb.append("  " + t.thread.getName() + ": " + t.components + "\n");
+        }
+        int saved = components - sThreads.size();
+        sb.append("  " + components + " components on " + sThreads.size() + " threads, ~"
+                + (saved * THREAD_STACK_BYTES / 1024) + " KB of stack saved (peak "
+                + sPeakComponents + " components, " + sPeakThreads + " threads)\n");
+    }
+}
@@ -16,3 +16,5 @@ LOCAL_PACKAGE_NAME := BluetoothProfileTests
 LOCAL_INSTRUMENTATION_FOR := Bluetooth
 
 include $(BUILD_PACKAGE)
+
+include $(call all-makefiles-under,$(LOCAL_PATH))
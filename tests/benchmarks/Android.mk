@@ -0,0 +1,22 @@
+LOCAL_PATH:= $(call my-dir)
+include $(CLEAR_VARS)
+
+# Micro benchmarks of the codecs and parsers of the Bluetooth app. They run
+# inside the app process, on a device, as the code under test depends on
+# framework and telephony classes. To run them:
+#   adb shell am instrument -w -r \
+#       com.android.bluetooth.benchmarks/.BenchmarkRunner
+# Pass "-e baseline <file>" to compare with the results of a previous run,
+# and "-e class <name>" to run a single benchmark class.
+LOCAL_MODULE_TAGS := tests
+LOCAL_CERTIFICATE := platform
+
+LOCAL_JAVA_LIBRARIES := telephony-common
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+
+LOCAL_PACKAGE_NAME := BluetoothBenchmarks
+
+LOCAL_INSTRUMENTATION_FOR := Bluetooth
+
+include $(BUILD_PACKAGE)
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.benchmarks;
+
+import com.android.bluetooth.Utils;
+import com.android.bluetooth.util.NumberUtils;
+
+/**
+ * Conversions between address strings and bytes, and little endian decoding.
+ */
+public class AddressBenchmark {
+    private static final String ADDRESS = "00:1A:7D:DA:71:13";
+    private static final byte[] ADDRESS_BYTES = {0x00, 0x1A, 0x7D, (byte) 0xDA, 0x71, 0x13};
+    private static final byte[] LITTLE_ENDIAN = {(byte) 0xCA, 0x07, 0x12, 0x00};
+
+    public void timeAddressToString(int reps) {
+        for (int i = 0; i < reps; i++) {
+            Utils.getAddressStringFromByte(ADDRESS_BYTES);
+        }
+    }
+
+    public void timeAddressToBytes(int reps) {
+        for (int i = 0; i < reps; i++) {
+            Utils.getBytesFromAddress(ADDRESS);
+        }
+    }
+
+    public int timeLittleEndianToInt(int reps) {
+        int sum = 0;
+        for (int i = 0; i < reps; i++) {
+            sum += NumberUtils.littleEndianByteArrayToInt(LITTLE_ENDIAN);
+        }
+        return sum;
+    }
+
+    public int timeUnsignedByteToInt(int reps) {
+        int sum = 0;
+        for (int i = 0; i < reps; i++) {
+            sum += NumberUtils.unsignedByteToInt(ADDRESS_BYTES[i % ADDRESS_BYTES.length]);
+        }
+        return sum;
+    }
+}
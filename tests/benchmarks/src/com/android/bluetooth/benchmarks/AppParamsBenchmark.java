@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.benchmarks;
+
+import com.android.bluetooth.map.BluetoothMapAppParams;
+
+/**
+ * Encoding and parsing of the MAP application parameters header, with the
+ * parameters of a typical message listing request.
+ */
+public class AppParamsBenchmark {
+    private BluetoothMapAppParams mParams;
+    private byte[] mEncoded;
+
+    public void setUp() throws Exception {
+        mParams = new BluetoothMapAppParams();
+        mParams.setMaxListCount(1024);
+        mParams.setStartOffset(0);
+        mParams.setSubjectLength(255);
+        mParams.setParameterMask(0xffffL);
+        mParams.setFilterMessageType(0);
+        mParams.setFilterReadStatus(1);
+        mParams.setFilterPeriodBegin("20140101T000000");
+        mParams.setFilterOriginator("Casper");
+        mParams.setCharset(BluetoothMapAppParams.CHARSET_UTF8);
+        mEncoded = mParams.EncodeParams();
+    }
+
+    public void timeEncode(int reps) throws Exception {
+        for (int i = 0; i < reps; i++) {
+            mParams.EncodeParams();
+        }
+    }
+
+    public void timeParse(int reps) throws Exception {
+        for (int i = 0; i < reps; i++) {
+            new BluetoothMapAppParams(mEncoded);
+        }
+    }
+}
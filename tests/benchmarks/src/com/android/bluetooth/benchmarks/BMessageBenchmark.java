@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.benchmarks;
+
+import com.android.bluetooth.map.BluetoothMapAppParams;
+import com.android.bluetooth.map.BluetoothMapSmsPdu;
+import com.android.bluetooth.map.BluetoothMapbMessage;
+import com.android.bluetooth.map.BluetoothMapbMessageSms;
+import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
+
+import android.util.Base64;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+
+/**
+ * Parsing of pushed bMessages: SMS as text and as native PDUs, email, and
+ * an MMS with a 4 MB attachment.
+ */
+public class BMessageBenchmark {
+    private static final String VCARD =
+            "BEGIN:VCARD\r\n" +
+            "VERSION:3.0\r\n" +
+            "FN:Casper Bonde\r\n" +
+            "N:Bonde,Casper\r\n" +
+            "TEL:+4512345678\r\n" +
+            "EMAIL:casper@email.add\r\n" +
+            "END:VCARD\r\n";
+
+    private byte[] mSmsText;
+    private byte[] mSmsNative;
+    private byte[] mEmail;
+    private byte[] mMms;
+
+    private static byte[] bMessage(String type, String charset, String body) {
+        return ("BEGIN:BMSG\r\n" +
+                "VERSION:1.0\r\n" +
+                "STATUS:UNREAD\r\n" +
+                "TYPE:" + type + "\r\n" +
+                "FOLDER:telecom/msg/outbox\r\n" +
+                VCARD +
+                "BEGIN:BENV\r\n" +
+                VCARD +
+                "BEGIN:BBODY\r\n" +
+                "CHARSET:" + charset + "\r\n" +
+                "LENGTH:" + body.length() + "\r\n" +
+                "BEGIN:MSG\r\n" +
+                body + "\r\n" +
+                "END:MSG\r\n" +
+                "END:BBODY\r\n" +
+                "END:BENV\r\n" +
+                "END:BMSG\r\n").getBytes();
+    }
+
+    public void setUp() throws Exception {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 300) {
+            text.append("Let's go fishing, the weather is fine. ");
+        }
+        mSmsText = bMessage("SMS_GSM", "UTF-8", text.toString());
+
+        BluetoothMapbMessageSms sms = new BluetoothMapbMessageSms();
+        sms.setType(TYPE.SMS_GSM);
+        sms.setFolder("outbox");
+        sms.setStatus(false);
+        sms.addOriginator("Bonde,Casper", "Casper Bonde",
+                new String[] {"+4512345678"}, new String[] {"casper@email.add"});
+        sms.addRecipient("Bonde,Casper", "Casper Bonde",
+                new String[] {"+4512345678"}, new String[] {"casper@email.add"});
+        sms.setSmsBodyPdus(BluetoothMapSmsPdu.getSubmitPdus(text.toString(), "+4512345678"));
+        mSmsNative = sms.encode();
+
+        StringBuilder body = new StringBuilder();
+        body.append("Date: Thu, 1 Jan 2015 10:00:00 +0100\r\n");
+        body.append("Subject: Benchmark\r\n");
+        body.append("From: \"Casper Bonde\" <casper@email.add>\r\n");
+        body.append("To: \"Jens Hansen\" <jens@email.add>\r\n");
+        body.append("Content-Type: text/plain; charset=\"UTF-8\"\r\n");
+        body.append("\r\n");
+        while (body.length() < 4096) {
+            body.append("This is a line of a longer email body, as read by a car kit.\r\n");
+        }
+        mEmail = bMessage("EMAIL", "UTF-8", body.toString());
+
+        byte[] attachment = new byte[4 * 1024 * 1024];
+        new Random(0).nextBytes(attachment);
+        String mms = "Subject: Benchmark\r\n" +
+                "Content-Type: multipart/related; boundary=\"PART\"\r\n" +
+                "\r\n" +
+                "--PART\r\n" +
+                "Content-Type: text/plain\r\n" +
+                "\r\n" +
+                "Look at this\r\n" +
+                "--PART\r\n" +
+                "Content-Type: image/jpeg\r\n" +
+                "Content-Location: image.jpg\r\n" +
+                "Content-Transfer-Encoding: Base64\r\n" +
+                "\r\n" +
+                Base64.encodeToString(attachment, Base64.CRLF) +
+                "--PART--";
+        mMms = bMessage("MMS", "UTF-8", mms);
+    }
+
+    public void timeParseSmsText(int reps) {
+        for (int i = 0; i < reps; i++) {
+            BluetoothMapbMessage.parse(new ByteArrayInputStream(mSmsText),
+                    BluetoothMapAppParams.CHARSET_UTF8);
+        }
+    }
+
+    public void timeParseSmsNative(int reps) {
+        for (int i = 0; i < reps; i++) {
+            BluetoothMapbMessage.parse(new ByteArrayInputStream(mSmsNative),
+                    BluetoothMapAppParams.CHARSET_NATIVE);
+        }
+    }
+
+    public void timeParseEmail(int reps) {
+        for (int i = 0; i < reps; i++) {
+            BluetoothMapbMessage.parse(new ByteArrayInputStream(mEmail),
+                    BluetoothMapAppParams.CHARSET_UTF8);
+        }
+    }
+
+    public void timeParseMms4M(int reps) {
+        for (int i = 0; i < reps; i++) {
+            BluetoothMapbMessage.parse(new ByteArrayInputStream(mMms),
+                    BluetoothMapAppParams.CHARSET_UTF8).release();
+        }
+    }
+}
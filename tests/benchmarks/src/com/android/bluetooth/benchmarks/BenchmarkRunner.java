@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.benchmarks;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.android.bluetooth.gatt.BatchScanBenchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Runs the benchmark classes, in the style of Caliper: every
+ * {@code public void timeXxx(int reps)} method is timed, after an optional
+ * {@code setUp()}.
+ *
+ * The number of reps is grown until a run takes {@link #TARGET_NANOS}, then
+ * {@link #TRIALS} runs are made and the median time per rep is reported as
+ * "Class.method ns/op", in the instrumentation status and in a results file.
+ * A results file can be given back as a baseline: a benchmark slower than
+ * its baseline by more than {@link #REGRESSION_THRESHOLD} fails the run.
+ */
+public class BenchmarkRunner extends Instrumentation {
+    private static final String TAG = "BluetoothBenchmarkRunner";
+
+    private static final Class<?>[] BENCHMARKS = {
+        BMessageBenchmark.class,
+        AppParamsBenchmark.class,
+        SmsPduBenchmark.class,
+        MessageListingBenchmark.class,
+        BatchScanBenchmark.class,
+        AddressBenchmark.class,
+        CallbackLatencyBenchmark.class,
+    };
+
+    private static final long WARMUP_NANOS = 200 * 1000 * 1000L;
+    private static final long TARGET_NANOS = 100 * 1000 * 1000L;
+    private static final int TRIALS = 5;
+    private static final double REGRESSION_THRESHOLD = 0.2;
+    private static final String RESULTS_FILE = "benchmark-results.txt";
+
+    private Bundle mArguments;
+
+    @Override
+    public void onCreate(Bundle arguments) {
+        super.onCreate(arguments);
+        mArguments = arguments != null ? arguments : new Bundle();
+        start();
+    }
+
+    @Override
+    public void onStart() {
+        HashMap<String, Double> baseline = readResults(mArguments.getString("baseline"));
+        String only = mArguments.getString("class");
+        StringBuilder results = new StringBuilder();
+        ArrayList<String> regressions = new ArrayList<String>();
+        int resultCode = Activity.RESULT_OK;
+
+        try {
+            for (Class<?> benchmark : BENCHMARKS) {
+                if (only != null && !benchmark.getName().endsWith(only)) continue;
+                Object instance = benchmark.newInstance();
+                Method[] methods = benchmark.getMethods();
+                Arrays.sort(methods, new Comparator<Method>() {
+                    @Override
+                    public int compare(Method a, Method b) {
+                        return a.getName().compareTo(b.getName());
+                    }
+                });
+                invokeSetUp(instance);
+                for (Method method : methods) {
+                    if (!method.getName().startsWith("time")
+                            || !Arrays.equals(method.getParameterTypes(),
+                                    new Class<?>[] {int.class})) {
+                        continue;
+                    }
+                    String name = benchmark.getSimpleName() + "." + method.getName().substring(4);
+                    double nsPerOp = measure(instance, method);
+                    String line = name + " " + String.format(Locale.US, "%.1f", nsPerOp);
+                    Double previous = baseline.get(name);
+                    if (previous != null && nsPerOp > previous * (1 + REGRESSION_THRESHOLD)) {
+                        regressions.add(name + " " + String.format(Locale.US, "%.1f", previous)
+                                + " -> " + String.format(Locale.US, "%.1f", nsPerOp));
+                    }
+                    results.append(line).append('\n');
+                    Bundle status = new Bundle();
+                    status.putString(Instrumentation.REPORT_KEY_STREAMRESULT, line + " ns/op\n");
+                    sendStatus(0, status);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Benchmark failed", e);
+            results.append("FAILED ").append(e).append('\n');
+            resultCode = Activity.RESULT_CANCELED;
+        }
+
+        File output = new File(getTargetContext().getFilesDir(), RESULTS_FILE);
+        writeResults(output, results.toString());
+
+        StringBuilder summary = new StringBuilder();
+        summary.append("Results written to ").append(output).append('\n');
+        for (String regression : regressions) {
+            summary.append("REGRESSION ").append(regression).append('\n');
+        }
+        if (!regressions.isEmpty()) resultCode = Activity.RESULT_CANCELED;
+        Bundle result = new Bundle();
+        result.putString(Instrumentation.REPORT_KEY_STREAMRESULT, summary.toString());
+        finish(resultCode, result);
+    }
+
+    private static void invokeSetUp(Object instance) throws Exception {
+        try {
+            instance.getClass().getMethod("setUp").invoke(instance);
+        } catch (NoSuchMethodException e) {
+            // No fixture to prepare
+        }
+    }
+
+    private static double measure(Object instance, Method method) throws Exception {
+        int reps = 1;
+        long elapsed;
+        long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+        while (true) {
+            elapsed = run(instance, method, reps);
+            if (elapsed >= TARGET_NANOS && System.nanoTime() >= warmupEnd) break;
+            if (elapsed < TARGET_NANOS) {
+                reps = (int) Math.min(Integer.MAX_VALUE / 2,
+                        Math.max(reps * 2L, reps * TARGET_NANOS / Math.max(1, elapsed)));
+            }
+        }
+        double[] trials = new double[TRIALS];
+        for (int i = 0; i < TRIALS; i++) {
+            trials[i] = (double) run(instance, method, reps) / reps;
+        }
+        Arrays.sort(trials);
+        return trials[TRIALS / 2];
+    }
+
+    private static long run(Object instance, Method method, int reps) throws Exception {
+        long start = System.nanoTime();
+        try {
+            method.invoke(instance, reps);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+            throw e;
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static HashMap<String, Double> readResults(String path) {
+        HashMap<String, Double> results = new HashMap<String, Double>();
+        if (path == null) return results;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(path));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split(" ");
+                if (fields.length != 2) continue;
+                try {
+                    results.put(fields[0], Double.parseDouble(fields[1]));
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Bad baseline line: " + line);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read baseline " + path, e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Cannot close " + path, e);
+                }
+            }
+        }
+        return results;
+    }
+
+    private static void writeResults(File file, String results) {
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(file);
+            writer.write(results);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write " + file, e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Cannot close " + file, e);
+                }
+            }
+        }
+    }
+}
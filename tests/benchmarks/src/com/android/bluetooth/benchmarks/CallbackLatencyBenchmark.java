@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.benchmarks;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanRecord;
+import android.os.SystemProperties;
+
+import com.android.bluetooth.util.CallbackLatency;
+
+/**
+ * Cost of timing a native callback, with timing off and on, next to the
+ * work a single scan result callback does for one client. ScanResultTimed
+ * minus ScanResult is the overhead of the instrumentation on one of the
+ * cheapest and most frequent callbacks.
+ */
+public class CallbackLatencyBenchmark {
+    private static final String ADDRESS = "00:1A:7D:DA:71:13";
+    // Flags, a 16 bit service UUID and manufacturer data
+    private static final byte[] ADV_DATA = {
+        0x02, 0x01, 0x06,
+        0x03, 0x03, 0x0d, 0x18,
+        0x0b, (byte) 0xff, 0x4c, 0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08,
+    };
+
+    private final CallbackLatency mCallbackLatency = new CallbackLatency();
+    private BluetoothAdapter mAdapter;
+
+    public void setUp() {
+        mAdapter = BluetoothAdapter.getDefaultAdapter();
+    }
+
+    private static void restore() {
+        CallbackLatency.setEnabled(SystemProperties.getBoolean(CallbackLatency.PROPERTY, false));
+    }
+
+    private int scanResult() {
+        ScanRecord record = ScanRecord.parseFromBytes(ADV_DATA);
+        return mAdapter.getRemoteDevice(ADDRESS).hashCode() + record.getAdvertiseFlags();
+    }
+
+    public void timeTimingOff(int reps) {
+        CallbackLatency.setEnabled(false);
+        for (int i = 0; i < reps; i++) {
+            final long start = CallbackLatency.start();
+            mCallbackLatency.end("onBenchmark", start);
+        }
+        restore();
+    }
+
+    public void timeTimingOn(int reps) {
+        CallbackLatency.setEnabled(true);
+        for (int i = 0; i < reps; i++) {
+            final long start = CallbackLatency.start();
+            mCallbackLatency.end("onBenchmark", start);
+        }
+        restore();
+    }
+
+    public int timeScanResult(int reps) {
+        int sum = 0;
+        for (int i = 0; i < reps; i++) {
+            sum += scanResult();
+        }
+        return sum;
+    }
+
+    public int timeScanResultTimed(int reps) {
+        CallbackLatency.setEnabled(true);
+        int sum = 0;
+        for (int i = 0; i < reps; i++) {
+            final long start = CallbackLatency.start();
+            try {
+                sum += scanResult();
+            } finally {
+                mCallbackLatency.end("onScanResult", start);
+            }
+        }
+        restore();
+        return sum;
+    }
+}
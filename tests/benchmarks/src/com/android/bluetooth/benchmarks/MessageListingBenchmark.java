@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.benchmarks;
+
+import com.android.bluetooth.map.BluetoothMapMessageListing;
+import com.android.bluetooth.map.BluetoothMapMessageListingElement;
+import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
+
+import java.io.OutputStream;
+
+/**
+ * XML encoding of message listings of 10 and 1000 entries, to a byte array
+ * and to a stream.
+ */
+public class MessageListingBenchmark {
+    private BluetoothMapMessageListing mSmall;
+    private BluetoothMapMessageListing mLarge;
+
+    private static BluetoothMapMessageListing listing(int size) {
+        BluetoothMapMessageListing listing = new BluetoothMapMessageListing();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < size; i++) {
+            BluetoothMapMessageListingElement element = new BluetoothMapMessageListingElement();
+            element.setHandle(i, TYPE.SMS_GSM);
+            element.setSubject("Let's go fishing, the weather is fine " + i);
+            element.setDateTime(now - i * 60000L);
+            element.setSenderName("Casper Bonde");
+            element.setSenderAddressing("+4512345678");
+            element.setRecipientName("Jens Hansen");
+            element.setRecipientAddressing("+4587654321");
+            element.setType(TYPE.SMS_GSM);
+            element.setSize(120);
+            element.setText("yes");
+            element.setReceptionStatus("complete");
+            element.setAttachmentSize(0);
+            element.setPriority("no");
+            element.setRead(i % 3 == 0 ? "no" : "yes", false);
+            element.setSent("no");
+            element.setProtect("no");
+            listing.add(element);
+        }
+        return listing;
+    }
+
+    public void setUp() {
+        mSmall = listing(10);
+        mLarge = listing(1000);
+    }
+
+    public void timeEncode10(int reps) throws Exception {
+        for (int i = 0; i < reps; i++) {
+            mSmall.encode();
+        }
+    }
+
+    public void timeEncode1000(int reps) throws Exception {
+        for (int i = 0; i < reps; i++) {
+            mLarge.encode();
+        }
+    }
+
+    public void timeEncodeStream1000(int reps) throws Exception {
+        OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        for (int i = 0; i < reps; i++) {
+            mLarge.encode(out);
+        }
+    }
+}
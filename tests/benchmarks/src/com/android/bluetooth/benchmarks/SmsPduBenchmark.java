@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.benchmarks;
+
+import android.telephony.TelephonyManager;
+
+import com.android.bluetooth.map.BluetoothMapSmsPdu;
+import com.android.bluetooth.map.BluetoothMapSmsPdu.SmsPdu;
+import com.android.bluetooth.map.BluetoothMapSmsPduCache;
+import com.android.internal.telephony.cdma.sms.UserData;
+
+import java.util.ArrayList;
+
+/**
+ * Encoding of submit and deliver PDUs and decoding of pushed PDUs, for a
+ * single and a three part message. The PDUs of the phone type of the device
+ * are encoded through BluetoothMapSmsPdu, GSM and CDMA PDUs are also encoded
+ * and decoded on their own, whatever the phone type. The cached runs read the
+ * PDUs of the same message again, as a car kit does after a reconnect.
+ */
+public class SmsPduBenchmark {
+    private static final String ADDRESS = "00498912345678";
+    private static final String SHORT_TEXT = "Let's go fishing!";
+    private static final long DATE = 1400000000000L;
+
+    private String mLongText;
+    private byte[] mGsmPdu;
+    private byte[] mCdmaPdu;
+    private BluetoothMapSmsPduCache mCache;
+
+    public void setUp() {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 400) {
+            text.append("Let's go fishing, the weather is fine. ");
+        }
+        mLongText = text.toString();
+        mGsmPdu = encodeGsm(SHORT_TEXT);
+        mCdmaPdu = encodeCdma(SHORT_TEXT);
+        mCache = BluetoothMapSmsPduCache.getInstance();
+    }
+
+    private static byte[] encodeGsm(String text) {
+        return com.android.internal.telephony.gsm.SmsMessage.getSubmitPdu(null, ADDRESS,
+                text, false).encodedMessage;
+    }
+
+    private static byte[] encodeCdma(String text) {
+        UserData userData = new UserData();
+        userData.payloadStr = text;
+        userData.msgEncoding = UserData.ENCODING_GSM_7BIT_ALPHABET;
+        userData.msgEncodingSet = true;
+        return com.android.internal.telephony.cdma.SmsMessage.getSubmitPdu(ADDRESS,
+                userData, false).encodedMessage;
+    }
+
+    public void timeSubmitShort(int reps) {
+        for (int i = 0; i < reps; i++) {
+            BluetoothMapSmsPdu.getSubmitPdus(SHORT_TEXT, ADDRESS);
+        }
+    }
+
+    public void timeSubmitLong(int reps) {
+        for (int i = 0; i < reps; i++) {
+            BluetoothMapSmsPdu.getSubmitPdus(mLongText, ADDRESS);
+        }
+    }
+
+    public void timeDeliverShort(int reps) {
+        for (int i = 0; i < reps; i++) {
+            BluetoothMapSmsPdu.getDeliverPdus(SHORT_TEXT, ADDRESS, DATE);
+        }
+    }
+
+    public void timeDeliverLong(int reps) {
+        for (int i = 0; i < reps; i++) {
+            BluetoothMapSmsPdu.getDeliverPdus(mLongText, ADDRESS, DATE);
+        }
+    }
+
+    public void timeDeliverLongCached(int reps) {
+        for (int i = 0; i < reps; i++) {
+            mCache.getPdus(1, mLongText, ADDRESS, DATE, true, TelephonyManager.PHONE_TYPE_GSM);
+        }
+    }
+
+    public void timeEncodeGsm(int reps) {
+        for (int i = 0; i < reps; i++) {
+            encodeGsm(SHORT_TEXT);
+        }
+    }
+
+    public void timeEncodeCdma(int reps) {
+        for (int i = 0; i < reps; i++) {
+            encodeCdma(SHORT_TEXT);
+        }
+    }
+
+    public void timeDecodeGsm(int reps) {
+        for (int i = 0; i < reps; i++) {
+            BluetoothMapSmsPdu.decodePdu(mGsmPdu, BluetoothMapSmsPdu.SMS_TYPE_GSM);
+        }
+    }
+
+    public void timeDecodeCdma(int reps) {
+        for (int i = 0; i < reps; i++) {
+            BluetoothMapSmsPdu.decodePdu(mCdmaPdu, BluetoothMapSmsPdu.SMS_TYPE_CDMA);
+        }
+    }
+}
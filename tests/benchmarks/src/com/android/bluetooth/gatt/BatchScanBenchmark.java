@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothAdapter;
+
+/**
+ * Parsing of batch scan reports of 100 records, in full and truncated mode.
+ */
+public class BatchScanBenchmark {
+    private static final int RECORDS = 100;
+    private static final int ADV_LENGTH = 31;
+    private static final int SCAN_RESPONSE_LENGTH = 31;
+
+    // The adapter is set up by ProfileService.onCreate(), which is not run here
+    private static class Service extends GattService {
+        Service() {
+            mAdapter = BluetoothAdapter.getDefaultAdapter();
+        }
+    }
+
+    private GattService mService;
+    private byte[] mFullReport;
+    private byte[] mTruncatedReport;
+
+    public void setUp() {
+        mService = new Service();
+
+        // address, address type, tx power, rssi, timestamp, adv data, scan response
+        int fullSize = 6 + 1 + 1 + 1 + 2 + 1 + ADV_LENGTH + 1 + SCAN_RESPONSE_LENGTH;
+        mFullReport = new byte[RECORDS * fullSize];
+        for (int i = 0; i < RECORDS; i++) {
+            int pos = i * fullSize;
+            fillAddress(mFullReport, pos, i);
+            pos += 6;
+            mFullReport[pos++] = 0;
+            mFullReport[pos++] = -4;
+            mFullReport[pos++] = (byte) -60;
+            mFullReport[pos++] = (byte) i;
+            mFullReport[pos++] = 0;
+            pos = fillAdvertisement(mFullReport, pos, ADV_LENGTH);
+            fillAdvertisement(mFullReport, pos, SCAN_RESPONSE_LENGTH);
+        }
+
+        // address, address type, tx power, rssi, timestamp
+        int truncatedSize = 11;
+        mTruncatedReport = new byte[RECORDS * truncatedSize];
+        for (int i = 0; i < RECORDS; i++) {
+            int pos = i * truncatedSize;
+            fillAddress(mTruncatedReport, pos, i);
+            mTruncatedReport[pos + 8] = (byte) -60;
+            mTruncatedReport[pos + 9] = (byte) i;
+        }
+    }
+
+    private static void fillAddress(byte[] report, int pos, int index) {
+        for (int j = 0; j < 5; j++) {
+            report[pos + j] = (byte) (0x10 + j);
+        }
+        report[pos + 5] = (byte) index;
+    }
+
+    // One flags field and one manufacturer data field filling the packet
+    private static int fillAdvertisement(byte[] report, int pos, int length) {
+        report[pos++] = (byte) length;
+        report[pos++] = 2;
+        report[pos++] = 0x01;
+        report[pos++] = 0x06;
+        report[pos++] = (byte) (length - 4);
+        report[pos++] = (byte) 0xff;
+        for (int j = 0; j < length - 5; j++) {
+            report[pos++] = (byte) j;
+        }
+        return pos;
+    }
+
+    public void timeParseFull(int reps) {
+        for (int i = 0; i < reps; i++) {
+            mService.parseBatchScanResults(RECORDS, ScanManager.SCAN_RESULT_TYPE_FULL,
+                    mFullReport);
+        }
+    }
+
+    public void timeParseTruncated(int reps) {
+        for (int i = 0; i < reps; i++) {
+            mService.parseBatchScanResults(RECORDS, ScanManager.SCAN_RESULT_TYPE_TRUNCATED,
+                    mTruncatedReport);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+
+/**
+ * Tests for {@link BondQueue}.
+ */
+public class BondQueueTest extends AndroidTestCase {
+
+    private static class FakeCallbacks implements BondQueue.Callbacks {
+        final ArrayList<BluetoothDevice> started = new ArrayList<BluetoothDevice>();
+        final ArrayList<BluetoothDevice> cancelled = new ArrayList<BluetoothDevice>();
+        final ArrayList<Integer> timeouts = new ArrayList<Integer>();
+        boolean accept = true;
+
+        @Override
+        public boolean createBond(BluetoothDevice device, int transport) {
+            if (accept) started.add(device);
+            return accept;
+        }
+
+        @Override
+        public void cancelBond(BluetoothDevice device) {
+            cancelled.add(device);
+        }
+
+        @Override
+        public void scheduleTimeout(int bondId, long delayMs) {
+            timeouts.add(bondId);
+        }
+    }
+
+    private static BluetoothDevice device(int i) {
+        return BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:11:22:33:44:0" + i);
+    }
+
+    @SmallTest
+    public void testSerializesBonds() {
+        FakeCallbacks cb = new FakeCallbacks();
+        BondQueue queue = new BondQueue(cb, 1, BondQueue.DEFAULT_BOND_TIMEOUT_MS);
+        assertTrue(queue.enqueue(device(1), 0, BondQueue.PRIORITY_NORMAL));
+        assertTrue(queue.enqueue(device(2), 0, BondQueue.PRIORITY_NORMAL));
+        assertFalse(queue.enqueue(device(2), 0, BondQueue.PRIORITY_NORMAL));
+        assertEquals(1, cb.started.size());
+        assertEquals(1, queue.getQueueDepth());
+
+        queue.onBondStateChanged(device(1), BluetoothDevice.BOND_BONDING);
+        assertEquals(1, cb.started.size());
+        queue.onBondStateChanged(device(1), BluetoothDevice.BOND_BONDED);
+        assertEquals(2, cb.started.size());
+        assertEquals(device(2), cb.started.get(1));
+        queue.onBondStateChanged(device(2), BluetoothDevice.BOND_NONE);
+
+        assertEquals(1, queue.getBondedCount());
+        assertEquals(1, queue.getFailedCount());
+        assertEquals(0, queue.getQueueDepth());
+    }
+
+    @SmallTest
+    public void testHighPriorityFirst() {
+        FakeCallbacks cb = new FakeCallbacks();
+        BondQueue queue = new BondQueue(cb, 1, BondQueue.DEFAULT_BOND_TIMEOUT_MS);
+        queue.enqueue(device(1), 0, BondQueue.PRIORITY_NORMAL);
+        queue.enqueue(device(2), 0, BondQueue.PRIORITY_NORMAL);
+        queue.enqueue(device(3), 0, BondQueue.PRIORITY_HIGH);
+        queue.onBondStateChanged(device(1), BluetoothDevice.BOND_BONDED);
+        assertEquals(device(3), cb.started.get(1));
+        queue.onBondStateChanged(device(3), BluetoothDevice.BOND_BONDED);
+        assertEquals(device(2), cb.started.get(2));
+    }
+
+    @SmallTest
+    public void testTimeoutCancelsAndFreesSlot() {
+        FakeCallbacks cb = new FakeCallbacks();
+        BondQueue queue = new BondQueue(cb, 1, BondQueue.DEFAULT_BOND_TIMEOUT_MS);
+        queue.enqueue(device(1), 0, BondQueue.PRIORITY_NORMAL);
+        queue.enqueue(device(2), 0, BondQueue.PRIORITY_NORMAL);
+        int bondId = cb.timeouts.get(0);
+
+        queue.onTimeout(bondId);
+        assertEquals(device(1), cb.cancelled.get(0));
+        // The slot is held until the stack reports the cancel
+        assertEquals(1, cb.started.size());
+        queue.onBondStateChanged(device(1), BluetoothDevice.BOND_NONE);
+        assertEquals(2, cb.started.size());
+        assertEquals(1, queue.getFailedCount());
+    }
+
+    @SmallTest
+    public void testRemoveAndRefusedBond() {
+        FakeCallbacks cb = new FakeCallbacks();
+        BondQueue queue = new BondQueue(cb, 1, BondQueue.DEFAULT_BOND_TIMEOUT_MS);
+        queue.enqueue(device(1), 0, BondQueue.PRIORITY_NORMAL);
+        queue.enqueue(device(2), 0, BondQueue.PRIORITY_NORMAL);
+        assertFalse(queue.remove(device(1)));
+        assertTrue(queue.remove(device(2)));
+
+        cb.accept = false;
+        queue.onBondStateChanged(device(1), BluetoothDevice.BOND_BONDED);
+        assertTrue(queue.enqueue(device(3), 0, BondQueue.PRIORITY_NORMAL));
+        assertFalse(queue.isInFlight(device(3)));
+        assertEquals(1, queue.getFailedCount());
+    }
+}
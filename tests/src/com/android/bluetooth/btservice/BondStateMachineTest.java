@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.content.Intent;
+import android.os.PowerManager;
+import android.os.UserHandle;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.bluetooth.util.FakeNativeStack;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs {@link BondStateMachine} against {@link FakeBondNative}, with the
+ * default of one bond at a time.
+ */
+public class BondStateMachineTest extends AndroidTestCase {
+    private static final long TIMEOUT_MS = 5000;
+    private static final int TRANSPORT_AUTO = 0;
+
+    /* Keeps the bond state intents instead of sending them */
+    private static class TestAdapterService extends AdapterService {
+        final ArrayList<Intent> mIntents = new ArrayList<Intent>();
+
+        TestAdapterService(Context context) {
+            attachBaseContext(context);
+        }
+
+        @Override
+        public void sendBroadcastAsUser(Intent intent, UserHandle user,
+                String receiverPermission) {
+            synchronized (mIntents) {
+                mIntents.add(intent);
+            }
+        }
+
+        /* The bond states of the device, as previous then new state pairs */
+        ArrayList<Integer> getStates(BluetoothDevice device) {
+            ArrayList<Integer> states = new ArrayList<Integer>();
+            synchronized (mIntents) {
+                for (Intent intent : mIntents) {
+                    if (!device.equals(intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE))) {
+                        continue;
+                    }
+                    states.add(intent.getIntExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE, -1));
+                    states.add(intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, -1));
+                }
+            }
+            return states;
+        }
+
+        int getReason(BluetoothDevice device, int state) {
+            synchronized (mIntents) {
+                for (Intent intent : mIntents) {
+                    if (device.equals(intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE))
+                            && intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, -1)
+                                    == state) {
+                        return intent.getIntExtra(BluetoothDevice.EXTRA_REASON, -1);
+                    }
+                }
+            }
+            return -1;
+        }
+    }
+
+    private TestAdapterService mService;
+    private AdapterProperties mAdapterProperties;
+    private RemoteDevices mRemoteDevices;
+    private BondStateMachine mBondStateMachine;
+    private FakeBondNative mStack;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        FakeBondNative.INSTALLER.install();
+        PowerManager pm = (PowerManager) getContext().getSystemService(Context.POWER_SERVICE);
+        mService = new TestAdapterService(getContext());
+        mAdapterProperties = new AdapterProperties(mService);
+        mRemoteDevices = new RemoteDevices(pm, mService);
+        mAdapterProperties.init(mRemoteDevices);
+        mBondStateMachine = BondStateMachine.make(pm, mService, mAdapterProperties,
+                mRemoteDevices);
+        mStack = FakeBondNative.INSTALLER.getLast();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBondStateMachine.doQuit();
+        mBondStateMachine.cleanup();
+        mAdapterProperties.cleanup();
+        mRemoteDevices.cleanup();
+        mStack.quit();
+        FakeBondNative.INSTALLER.uninstall();
+        super.tearDown();
+    }
+
+    private static BluetoothDevice device(int index) {
+        return BluetoothAdapter.getDefaultAdapter().getRemoteDevice(
+                FakeNativeStack.addressString(index));
+    }
+
+    private void send(int what, BluetoothDevice device) {
+        mBondStateMachine.sendMessage(mBondStateMachine.obtainMessage(what,
+                TRANSPORT_AUTO, BondQueue.PRIORITY_NORMAL, device));
+    }
+
+    /* Wait for the state machine, the callbacks of the fake, then the state machine again */
+    private void settle() throws InterruptedException {
+        waitForStateMachine();
+        assertTrue(mStack.drain(TIMEOUT_MS));
+        waitForStateMachine();
+    }
+
+    private void waitForStateMachine() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        mBondStateMachine.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    private static ArrayList<Integer> states(int... states) {
+        ArrayList<Integer> list = new ArrayList<Integer>();
+        for (int state : states) list.add(state);
+        return list;
+    }
+
+    @SmallTest
+    public void testQueuedBondIsReportedBonding() throws Exception {
+        send(BondStateMachine.CREATE_BOND, device(1));
+        send(BondStateMachine.CREATE_BOND, device(2));
+        settle();
+
+        assertEquals(1, mStack.getCallCount("createBond"));
+        assertEquals(states(BluetoothDevice.BOND_NONE, BluetoothDevice.BOND_BONDING),
+                mService.getStates(device(1)));
+        assertEquals(states(BluetoothDevice.BOND_NONE, BluetoothDevice.BOND_BONDING),
+                mService.getStates(device(2)));
+
+        // The second bond starts once the first one completes, without a
+        // second BONDING intent
+        mStack.injectBondState(FakeNativeStack.address(1), AbstractionLayer.BT_STATUS_SUCCESS,
+                BondStateMachine.BOND_STATE_BONDED);
+        settle();
+        settle();
+        assertEquals(2, mStack.getCallCount("createBond"));
+        assertEquals(states(BluetoothDevice.BOND_NONE, BluetoothDevice.BOND_BONDING,
+                BluetoothDevice.BOND_BONDING, BluetoothDevice.BOND_BONDED),
+                mService.getStates(device(1)));
+        assertEquals(states(BluetoothDevice.BOND_NONE, BluetoothDevice.BOND_BONDING),
+                mService.getStates(device(2)));
+    }
+
+    @SmallTest
+    public void testCancelQueuedBond() throws Exception {
+        send(BondStateMachine.CREATE_BOND, device(1));
+        send(BondStateMachine.CREATE_BOND, device(2));
+        send(BondStateMachine.CANCEL_BOND, device(2));
+        settle();
+
+        assertEquals(0, mStack.getCallCount("cancelBond"));
+        assertEquals(states(BluetoothDevice.BOND_NONE, BluetoothDevice.BOND_BONDING,
+                BluetoothDevice.BOND_BONDING, BluetoothDevice.BOND_NONE),
+                mService.getStates(device(2)));
+        assertEquals(BluetoothDevice.UNBOND_REASON_AUTH_CANCELED,
+                mService.getReason(device(2), BluetoothDevice.BOND_NONE));
+
+        // The cancelled bond is never started
+        mStack.injectBondState(FakeNativeStack.address(1), AbstractionLayer.BT_STATUS_SUCCESS,
+                BondStateMachine.BOND_STATE_BONDED);
+        settle();
+        assertEquals(1, mStack.getCallCount("createBond"));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.bluetooth.BluetoothProfile;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for {@link EnergyRecorder}.
+ */
+public class EnergyRecorderTest extends AndroidTestCase {
+    private static final int STATE_ACTIVE = 1;
+    private static final int UID_A = 10001;
+    private static final int UID_B = 10002;
+
+    private static final int[] NO_PROFILES = new int[0];
+
+    @SmallTest
+    public void testSplitsAcrossProfilesAndScans() {
+        EnergyRecorder recorder = new EnergyRecorder(4);
+        recorder.setScanUids(new int[] { UID_A });
+        recorder.record(STATE_ACTIVE, 10, 10, 10, 300,
+                new int[] { BluetoothProfile.HEADSET, BluetoothProfile.A2DP }, false);
+
+        assertEquals(100, recorder.getProfileEnergy(BluetoothProfile.HEADSET));
+        assertEquals(100, recorder.getProfileEnergy(BluetoothProfile.A2DP));
+        assertEquals(100, recorder.getScanEnergy(UID_A));
+        assertEquals(0, recorder.getProfileEnergy(BluetoothProfile.HEALTH));
+    }
+
+    @SmallTest
+    public void testDiscoveryTakesAShare() {
+        EnergyRecorder recorder = new EnergyRecorder(4);
+        recorder.setScanUids(new int[] { UID_A, UID_B });
+        recorder.record(STATE_ACTIVE, 10, 10, 10, 100, NO_PROFILES, true);
+
+        // 100 / 3 each, the remainder is unattributed
+        assertEquals(33, recorder.getScanEnergy(UID_A));
+        assertEquals(33, recorder.getScanEnergy(UID_B));
+    }
+
+    @SmallTest
+    public void testAccumulatesByUid() {
+        EnergyRecorder recorder = new EnergyRecorder(4);
+        // The same app runs two scans
+        recorder.setScanUids(new int[] { UID_A, UID_A });
+        recorder.record(STATE_ACTIVE, 10, 10, 10, 100, NO_PROFILES, false);
+        recorder.setScanUids(new int[] { UID_B });
+        recorder.record(STATE_ACTIVE, 10, 10, 10, 40, NO_PROFILES, false);
+
+        assertEquals(100, recorder.getScanEnergy(UID_A));
+        assertEquals(40, recorder.getScanEnergy(UID_B));
+    }
+
+    @SmallTest
+    public void testTotalsOutliveTheRingBuffer() {
+        EnergyRecorder recorder = new EnergyRecorder(2);
+        int[] profiles = new int[] { BluetoothProfile.HEADSET };
+        for (int i = 0; i < 5; i++) {
+            recorder.record(STATE_ACTIVE, 10, 10, 10, 10, profiles, false);
+        }
+        assertEquals(50, recorder.getProfileEnergy(BluetoothProfile.HEADSET));
+    }
+
+    @SmallTest
+    public void testScanUidsAreCopied() {
+        EnergyRecorder recorder = new EnergyRecorder(4);
+        int[] uids = new int[] { UID_A };
+        recorder.setScanUids(uids);
+        uids[0] = UID_B;
+        recorder.record(STATE_ACTIVE, 10, 10, 10, 10, NO_PROFILES, false);
+
+        assertEquals(10, recorder.getScanEnergy(UID_A));
+        assertEquals(0, recorder.getScanEnergy(UID_B));
+    }
+}
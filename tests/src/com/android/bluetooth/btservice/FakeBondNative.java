@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import com.android.bluetooth.util.FakeNativeStack;
+import com.android.bluetooth.util.NativeInterfaceFactory;
+
+/**
+ * Fake bonding stack: a started bond is reported BONDING, it completes when
+ * the test injects its new state.
+ */
+class FakeBondNative extends FakeNativeStack implements BondNativeInterface {
+    static final Installer<BondStateMachine, BondNativeInterface, FakeBondNative> INSTALLER =
+            new Installer<BondStateMachine, BondNativeInterface, FakeBondNative>() {
+                @Override
+                protected FakeBondNative newFake(BondStateMachine owner) {
+                    return new FakeBondNative(owner);
+                }
+
+                @Override
+                protected void setFactory(
+                        NativeInterfaceFactory<BondStateMachine, BondNativeInterface> factory) {
+                    BondStateMachine.setNativeInterfaceFactory(factory);
+                }
+            };
+
+    private final BondStateMachine mBondStateMachine;
+
+    FakeBondNative(BondStateMachine bondStateMachine) {
+        super("FakeBondNative");
+        mBondStateMachine = bondStateMachine;
+    }
+
+    void injectBondState(final byte[] address, final int status, final int state) {
+        callback(new Runnable() {
+            @Override
+            public void run() {
+                mBondStateMachine.bondStateChangeCallback(status, address, state);
+            }
+        });
+    }
+
+    @Override
+    public boolean createBondNative(byte[] address, int transport) {
+        called("createBond");
+        injectBondState(address, AbstractionLayer.BT_STATUS_SUCCESS,
+                BondStateMachine.BOND_STATE_BONDING);
+        return true;
+    }
+
+    @Override
+    public boolean removeBondNative(byte[] address) {
+        called("removeBond");
+        injectBondState(address, AbstractionLayer.BT_STATUS_SUCCESS,
+                BondStateMachine.BOND_STATE_NONE);
+        return true;
+    }
+
+    @Override
+    public boolean cancelBondNative(byte[] address) {
+        called("cancelBond");
+        injectBondState(address, AbstractionLayer.BT_STATUS_AUTH_FAILURE,
+                BondStateMachine.BOND_STATE_NONE);
+        return true;
+    }
+}
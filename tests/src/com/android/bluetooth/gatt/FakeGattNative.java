@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.android.bluetooth.util.FakeNativeStack;
+import com.android.bluetooth.util.NativeInterfaceFactory;
+
+/**
+ * Fake GATT stack: apps are registered with increasing client ids, the other
+ * calls are only counted. Scan results are injected by the test.
+ */
+class FakeGattNative extends FakeNativeStack implements GattNativeInterface {
+    private static final String TAG = "FakeGattNative";
+
+    static final Installer<GattService, GattNativeInterface, FakeGattNative> INSTALLER =
+            new Installer<GattService, GattNativeInterface, FakeGattNative>() {
+                @Override
+                protected FakeGattNative newFake(GattService owner) {
+                    return new FakeGattNative(owner);
+                }
+
+                @Override
+                protected void setFactory(
+                        NativeInterfaceFactory<GattService, GattNativeInterface> factory) {
+                    GattService.setNativeInterfaceFactory(factory);
+                }
+            };
+
+    private final GattService mService;
+    private int mNextClientIf = 1;
+
+    FakeGattNative(GattService service) {
+        super("FakeGattNative");
+        mService = service;
+    }
+
+    void injectScanResult(final String address, final int rssi, final byte[] advData) {
+        callback(new Runnable() {
+            @Override
+            public void run() {
+                mService.onScanResult(address, rssi, advData);
+            }
+        });
+    }
+
+    @Override
+    public void initializeNative() {
+        called("initialize");
+    }
+
+    @Override
+    public void cleanupNative() {
+        called("cleanup");
+        quit();
+    }
+
+    @Override
+    public void gattClientRegisterAppNative(final long app_uuid_lsb, final long app_uuid_msb) {
+        called("gattClientRegisterApp");
+        final int clientIf = mNextClientIf++;
+        callback(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mService.onClientRegistered(0, clientIf, app_uuid_lsb, app_uuid_msb);
+                } catch (RemoteException e) {
+                    Log.e(TAG, "onClientRegistered", e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void gattTestNative(int command, long uuid1_lsb, long uuid1_msb, String bda1, int p1,
+            int p2, int p3, int p4, int p5) {
+        called("gattTest");
+    }
+
+    @Override
+    public int gattClientGetDeviceTypeNative(String address) {
+        called("gattClientGetDeviceType");
+        return 0;
+    }
+
+    @Override
+    public void gattClientUnregisterAppNative(int clientIf) {
+        called("gattClientUnregisterApp");
+    }
+
+    @Override
+    public void gattClientConnectNative(int clientIf, String address, boolean isDirect,
+            int transport) {
+        called("gattClientConnect");
+    }
+
+    @Override
+    public void gattClientDisconnectNative(int clientIf, String address, int conn_id) {
+        called("gattClientDisconnect");
+    }
+
+    @Override
+    public void gattClientRefreshNative(int clientIf, String address) {
+        called("gattClientRefresh");
+    }
+
+    @Override
+    public void gattClientSearchServiceNative(int conn_id, boolean search_all,
+            long service_uuid_lsb, long service_uuid_msb) {
+        called("gattClientSearchService");
+    }
+
+    @Override
+    public void gattClientGetCharacteristicNative(int conn_id, int service_type,
+            int service_id_inst_id, long service_id_uuid_lsb, long service_id_uuid_msb,
+            int char_id_inst_id, long char_id_uuid_lsb, long char_id_uuid_msb) {
+        called("gattClientGetCharacteristic");
+    }
+
+    @Override
+    public void gattClientGetDescriptorNative(int conn_id, int service_type, int service_id_inst_id,
+            long service_id_uuid_lsb, long service_id_uuid_msb, int char_id_inst_id,
+            long char_id_uuid_lsb, long char_id_uuid_msb, int descr_id_inst_id,
+            long descr_id_uuid_lsb, long descr_id_uuid_msb) {
+        called("gattClientGetDescriptor");
+    }
+
+    @Override
+    public void gattClientGetIncludedServiceNative(int conn_id, int service_type,
+            int service_id_inst_id, long service_id_uuid_lsb, long service_id_uuid_msb,
+            int incl_service_id_inst_id, int incl_service_type, long incl_service_id_uuid_lsb,
+            long incl_service_id_uuid_msb) {
+        called("gattClientGetIncludedService");
+    }
+
+    @Override
+    public void gattClientReadCharacteristicNative(int conn_id, int service_type,
+            int service_id_inst_id, long service_id_uuid_lsb, long service_id_uuid_msb,
+            int char_id_inst_id, long char_id_uuid_lsb, long char_id_uuid_msb, int authReq) {
+        called("gattClientReadCharacteristic");
+    }
+
+    @Override
+    public void gattClientReadDescriptorNative(int conn_id, int service_type,
+            int service_id_inst_id, long service_id_uuid_lsb, long service_id_uuid_msb,
+            int char_id_inst_id, long char_id_uuid_lsb, long char_id_uuid_msb, int descr_id_inst_id,
+            long descr_id_uuid_lsb, long descr_id_uuid_msb, int authReq) {
+        called("gattClientReadDescriptor");
+    }
+
+    @Override
+    public void gattClientWriteCharacteristicNative(int conn_id, int service_type,
+            int service_id_inst_id, long service_id_uuid_lsb, long service_id_uuid_msb,
+            int char_id_inst_id, long char_id_uuid_lsb, long char_id_uuid_msb, int write_type,
+            int auth_req, byte[] value) {
+        called("gattClientWriteCharacteristic");
+    }
+
+    @Override
+    public void gattClientWriteDescriptorNative(int conn_id, int service_type,
+            int service_id_inst_id, long service_id_uuid_lsb, long service_id_uuid_msb,
+            int char_id_inst_id, long char_id_uuid_lsb, long char_id_uuid_msb, int descr_id_inst_id,
+            long descr_id_uuid_lsb, long descr_id_uuid_msb, int write_type, int auth_req,
+            byte[] value) {
+        called("gattClientWriteDescriptor");
+    }
+
+    @Override
+    public void gattClientExecuteWriteNative(int conn_id, boolean execute) {
+        called("gattClientExecuteWrite");
+    }
+
+    @Override
+    public void gattClientRegisterForNotificationsNative(int clientIf, String address,
+            int service_type, int service_id_inst_id, long service_id_uuid_lsb,
+            long service_id_uuid_msb, int char_id_inst_id, long char_id_uuid_lsb,
+            long char_id_uuid_msb, boolean enable) {
+        called("gattClientRegisterForNotifications");
+    }
+
+    @Override
+    public void gattClientReadRemoteRssiNative(int clientIf, String address) {
+        called("gattClientReadRemoteRssi");
+    }
+
+    @Override
+    public void gattClientConfigureMTUNative(int conn_id, int mtu) {
+        called("gattClientConfigureMTU");
+    }
+
+    @Override
+    public void gattConnectionParameterUpdateNative(int client_if, String address, int minInterval,
+            int maxInterval, int latency, int timeout) {
+        called("gattConnectionParameterUpdate");
+    }
+
+    @Override
+    public void gattServerRegisterAppNative(long app_uuid_lsb, long app_uuid_msb) {
+        called("gattServerRegisterApp");
+    }
+
+    @Override
+    public void gattServerUnregisterAppNative(int serverIf) {
+        called("gattServerUnregisterApp");
+    }
+
+    @Override
+    public void gattServerConnectNative(int server_if, String address, boolean is_direct,
+            int transport) {
+        called("gattServerConnect");
+    }
+
+    @Override
+    public void gattServerDisconnectNative(int serverIf, String address, int conn_id) {
+        called("gattServerDisconnect");
+    }
+
+    @Override
+    public void gattServerAddServiceNative(int server_if, int service_type, int service_id_inst_id,
+            long service_id_uuid_lsb, long service_id_uuid_msb, int num_handles) {
+        called("gattServerAddService");
+    }
+
+    @Override
+    public void gattServerAddIncludedServiceNative(int server_if, int svc_handle,
+            int included_svc_handle) {
+        called("gattServerAddIncludedService");
+    }
+
+    @Override
+    public void gattServerAddCharacteristicNative(int server_if, int svc_handle, long char_uuid_lsb,
+            long char_uuid_msb, int properties, int permissions) {
+        called("gattServerAddCharacteristic");
+    }
+
+    @Override
+    public void gattServerAddDescriptorNative(int server_if, int svc_handle, long desc_uuid_lsb,
+            long desc_uuid_msb, int permissions) {
+        called("gattServerAddDescriptor");
+    }
+
+    @Override
+    public void gattServerStartServiceNative(int server_if, int svc_handle, int transport) {
+        called("gattServerStartService");
+    }
+
+    @Override
+    public void gattServerStopServiceNative(int server_if, int svc_handle) {
+        called("gattServerStopService");
+    }
+
+    @Override
+    public void gattServerDeleteServiceNative(int server_if, int svc_handle) {
+        called("gattServerDeleteService");
+    }
+
+    @Override
+    public void gattServerSendIndicationNative(int server_if, int attr_handle, int conn_id,
+            byte[] val) {
+        called("gattServerSendIndication");
+    }
+
+    @Override
+    public void gattServerSendNotificationNative(int server_if, int attr_handle, int conn_id,
+            byte[] val) {
+        called("gattServerSendNotification");
+    }
+
+    @Override
+    public void gattServerSendResponseNative(int server_if, int conn_id, int trans_id, int status,
+            int handle, int offset, byte[] val, int auth_req) {
+        called("gattServerSendResponse");
+    }
+}
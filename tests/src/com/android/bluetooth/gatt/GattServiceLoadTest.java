@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.IBluetoothGattCallback;
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.bluetooth.util.FakeNativeStack;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs {@link GattService} against {@link FakeGattNative}.
+ */
+public class GattServiceLoadTest extends AndroidTestCase {
+    private static final String TAG = "GattServiceLoadTest";
+    private static final int RESULTS = 1000;
+    // Scan results per second of a crowded place
+    private static final int RATE = 500;
+    private static final int DEVICES = 100;
+    // Flags, LE general discoverable
+    private static final byte[] ADV_DATA = {0x02, 0x01, 0x06};
+
+    private static class TestGattService extends GattService {
+        TestGattService(Context context) {
+            attachBaseContext(context);
+            mAdapter = BluetoothAdapter.getDefaultAdapter();
+        }
+    }
+
+    /* The callback of an app, counts the scan results it is given */
+    private static class AppCallback implements InvocationHandler {
+        final Binder mBinder = new Binder();
+        final CountDownLatch mRegistered = new CountDownLatch(1);
+        final AtomicInteger mScanResults = new AtomicInteger();
+        volatile int mClientIf;
+
+        IBluetoothGattCallback create() {
+            return (IBluetoothGattCallback) Proxy.newProxyInstance(
+                    IBluetoothGattCallback.class.getClassLoader(),
+                    new Class<?>[] {IBluetoothGattCallback.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                return method.invoke(this, args);
+            }
+            String name = method.getName();
+            if ("asBinder".equals(name)) {
+                return mBinder;
+            } else if ("onClientRegistered".equals(name)) {
+                mClientIf = (Integer) args[1];
+                mRegistered.countDown();
+            } else if ("onScanResult".equals(name)) {
+                mScanResults.incrementAndGet();
+            }
+            return null;
+        }
+    }
+
+    private TestGattService mService;
+    private FakeGattNative mStack;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        FakeGattNative.INSTALLER.install();
+        // Created on the main looper, as the service is
+        final CountDownLatch created = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                mService = new TestGattService(getContext());
+                created.countDown();
+            }
+        });
+        assertTrue(created.await(5, TimeUnit.SECONDS));
+        assertTrue(mService.start());
+        mStack = FakeGattNative.INSTALLER.getLast();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mService.stop();
+        mService.cleanup();
+        FakeGattNative.INSTALLER.uninstall();
+        super.tearDown();
+    }
+
+    private AppCallback registerApp() throws InterruptedException {
+        AppCallback callback = new AppCallback();
+        mService.registerClient(UUID.randomUUID(), callback.create());
+        assertTrue(callback.mRegistered.await(5, TimeUnit.SECONDS));
+        return callback;
+    }
+
+    @SmallTest
+    public void testRegisteredThroughFake() throws Exception {
+        assertEquals(1, mStack.getCallCount("initialize"));
+        AppCallback callback = registerApp();
+        assertEquals(1, mStack.getCallCount("gattClientRegisterApp"));
+        assertTrue(callback.mClientIf > 0);
+    }
+
+    @LargeTest
+    public void testScanResultReplay() throws Exception {
+        AppCallback callback = registerApp();
+        // Scans are started with their own native calls, queue the client directly
+        mService.getScanManager().getRegularScanQueue().add(new ScanClient(callback.mClientIf,
+                false, new ScanSettings.Builder().build(), null));
+
+        double rate = mStack.replay(RESULTS, RATE, new FakeNativeStack.Event() {
+            @Override
+            public void fire(int index) {
+                mStack.injectScanResult(FakeNativeStack.addressString(index % DEVICES),
+                        -60 - index % 20, ADV_DATA);
+            }
+        });
+        assertTrue(mStack.drain(30000));
+        Log.i(TAG, "Replayed " + RESULTS + " scan results at " + (int) rate + "/s, lag (us) "
+                + mStack.getReplayLag().summary());
+
+        assertEquals(RESULTS, callback.mScanResults.get());
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hfp;
+
+import com.android.bluetooth.util.FakeNativeStack;
+import com.android.bluetooth.util.NativeInterfaceFactory;
+
+/**
+ * Fake hands-free AG stack: connections succeed at once, every response
+ * sent to the hands-free unit is accepted and counted.
+ */
+class FakeHeadsetNative extends FakeNativeStack implements HeadsetNativeInterface {
+    static final Installer<HeadsetStateMachine, HeadsetNativeInterface, FakeHeadsetNative>
+            INSTALLER = new Installer<HeadsetStateMachine, HeadsetNativeInterface,
+                    FakeHeadsetNative>() {
+                @Override
+                protected FakeHeadsetNative newFake(HeadsetStateMachine owner) {
+                    return new FakeHeadsetNative(owner);
+                }
+
+                @Override
+                protected void setFactory(NativeInterfaceFactory<HeadsetStateMachine,
+                        HeadsetNativeInterface> factory) {
+                    HeadsetStateMachine.setNativeInterfaceFactory(factory);
+                }
+            };
+
+    private final HeadsetStateMachine mStateMachine;
+
+    FakeHeadsetNative(HeadsetStateMachine stateMachine) {
+        super("FakeHeadsetNative");
+        mStateMachine = stateMachine;
+    }
+
+    void injectConnectionState(final byte[] address, final int state) {
+        callback(new Runnable() {
+            @Override
+            public void run() {
+                mStateMachine.onConnectionStateChanged(state, address);
+            }
+        });
+    }
+
+    void injectAtCind(final byte[] address) {
+        callback(new Runnable() {
+            @Override
+            public void run() {
+                mStateMachine.onAtCind(address);
+            }
+        });
+    }
+
+    void injectAtCops(final byte[] address) {
+        callback(new Runnable() {
+            @Override
+            public void run() {
+                mStateMachine.onAtCops(address);
+            }
+        });
+    }
+
+    @Override
+    public boolean atResponseCodeNative(int responseCode, int errorCode, byte[] address) {
+        called("atResponseCode");
+        return true;
+    }
+
+    @Override
+    public boolean atResponseStringNative(String responseString, byte[] address) {
+        called("atResponseString");
+        return true;
+    }
+
+    @Override
+    public void initializeNative(int max_hf_clients) {
+        called("initialize");
+    }
+
+    @Override
+    public void initializeFeaturesNative(int feature_bitmask) {
+        called("initializeFeatures");
+    }
+
+    @Override
+    public void cleanupNative() {
+        called("cleanup");
+        quit();
+    }
+
+    @Override
+    public boolean connectHfpNative(byte[] address) {
+        called("connectHfp");
+        injectConnectionState(address, HeadsetHalConstants.CONNECTION_STATE_CONNECTED);
+        return true;
+    }
+
+    @Override
+    public boolean disconnectHfpNative(byte[] address) {
+        called("disconnectHfp");
+        injectConnectionState(address, HeadsetHalConstants.CONNECTION_STATE_DISCONNECTED);
+        return true;
+    }
+
+    @Override
+    public boolean connectAudioNative(byte[] address) {
+        called("connectAudio");
+        return true;
+    }
+
+    @Override
+    public boolean disconnectAudioNative(byte[] address) {
+        called("disconnectAudio");
+        return true;
+    }
+
+    @Override
+    public boolean startVoiceRecognitionNative(byte[] address) {
+        called("startVoiceRecognition");
+        return true;
+    }
+
+    @Override
+    public boolean stopVoiceRecognitionNative(byte[] address) {
+        called("stopVoiceRecognition");
+        return true;
+    }
+
+    @Override
+    public boolean setVolumeNative(int volumeType, int volume, byte[] address) {
+        called("setVolume");
+        return true;
+    }
+
+    @Override
+    public boolean cindResponseNative(int service, int numActive, int numHeld, int callState,
+            int signal, int roam, int batteryCharge, byte[] address) {
+        called("cindResponse");
+        return true;
+    }
+
+    @Override
+    public boolean notifyDeviceStatusNative(int networkState, int serviceType, int signal,
+            int batteryCharge) {
+        called("notifyDeviceStatus");
+        return true;
+    }
+
+    @Override
+    public boolean clccResponseNative(int index, int dir, int status, int mode, boolean mpty,
+            String number, int type, byte[] address) {
+        called("clccResponse");
+        return true;
+    }
+
+    @Override
+    public boolean copsResponseNative(String operatorName, byte[] address) {
+        called("copsResponse");
+        return true;
+    }
+
+    @Override
+    public boolean phoneStateChangeNative(int numActive, int numHeld, int callState,
+            String number, int type) {
+        called("phoneStateChange");
+        return true;
+    }
+
+    @Override
+    public boolean configureWBSNative(byte[] address, int condec_config) {
+        called("configureWBS");
+        return true;
+    }
+
+    @Override
+    public int getRemoteFeaturesNative(byte[] address) {
+        called("getRemoteFeatures");
+        return 0;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hfp;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.content.Intent;
+import android.os.UserHandle;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.bluetooth.util.FakeNativeStack;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs {@link HeadsetStateMachine} against {@link FakeHeadsetNative}.
+ */
+public class HeadsetStateMachineLoadTest extends AndroidTestCase {
+    private static final String TAG = "HeadsetStateMachineLoadTest";
+    private static final int COMMANDS = 1000;
+    // AT commands per second of a hands-free unit polling the indicators
+    private static final int RATE = 200;
+
+    private static class TestHeadsetService extends HeadsetService {
+        TestHeadsetService(Context context) {
+            attachBaseContext(context);
+        }
+
+        @Override
+        public void sendBroadcastAsUser(Intent intent, UserHandle user,
+                String receiverPermission) {
+            // Not sent from tests
+        }
+    }
+
+    private TestHeadsetService mService;
+    private HeadsetStateMachine mStateMachine;
+    private FakeHeadsetNative mStack;
+    private BluetoothDevice mDevice;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        FakeHeadsetNative.INSTALLER.install();
+        mService = new TestHeadsetService(getContext());
+        mStateMachine = HeadsetStateMachine.make(mService);
+        mStack = FakeHeadsetNative.INSTALLER.getLast();
+        mDevice = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(
+                FakeNativeStack.addressString(0));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mStateMachine.doQuit();
+        mStateMachine.cleanup();
+        FakeHeadsetNative.INSTALLER.uninstall();
+        super.tearDown();
+    }
+
+    private void waitForStateMachine() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        mStateMachine.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+    }
+
+    /* Wait for the messages of the state machine and the callbacks they cause */
+    private void settle() throws InterruptedException {
+        waitForStateMachine();
+        assertTrue(mStack.drain(30000));
+        waitForStateMachine();
+    }
+
+    private void connect() throws InterruptedException {
+        mStateMachine.sendMessage(HeadsetStateMachine.CONNECT, mDevice);
+        settle();
+        assertEquals(1, mStack.getCallCount("connectHfp"));
+        assertEquals(BluetoothProfile.STATE_CONNECTED, mStateMachine.getConnectionState(mDevice));
+    }
+
+    @SmallTest
+    public void testConnectThroughFake() throws Exception {
+        assertEquals(1, mStack.getCallCount("initialize"));
+        connect();
+    }
+
+    @LargeTest
+    public void testAtCommandReplay() throws Exception {
+        connect();
+        final byte[] address = FakeNativeStack.address(0);
+        double rate = mStack.replay(COMMANDS, RATE, new FakeNativeStack.Event() {
+            @Override
+            public void fire(int index) {
+                if (index % 2 == 0) {
+                    mStack.injectAtCind(address);
+                } else {
+                    mStack.injectAtCops(address);
+                }
+            }
+        });
+        settle();
+        Log.i(TAG, "Replayed " + COMMANDS + " AT commands at " + (int) rate + "/s, lag (us) "
+                + mStack.getReplayLag().summary());
+
+        // Each command is answered once
+        assertEquals(COMMANDS / 2, mStack.getCallCount("cindResponse"));
+        assertEquals(COMMANDS / 2, mStack.getCallCount("copsResponse"));
+        assertEquals(0, mStack.getCallCount("atResponseCode"));
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hid;
+
+import com.android.bluetooth.util.FakeNativeStack;
+import com.android.bluetooth.util.NativeInterfaceFactory;
+
+/**
+ * Fake HID host stack: connections succeed, queries are answered with fixed
+ * values.
+ */
+class FakeHidNative extends FakeNativeStack implements HidNativeInterface {
+    static final Installer<HidService, HidNativeInterface, FakeHidNative> INSTALLER =
+            new Installer<HidService, HidNativeInterface, FakeHidNative>() {
+                @Override
+                protected FakeHidNative newFake(HidService owner) {
+                    return new FakeHidNative(owner);
+                }
+
+                @Override
+                protected void setFactory(
+                        NativeInterfaceFactory<HidService, HidNativeInterface> factory) {
+                    HidService.setNativeInterfaceFactory(factory);
+                }
+            };
+
+    private final HidService mService;
+
+    FakeHidNative(HidService service) {
+        super("FakeHidNative");
+        mService = service;
+    }
+
+    void injectConnectionState(final byte[] address, final int state) {
+        callback(new Runnable() {
+            @Override
+            public void run() {
+                mService.onConnectStateChanged(address, state);
+            }
+        });
+    }
+
+    @Override
+    public void initializeNative() {
+        called("initialize");
+    }
+
+    @Override
+    public void cleanupNative() {
+        called("cleanup");
+        quit();
+    }
+
+    @Override
+    public boolean connectHidNative(byte[] btAddress) {
+        called("connect");
+        injectConnectionState(btAddress, HidService.CONN_STATE_CONNECTING);
+        injectConnectionState(btAddress, HidService.CONN_STATE_CONNECTED);
+        return true;
+    }
+
+    @Override
+    public boolean disconnectHidNative(byte[] btAddress) {
+        called("disconnect");
+        injectConnectionState(btAddress, HidService.CONN_STATE_DISCONNECTED);
+        return true;
+    }
+
+    @Override
+    public boolean getProtocolModeNative(final byte[] btAddress) {
+        called("getProtocolMode");
+        callback(new Runnable() {
+            @Override
+            public void run() {
+                mService.onGetProtocolMode(btAddress, 0);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean virtualUnPlugNative(final byte[] btAddress) {
+        called("virtualUnPlug");
+        callback(new Runnable() {
+            @Override
+            public void run() {
+                mService.onVirtualUnplug(btAddress, 0);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean setProtocolModeNative(byte[] btAddress, byte protocolMode) {
+        called("setProtocolMode");
+        return true;
+    }
+
+    @Override
+    public boolean getReportNative(final byte[] btAddress, byte reportType, final byte reportId,
+            int bufferSize) {
+        called("getReport");
+        callback(new Runnable() {
+            @Override
+            public void run() {
+                byte[] report = {reportId, 0, 0, 0};
+                mService.onGetReport(btAddress, report, report.length);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean setReportNative(final byte[] btAddress, byte reportType, String report) {
+        called("setReport");
+        callback(new Runnable() {
+            @Override
+            public void run() {
+                mService.onHandshake(btAddress, 0);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean sendDataNative(byte[] btAddress, String report) {
+        called("sendData");
+        return true;
+    }
+
+    @Override
+    public boolean setIdleTimeNative(byte[] btAddress, byte idleTime) {
+        called("setIdleTime");
+        return true;
+    }
+
+    @Override
+    public boolean getIdleTimeNative(final byte[] btAddress) {
+        called("getIdleTime");
+        callback(new Runnable() {
+            @Override
+            public void run() {
+                mService.onGetIdleTime(btAddress, 0);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean setPriorityNative(byte[] btAddress, int priority) {
+        called("setPriority");
+        return true;
+    }
+}
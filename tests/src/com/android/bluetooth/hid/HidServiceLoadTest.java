@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hid;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.bluetooth.util.FakeNativeStack;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs {@link HidService} against {@link FakeHidNative}.
+ */
+public class HidServiceLoadTest extends AndroidTestCase {
+    private static final String TAG = "HidServiceLoadTest";
+    private static final int DEVICES = 1000;
+
+    private static class TestHidService extends HidService {
+        TestHidService(Context context) {
+            attachBaseContext(context);
+            mAdapter = BluetoothAdapter.getDefaultAdapter();
+        }
+    }
+
+    private Handler mMainHandler;
+    private TestHidService mService;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        FakeHidNative.INSTALLER.install();
+        mMainHandler = new Handler(Looper.getMainLooper());
+        // The service handles its messages on the looper it is created on
+        final CountDownLatch created = new CountDownLatch(1);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mService = new TestHidService(getContext());
+                created.countDown();
+            }
+        });
+        assertTrue(created.await(5, TimeUnit.SECONDS));
+        assertTrue(mService.start());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mService.cleanup();
+        FakeHidNative.INSTALLER.uninstall();
+        super.tearDown();
+    }
+
+    private void waitForMainLooper() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+    }
+
+    @SmallTest
+    public void testInitializedThroughFake() {
+        FakeHidNative stack = FakeHidNative.INSTALLER.getLast();
+        assertNotNull(stack);
+        assertEquals(1, stack.getCallCount("initialize"));
+    }
+
+    @LargeTest
+    public void testConnectionStateReplay() throws Exception {
+        final FakeHidNative stack = FakeHidNative.INSTALLER.getLast();
+        double rate = stack.replay(DEVICES, 0, new FakeNativeStack.Event() {
+            @Override
+            public void fire(int index) {
+                mService.onConnectStateChanged(FakeNativeStack.address(index),
+                        HidService.CONN_STATE_CONNECTING);
+            }
+        });
+        waitForMainLooper();
+        Log.i(TAG, "Replayed " + DEVICES + " connection events at " + (int) rate + "/s");
+
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        for (int i = 0; i < DEVICES; i++) {
+            assertEquals(BluetoothProfile.STATE_CONNECTING, mService.getConnectionState(
+                    adapter.getRemoteDevice(FakeNativeStack.addressString(i))));
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Contacts;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for {@link BluetoothMapContactCache}.
+ */
+public class BluetoothMapContactCacheTest extends AndroidTestCase {
+
+    /** Knows one contact, for number 1234, and counts the queries. */
+    private static class ContactsProvider extends MockContentProvider {
+        int mLookups = 0;
+        int mEmailQueries = 0;
+        // Run during the next lookup
+        Runnable mOnLookup = null;
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            if (uri.getPath().startsWith(
+                    ContactsContract.CommonDataKinds.Email.CONTENT_URI.getPath())) {
+                mEmailQueries++;
+                MatrixCursor c = new MatrixCursor(projection);
+                c.addRow(new Object[] {"alice@example.com"});
+                return c;
+            }
+            mLookups++;
+            if (mOnLookup != null) {
+                mOnLookup.run();
+                mOnLookup = null;
+            }
+            MatrixCursor c = new MatrixCursor(new String[] {Contacts._ID, Contacts.DISPLAY_NAME});
+            if ("1234".equals(uri.getLastPathSegment())) {
+                c.addRow(new Object[] {"7", "Alice"});
+            }
+            return c;
+        }
+    }
+
+    private ContactsProvider mProvider;
+    private BluetoothMapContactCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new ContactsProvider();
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(ContactsContract.AUTHORITY, mProvider);
+        mCache = new BluetoothMapContactCache(resolver);
+    }
+
+    @SmallTest
+    public void testLookupsAreCached() {
+        assertEquals("Alice", mCache.getName("1234"));
+        assertEquals("Alice", mCache.getName("1234"));
+        assertEquals("", mCache.getName("5678"));
+        assertEquals("", mCache.getName("5678"));
+        assertEquals(2, mProvider.mLookups);
+
+        BluetoothMapContactCache.Contact contact = mCache.getContact("1234");
+        assertEquals("7", contact.id);
+        assertEquals("alice@example.com", mCache.getEmailAddresses(contact)[0]);
+        mCache.getEmailAddresses(contact);
+        assertEquals(1, mProvider.mEmailQueries);
+        assertNull(mCache.getEmailAddresses(mCache.getContact("5678")));
+        assertEquals(2, mProvider.mLookups);
+
+        assertEquals("", mCache.getName(null));
+        assertEquals(2, mProvider.mLookups);
+    }
+
+    @SmallTest
+    public void testClearAndEviction() {
+        mCache.getName("1234");
+        mCache.clear();
+        mCache.getName("1234");
+        assertEquals(2, mProvider.mLookups);
+
+        for (int i = 0; i < BluetoothMapContactCache.MAX_ENTRIES; i++) {
+            mCache.getName("9" + i);
+        }
+        // 1234 was the least recently used number
+        mCache.getName("1234");
+        assertEquals(3 + BluetoothMapContactCache.MAX_ENTRIES, mProvider.mLookups);
+    }
+
+    @SmallTest
+    public void testClearDuringLookup() {
+        mProvider.mOnLookup = new Runnable() {
+            @Override
+            public void run() {
+                // The contacts change while the number is looked up
+                mCache.clear();
+            }
+        };
+        assertEquals("Alice", mCache.getName("1234"));
+        assertEquals("Alice", mCache.getName("1234"));
+        assertEquals(2, mProvider.mLookups);
+        assertEquals("Alice", mCache.getName("1234"));
+        assertEquals(2, mProvider.mLookups);
+    }
+
+    @SmallTest
+    public void testSharedBySessions() {
+        BluetoothMapContactCache first = BluetoothMapContactCache.acquire(
+                getContext().getContentResolver());
+        BluetoothMapContactCache second = BluetoothMapContactCache.acquire(
+                getContext().getContentResolver());
+        assertSame(first, second);
+
+        BluetoothMapContactCache.release(first);
+        BluetoothMapContactCache.release(second);
+        // Dropped with its last session
+        BluetoothMapContactCache third = BluetoothMapContactCache.acquire(
+                getContext().getContentResolver());
+        assertNotSame(first, third);
+        BluetoothMapContactCache.release(third);
+    }
+}
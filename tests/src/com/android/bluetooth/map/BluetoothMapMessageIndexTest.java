@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+
+/**
+ * Tests for {@link BluetoothMapMessageIndex}.
+ */
+public class BluetoothMapMessageIndexTest extends AndroidTestCase {
+    private static final long LISTED = BluetoothMapMessageIndex.FLAG_LISTED;
+    private static final long READ = BluetoothMapMessageIndex.FLAG_READ;
+    private static final long DELETED = BluetoothMapMessageIndex.FLAG_DELETED;
+
+    @SmallTest
+    public void testPutGetRemove() {
+        BluetoothMapMessageIndex index = new BluetoothMapMessageIndex(false);
+        for (long id = 200; id > 0; id -= 2) {
+            index.put(id, BluetoothMapMessageIndex.entry(1, id * 1000, LISTED));
+        }
+        index.put(301, BluetoothMapMessageIndex.entry(2, 5, READ));
+        assertEquals(101, index.size());
+        assertEquals(301, index.getMaxId());
+
+        long entry = index.get(301);
+        assertEquals(2, BluetoothMapMessageIndex.getBox(entry));
+        assertEquals(5, BluetoothMapMessageIndex.getDate(entry));
+        assertTrue(BluetoothMapMessageIndex.hasFlag(entry, READ));
+        assertFalse(BluetoothMapMessageIndex.hasFlag(entry, DELETED));
+        assertEquals(BluetoothMapMessageIndex.NONE, index.get(3));
+
+        assertEquals(entry, index.remove(301));
+        assertEquals(BluetoothMapMessageIndex.NONE, index.remove(301));
+        assertEquals(200, index.getMaxId());
+        assertEquals(100, index.size());
+        assertEquals(2, index.getIds()[0]);
+    }
+
+    @SmallTest
+    public void testSmsCount() {
+        BluetoothMapMessageIndex index = new BluetoothMapMessageIndex(false);
+        index.put(1, BluetoothMapMessageIndex.entry(1, 1000, LISTED));
+        index.put(2, BluetoothMapMessageIndex.entry(1, 2000, LISTED | READ));
+        index.put(3, BluetoothMapMessageIndex.entry(1, 3000, LISTED | DELETED));
+        index.put(4, BluetoothMapMessageIndex.entry(5, 4000, LISTED));
+        index.put(5, BluetoothMapMessageIndex.entry(2, 5000, LISTED | READ));
+
+        assertEquals(2, index.count("inbox", -1, -1, -1, false));
+        assertEquals(1, index.count("INBOX", 0x01, -1, -1, false));
+        assertEquals(1, index.count("inbox", 0x02, -1, -1, false));
+        assertEquals(1, index.count("inbox", 0x03, -1, -1, false));
+        assertEquals(1, index.count("inbox", -1, 1500, 2500, false));
+        assertEquals(1, index.count("outbox", -1, -1, -1, false));
+        assertEquals(1, index.count("sent", -1, -1, -1, false));
+        assertEquals(0, index.count("draft", -1, -1, -1, false));
+        assertEquals(1, index.count("deleted", -1, -1, -1, false));
+        assertEquals(-1, index.count("unknown", -1, -1, -1, false));
+    }
+
+    @SmallTest
+    public void testMmsCount() {
+        BluetoothMapMessageIndex index = new BluetoothMapMessageIndex(true);
+        // MMS dates are in seconds, the period filter in milliseconds
+        index.put(1, BluetoothMapMessageIndex.entry(1, 1, LISTED));
+        index.put(2, BluetoothMapMessageIndex.entry(1, 2, 0));
+        index.put(3, BluetoothMapMessageIndex.entry(4, 3, LISTED));
+
+        assertEquals(1, index.count("inbox", -1, -1, -1, true));
+        assertEquals(2, index.count("inbox", -1, -1, -1, false));
+        assertEquals(1, index.count("inbox", -1, 2500, -1, false));
+        assertEquals(1, index.count("outbox", -1, -1, -1, true));
+    }
+
+    @SmallTest
+    public void testCountsFollowChanges() {
+        BluetoothMapMessageIndex index = new BluetoothMapMessageIndex(false);
+        index.put(1, BluetoothMapMessageIndex.entry(1, 1000, LISTED));
+        index.put(2, BluetoothMapMessageIndex.entry(1, 2000, LISTED));
+        assertEquals(2, index.count("inbox", 0x01, -1, -1, false));
+
+        // Read, then moved to the deleted folder
+        index.put(1, BluetoothMapMessageIndex.entry(1, 1000, LISTED | READ));
+        assertEquals(1, index.count("inbox", 0x01, -1, -1, false));
+        index.put(2, BluetoothMapMessageIndex.entry(1, 2000, LISTED | DELETED));
+        assertEquals(1, index.count("inbox", -1, -1, -1, false));
+        assertEquals(1, index.count("deleted", 0x01, -1, -1, false));
+
+        index.remove(2);
+        assertEquals(0, index.count("deleted", -1, -1, -1, false));
+        // The counts and the scan of a period filter agree
+        assertEquals(index.count("inbox", -1, -1, -1, false),
+                index.count("inbox", -1, 0, Long.MAX_VALUE, false));
+        index.clear();
+        assertEquals(0, index.count("inbox", -1, -1, -1, false));
+    }
+
+    private static void assertSummary(BluetoothMapMessageIndex index, long... expected) {
+        assertEquals(Arrays.toString(expected), Arrays.toString(index.getSummary()));
+    }
+
+    @SmallTest
+    public void testSummary() {
+        BluetoothMapMessageIndex index = new BluetoothMapMessageIndex(true);
+        assertSummary(index, 0, -1, 0, 0, 0, 0);
+
+        index.put(1, BluetoothMapMessageIndex.entry(1, 1, LISTED | READ));
+        index.put(2, BluetoothMapMessageIndex.entry(2, 2, LISTED | DELETED));
+        // Not retrieved yet, the pending flag is not in the table
+        index.put(5, BluetoothMapMessageIndex.entry(1, 3, BluetoothMapMessageIndex.FLAG_PENDING));
+        assertSummary(index, 3, 5, 1, 1, 2, 4);
+
+        // Marked read and moved to the sent box
+        index.put(5, BluetoothMapMessageIndex.entry(2, 3, READ));
+        assertSummary(index, 3, 5, 2, 1, 2, 5);
+        index.remove(5);
+        assertSummary(index, 2, 2, 1, 1, 2, 3);
+    }
+}
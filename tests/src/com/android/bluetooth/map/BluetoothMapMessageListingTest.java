@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Tests for {@link BluetoothMapMessageListing}.
+ */
+public class BluetoothMapMessageListingTest extends AndroidTestCase {
+
+    private static BluetoothMapMessageListing listing(int size) {
+        BluetoothMapMessageListing listing = new BluetoothMapMessageListing();
+        for (int i = 0; i < size; i++) {
+            BluetoothMapMessageListingElement element = new BluetoothMapMessageListingElement();
+            element.setHandle(i, TYPE.SMS_GSM);
+            element.setSubject("Line one\r\nline two \u00e6\u00f8\u00e5 " + i);
+            element.setDateTime(1400000000000L - i * 60000L);
+            element.setSenderName("Jens\nHansen");
+            element.setType(TYPE.SMS_GSM);
+            element.setSize(120);
+            element.setRead(i % 2 == 0 ? "no" : "yes", true);
+            listing.add(element);
+        }
+        return listing;
+    }
+
+    @SmallTest
+    public void testEncode() throws Exception {
+        String xml = new String(listing(2).encode(), "UTF-8");
+        assertTrue(xml, xml.startsWith("<?xml version=\"1.0\"?>\n<MAP-msg-listing version=\"1.0\">"));
+        assertTrue(xml, xml.trim().endsWith("</MAP-msg-listing>"));
+        assertTrue(xml, xml.contains("subject=\"Line oneline two \u00e6\u00f8\u00e5 1\""));
+        assertTrue(xml, xml.contains("sender_name=\"JensHansen\""));
+        assertEquals(2, xml.split("<msg ").length - 1);
+    }
+
+    @SmallTest
+    public void testEncodeToStream() throws Exception {
+        BluetoothMapMessageListing listing = listing(500);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        listing.encode(out);
+        byte[] streamed = out.toByteArray();
+        assertTrue(streamed.length > 8192);
+        assertEquals(new String(listing.encode(), "UTF-8"), new String(streamed, "UTF-8"));
+    }
+
+    @SmallTest
+    public void testEncodeToFailingStream() {
+        OutputStream out = new OutputStream() {
+            private int mWritten = 0;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (++mWritten > 10000) throw new IOException("closed");
+            }
+        };
+        try {
+            listing(500).encode(out);
+            fail("IOException expected");
+        } catch (IOException e) {
+            // The encoding stops at the first failed write
+        }
+    }
+}
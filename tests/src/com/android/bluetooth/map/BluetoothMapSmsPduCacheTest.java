@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import android.telephony.TelephonyManager;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.bluetooth.map.BluetoothMapSmsPdu.SmsPdu;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link BluetoothMapSmsPduCache}.
+ */
+public class BluetoothMapSmsPduCacheTest extends AndroidTestCase {
+    private static final String TEXT = "Let's go fishing!";
+    private static final String ADDRESS = "+4587654321";
+    private static final long DATE = 1400000000000L;
+    private static final int PHONE_TYPE = TelephonyManager.PHONE_TYPE_GSM;
+
+    private BluetoothMapSmsPduCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new BluetoothMapSmsPduCache();
+    }
+
+    @SmallTest
+    public void testHit() {
+        ArrayList<SmsPdu> first = mCache.getPdus(1, TEXT, ADDRESS, DATE, true, PHONE_TYPE);
+        ArrayList<SmsPdu> second = mCache.getPdus(1, TEXT, ADDRESS, DATE, true, PHONE_TYPE);
+        assertEquals(1, mCache.getMissCount());
+        assertEquals(1, mCache.getHitCount());
+        assertEquals(first.size(), second.size());
+        assertSame(first.get(0), second.get(0));
+        // The list belongs to the caller
+        assertNotSame(first, second);
+    }
+
+    @SmallTest
+    public void testChangedMessageIsEncodedAgain() {
+        ArrayList<SmsPdu> deliver = mCache.getPdus(1, TEXT, ADDRESS, DATE, true, PHONE_TYPE);
+        ArrayList<SmsPdu> submit = mCache.getPdus(1, TEXT, ADDRESS, DATE, false, PHONE_TYPE);
+        assertNotSame(deliver.get(0), submit.get(0));
+        ArrayList<SmsPdu> edited = mCache.getPdus(1, TEXT + "?", ADDRESS, DATE, false, PHONE_TYPE);
+        assertFalse(Arrays.equals(submit.get(0).getData(), edited.get(0).getData()));
+        assertEquals(3, mCache.getMissCount());
+        assertEquals(0, mCache.getHitCount());
+    }
+
+    @SmallTest
+    public void testRemove() {
+        mCache.getPdus(1, TEXT, ADDRESS, DATE, true, PHONE_TYPE);
+        mCache.remove(1);
+        assertEquals(0, mCache.size());
+        mCache.getPdus(1, TEXT, ADDRESS, DATE, true, PHONE_TYPE);
+        assertEquals(2, mCache.getMissCount());
+    }
+
+    @SmallTest
+    public void testEviction() {
+        for (int i = 0; i <= BluetoothMapSmsPduCache.MAX_ENTRIES; i++) {
+            mCache.getPdus(i, TEXT, ADDRESS, DATE, true, PHONE_TYPE);
+        }
+        assertEquals(BluetoothMapSmsPduCache.MAX_ENTRIES, mCache.size());
+        // The least recently used is gone
+        mCache.getPdus(0, TEXT, ADDRESS, DATE, true, PHONE_TYPE);
+        assertEquals(BluetoothMapSmsPduCache.MAX_ENTRIES + 2, mCache.getMissCount());
+    }
+}
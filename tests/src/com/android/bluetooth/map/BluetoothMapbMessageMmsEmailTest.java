@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests for {@link BluetoothMapbMessageMmsEmail}.
+ */
+public class BluetoothMapbMessageMmsEmailTest extends AndroidTestCase {
+
+    private static class ByteArraySource implements BluetoothMapbMessageMmsEmail.DataSource {
+        private final byte[] mData;
+
+        ByteArraySource(byte[] data) {
+            mData = data;
+        }
+
+        @Override
+        public long getLength() {
+            return mData.length;
+        }
+
+        @Override
+        public InputStream open() {
+            return new ByteArrayInputStream(mData);
+        }
+    }
+
+    private static BluetoothMapbMessageMmsEmail message(byte[] attachment) {
+        BluetoothMapbMessageMmsEmail message = new BluetoothMapbMessageMmsEmail();
+        message.setType(TYPE.MMS);
+        message.setStatus(false);
+        message.setFolder("inbox");
+        message.setDate(1400000000000L);
+        message.setSubject("Holiday");
+        message.setContentType("application/vnd.wap.multipart.related");
+        message.setIncludeAttachments(true);
+        message.addFrom(null, "+4512345678");
+        message.addOriginator("Casper Bonde", "Casper Bonde",
+                new String[] {"+4512345678"}, null);
+
+        BluetoothMapbMessageMmsEmail.MimePart text = message.addMimePart();
+        text.contentType = "text/plain";
+        text.charsetName = "utf-8";
+        text.data = "Look at this\r\nEND:MSG".getBytes();
+
+        BluetoothMapbMessageMmsEmail.MimePart image = message.addMimePart();
+        image.contentType = "image/jpeg";
+        image.partName = "image.jpg";
+        image.data = attachment;
+        message.updateCharset();
+        return message;
+    }
+
+    @SmallTest
+    public void testStreamedPartsMatchInMemoryParts() throws Exception {
+        Random random = new Random(1);
+        int[] sizes = {0, 1, 2, 3, 56, 57, 58, 1000, 57 * 144 - 1, 57 * 144, 57 * 144 + 1, 100000};
+        for (int size : sizes) {
+            byte[] attachment = new byte[size];
+            random.nextBytes(attachment);
+            BluetoothMapbMessageMmsEmail message = message(attachment);
+            byte[] expected = message.encodeMms();
+
+            BluetoothMapbMessageMmsEmail.MimePart image = message.getMimeParts().get(1);
+            image.data = null;
+            image.dataSource = new ByteArraySource(attachment);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            message.encode(out);
+            assertTrue("size " + size, Arrays.equals(expected, out.toByteArray()));
+            assertLength(new String(out.toByteArray(), "UTF-8"));
+        }
+    }
+
+    @SmallTest
+    public void testChangedPartFails() throws Exception {
+        BluetoothMapbMessageMmsEmail message = message(null);
+        message.getMimeParts().get(1).dataSource = new ByteArraySource(new byte[100]) {
+            @Override
+            public InputStream open() {
+                return new ByteArrayInputStream(new byte[99]);
+            }
+        };
+        try {
+            message.encode(new ByteArrayOutputStream());
+            fail("IOException expected");
+        } catch (IOException e) {
+            // The announced length cannot be kept
+        }
+    }
+
+    /* The LENGTH of the body covers BEGIN:MSG to END:MSG */
+    private static void assertLength(String bMessage) throws Exception {
+        int start = bMessage.indexOf("LENGTH:");
+        int end = bMessage.indexOf("\r\n", start);
+        int length = Integer.parseInt(bMessage.substring(start + 7, end));
+        String content = bMessage.substring(end + 2, bMessage.lastIndexOf("END:BBODY"));
+        assertTrue(content.startsWith("BEGIN:MSG\r\n"));
+        assertTrue(content.endsWith("\r\nEND:MSG\r\n"));
+        assertFalse(content.substring(11, content.length() - 11).contains("\r\nEND:MSG"));
+        assertEquals(length, content.getBytes("UTF-8").length);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Base64;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests for {@link BluetoothMapbMessageParser} and the parsing of pushed
+ * bMessages through it.
+ */
+public class BluetoothMapbMessageParserTest extends AndroidTestCase {
+
+    private static BluetoothMapbMessage parse(String type, String content) throws Exception {
+        String bMessage =
+                "BEGIN:BMSG\r\n" +
+                "VERSION:1.0\r\n" +
+                "STATUS:UNREAD\r\n" +
+                "TYPE:" + type + "\r\n" +
+                "FOLDER:telecom/msg/outbox\r\n" +
+                "BEGIN:BENV\r\n" +
+                "BEGIN:VCARD\r\n" +
+                "VERSION:2.1\r\n" +
+                "N:Jens Hansen\r\n" +
+                "TEL:+4587654321\r\n" +
+                "END:VCARD\r\n" +
+                "BEGIN:BBODY\r\n" +
+                "CHARSET:UTF-8\r\n" +
+                "LENGTH:" + content.length() + "\r\n" +
+                content +
+                "END:BBODY\r\n" +
+                "END:BENV\r\n" +
+                "END:BMSG\r\n";
+        return BluetoothMapbMessage.parse(new ByteArrayInputStream(bMessage.getBytes("UTF-8")),
+                BluetoothMapAppParams.CHARSET_UTF8);
+    }
+
+    @SmallTest
+    public void testSmsContent() throws Exception {
+        BluetoothMapbMessageSms sms = (BluetoothMapbMessageSms) parse("SMS_GSM",
+                "BEGIN:MSG\r\n" +
+                "Let's go fishing\r\n" +
+                "/END:MSG\r\n" +
+                "\r\n" +
+                "//END:MSG\r\n" +
+                "END:MSG\r\n");
+        assertEquals("Let's go fishing\r\nEND:MSG\r\n\r\n/END:MSG", sms.getSmsBody());
+        assertEquals("telecom/msg/outbox", sms.getFolder());
+        assertEquals("+4587654321", sms.getRecipients().get(0).getFirstPhoneNumber());
+    }
+
+    @SmallTest
+    public void testSmsLongLine() throws Exception {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 30000) {
+            text.append("Let's go fishing, the weather is fine. ");
+        }
+        BluetoothMapbMessageSms sms = (BluetoothMapbMessageSms) parse("SMS_GSM",
+                "BEGIN:MSG\r\n" + text + "\r\nEND:MSG\r\n");
+        assertEquals(text.toString().trim(), sms.getSmsBody());
+    }
+
+    @SmallTest
+    public void testMissingEndMsg() throws Exception {
+        try {
+            parse("SMS_GSM", "BEGIN:MSG\r\nLet's go fishing\r\n");
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // The bMessage is too short
+        }
+    }
+
+    @SmallTest
+    public void testMmsAttachmentIsSpooled() throws Exception {
+        byte[] attachment = new byte[BluetoothMapbMessageMmsEmail.SPOOL_THRESHOLD * 4 + 1];
+        new Random(1).nextBytes(attachment);
+        BluetoothMapbMessageMmsEmail mms = (BluetoothMapbMessageMmsEmail) parse("MMS",
+                "BEGIN:MSG\r\n" +
+                "Subject: Holiday\r\n" +
+                "Content-Type: multipart/mixed;\r\n" +
+                "  boundary=\"PART\"\r\n" +
+                "\r\n" +
+                "--PART\r\n" +
+                "Content-Type: text/plain\r\n" +
+                "\r\n" +
+                "Look at this\r\n" +
+                "/END:MSG\r\n" +
+                "--PART\r\n" +
+                "Content-Type: image/jpeg\r\n" +
+                "Content-Location: image.jpg\r\n" +
+                "Content-Transfer-Encoding: Base64\r\n" +
+                "\r\n" +
+                Base64.encodeToString(attachment, Base64.CRLF) +
+                "--PART--\r\n" +
+                "END:MSG\r\n");
+        try {
+            assertEquals("Holiday", mms.getSubject());
+            assertEquals(2, mms.getMimeParts().size());
+
+            BluetoothMapbMessageMmsEmail.MimePart text = mms.getMimeParts().get(0);
+            assertEquals("Look at this\r\nEND:MSG\r\n", new String(text.data, "UTF-8"));
+
+            BluetoothMapbMessageMmsEmail.MimePart image = mms.getMimeParts().get(1);
+            assertEquals("image.jpg", image.partName);
+            assertNull(image.data);
+            assertEquals(attachment.length, image.dataSource.getLength());
+            assertTrue(Arrays.equals(attachment, read(image.dataSource.open())));
+        } finally {
+            mms.release();
+        }
+    }
+
+    @SmallTest
+    public void testMmsWithoutBoundary() throws Exception {
+        BluetoothMapbMessageMmsEmail mms = (BluetoothMapbMessageMmsEmail) parse("MMS",
+                "BEGIN:MSG\r\n" +
+                "Subject: Holiday\r\n" +
+                "\r\n" +
+                "Look at this\r\n" +
+                "\r\n" +
+                "and this\r\n" +
+                "\r\n" +
+                "END:MSG\r\n");
+        assertTrue(mms.getTextOnly());
+        BluetoothMapbMessageMmsEmail.MimePart text = mms.getMimeParts().get(0);
+        assertEquals("text/plain", text.contentType);
+        assertEquals("Look at this\r\n\r\nand this", new String(text.data, "UTF-8"));
+    }
+
+    @SmallTest
+    public void testEmail() throws Exception {
+        BluetoothMapbMessageMmsEmail email = (BluetoothMapbMessageMmsEmail) parse("EMAIL",
+                "BEGIN:MSG\r\n" +
+                "Date: Thu, 1 Jan 2015 10:00:00 +0100\r\n" +
+                "Subject:Holiday\r\n" +
+                "\r\n" +
+                "Look at this\r\n" +
+                "END:MSG\r\n");
+        assertEquals("Holiday", email.getSubject().trim());
+        assertEquals("Look at this", email.getEmailBody());
+    }
+
+    private static byte[] read(InputStream is) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[4096];
+            int len;
+            while ((len = is.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+        } finally {
+            is.close();
+        }
+        return out.toByteArray();
+    }
+}
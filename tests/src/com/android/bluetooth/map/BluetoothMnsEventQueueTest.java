@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.bluetooth.map.BluetoothMapContentObserver.Event;
+import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
+
+/**
+ * Tests for {@link BluetoothMnsEventQueue}.
+ */
+public class BluetoothMnsEventQueueTest extends AndroidTestCase {
+    private static final int MAS_ID = 0;
+
+    private BluetoothMnsEventQueue mQueue;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mQueue = new BluetoothMnsEventQueue();
+    }
+
+    private static Event event(String type, long handle, String folder, String oldFolder) {
+        return new Event(type, handle, folder, oldFolder, TYPE.SMS_GSM);
+    }
+
+    private Event poll() {
+        BluetoothMnsEventQueue.Entry entry = mQueue.poll(0);
+        return entry != null ? entry.getEvent() : null;
+    }
+
+    @SmallTest
+    public void testNewMessageThenDeletedIsDropped() {
+        assertTrue(mQueue.add(event("NewMessage", 1, "inbox", null), MAS_ID, 0));
+        assertFalse(mQueue.add(event("MessageDeleted", 1, "deleted", null), MAS_ID, 0));
+        assertEquals(0, mQueue.getDepth());
+        assertTrue(mQueue.isEmpty());
+        assertNull(poll());
+        assertEquals(2, mQueue.getCoalescedCount());
+    }
+
+    @SmallTest
+    public void testNewMessageThenShift() {
+        mQueue.add(event("NewMessage", 1, "inbox", null), MAS_ID, 0);
+        mQueue.add(event("MessageShift", 1, "sent", "inbox"), MAS_ID, 0);
+        Event evt = poll();
+        assertEquals("NewMessage", evt.eventType);
+        assertEquals("telecom/msg/sent", evt.folder);
+        assertNull(poll());
+    }
+
+    @SmallTest
+    public void testShifts() {
+        mQueue.add(event("MessageShift", 1, "outbox", "draft"), MAS_ID, 0);
+        mQueue.add(event("MessageShift", 1, "sent", "outbox"), MAS_ID, 0);
+        mQueue.add(event("MessageShift", 2, "inbox", "sent"), MAS_ID, 0);
+        mQueue.add(event("MessageShift", 2, "sent", "inbox"), MAS_ID, 0);
+
+        Event evt = poll();
+        assertEquals("MessageShift", evt.eventType);
+        assertEquals(1, evt.handle);
+        assertEquals("telecom/msg/sent", evt.folder);
+        assertEquals("telecom/msg/draft", evt.oldFolder);
+        // The second message is back in its folder
+        assertNull(poll());
+    }
+
+    @SmallTest
+    public void testShiftThenDeleted() {
+        mQueue.add(event("MessageShift", 1, "sent", "outbox"), MAS_ID, 0);
+        mQueue.add(event("MessageDeleted", 1, "deleted", null), MAS_ID, 0);
+        assertEquals(1, mQueue.getDepth());
+        assertEquals("MessageDeleted", poll().eventType);
+        assertNull(poll());
+    }
+
+    @SmallTest
+    public void testNewMessagesFirst() {
+        mQueue.add(event("MessageDeleted", 1, "deleted", null), MAS_ID, 0);
+        mQueue.add(event("SendingSuccess", 2, "sent", null), MAS_ID, 0);
+        mQueue.add(event("NewMessage", 3, "inbox", null), MAS_ID, 0);
+        mQueue.add(event("NewMessage", 4, "inbox", null), MAS_ID, 0);
+
+        assertEquals(3, poll().handle);
+        assertEquals(4, poll().handle);
+        assertEquals(1, poll().handle);
+        assertEquals(2, poll().handle);
+        assertNull(poll());
+    }
+
+    @SmallTest
+    public void testNewMessageAfterDeletedOfSameHandle() {
+        mQueue.add(event("NewMessage", 1, "inbox", null), MAS_ID, 0);
+        mQueue.add(event("MessageDeleted", 2, "deleted", null), MAS_ID, 0);
+        // The handle of the deleted message is reused
+        mQueue.add(event("NewMessage", 2, "inbox", null), MAS_ID, 0);
+        mQueue.add(event("NewMessage", 3, "inbox", null), MAS_ID, 0);
+
+        assertEquals(1, poll().handle);
+        assertEquals(3, poll().handle);
+        Event evt = poll();
+        assertEquals("MessageDeleted", evt.eventType);
+        assertEquals(2, evt.handle);
+        evt = poll();
+        assertEquals("NewMessage", evt.eventType);
+        assertEquals(2, evt.handle);
+        assertNull(poll());
+    }
+
+    @SmallTest
+    public void testSentEventIsNotMerged() {
+        mQueue.add(event("NewMessage", 1, "inbox", null), MAS_ID, 0);
+        assertEquals("NewMessage", poll().eventType);
+        // The MCE knows the message now
+        assertTrue(mQueue.add(event("MessageDeleted", 1, "deleted", null), MAS_ID, 0));
+        assertEquals("MessageDeleted", poll().eventType);
+    }
+
+    @SmallTest
+    public void testDuplicateReportIsDropped() {
+        assertTrue(mQueue.add(event("DeliverySuccess", 1, "sent", null), MAS_ID, 0));
+        assertFalse(mQueue.add(event("DeliverySuccess", 1, "sent", null), MAS_ID, 0));
+        assertTrue(mQueue.add(event("DeliverySuccess", 1, "sent", null), MAS_ID + 1, 0));
+        assertEquals(2, mQueue.getDepth());
+    }
+
+    @SmallTest
+    public void testPacingAndMetrics() {
+        assertEquals(0, mQueue.getDelay(1000));
+        mQueue.add(event("NewMessage", 1, "inbox", null), MAS_ID, 1000);
+        mQueue.add(event("NewMessage", 2, "inbox", null), MAS_ID, 1000);
+        assertEquals(2, mQueue.getMaxDepth());
+
+        assertNotNull(mQueue.poll(1010));
+        assertEquals(BluetoothMnsEventQueue.EVENT_INTERVAL_MS - 5, mQueue.getDelay(1015));
+        assertEquals(0, mQueue.getDelay(1010 + BluetoothMnsEventQueue.EVENT_INTERVAL_MS));
+        assertNotNull(mQueue.poll(1070));
+
+        assertEquals(2, mQueue.getSentCount());
+        assertEquals(40, mQueue.getAverageLatency());
+        assertEquals(70, mQueue.getMaxLatency());
+        assertEquals(0, mQueue.getDepth());
+    }
+}
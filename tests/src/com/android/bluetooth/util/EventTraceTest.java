@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Tests for {@link EventTrace}.
+ */
+public class EventTraceTest extends AndroidTestCase {
+    private static final String ADDRESS = "00:1A:7D:DA:71:13";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        EventTrace.clear();
+        EventTrace.setEnabled(true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        EventTrace.setEnabled(false);
+        EventTrace.clear();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testAddressPacking() {
+        String address = "00:1A:7D:DA:71:13";
+        long packed = EventTrace.packAddress(address);
+        assertEquals(0x001A7DDA7113L, packed);
+        assertEquals(address, EventTrace.formatAddress(packed));
+
+        byte[] bytes = {0x00, 0x1A, 0x7D, (byte) 0xDA, 0x71, 0x13};
+        assertEquals(packed, EventTrace.packAddress(bytes));
+
+        assertEquals(0, EventTrace.packAddress((String) null));
+        assertEquals("00:00:00:00:00:00", EventTrace.formatAddress(0));
+    }
+
+    @SmallTest
+    public void testDisabledRecordsNothing() {
+        EventTrace.setEnabled(false);
+        EventTrace.log(EventTrace.TYPE_CONNECTION, ADDRESS, 1, 2);
+        assertEquals(0, EventTrace.snapshot().length);
+
+        StringBuilder sb = new StringBuilder();
+        EventTrace.dump(sb);
+        assertEquals("", sb.toString());
+    }
+
+    @SmallTest
+    public void testRingBufferKeepsNewest() {
+        int total = EventTrace.CAPACITY + 10;
+        for (int i = 0; i < total; i++) {
+            EventTrace.log(EventTrace.TYPE_SCAN_RESULT, ADDRESS, -i, i);
+        }
+        long[] events = EventTrace.snapshot();
+        int recordSize = events.length / EventTrace.CAPACITY;
+        assertEquals(EventTrace.CAPACITY * recordSize, events.length);
+
+        // Oldest first, the first 10 events were overwritten
+        assertEquals(10, events[3]);
+        assertEquals(total - 1, events[events.length - 1]);
+        for (int i = recordSize; i < events.length; i += recordSize) {
+            assertTrue(events[i] >= events[i - recordSize]);
+        }
+    }
+
+    @SmallTest
+    public void testDumpPrintsLastEvents() {
+        for (int i = 0; i < EventTrace.DUMP_EVENTS + 5; i++) {
+            EventTrace.log(EventTrace.TYPE_AT_COMMAND, ADDRESS, 7, i);
+        }
+        StringBuilder sb = new StringBuilder();
+        EventTrace.dump(sb);
+        String dump = sb.toString();
+
+        assertTrue(dump.startsWith("Event trace (on): " + (EventTrace.DUMP_EVENTS + 5)
+                + " events, " + (EventTrace.DUMP_EVENTS + 5) + " kept\n"));
+        assertTrue(dump.contains(" at_command " + ADDRESS + " event=7 value=5\n"));
+        assertFalse(dump.contains(" value=4\n"));
+        assertTrue(dump.contains(EventTrace.JSON_HEADER + "\n{"));
+    }
+
+    @SmallTest
+    public void testJson() throws Exception {
+        EventTrace.log(EventTrace.TYPE_CONNECTION, ADDRESS, 1, (1 << 8) | 2);
+        EventTrace.log(EventTrace.TYPE_AVRCP_COMMAND, (String) null, 0x31, 4);
+
+        StringBuilder sb = new StringBuilder();
+        EventTrace.appendJson(sb, EventTrace.snapshot());
+        JSONObject trace = new JSONObject(sb.toString());
+        assertEquals("ms", trace.getString("displayTimeUnit"));
+        JSONArray events = trace.getJSONArray("traceEvents");
+
+        // A named track per type, then the events
+        int tracks = events.length() - 2;
+        JSONObject track = events.getJSONObject(EventTrace.TYPE_CONNECTION - 1);
+        assertEquals("M", track.getString("ph"));
+        assertEquals("connection", track.getJSONObject("args").getString("name"));
+
+        JSONObject connection = events.getJSONObject(tracks);
+        assertEquals("connection", connection.getString("name"));
+        assertEquals("i", connection.getString("ph"));
+        assertEquals(EventTrace.TYPE_CONNECTION, connection.getInt("tid"));
+        JSONObject args = connection.getJSONObject("args");
+        assertEquals(ADDRESS, args.getString("address"));
+        assertEquals(1, args.getInt("profile"));
+        assertEquals((1 << 8) | 2, args.getInt("states"));
+
+        JSONObject avrcp = events.getJSONObject(tracks + 1);
+        assertEquals("avrcp_command", avrcp.getString("name"));
+        assertEquals(0x31, avrcp.getJSONObject("args").getInt("pdu"));
+        assertTrue(avrcp.getLong("ts") >= connection.getLong("ts"));
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.util;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Base of the in-process fakes of the native profile interfaces.
+ *
+ * Callbacks are delivered from a thread of the fake, as the stack delivers
+ * them from its callback thread. Calls into the fake are counted by name so
+ * tests can check what the profile asked of the stack. {@link #replay}
+ * drives a profile with a stream of events at a given rate, for soak and
+ * throughput tests.
+ */
+public abstract class FakeNativeStack {
+    /** Fires the index-th event of a replay. */
+    public interface Event {
+        void fire(int index) throws Exception;
+    }
+
+    /**
+     * Installs a fake as the native interface factory of a profile component
+     * and keeps the fake of the last component created.
+     *
+     * @param <O> the component owning the interface
+     * @param <N> the native interface
+     * @param <F> the fake
+     */
+    public abstract static class Installer<O, N, F extends N>
+            implements NativeInterfaceFactory<O, N> {
+        private volatile F mLast;
+
+        /** Create the fake of a component. */
+        protected abstract F newFake(O owner);
+
+        /** Set the factory hook of the component, null to go back to JNI. */
+        protected abstract void setFactory(NativeInterfaceFactory<O, N> factory);
+
+        @Override
+        public final N create(O owner) {
+            mLast = newFake(owner);
+            return mLast;
+        }
+
+        /** Make the components created from now on use a fake stack. */
+        public void install() {
+            setFactory(this);
+        }
+
+        public void uninstall() {
+            setFactory(null);
+        }
+
+        /** @return the fake of the last component created */
+        public F getLast() {
+            return mLast;
+        }
+    }
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final ConcurrentHashMap<String, AtomicInteger> mCalls =
+            new ConcurrentHashMap<String, AtomicInteger>();
+    // Latency between the scheduled and the actual firing of replayed events
+    private final LatencyHistogram mLag = new LatencyHistogram();
+
+    protected FakeNativeStack(String name) {
+        mThread = new HandlerThread(name);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /** Record a call from the profile into the stack. */
+    protected void called(String call) {
+        AtomicInteger count = mCalls.get(call);
+        if (count == null) {
+            count = new AtomicInteger();
+            AtomicInteger previous = mCalls.putIfAbsent(call, count);
+            if (previous != null) count = previous;
+        }
+        count.incrementAndGet();
+    }
+
+    public int getCallCount(String call) {
+        AtomicInteger count = mCalls.get(call);
+        return count == null ? 0 : count.get();
+    }
+
+    /** Deliver a callback from the callback thread of the fake. */
+    protected void callback(Runnable callback) {
+        mHandler.post(callback);
+    }
+
+    /**
+     * Wait until the callbacks posted so far have been delivered.
+     * @return false on timeout
+     */
+    public boolean drain(long timeoutMs) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        return latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Fire count events from the calling thread, paced at ratePerSecond, or
+     * as fast as possible when the rate is 0.
+     * @return the achieved rate, in events per second
+     */
+    public double replay(int count, int ratePerSecond, Event event) throws Exception {
+        long start = SystemClock.elapsedRealtimeNanos();
+        long intervalNanos = ratePerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / ratePerSecond : 0;
+        for (int i = 0; i < count; i++) {
+            long due = start + i * intervalNanos;
+            long now = SystemClock.elapsedRealtimeNanos();
+            if (due > now) {
+                long sleepNanos = due - now;
+                Thread.sleep(sleepNanos / 1000000, (int) (sleepNanos % 1000000));
+            } else if (intervalNanos > 0) {
+                mLag.record((now - due) / 1000);
+            }
+            event.fire(i);
+        }
+        long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        return elapsed == 0 ? 0 : count * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    /** Lag of the paced replays behind their schedule, in microseconds. */
+    public LatencyHistogram getReplayLag() {
+        return mLag;
+    }
+
+    public void quit() {
+        mThread.quitSafely();
+    }
+
+    /** Bytes of a fake address, the index goes in the last two bytes. */
+    public static byte[] address(int index) {
+        return new byte[] {0x00, 0x11, 0x22, 0x33, (byte) (index >> 8), (byte) index};
+    }
+
+    public static String addressString(int index) {
+        return String.format("00:11:22:33:%02X:%02X", (index >> 8) & 0xff, index & 0xff);
+    }
+}